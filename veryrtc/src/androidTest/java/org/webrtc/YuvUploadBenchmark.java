@@ -0,0 +1,218 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.opengl.GLES20;
+import android.support.test.runner.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Microbenchmark for the I420 upload path of VideoFrameDrawer. For each common resolution, packed
+ * and padded I420 frames are drawn with VideoFrameDrawer, which keeps its textures across frames,
+ * and with the previous path, which reallocated the textures with glTexImage2D and packed strided
+ * planes into a copy buffer on every frame. Both draw into a 1x1 viewport, so the time is spent
+ * uploading. The results are logged.
+ */
+@RunWith(AndroidJUnit4.class)
+public class YuvUploadBenchmark {
+  private static final String TAG = "YuvUploadBenchmark";
+  private static final int WARMUP_ITERATIONS = 10;
+  private static final int ITERATIONS = 100;
+  // Stride padding used for the padded frames, in bytes.
+  private static final int STRIDE_PADDING = 32;
+
+  private static final int[][] COMMON_RESOLUTIONS = {
+      {320, 180}, {320, 240}, {640, 360}, {640, 480}, {960, 540}, {1280, 720}, {1920, 1080}};
+
+  /** Average upload time of one frame. */
+  private static class Result {
+    public final int width;
+    public final int height;
+    public final boolean padded;
+    public final double persistentUs;
+    public final double reallocatingUs;
+
+    Result(int width, int height, boolean padded, double persistentUs, double reallocatingUs) {
+      this.width = width;
+      this.height = height;
+      this.padded = padded;
+      this.persistentUs = persistentUs;
+      this.reallocatingUs = reallocatingUs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "%dx%d%s: persistent %.1f us, reallocating %.1f us.", width,
+          height, padded ? " (padded)" : "", persistentUs, reallocatingUs);
+    }
+  }
+
+  @Test
+  public void benchmarkUploads() {
+    final EglBase eglBase = EglBase.create(null /* sharedContext */, EglBase.CONFIG_PIXEL_BUFFER);
+    try {
+      eglBase.createDummyPbufferSurface();
+      eglBase.makeCurrent();
+      Logging.d(TAG, "GL_UNPACK_ROW_LENGTH supported: " + GlUtil.isGles3ContextCurrent());
+      for (int[] resolution : COMMON_RESOLUTIONS) {
+        for (boolean padded : new boolean[] {false, true}) {
+          final Result result = measure(resolution[0], resolution[1], padded);
+          Logging.d(TAG, result.toString());
+          assertTrue(result.toString(), result.persistentUs > 0 && result.reallocatingUs > 0);
+        }
+      }
+    } finally {
+      eglBase.release();
+    }
+  }
+
+  @Test
+  public void testUploadKeepsUnpackAlignment() {
+    final EglBase eglBase = EglBase.create(null /* sharedContext */, EglBase.CONFIG_PIXEL_BUFFER);
+    final GlRectDrawer drawer = new GlRectDrawer();
+    final VideoFrameDrawer frameDrawer = new VideoFrameDrawer();
+    try {
+      eglBase.createDummyPbufferSurface();
+      eglBase.makeCurrent();
+      final int[] strides = {321, 161, 161};
+      final ByteBuffer[] planes = allocatePlanes(321, 181, strides);
+      for (int alignment : new int[] {1, 4}) {
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, alignment);
+        drawFrame(frameDrawer, drawer, 321, 181, strides, planes);
+        final int[] currentAlignment = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_UNPACK_ALIGNMENT, currentAlignment, 0);
+        assertEquals(alignment, currentAlignment[0]);
+      }
+      GlUtil.checkNoGLES2Error("YuvUploadBenchmark.alignment");
+    } finally {
+      frameDrawer.release();
+      drawer.release();
+      eglBase.release();
+    }
+  }
+
+  private static ByteBuffer[] allocatePlanes(int width, int height, int[] strides) {
+    final int chromaHeight = (height + 1) / 2;
+    return new ByteBuffer[] {ByteBuffer.allocateDirect(strides[0] * height),
+        ByteBuffer.allocateDirect(strides[1] * chromaHeight),
+        ByteBuffer.allocateDirect(strides[2] * chromaHeight)};
+  }
+
+  // VideoFrameDrawer only uploads frames it has not drawn last, so every call wraps the planes in a
+  // new frame.
+  private static void drawFrame(VideoFrameDrawer frameDrawer, GlRectDrawer drawer, int width,
+      int height, int[] strides, ByteBuffer[] planes) {
+    final VideoFrame frame = new VideoFrame(JavaI420Buffer.wrap(width, height, planes[0],
+                                                strides[0], planes[1], strides[1], planes[2],
+                                                strides[2], null /* releaseCallback */),
+        0 /* rotation */, 0 /* timestampNs */);
+    frameDrawer.drawFrame(frame, drawer, null /* additionalRenderMatrix */, 0 /* viewportX */,
+        0 /* viewportY */, 1 /* viewportWidth */, 1 /* viewportHeight */);
+    frame.release();
+  }
+
+  private static Result measure(int width, int height, boolean padded) {
+    final int chromaWidth = (width + 1) / 2;
+    final int padding = padded ? STRIDE_PADDING : 0;
+    final int[] strides = {width + padding, chromaWidth + padding, chromaWidth + padding};
+    final ByteBuffer[] planes = allocatePlanes(width, height, strides);
+    final GlRectDrawer drawer = new GlRectDrawer();
+
+    final VideoFrameDrawer frameDrawer = new VideoFrameDrawer();
+    final double persistentUs;
+    try {
+      for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+        drawFrame(frameDrawer, drawer, width, height, strides, planes);
+      }
+      GLES20.glFinish();
+      final long startTimeNs = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; ++i) {
+        drawFrame(frameDrawer, drawer, width, height, strides, planes);
+      }
+      GLES20.glFinish();
+      persistentUs = (System.nanoTime() - startTimeNs) / 1000.0 / ITERATIONS;
+      GlUtil.checkNoGLES2Error("YuvUploadBenchmark.persistent");
+    } finally {
+      frameDrawer.release();
+    }
+
+    final ReallocatingUploader reallocatingUploader = new ReallocatingUploader();
+    final float[] texMatrix = RendererCommon.identityMatrix();
+    final double reallocatingUs;
+    try {
+      for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+        reallocatingUploader.upload(width, height, strides, planes);
+        drawer.drawYuv(reallocatingUploader.yuvTextures, texMatrix, width, height,
+            0 /* viewportX */, 0 /* viewportY */, 1 /* viewportWidth */, 1 /* viewportHeight */);
+      }
+      GLES20.glFinish();
+      final long startTimeNs = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; ++i) {
+        reallocatingUploader.upload(width, height, strides, planes);
+        drawer.drawYuv(reallocatingUploader.yuvTextures, texMatrix, width, height,
+            0 /* viewportX */, 0 /* viewportY */, 1 /* viewportWidth */, 1 /* viewportHeight */);
+      }
+      GLES20.glFinish();
+      reallocatingUs = (System.nanoTime() - startTimeNs) / 1000.0 / ITERATIONS;
+      GlUtil.checkNoGLES2Error("YuvUploadBenchmark.reallocating");
+    } finally {
+      reallocatingUploader.release();
+      drawer.release();
+    }
+    return new Result(width, height, padded, persistentUs, reallocatingUs);
+  }
+
+  // The upload path VideoFrameDrawer used before textures were kept across frames.
+  private static class ReallocatingUploader {
+    private final int[] yuvTextures = new int[3];
+    private ByteBuffer copyBuffer;
+
+    ReallocatingUploader() {
+      for (int i = 0; i < 3; ++i) {
+        yuvTextures[i] = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
+      }
+    }
+
+    void upload(int width, int height, int[] strides, ByteBuffer[] planes) {
+      final int[] planeWidths = new int[] {width, (width + 1) / 2, (width + 1) / 2};
+      final int[] planeHeights = new int[] {height, (height + 1) / 2, (height + 1) / 2};
+      GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+      for (int i = 0; i < 3; ++i) {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, yuvTextures[i]);
+        ByteBuffer packedByteBuffer = planes[i];
+        if (strides[i] > planeWidths[i]) {
+          final int capacityNeeded = planeWidths[i] * planeHeights[i];
+          if (copyBuffer == null || copyBuffer.capacity() < capacityNeeded) {
+            copyBuffer = ByteBuffer.allocateDirect(capacityNeeded);
+          }
+          VideoRenderer.nativeCopyPlane(
+              planes[i], planeWidths[i], planeHeights[i], strides[i], copyBuffer, planeWidths[i]);
+          packedByteBuffer = copyBuffer;
+        }
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, planeWidths[i],
+            planeHeights[i], 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, packedByteBuffer);
+      }
+      GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+    }
+
+    void release() {
+      GLES20.glDeleteTextures(3, yuvTextures, 0);
+      copyBuffer = null;
+    }
+  }
+}
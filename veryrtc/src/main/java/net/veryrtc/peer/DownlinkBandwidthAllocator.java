@@ -0,0 +1,449 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.peer;
+
+import android.util.Log;
+
+import org.webrtc.StatsReport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Divides the downlink bandwidth among the subscriptions of a room.
+ * <p>
+ * Every connection generated without local media counts as a subscription. Each subscription has
+ * a priority, and the downlink budget is shared in priority order: every subscription first gets
+ * the minimum bitrate of its priority, then the remainder is split by priority weight up to the
+ * maximum bitrate of each priority. A subscription whose minimum does not fit anymore is paused,
+ * and so is every subscription after it in priority order, even if its smaller minimum would fit:
+ * a lower priority never gets bandwidth that a higher one is denied.
+ * </p>
+ * <p>
+ * The budget is the smaller of the configured cap and the downlink estimate, which is the smoothed
+ * sum of the receive bandwidth estimates of all subscriptions. A paused subscription keeps the
+ * estimate it had when it was paused, since its own estimate drops with the video it no longer
+ * receives, and pausing must not shrink the budget further.
+ * </p>
+ * <p>
+ * The allocation of a subscription is put as a b=AS limit on the video section of its offers, so
+ * it only takes effect when the subscription is negotiated, i.e. when it is subscribed or
+ * subscribed again. Established subscriptions are not renegotiated when the allocations change;
+ * pausing is what enforces a shrinking budget. Paused subscriptions are reported to the Listener,
+ * so that the application can unsubscribe from them, e.g. with
+ * KurentoRoomAPI.sendUnsubscribeFromVideo, and subscribe again once they are resumed.
+ * </p>
+ */
+public final class DownlinkBandwidthAllocator {
+    private static final String TAG = "DownlinkAllocator";
+
+    // Budget used before the first estimate is available.
+    private static final int DEFAULT_BUDGET_KBPS = 2500;
+    // Weight of a new sample in the smoothed downlink estimate.
+    private static final double ESTIMATE_SMOOTHING = 0.3;
+    // Relative budget change that triggers a reallocation.
+    private static final double REALLOCATION_THRESHOLD = 0.1;
+
+    public enum Priority {
+        ACTIVE_SPEAKER(8, 300, 1500),
+        PINNED(6, 300, 1200),
+        VISIBLE(3, 150, 600),
+        THUMBNAIL(1, 60, 200);
+
+        final int weight;
+        final int minKbps;
+        final int maxKbps;
+
+        Priority(int weight, int minKbps, int maxKbps) {
+            this.weight = weight;
+            this.minKbps = minKbps;
+            this.maxKbps = maxKbps;
+        }
+    }
+
+    /**
+     * The share of one subscription
+     */
+    public static final class Allocation {
+        public final String connectionId;
+        public final Priority priority;
+        // Allocated bitrate, 0 if paused.
+        public final int bitrateKbps;
+        public final boolean paused;
+
+        Allocation(String connectionId, Priority priority, int bitrateKbps, boolean paused) {
+            this.connectionId = connectionId;
+            this.priority = priority;
+            this.bitrateKbps = bitrateKbps;
+            this.paused = paused;
+        }
+
+        @Override
+        public String toString() {
+            return connectionId + " " + priority + ": "
+                    + (paused ? "paused" : bitrateKbps + " kbps");
+        }
+    }
+
+    /**
+     * Snapshot of the decisions of the allocator
+     */
+    public static final class Metrics {
+        public final int budgetKbps;
+        // Downlink estimate, or -1 before the first estimate.
+        public final int estimatedKbps;
+        public final int allocatedKbps;
+        public final int pausedSubscriptions;
+        // Number of reallocations since the allocator was created.
+        public final int reallocations;
+        public final List<Allocation> allocations;
+
+        Metrics(int budgetKbps, int estimatedKbps, int allocatedKbps, int pausedSubscriptions,
+                int reallocations, List<Allocation> allocations) {
+            this.budgetKbps = budgetKbps;
+            this.estimatedKbps = estimatedKbps;
+            this.allocatedKbps = allocatedKbps;
+            this.pausedSubscriptions = pausedSubscriptions;
+            this.reallocations = reallocations;
+            this.allocations = allocations;
+        }
+
+        @Override
+        public String toString() {
+            return "Budget: " + budgetKbps + " kbps. Estimate: " + estimatedKbps
+                    + " kbps. Allocated: " + allocatedKbps + " kbps. Paused: "
+                    + pausedSubscriptions + "/" + allocations.size() + ". Reallocations: "
+                    + reallocations + ".";
+        }
+    }
+
+    /**
+     * Notified about the decisions of the allocator, on the thread that caused them and without
+     * holding the lock of the allocator
+     */
+    public interface Listener {
+        /**
+         * Called when a subscription is paused because its minimum bitrate does not fit, or resumed
+         * @param connectionId The connection of the subscription
+         * @param paused True if the subscription has been paused, false if it has been resumed
+         */
+        void onSubscriptionPaused(String connectionId, boolean paused);
+
+        /**
+         * Called after every reallocation
+         * @param metrics The new allocations and budget
+         */
+        void onAllocationChanged(Metrics metrics);
+    }
+
+    /** Applies the allocations, implemented by VeryRTCPeer. */
+    interface Target {
+        /**
+         * Sets the b=AS limit of the offers of a subscription
+         * @param connectionId The connection of the subscription
+         * @param limitKbps The allocated bitrate
+         */
+        void setReceiveBandwidthLimit(String connectionId, int limitKbps);
+    }
+
+    // The changes made by one reallocation, dispatched after the lock has been released.
+    private static class Reallocation {
+        final Listener listener;
+        final Metrics metrics;
+        // Subscriptions paused (true) or resumed (false).
+        final Map<String, Boolean> pauseChanges;
+        // New allocations of the subscriptions that are not paused and whose allocation changed.
+        final Map<String, Integer> changedAllocations;
+
+        Reallocation(Listener listener, Metrics metrics, Map<String, Boolean> pauseChanges,
+                     Map<String, Integer> changedAllocations) {
+            this.listener = listener;
+            this.metrics = metrics;
+            this.pauseChanges = pauseChanges;
+            this.changedAllocations = changedAllocations;
+        }
+    }
+
+    private static class Subscription {
+        Priority priority = Priority.VISIBLE;
+        int bitrateKbps;
+        boolean paused;
+        // Latest receive bandwidth estimate of the connection, or -1.
+        int receiveBandwidthKbps = -1;
+    }
+
+    // Ordered by subscription time, which breaks ties between equal priorities.
+    private final Map<String, Subscription> subscriptions = new LinkedHashMap<>();
+    private int budgetCapKbps = Integer.MAX_VALUE;
+    private double estimatedKbps = -1;
+    private int budgetKbps = DEFAULT_BUDGET_KBPS;
+    private int reallocations;
+    private Listener listener;
+    private final Target target;
+
+    DownlinkBandwidthAllocator(Target target) {
+        this.target = target;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Caps the downlink budget, e.g. to a known plan limit
+     * @param budgetCapKbps The maximum budget, or 0 for no cap
+     */
+    public void setBudgetCap(int budgetCapKbps) {
+        final Reallocation reallocation;
+        synchronized (this) {
+            this.budgetCapKbps = (budgetCapKbps > 0) ? budgetCapKbps : Integer.MAX_VALUE;
+            reallocation = updateBudget(true /* force */);
+        }
+        dispatch(reallocation);
+    }
+
+    /**
+     * Sets the priority of a subscription, VISIBLE by default
+     * @param connectionId The connection of the subscription
+     * @param priority The new priority
+     */
+    public void setPriority(String connectionId, Priority priority) {
+        final Reallocation reallocation;
+        synchronized (this) {
+            Subscription subscription = subscriptions.get(connectionId);
+            if (subscription == null || subscription.priority == priority) {
+                return;
+            }
+            subscription.priority = priority;
+            reallocation = reallocate();
+        }
+        dispatch(reallocation);
+    }
+
+    /**
+     * Returns the bitrate allocated to a subscription, 0 if it is paused or unknown
+     */
+    public synchronized int getAllocatedBitrateKbps(String connectionId) {
+        Subscription subscription = subscriptions.get(connectionId);
+        return (subscription == null) ? 0 : subscription.bitrateKbps;
+    }
+
+    public synchronized Metrics getMetrics() {
+        final List<Allocation> allocations = new ArrayList<>();
+        int allocatedKbps = 0;
+        int pausedSubscriptions = 0;
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            final Subscription subscription = entry.getValue();
+            allocations.add(new Allocation(entry.getKey(), subscription.priority,
+                    subscription.bitrateKbps, subscription.paused));
+            allocatedKbps += subscription.bitrateKbps;
+            if (subscription.paused) {
+                ++pausedSubscriptions;
+            }
+        }
+        return new Metrics(budgetKbps, (int) estimatedKbps, allocatedKbps, pausedSubscriptions,
+                reallocations, Collections.unmodifiableList(allocations));
+    }
+
+    void addSubscription(String connectionId) {
+        final Reallocation reallocation;
+        synchronized (this) {
+            if (subscriptions.containsKey(connectionId)) {
+                return;
+            }
+            subscriptions.put(connectionId, new Subscription());
+            reallocation = reallocate();
+        }
+        dispatch(reallocation);
+    }
+
+    void removeSubscription(String connectionId) {
+        final Reallocation reallocation;
+        synchronized (this) {
+            if (subscriptions.remove(connectionId) == null) {
+                return;
+            }
+            reallocation = reallocate();
+        }
+        dispatch(reallocation);
+    }
+
+    synchronized boolean isSubscription(String connectionId) {
+        return subscriptions.containsKey(connectionId);
+    }
+
+    /**
+     * Consumes the statistics of a connection to update the downlink estimate
+     */
+    void onStats(String connectionId, StatsReport[] reports) {
+        final Reallocation reallocation;
+        synchronized (this) {
+            reallocation = updateEstimate(connectionId, reports);
+        }
+        dispatch(reallocation);
+    }
+
+    private Reallocation updateEstimate(String connectionId, StatsReport[] reports) {
+        final Subscription subscription = subscriptions.get(connectionId);
+        if (subscription == null || subscription.paused) {
+            return null;
+        }
+        for (StatsReport report : reports) {
+            if (!report.id.equals("bweforvideo")) {
+                continue;
+            }
+            for (StatsReport.Value value : report.values) {
+                if (value.name.equals("googAvailableReceiveBandwidth")) {
+                    try {
+                        subscription.receiveBandwidthKbps =
+                                Integer.parseInt(value.value) / Constants.BPS_IN_KBPS;
+                    } catch (NumberFormatException e) {
+                        subscription.receiveBandwidthKbps = -1;
+                    }
+                }
+            }
+        }
+
+        int sumKbps = 0;
+        for (Subscription s : subscriptions.values()) {
+            if (s.receiveBandwidthKbps > 0) {
+                sumKbps += s.receiveBandwidthKbps;
+            }
+        }
+        if (sumKbps <= 0) {
+            return null;
+        }
+        estimatedKbps = (estimatedKbps < 0) ? sumKbps
+                : (1 - ESTIMATE_SMOOTHING) * estimatedKbps + ESTIMATE_SMOOTHING * sumKbps;
+        return updateBudget(false /* force */);
+    }
+
+    private Reallocation updateBudget(boolean force) {
+        final int newBudgetKbps = (int) Math.min(budgetCapKbps,
+                (estimatedKbps < 0) ? DEFAULT_BUDGET_KBPS : estimatedKbps);
+        if (!force
+                && Math.abs(newBudgetKbps - budgetKbps) < budgetKbps * REALLOCATION_THRESHOLD) {
+            return null;
+        }
+        budgetKbps = newBudgetKbps;
+        return reallocate();
+    }
+
+    // Must be called with the lock held. The returned changes are dispatched after releasing it.
+    private Reallocation reallocate() {
+        final List<Map.Entry<String, Subscription>> ordered =
+                new ArrayList<>(subscriptions.entrySet());
+        // Stable, so equal priorities keep subscription order.
+        Collections.sort(ordered, new Comparator<Map.Entry<String, Subscription>>() {
+            @Override
+            public int compare(Map.Entry<String, Subscription> a,
+                               Map.Entry<String, Subscription> b) {
+                return a.getValue().priority.compareTo(b.getValue().priority);
+            }
+        });
+
+        // Minimums first, in priority order. The first minimum that does not fit pauses the
+        // subscriptions from there on.
+        final Map<String, Integer> shares = new HashMap<>();
+        int remainingKbps = budgetKbps;
+        for (Map.Entry<String, Subscription> entry : ordered) {
+            final int minKbps = entry.getValue().priority.minKbps;
+            if (minKbps > remainingKbps) {
+                break;
+            }
+            shares.put(entry.getKey(), minKbps);
+            remainingKbps -= minKbps;
+        }
+
+        // Then the remainder by weight, redistributing what capped subscriptions cannot use.
+        while (remainingKbps > 0) {
+            int totalWeight = 0;
+            for (Map.Entry<String, Subscription> entry : ordered) {
+                final Integer share = shares.get(entry.getKey());
+                if (share != null && share < entry.getValue().priority.maxKbps) {
+                    totalWeight += entry.getValue().priority.weight;
+                }
+            }
+            if (totalWeight == 0) {
+                break;
+            }
+            int distributedKbps = 0;
+            for (Map.Entry<String, Subscription> entry : ordered) {
+                final Integer share = shares.get(entry.getKey());
+                final Priority priority = entry.getValue().priority;
+                if (share == null || share >= priority.maxKbps) {
+                    continue;
+                }
+                final int extraKbps = Math.min(priority.maxKbps - share,
+                        Math.max(1, remainingKbps * priority.weight / totalWeight));
+                shares.put(entry.getKey(), share + extraKbps);
+                distributedKbps += extraKbps;
+                if (distributedKbps >= remainingKbps) {
+                    break;
+                }
+            }
+            remainingKbps -= distributedKbps;
+        }
+
+        ++reallocations;
+        final Map<String, Boolean> pauseChanges = new LinkedHashMap<>();
+        final Map<String, Integer> changedAllocations = new LinkedHashMap<>();
+        for (Map.Entry<String, Subscription> entry : ordered) {
+            final Subscription subscription = entry.getValue();
+            final Integer share = shares.get(entry.getKey());
+            final boolean paused = (share == null);
+            final int bitrateKbps = paused ? 0 : share;
+            if (bitrateKbps != subscription.bitrateKbps) {
+                subscription.bitrateKbps = bitrateKbps;
+                // A paused subscription keeps its limit until it is unsubscribed.
+                if (!paused) {
+                    changedAllocations.put(entry.getKey(), bitrateKbps);
+                }
+            }
+            if (paused != subscription.paused) {
+                subscription.paused = paused;
+                Log.d(TAG, "Subscription " + entry.getKey() + (paused ? " paused." : " resumed."));
+                pauseChanges.put(entry.getKey(), paused);
+            }
+        }
+        final Metrics metrics = getMetrics();
+        Log.d(TAG, metrics.toString());
+        return new Reallocation(listener, metrics, pauseChanges, changedAllocations);
+    }
+
+    private void dispatch(Reallocation reallocation) {
+        if (reallocation == null) {
+            return;
+        }
+        for (Map.Entry<String, Integer> entry : reallocation.changedAllocations.entrySet()) {
+            target.setReceiveBandwidthLimit(entry.getKey(), entry.getValue());
+        }
+        if (reallocation.listener == null) {
+            return;
+        }
+        for (Map.Entry<String, Boolean> entry : reallocation.pauseChanges.entrySet()) {
+            reallocation.listener.onSubscriptionPaused(entry.getKey(), entry.getValue());
+        }
+        reallocation.listener.onAllocationChanged(reallocation.metrics);
+    }
+}
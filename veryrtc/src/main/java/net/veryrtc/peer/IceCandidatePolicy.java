@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.peer;
+
+/**
+ * Which local ICE candidates a connection gathers and signals to the server
+ * <p>
+ * Every candidate that is signaled costs a message to the server and connectivity checks on both
+ * sides, for every connection of a room. The policy is applied to connections created after it
+ * is set with VeryRTCPeer.setIceCandidatePolicy.
+ * </p>
+ */
+public final class IceCandidatePolicy {
+
+    /**
+     * How relay (TURN) candidates are used
+     */
+    public enum RelayMode {
+        /**
+         * Relay candidates are signaled like any other
+         */
+        ALL,
+        /**
+         * Only relay candidates are gathered, e.g. to hide the addresses of the device
+         */
+        RELAY_ONLY,
+        /**
+         * Relay candidates are held back for relayDelayMs after the remote description is set.
+         * They are not signaled at all if ICE connects through the other candidates first, unless
+         * the connection is lost later.
+         */
+        RELAY_LAST
+    }
+
+    public final RelayMode relayMode;
+    public final long relayDelayMs;
+    public final boolean filterRedundant;
+    public final int maxCandidatesPerNetwork;
+    public final boolean tcpCandidates;
+    public final boolean gatherContinually;
+
+    /**
+     * Default constructor
+     * <p>
+     * Default values: <br>
+     * relayMode ALL <br>
+     * relayDelayMs 1000 <br>
+     * filterRedundant false <br>
+     * maxCandidatesPerNetwork 0 <br>
+     * tcpCandidates false <br>
+     * gatherContinually true <br>
+     * </p>
+     */
+    public IceCandidatePolicy() {
+        this(RelayMode.ALL, 1000, false, 0, false, true);
+    }
+
+    /**
+     * Constructor
+     * @param relayMode How relay candidates are used
+     * @param relayDelayMs How long relay candidates are held back in RELAY_LAST mode
+     * @param filterRedundant Whether candidates with the transport address of a candidate that was
+     *                        already signaled are dropped, e.g. server reflexive candidates of
+     *                        several interfaces behind the same NAT
+     * @param maxCandidatesPerNetwork The number of host and server reflexive candidates signaled
+     *                                per network interface, 0 for no limit. Relay candidates are
+     *                                not counted, as they are the fallback if the others fail.
+     * @param tcpCandidates Whether TCP candidates are gathered, which is only useful if the server
+     *                      supports ICE-TCP
+     * @param gatherContinually Whether candidates are gathered again when the networks change
+     * @throws IllegalArgumentException If relayMode is null or relayDelayMs or
+     *                                  maxCandidatesPerNetwork is negative
+     */
+    public IceCandidatePolicy(RelayMode relayMode, long relayDelayMs, boolean filterRedundant,
+                              int maxCandidatesPerNetwork, boolean tcpCandidates,
+                              boolean gatherContinually) {
+        if (relayMode == null || relayDelayMs < 0 || maxCandidatesPerNetwork < 0) {
+            throw new IllegalArgumentException("Invalid ICE candidate policy, relayMode: "
+                    + relayMode + ", relayDelayMs: " + relayDelayMs
+                    + ", maxCandidatesPerNetwork: " + maxCandidatesPerNetwork);
+        }
+        this.relayMode = relayMode;
+        this.relayDelayMs = relayDelayMs;
+        this.filterRedundant = filterRedundant;
+        this.maxCandidatesPerNetwork = maxCandidatesPerNetwork;
+        this.tcpCandidates = tcpCandidates;
+        this.gatherContinually = gatherContinually;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof IceCandidatePolicy)) {
+            return false;
+        }
+        final IceCandidatePolicy policy = (IceCandidatePolicy) other;
+        return relayMode == policy.relayMode && relayDelayMs == policy.relayDelayMs
+                && filterRedundant == policy.filterRedundant
+                && maxCandidatesPerNetwork == policy.maxCandidatesPerNetwork
+                && tcpCandidates == policy.tcpCandidates
+                && gatherContinually == policy.gatherContinually;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = relayMode.hashCode();
+        result = 31 * result + (int) (relayDelayMs ^ (relayDelayMs >>> 32));
+        result = 31 * result + (filterRedundant ? 1 : 0);
+        result = 31 * result + maxCandidatesPerNetwork;
+        result = 31 * result + (tcpCandidates ? 1 : 0);
+        result = 31 * result + (gatherContinually ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "relayMode: " + relayMode + ", relayDelayMs: " + relayDelayMs
+                + ", filterRedundant: " + filterRedundant
+                + ", maxCandidatesPerNetwork: " + maxCandidatesPerNetwork
+                + ", tcpCandidates: " + tcpCandidates + ", gatherContinually: " + gatherContinually;
+    }
+}
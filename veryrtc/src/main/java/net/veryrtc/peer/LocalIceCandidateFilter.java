@@ -0,0 +1,271 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.peer;
+
+import android.util.Log;
+
+import net.veryrtc.util.LooperExecutor;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Applies an IceCandidatePolicy to the local candidates of one connection before they are
+ * signaled. All methods are called on the executor.
+ * <p>
+ * Candidates are identified by their ufrag and transport address, so that the candidates gathered
+ * again after an ICE restart are treated as new ones.
+ * </p>
+ */
+final class LocalIceCandidateFilter {
+    private static final String TAG = "LocalIceCandidateFilter";
+
+    /**
+     * Receives the candidates that pass the policy
+     */
+    interface Listener {
+        void onSignalCandidate(IceCandidate candidate);
+    }
+
+    /**
+     * The fields of a candidate attribute that the policy looks at
+     */
+    private static class ParsedCandidate {
+        final String addressKey;
+        final String networkKey;
+        final boolean relay;
+
+        ParsedCandidate(String addressKey, String networkKey, boolean relay) {
+            this.addressKey = addressKey;
+            this.networkKey = networkKey;
+            this.relay = relay;
+        }
+    }
+
+    private final IceCandidatePolicy policy;
+    private final LooperExecutor executor;
+    private final Listener listener;
+    // Network key of the signaled candidates by address key, null for relay candidates.
+    private final HashMap<String, String> signaledCandidates = new HashMap<>();
+    private final HashMap<String, Integer> networkCandidateCounts = new HashMap<>();
+    private final List<IceCandidate> heldRelayCandidates = new ArrayList<>();
+    private boolean relayDelayStarted;
+    private boolean relayDelayElapsed;
+    private boolean connected;
+    private int signaled;
+    private int redundant;
+    private int overNetworkCap;
+    private int excluded;
+
+    private final Runnable relayDelayTask = new Runnable() {
+        @Override
+        public void run() {
+            relayDelayElapsed = true;
+            if (connected) {
+                Log.d(TAG, "Connected without relay, withholding " + heldRelayCandidates.size()
+                        + " relay candidates.");
+            } else {
+                signalHeldRelayCandidates();
+            }
+        }
+    };
+
+    LocalIceCandidateFilter(IceCandidatePolicy policy, LooperExecutor executor, Listener listener) {
+        this.policy = policy;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * Called when the remote description is set, which lets the connectivity checks start
+     */
+    void onRemoteDescriptionSet() {
+        startRelayDelay();
+    }
+
+    void onLocalCandidate(IceCandidate candidate) {
+        final ParsedCandidate parsed = parse(candidate);
+        if (parsed == null) {
+            Log.w(TAG, "Unknown candidate format, signaling as is: " + candidate.sdp);
+            signal(candidate);
+            return;
+        }
+        if (policy.relayMode == IceCandidatePolicy.RelayMode.RELAY_ONLY && !parsed.relay) {
+            ++excluded;
+            return;
+        }
+        if (policy.filterRedundant && signaledCandidates.containsKey(parsed.addressKey)) {
+            ++redundant;
+            return;
+        }
+        if (!parsed.relay && policy.maxCandidatesPerNetwork > 0) {
+            final Integer count = networkCandidateCounts.get(parsed.networkKey);
+            if (count != null && count >= policy.maxCandidatesPerNetwork) {
+                ++overNetworkCap;
+                return;
+            }
+            networkCandidateCounts.put(parsed.networkKey, count == null ? 1 : count + 1);
+        }
+        signaledCandidates.put(parsed.addressKey, parsed.relay ? null : parsed.networkKey);
+
+        if (parsed.relay && policy.relayMode == IceCandidatePolicy.RelayMode.RELAY_LAST
+                && (!relayDelayElapsed || connected)) {
+            heldRelayCandidates.add(candidate);
+            return;
+        }
+        signal(candidate);
+    }
+
+    /**
+     * Returns the candidates that were signaled among the removed ones, which the server has to be
+     * told about
+     */
+    IceCandidate[] onLocalCandidatesRemoved(IceCandidate[] candidates) {
+        final List<IceCandidate> removed = new ArrayList<>();
+        for (IceCandidate candidate : candidates) {
+            final ParsedCandidate parsed = parse(candidate);
+            if (parsed == null) {
+                removed.add(candidate);
+                continue;
+            }
+            if (!signaledCandidates.containsKey(parsed.addressKey)) {
+                continue;
+            }
+            final String networkKey = signaledCandidates.remove(parsed.addressKey);
+            if (networkKey != null && networkCandidateCounts.containsKey(networkKey)) {
+                networkCandidateCounts.put(networkKey, networkCandidateCounts.get(networkKey) - 1);
+            }
+            if (!removeHeldRelayCandidate(parsed.addressKey)) {
+                removed.add(candidate);
+            }
+        }
+        return removed.toArray(new IceCandidate[removed.size()]);
+    }
+
+    void onIceConnectionChange(PeerConnection.IceConnectionState newState) {
+        if (newState == PeerConnection.IceConnectionState.CHECKING) {
+            startRelayDelay();
+        } else if (newState == PeerConnection.IceConnectionState.CONNECTED
+                || newState == PeerConnection.IceConnectionState.COMPLETED) {
+            connected = true;
+        } else if (newState == PeerConnection.IceConnectionState.DISCONNECTED
+                || newState == PeerConnection.IceConnectionState.FAILED) {
+            // The other candidates did not hold up, so fall back to relay right away.
+            connected = false;
+            relayDelayElapsed = true;
+            executor.removeCallbacks(relayDelayTask);
+            signalHeldRelayCandidates();
+        }
+    }
+
+    void release() {
+        executor.removeCallbacks(relayDelayTask);
+    }
+
+    @Override
+    public String toString() {
+        return "signaled: " + signaled + ", redundant: " + redundant + ", over network cap: "
+                + overNetworkCap + ", excluded: " + excluded + ", relay withheld: "
+                + heldRelayCandidates.size();
+    }
+
+    // The other candidates get relayDelayMs to connect. Gathering starts with the local
+    // description, often long before the answer arrives, so the delay runs from when the checks
+    // can start: when the remote description is set or ICE starts checking, whichever is first.
+    private void startRelayDelay() {
+        if (relayDelayStarted || policy.relayMode != IceCandidatePolicy.RelayMode.RELAY_LAST) {
+            return;
+        }
+        relayDelayStarted = true;
+        executor.postDelayed(relayDelayTask, policy.relayDelayMs);
+    }
+
+    private void signalHeldRelayCandidates() {
+        if (heldRelayCandidates.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Signaling " + heldRelayCandidates.size() + " relay candidates.");
+        for (IceCandidate candidate : heldRelayCandidates) {
+            signal(candidate);
+        }
+        heldRelayCandidates.clear();
+    }
+
+    private boolean removeHeldRelayCandidate(String addressKey) {
+        Iterator<IceCandidate> it = heldRelayCandidates.iterator();
+        while (it.hasNext()) {
+            final ParsedCandidate parsed = parse(it.next());
+            if (parsed != null && parsed.addressKey.equals(addressKey)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void signal(IceCandidate candidate) {
+        ++signaled;
+        listener.onSignalCandidate(candidate);
+    }
+
+    // Parses "candidate:<foundation> <component> <protocol> <priority> <address> <port> typ <type>"
+    // followed by name value pairs such as raddr, ufrag and network-id.
+    private static ParsedCandidate parse(IceCandidate candidate) {
+        final String[] fields = candidate.sdp.trim().split(" ");
+        if (fields.length < 8 || !fields[6].equals("typ")) {
+            return null;
+        }
+        final String protocol = fields[2].toLowerCase();
+        final String address = fields[4];
+        final String type = fields[7];
+        String relatedAddress = null;
+        String ufrag = "";
+        String networkId = null;
+        for (int i = 8; i + 1 < fields.length; i += 2) {
+            switch (fields[i]) {
+                case "raddr":
+                    relatedAddress = fields[i + 1];
+                    break;
+                case "ufrag":
+                    ufrag = fields[i + 1];
+                    break;
+                case "network-id":
+                    networkId = fields[i + 1];
+                    break;
+                default:
+                    break;
+            }
+        }
+        final String networkKey;
+        if (networkId != null) {
+            networkKey = ufrag + " " + networkId;
+        } else if (type.equals("host") || relatedAddress == null) {
+            networkKey = ufrag + " " + address;
+        } else {
+            // The related address of a reflexive candidate is its host address.
+            networkKey = ufrag + " " + relatedAddress;
+        }
+        return new ParsedCandidate(ufrag + " " + protocol + " " + address + " " + fields[5],
+                networkKey, type.equals("relay"));
+    }
+}
@@ -35,12 +35,20 @@ import org.webrtc.RendererCommon;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoFrame;
+import org.webrtc.VideoFrameProcessor;
+import org.webrtc.VideoProcessorChain;
 import org.webrtc.VideoRenderer;
 import org.webrtc.VideoSink;
+import org.webrtc.VideoSinkHub;
 import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The class implements the management of media resources.
@@ -80,40 +88,159 @@ import java.util.HashMap;
 final class MediaResourceManager {
     private static final String TAG = "MediaResourceManager";
 
+    /**
+     * Target of a proxy. The frame path takes no lock: the target and its count of frames in
+     * flight are read from a volatile slot. set() returns only once the previous target no longer
+     * receives frames, so a target can be released right after it has been replaced.
+     */
+    private static class ProxyTarget<T> {
+        private static class Slot<T> {
+            final T target;
+            final AtomicLong framesInFlight = new AtomicLong();
+            // Set once the slot has been replaced, so the last frame wakes up set().
+            volatile boolean replaced;
+
+            Slot(T target) {
+                this.target = target;
+            }
+        }
+
+        private volatile Slot<T> slot = new Slot<>(null);
+        // The slot the current thread is delivering a frame to, if any.
+        private final ThreadLocal<Slot<T>> deliveringSlot = new ThreadLocal<>();
+        private final AtomicLong framesForwarded = new AtomicLong();
+        private final AtomicLong framesDropped = new AtomicLong();
+
+        /**
+         * Returns the slot to deliver a frame to, or null if there is no target and the frame is
+         * dropped. A non-null result must be followed by endDelivery().
+         */
+        Slot<T> beginDelivery() {
+            while (true) {
+                final Slot<T> currentSlot = slot;
+                if (currentSlot.target == null) {
+                    framesDropped.incrementAndGet();
+                    return null;
+                }
+                currentSlot.framesInFlight.incrementAndGet();
+                if (slot == currentSlot) {
+                    deliveringSlot.set(currentSlot);
+                    return currentSlot;
+                }
+                // Replaced in the meantime, and set() may already have returned.
+                release(currentSlot);
+            }
+        }
+
+        void endDelivery(Slot<T> currentSlot) {
+            deliveringSlot.set(null);
+            framesForwarded.incrementAndGet();
+            release(currentSlot);
+        }
+
+        private static <T> void release(Slot<T> currentSlot) {
+            if (currentSlot.framesInFlight.decrementAndGet() == 0 && currentSlot.replaced) {
+                synchronized (currentSlot) {
+                    currentSlot.notifyAll();
+                }
+            }
+        }
+
+        // Only one thread replaces the target at a time.
+        synchronized void set(T newTarget) {
+            final Slot<T> previousSlot = slot;
+            if (previousSlot.target == newTarget) {
+                return;
+            }
+            slot = new Slot<>(newTarget);
+            previousSlot.replaced = true;
+            // A target replaced from within its own frame callback does not wait for itself.
+            final long ownFrames = deliveringSlot.get() == previousSlot ? 1 : 0;
+            boolean interrupted = false;
+            synchronized (previousSlot) {
+                while (previousSlot.framesInFlight.get() > ownFrames) {
+                    try {
+                        previousSlot.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long getFramesForwarded() {
+            return framesForwarded.get();
+        }
+
+        long getFramesDropped() {
+            return framesDropped.get();
+        }
+    }
+
     private static class ProxyRenderer implements VideoRenderer.Callbacks {
-        private VideoRenderer.Callbacks target;
+        private final ProxyTarget<VideoRenderer.Callbacks> target = new ProxyTarget<>();
+        // Set while the target is not visible. Frames are then released here, before they reach
+        // the renderer.
+        private volatile boolean dropFrames;
 
         @Override
-        synchronized public void renderFrame(VideoRenderer.I420Frame frame) {
-            if (target == null) {
-                Logging.d(TAG, "Dropping frame in proxy because target is null.");
+        public void renderFrame(VideoRenderer.I420Frame frame) {
+            if (dropFrames) {
+                VideoRenderer.renderFrameDone(frame);
+                return;
+            }
+            final ProxyTarget.Slot<VideoRenderer.Callbacks> slot = target.beginDelivery();
+            if (slot == null) {
                 VideoRenderer.renderFrameDone(frame);
                 return;
             }
+            try {
+                slot.target.renderFrame(frame);
+            } finally {
+                target.endDelivery(slot);
+            }
+        }
 
-            target.renderFrame(frame);
+        public void setTarget(VideoRenderer.Callbacks target) {
+            this.target.set(target);
         }
 
-        synchronized public void setTarget(VideoRenderer.Callbacks target) {
-            this.target = target;
+        public void setDropFrames(boolean dropFrames) {
+            this.dropFrames = dropFrames;
+        }
+
+        public String getStatistics() {
+            return "forwarded: " + target.getFramesForwarded()
+                    + ", dropped without target: " + target.getFramesDropped();
         }
     }
 
     private static class ProxyVideoSink implements VideoSink {
-        private VideoSink target;
+        private final ProxyTarget<VideoSink> target = new ProxyTarget<>();
 
         @Override
-        synchronized public void onFrame(VideoFrame frame) {
-            if (target == null) {
-                Logging.d(TAG, "Dropping frame in proxy because target is null.");
+        public void onFrame(VideoFrame frame) {
+            final ProxyTarget.Slot<VideoSink> slot = target.beginDelivery();
+            if (slot == null) {
                 return;
             }
+            try {
+                slot.target.onFrame(frame);
+            } finally {
+                target.endDelivery(slot);
+            }
+        }
 
-            target.onFrame(frame);
+        public void setTarget(VideoSink target) {
+            this.target.set(target);
         }
 
-        synchronized public void setTarget(VideoSink target) {
-            this.target = target;
+        public String getStatistics() {
+            return "forwarded: " + target.getFramesForwarded()
+                    + ", dropped without target: " + target.getFramesDropped();
         }
     }
 
@@ -122,6 +249,7 @@ final class MediaResourceManager {
     private MediaConstraints pcConstraints;
     private MediaConstraints audioConstraints;
     private MediaConstraints sdpMediaConstraints;
+    private MediaConstraints audioOnlySdpMediaConstraints;
     private boolean videoCallEnabled;
     private boolean renderVideo;
     private boolean videoCapturerStopped;
@@ -133,10 +261,20 @@ final class MediaResourceManager {
     private VideoSource videoSource;
     private VideoTrack localVideoTrack;
     private HashMap<MediaStream, VideoTrack> remoteVideoTracks;
-    private ProxyRenderer remoteProxyRenderer;
     private final ProxyVideoSink localProxyVideoSink = new ProxyVideoSink();
+    // Fans the local video out to the local preview and to sinks added by the application.
+    private final VideoSinkHub localVideoSinkHub = new VideoSinkHub();
+    // Transforms captured frames before they reach the local video source.
+    private final VideoProcessorChain localVideoProcessorChain = new VideoProcessorChain();
     private HashMap<VideoRenderer.Callbacks, VideoRenderer> remoteVideoRenderers;
     private HashMap<VideoRenderer, MediaStream> remoteVideoMediaStreams;
+    // Proxies between the remote video tracks and the attached renderers.
+    private HashMap<VideoRenderer.Callbacks, ProxyRenderer> remoteProxyRenderers;
+    // Renderers reported as hidden by the VideoVisibilityManager, and the subset of them that
+    // allow their remote video track to be disabled.
+    private HashSet<VideoRenderer.Callbacks> hiddenRemoteRenderers;
+    private HashSet<VideoRenderer.Callbacks> trackDisabledRemoteRenderers;
+    private final VideoVisibilityManager videoVisibilityManager;
 
     private VeryRTCPeer.PeerConnectionParameters peerConnectionParameters;
     private VideoCapturer videoCapturer;
@@ -157,6 +295,10 @@ final class MediaResourceManager {
         remoteVideoTracks = new HashMap<>();
         remoteVideoRenderers = new HashMap<>();
         remoteVideoMediaStreams = new HashMap<>();
+        remoteProxyRenderers = new HashMap<>();
+        hiddenRemoteRenderers = new HashSet<>();
+        trackDisabledRemoteRenderers = new HashSet<>();
+        videoVisibilityManager = new VideoVisibilityManager(this);
         enableAudio = true;
         localAudioTrack = null;
     }
@@ -222,6 +364,9 @@ final class MediaResourceManager {
         } else {
             sdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "false"));
         }
+        audioOnlySdpMediaConstraints = new MediaConstraints();
+        audioOnlySdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveAudio", "true"));
+        audioOnlySdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "false"));
     }
 
     public MediaConstraints getPcConstraints(){
@@ -232,6 +377,10 @@ final class MediaResourceManager {
         return sdpMediaConstraints;
     }
 
+    public MediaConstraints getAudioOnlySdpMediaConstraints(){
+        return audioOnlySdpMediaConstraints;
+    }
+
     public MediaStream getLocalMediaStream() {
         return localMediaStream;
     }
@@ -276,7 +425,7 @@ final class MediaResourceManager {
     }
 
     private VideoTrack createVideoTrack(VideoCapturer capturer) {
-        videoSource = factory.createVideoSource(capturer);
+        videoSource = factory.createVideoSource(capturer, localVideoProcessorChain);
 
         capturer.startCapture(peerConnectionParameters.videoWidth,
                               peerConnectionParameters.videoHeight,
@@ -284,7 +433,8 @@ final class MediaResourceManager {
 
         localVideoTrack = factory.createVideoTrack(Constants.VIDEO_TRACK_ID, videoSource);
         localVideoTrack.setEnabled(renderVideo);
-        localVideoTrack.addSink(localProxyVideoSink);
+        localVideoSinkHub.addSink(localProxyVideoSink);
+        localVideoTrack.addSink(localVideoSinkHub);
         return localVideoTrack;
     }
 
@@ -303,12 +453,10 @@ final class MediaResourceManager {
             if (remoteStream.videoTracks.size() == 1) {
                 // Get the video track
                 VideoTrack remoteVideoTrack = remoteStream.videoTracks.get(0);
-                // Set video track enabled if we have enabled video rendering
-                remoteVideoTrack.setEnabled(renderVideo);
 
                 VideoRenderer videoRenderer = remoteVideoRenderers.get(remoteRender);
                 if (videoRenderer != null) {
-                    MediaStream mediaStream = remoteVideoMediaStreams.get(videoRenderer);
+                    MediaStream mediaStream = remoteVideoMediaStreams.remove(videoRenderer);
                     if (mediaStream != null) {
                         VideoTrack videoTrack = remoteVideoTracks.get(mediaStream);
                         if (videoTrack != null) {
@@ -317,11 +465,22 @@ final class MediaResourceManager {
                     }
                 }
 
-                VideoRenderer newVideoRenderer = new VideoRenderer(remoteRender);
+                ProxyRenderer proxyRenderer = remoteProxyRenderers.get(remoteRender);
+                if (proxyRenderer == null) {
+                    proxyRenderer = new ProxyRenderer();
+                    proxyRenderer.setTarget(remoteRender);
+                    remoteProxyRenderers.put(remoteRender, proxyRenderer);
+                }
+                // The renderer may have been hidden before it was attached.
+                proxyRenderer.setDropFrames(hiddenRemoteRenderers.contains(remoteRender));
+
+                VideoRenderer newVideoRenderer = new VideoRenderer(proxyRenderer);
                 remoteVideoTrack.addRenderer(newVideoRenderer);
                 remoteVideoRenderers.put(remoteRender, newVideoRenderer);
                 remoteVideoMediaStreams.put(newVideoRenderer, remoteStream);
                 remoteVideoTracks.put(remoteStream, remoteVideoTrack);
+                // Set video track enabled if we have enabled video rendering
+                updateRemoteTrackEnabled(remoteVideoTrack);
                 Log.d(TAG, "Attached.");
             }
         }
@@ -332,6 +491,103 @@ final class MediaResourceManager {
         executor.execute(new AttachRendererTask(remoteRender, remoteStream));
     }
 
+    public void detachRendererFromRemoteStream(final VideoRenderer.Callbacks remoteRender) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                detachRemoteRenderer(remoteRender);
+            }
+        });
+    }
+
+    // Removes a remote renderer from its track and forgets its proxy and visibility.
+    private void detachRemoteRenderer(VideoRenderer.Callbacks remoteRender) {
+        Log.d(TAG, "Detaching VideoRenderer " + remoteRender);
+        VideoRenderer videoRenderer = remoteVideoRenderers.remove(remoteRender);
+        if (videoRenderer != null) {
+            MediaStream mediaStream = remoteVideoMediaStreams.remove(videoRenderer);
+            VideoTrack videoTrack =
+                    (mediaStream == null) ? null : remoteVideoTracks.get(mediaStream);
+            if (videoTrack != null) {
+                videoTrack.removeRenderer(videoRenderer);
+                updateRemoteTrackEnabled(videoTrack);
+            }
+        }
+        ProxyRenderer proxyRenderer = remoteProxyRenderers.remove(remoteRender);
+        if (proxyRenderer != null) {
+            proxyRenderer.setTarget(null);
+            Log.d(TAG, "Remote video proxy frames for " + remoteRender + " "
+                    + proxyRenderer.getStatistics());
+        }
+        hiddenRemoteRenderers.remove(remoteRender);
+        trackDisabledRemoteRenderers.remove(remoteRender);
+        videoVisibilityManager.removeRenderer(remoteRender);
+    }
+
+    /**
+     * Starts or stops dropping the frames of a remote renderer. If |disableTrack| is set, the
+     * remote video track of a hidden renderer is also disabled, provided that no other renderer
+     * attached to the same track still needs it.
+     */
+    void setRemoteRendererHidden(final VideoRenderer.Callbacks remoteRender, final boolean hidden,
+                                 final boolean disableTrack) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (hidden) {
+                    hiddenRemoteRenderers.add(remoteRender);
+                } else {
+                    hiddenRemoteRenderers.remove(remoteRender);
+                }
+                if (hidden && disableTrack) {
+                    trackDisabledRemoteRenderers.add(remoteRender);
+                } else {
+                    trackDisabledRemoteRenderers.remove(remoteRender);
+                }
+
+                ProxyRenderer proxyRenderer = remoteProxyRenderers.get(remoteRender);
+                if (proxyRenderer != null) {
+                    proxyRenderer.setDropFrames(hidden);
+                }
+                VideoTrack videoTrack = getRemoteVideoTrack(remoteRender);
+                if (videoTrack != null) {
+                    updateRemoteTrackEnabled(videoTrack);
+                }
+            }
+        });
+    }
+
+    private VideoTrack getRemoteVideoTrack(VideoRenderer.Callbacks remoteRender) {
+        VideoRenderer videoRenderer = remoteVideoRenderers.get(remoteRender);
+        if (videoRenderer == null) {
+            return null;
+        }
+        MediaStream mediaStream = remoteVideoMediaStreams.get(videoRenderer);
+        return (mediaStream == null) ? null : remoteVideoTracks.get(mediaStream);
+    }
+
+    // A remote video track is enabled while video rendering is enabled, unless all renderers
+    // attached to it are hidden and allow the track to be disabled.
+    private void updateRemoteTrackEnabled(VideoTrack videoTrack) {
+        boolean enabled = renderVideo;
+        if (enabled) {
+            boolean attached = false;
+            boolean allDisabled = true;
+            for (VideoRenderer.Callbacks remoteRender : remoteVideoRenderers.keySet()) {
+                if (getRemoteVideoTrack(remoteRender) != videoTrack) {
+                    continue;
+                }
+                attached = true;
+                if (!trackDisabledRemoteRenderers.contains(remoteRender)) {
+                    allDisabled = false;
+                    break;
+                }
+            }
+            enabled = !(attached && allDisabled);
+        }
+        videoTrack.setEnabled(enabled);
+    }
+
     public void createLocalMediaStream(EglBase.Context renderEGLContext, final SurfaceViewRenderer localRender) {
         if (factory == null) {
             Log.e(TAG, "Peerconnection factory is not created");
@@ -339,8 +595,6 @@ final class MediaResourceManager {
         }
 
         if (videoCallEnabled) {
-            factory.setVideoHwAccelerationOptions(renderEGLContext, renderEGLContext);
-
             pipRenderer = localRender;
             pipRenderer.init(renderEGLContext, null);
             pipRenderer.setScalingType(RendererCommon.ScalingType.SCALE_ASPECT_FIT);
@@ -389,6 +643,28 @@ final class MediaResourceManager {
         });
     }
 
+    public void prepareCameraSwitch(){
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (videoCallEnabled && videoCapturer instanceof CameraVideoCapturer) {
+                    ((CameraVideoCapturer) videoCapturer).prepareCameraSwitch();
+                }
+            }
+        });
+    }
+
+    public void cancelCameraSwitch(){
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (videoCapturer instanceof CameraVideoCapturer) {
+                    ((CameraVideoCapturer) videoCapturer).cancelCameraSwitch();
+                }
+            }
+        });
+    }
+
     public void changeCaptureFormat(final int width, final int height, final int framerate) {
         executor.execute(new Runnable() {
             @Override
@@ -429,12 +705,33 @@ final class MediaResourceManager {
                     localVideoTrack.setEnabled(renderVideo);
                 }
                 for (VideoTrack tv : remoteVideoTracks.values()) {
-                    tv.setEnabled(renderVideo);
+                    updateRemoteTrackEnabled(tv);
                 }
             }
         });
     }
 
+    void addLocalVideoSink(VideoSink sink, int queueCapacity, float maxFps,
+                           VideoSinkHub.DropPolicy dropPolicy) {
+        localVideoSinkHub.addSink(sink, queueCapacity, maxFps, dropPolicy);
+    }
+
+    void removeLocalVideoSink(VideoSink sink) {
+        localVideoSinkHub.removeSink(sink);
+    }
+
+    void addLocalVideoProcessor(VideoFrameProcessor processor) {
+        localVideoProcessorChain.addProcessor(processor);
+    }
+
+    void removeLocalVideoProcessor(VideoFrameProcessor processor) {
+        localVideoProcessorChain.removeProcessor(processor);
+    }
+
+    VideoVisibilityManager getVideoVisibilityManager() {
+        return videoVisibilityManager;
+    }
+
     boolean getVideoEnabled(){
         return renderVideo;
     }
@@ -444,6 +741,14 @@ final class MediaResourceManager {
     }
 
     void close(){
+        Log.d(TAG, "Local video proxy frames " + localProxyVideoSink.getStatistics());
+        localVideoSinkHub.release();
+        for (Map.Entry<VideoRenderer.Callbacks, ProxyRenderer> entry
+                : remoteProxyRenderers.entrySet()) {
+            Log.d(TAG, "Remote video proxy frames for " + entry.getKey() + " "
+                    + entry.getValue().getStatistics());
+        }
+
         // Uncomment only if you know what you are doing
         localMediaStream.dispose();
         localMediaStream = null;
@@ -479,6 +784,16 @@ final class MediaResourceManager {
     }
 
     public void RemoteStreamRemoved(MediaStream stream) {
+        List<VideoRenderer.Callbacks> streamRenderers = new ArrayList<>();
+        for (Map.Entry<VideoRenderer.Callbacks, VideoRenderer> entry
+                : remoteVideoRenderers.entrySet()) {
+            if (remoteVideoMediaStreams.get(entry.getValue()) == stream) {
+                streamRenderers.add(entry.getKey());
+            }
+        }
+        for (VideoRenderer.Callbacks remoteRender : streamRenderers) {
+            detachRemoteRenderer(remoteRender);
+        }
         remoteVideoTracks.remove(stream);
     }
 }
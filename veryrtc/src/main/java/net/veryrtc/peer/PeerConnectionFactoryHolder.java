@@ -0,0 +1,249 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.peer;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.veryrtc.util.LooperExecutor;
+
+import org.webrtc.EglBase;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.voiceengine.WebRtcAudioManager;
+import org.webrtc.voiceengine.WebRtcAudioUtils;
+
+/**
+ * Process wide PeerConnectionFactory and root EglBase, shared by all VeryRTCPeer instances.
+ * <p>
+ * Every VeryRTCPeer holds a reference from its constructor until it is closed. When the last
+ * reference is released, the factory and the EglBase are kept for an idle timeout, so that a
+ * meeting that follows does not pay for loading the native library, initializing WebRTC and
+ * creating the audio device again.
+ * </p>
+ * <p>
+ * The factory is only recreated when the field trials, hardware acceleration or audio device
+ * settings of the next meeting differ, as they are applied when it is created. While other peers
+ * use the factory it is not recreated, and the new settings are ignored with a warning.
+ * </p>
+ */
+final class PeerConnectionFactoryHolder {
+    private static final String TAG = "PCFactoryHolder";
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 60 * 1000;
+
+    private static LooperExecutor executor;
+    private static PeerConnectionFactory factory;
+    private static EglBase rootEglBase;
+    private static int refCount;
+    private static long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    // Settings of the last PeerConnectionFactory.initialize call, null if it has not been called
+    // since the internal tracer was last shut down.
+    private static String initializationSettings;
+    // Settings the current factory was created with.
+    private static String factorySettings;
+
+    private static final Runnable disposeTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PeerConnectionFactoryHolder.class) {
+                if (refCount == 0) {
+                    Log.d(TAG, "Idle timeout elapsed.");
+                    dispose();
+                }
+            }
+        }
+    };
+
+    private PeerConnectionFactoryHolder() {
+    }
+
+    /**
+     * Takes a reference and returns the shared root EglBase
+     */
+    static synchronized EglBase acquire() {
+        ++refCount;
+        if (executor != null) {
+            executor.removeCallbacks(disposeTask);
+        }
+        if (rootEglBase == null) {
+            rootEglBase = EglBase.create();
+        }
+        return rootEglBase;
+    }
+
+    /**
+     * Releases a reference taken by acquire. The last one schedules the idle timeout.
+     */
+    static synchronized void release() {
+        if (refCount == 0) {
+            Log.w(TAG, "Released more often than acquired.");
+            return;
+        }
+        if (--refCount > 0) {
+            return;
+        }
+        if (idleTimeoutMs <= 0) {
+            dispose();
+            return;
+        }
+        if (executor == null) {
+            executor = new LooperExecutor();
+            executor.requestStart();
+        }
+        executor.postDelayed(disposeTask, idleTimeoutMs);
+    }
+
+    /**
+     * Sets how long the factory is kept after the last reference is released, 0 to dispose it
+     * right away
+     */
+    static synchronized void setIdleTimeout(long timeoutMs) {
+        idleTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Returns the factory, creating it if needed or if the given parameters require other settings.
+     * The factory uses the shared root EglBase for hardware video encoding and decoding, so a
+     * reference must be held.
+     * @param context The application context
+     * @param parameters The parameters of the calling peer
+     */
+    static synchronized PeerConnectionFactory getFactory(
+            Context context, VeryRTCPeer.PeerConnectionParameters parameters) {
+        final String fieldTrials = getFieldTrials(parameters);
+        final String newInitializationSettings =
+                fieldTrials + "|hw=" + parameters.videoCodecHwAcceleration;
+        final String newFactorySettings = newInitializationSettings
+                + "|opensles=" + parameters.useOpenSLES
+                + "|aec=" + parameters.disableBuiltInAEC
+                + "|agc=" + parameters.disableBuiltInAGC
+                + "|ns=" + parameters.disableBuiltInNS;
+
+        if (factory != null) {
+            if (newFactorySettings.equals(factorySettings)) {
+                Log.d(TAG, "Reusing peer connection factory.");
+                return factory;
+            }
+            if (refCount > 1) {
+                Log.w(TAG, "Peer connection factory is in use, ignoring new settings "
+                        + newFactorySettings);
+                return factory;
+            }
+            Log.d(TAG, "Settings changed, recreating peer connection factory.");
+            disposeFactory();
+        }
+
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        if (!newInitializationSettings.equals(initializationSettings)) {
+            PeerConnectionFactory.initialize(
+                    PeerConnectionFactory.InitializationOptions.builder(context)
+                            .setFieldTrials(fieldTrials)
+                            .setEnableVideoHwAcceleration(parameters.videoCodecHwAcceleration)
+                            .createInitializationOptions());
+            initializationSettings = newInitializationSettings;
+        }
+
+        // Enable/disable OpenSL ES playback.
+        if (!parameters.useOpenSLES) {
+            Log.d(TAG, "Disable OpenSL ES audio even if device supports it");
+            WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(true /* enable */);
+        } else {
+            Log.d(TAG, "Allow OpenSL ES audio if device supports it");
+            WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(false);
+        }
+
+        if (parameters.disableBuiltInAEC) {
+            Log.d(TAG, "Disable built-in AEC even if device supports it");
+            WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(true);
+        } else {
+            Log.d(TAG, "Enable built-in AEC if device supports it");
+            WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(false);
+        }
+
+        if (parameters.disableBuiltInAGC) {
+            Log.d(TAG, "Disable built-in AGC even if device supports it");
+            WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(true);
+        } else {
+            Log.d(TAG, "Enable built-in AGC if device supports it");
+            WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(false);
+        }
+
+        if (parameters.disableBuiltInNS) {
+            Log.d(TAG, "Disable built-in NS even if device supports it");
+            WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(true);
+        } else {
+            Log.d(TAG, "Enable built-in NS if device supports it");
+            WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(false);
+        }
+
+        factory = new PeerConnectionFactory(null);
+        // Set once per factory: setting them again releases the EglBases of the encoders and
+        // decoders of the other peers.
+        factory.setVideoHwAccelerationOptions(
+                rootEglBase.getEglBaseContext(), rootEglBase.getEglBaseContext());
+        factorySettings = newFactorySettings;
+        Log.d(TAG, "Peer connection factory created in "
+                + (SystemClock.elapsedRealtime() - startTimeMs) + " ms.");
+        return factory;
+    }
+
+    private static String getFieldTrials(VeryRTCPeer.PeerConnectionParameters parameters) {
+        String fieldTrials = "";
+        if (parameters.videoFlexfecEnabled) {
+            fieldTrials += Constants.VIDEO_FLEXFEC_FIELDTRIAL;
+            Log.d(TAG, "Enable FlexFEC field trial.");
+        }
+        fieldTrials += Constants.VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL;
+        if (parameters.disableWebRtcAGCAndHPF) {
+            fieldTrials += Constants.DISABLE_WEBRTC_AGC_FIELDTRIAL;
+            Log.d(TAG, "Disable WebRTC AGC field trial.");
+        }
+        fieldTrials += Constants.VIDEO_FRAME_EMIT_FIELDTRIAL;
+
+        if (parameters.videoCallEnable && parameters.videoCodec != null
+                && parameters.videoCodec.equalsIgnoreCase(Constants.VIDEO_CODEC_H264_HIGH)) {
+            // TODO(magjed): Strip High from SDP when selecting Baseline instead of using field
+            // trial.
+            fieldTrials += Constants.VIDEO_H264_HIGH_PROFILE_FIELDTRIAL;
+        }
+        return fieldTrials;
+    }
+
+    private static void disposeFactory() {
+        Log.d(TAG, "Closing peer connection factory.");
+        factory.dispose();
+        factory = null;
+        factorySettings = null;
+        PeerConnectionFactory.stopInternalTracingCapture();
+        PeerConnectionFactory.shutdownInternalTracer();
+        // The tracer is set up by PeerConnectionFactory.initialize, so the next factory has to
+        // initialize again.
+        initializationSettings = null;
+    }
+
+    private static void dispose() {
+        if (factory != null) {
+            disposeFactory();
+        }
+        if (rootEglBase != null) {
+            rootEglBase.release();
+            rootEglBase = null;
+        }
+        Log.d(TAG, "Peer connection factory holder released.");
+    }
+}
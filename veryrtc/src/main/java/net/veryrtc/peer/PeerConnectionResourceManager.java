@@ -17,6 +17,7 @@
 
 package net.veryrtc.peer;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.webrtc.Logging;
@@ -24,6 +25,7 @@ import org.webrtc.MediaConstraints;
 import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnectionFactory;
 
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -36,9 +38,19 @@ import net.veryrtc.util.LooperExecutor;
  *
  * The implementation is based on PeerConnectionClient.java of package org.appspot.apprtc
  * (please see the copyright notice below)
+ *
+ * Optionally a pool of idle connections is kept pre-created, so that a new subscription does not
+ * wait for the connection to be created and the ICE candidates to be gathered. Pooled connections
+ * gather their candidates in advance through iceCandidatePoolSize and are handed out by
+ * createPeerConnection when the ICE servers and constraints match. The pool is refilled in later
+ * executor tasks, after the connection that was handed out has created its offer.
  */
 final class PeerConnectionResourceManager {
     private static final String TAG = "PCResourceManager";
+    // Candidate sessions each pooled connection gathers in advance. One is enough with bundling.
+    private static final int POOLED_ICE_CANDIDATE_POOL_SIZE = 1;
+    // Pooled connections idle for longer are recreated, as their candidates may be stale.
+    private static final long MAX_POOLED_IDLE_MS = 5 * 60 * 1000;
 
     private boolean preferIsac;
     private boolean videoCallEnabled;
@@ -48,12 +60,36 @@ final class PeerConnectionResourceManager {
     private PeerConnectionParameters peerConnectionParameters;
     private String preferredVideoCodec;
 
+    private static class PooledConnection {
+        final VRPeerConnection connection;
+        final long createTimeMs;
+
+        PooledConnection(VRPeerConnection connection, long createTimeMs) {
+            this.connection = connection;
+            this.createTimeMs = createTimeMs;
+        }
+    }
+
+    private final ArrayDeque<PooledConnection> pool = new ArrayDeque<>();
+    private int poolSize;
+    private List<PeerConnection.IceServer> poolIceServers;
+    private MediaConstraints poolPcConstraints;
+    private boolean refillScheduled;
+    private int nextPooledConnectionNumber;
+    private int poolHits;
+    private int poolMisses;
+    private IceCandidatePolicy candidatePolicy = new IceCandidatePolicy();
+    // Owned by the peer and shared by all its connections.
+    private final RemoteIceCandidateStats remoteCandidateStats;
+
     PeerConnectionResourceManager(PeerConnectionParameters peerConnectionParameters,
-                                         LooperExecutor executor, PeerConnectionFactory factory) {
+                                  LooperExecutor executor, PeerConnectionFactory factory,
+                                  RemoteIceCandidateStats remoteCandidateStats) {
 
         this.peerConnectionParameters = peerConnectionParameters;
         this.executor = executor;
         this.factory = factory;
+        this.remoteCandidateStats = remoteCandidateStats;
         videoCallEnabled = peerConnectionParameters.videoCallEnable;
 
         // Check preferred video codec.
@@ -85,24 +121,49 @@ final class PeerConnectionResourceManager {
     VRPeerConnection createPeerConnection(final List<PeerConnection.IceServer> iceServers,
                                           MediaConstraints pcConstraints,
                                           String connectionId) {
+        VRPeerConnection connectionWrapper = takePooledConnection(iceServers, pcConstraints);
+        if (connectionWrapper != null) {
+            connectionWrapper.setConnectionId(connectionId);
+        } else {
+            connectionWrapper = createPeerConnectionInternal(
+                    createRtcConfiguration(iceServers), pcConstraints, connectionId);
+        }
+        connections.put(connectionId, connectionWrapper);
+        return connectionWrapper;
+    }
 
-        Log.d(TAG, "Create peer connection.");
-        Log.d(TAG, "PCConstraints: " + pcConstraints.toString());
-
+    private PeerConnection.RTCConfiguration createRtcConfiguration(
+            List<PeerConnection.IceServer> iceServers) {
         // TCP candidates are only useful when connecting to a server that supports ICE-TCP.
         PeerConnection.RTCConfiguration rtcConfig = new PeerConnection.RTCConfiguration(iceServers);
-        rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+        rtcConfig.tcpCandidatePolicy = candidatePolicy.tcpCandidates
+                ? PeerConnection.TcpCandidatePolicy.ENABLED
+                : PeerConnection.TcpCandidatePolicy.DISABLED;
+        if (candidatePolicy.relayMode == IceCandidatePolicy.RelayMode.RELAY_ONLY) {
+            rtcConfig.iceTransportsType = PeerConnection.IceTransportsType.RELAY;
+        }
         rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
         rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
-        rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+        rtcConfig.continualGatheringPolicy = candidatePolicy.gatherContinually
+                ? PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY
+                : PeerConnection.ContinualGatheringPolicy.GATHER_ONCE;
         rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
+        return rtcConfig;
+    }
+
+    private VRPeerConnection createPeerConnectionInternal(PeerConnection.RTCConfiguration rtcConfig,
+                                                          MediaConstraints pcConstraints,
+                                                          String connectionId) {
+        Log.d(TAG, "Create peer connection.");
+        Log.d(TAG, "PCConstraints: " + pcConstraints.toString());
 
         VRPeerConnection connectionWrapper = new VRPeerConnection(connectionId, preferIsac,
-                videoCallEnabled, preferredVideoCodec, executor, peerConnectionParameters);
+                videoCallEnabled, preferredVideoCodec, executor, peerConnectionParameters,
+                remoteCandidateStats);
         PeerConnection peerConnection = factory.createPeerConnection(rtcConfig, pcConstraints, connectionWrapper);
 
         connectionWrapper.setPc(peerConnection);
-        connections.put(connectionId, connectionWrapper);
+        connectionWrapper.setCandidatePolicy(candidatePolicy);
 
         // Set default WebRTC tracing and INFO libjingle logging.
         // NOTE: this _must_ happen while |factory| is alive!
@@ -111,6 +172,107 @@ final class PeerConnectionResourceManager {
         return connectionWrapper;
     }
 
+    /**
+     * Keeps |size| idle connections pre-created for the given ICE servers and constraints.
+     * A size of 0 disposes the pool.
+     */
+    void setPoolSize(int size, List<PeerConnection.IceServer> iceServers,
+                     MediaConstraints pcConstraints) {
+        Log.d(TAG, "Peer connection pool size: " + size);
+        poolSize = size;
+        if (!isPoolConfiguration(iceServers, pcConstraints)) {
+            clearPool();
+            poolIceServers = iceServers;
+            poolPcConstraints = pcConstraints;
+        }
+        while (pool.size() > poolSize) {
+            pool.removeLast().connection.close();
+        }
+        scheduleRefill();
+    }
+
+    /**
+     * Sets the local candidate policy of the connections created from now on. Pooled connections
+     * created with another policy are recreated.
+     */
+    void setCandidatePolicy(IceCandidatePolicy policy) {
+        Log.d(TAG, "ICE candidate policy: " + policy);
+        final boolean changed = !candidatePolicy.equals(policy);
+        candidatePolicy = policy;
+        if (changed) {
+            clearPool();
+            scheduleRefill();
+        }
+    }
+
+    private boolean isPoolConfiguration(List<PeerConnection.IceServer> iceServers,
+                                        MediaConstraints pcConstraints) {
+        return poolIceServers != null && poolPcConstraints != null
+                && poolIceServers.toString().equals(iceServers.toString())
+                && poolPcConstraints.toString().equals(pcConstraints.toString());
+    }
+
+    private VRPeerConnection takePooledConnection(List<PeerConnection.IceServer> iceServers,
+                                                  MediaConstraints pcConstraints) {
+        if (poolSize == 0) {
+            return null;
+        }
+        VRPeerConnection connection = null;
+        if (isPoolConfiguration(iceServers, pcConstraints)) {
+            final long nowMs = SystemClock.elapsedRealtime();
+            while (connection == null && !pool.isEmpty()) {
+                PooledConnection pooled = pool.removeFirst();
+                if (nowMs - pooled.createTimeMs > MAX_POOLED_IDLE_MS) {
+                    pooled.connection.close();
+                } else {
+                    connection = pooled.connection;
+                    Log.d(TAG, "Took pooled peer connection, idle for "
+                            + (nowMs - pooled.createTimeMs) + " ms");
+                }
+            }
+        }
+        if (connection != null) {
+            ++poolHits;
+        } else {
+            ++poolMisses;
+        }
+        Log.d(TAG, "Peer connection pool hits: " + poolHits + ", misses: " + poolMisses);
+        scheduleRefill();
+        return connection;
+    }
+
+    // Creates one pooled connection per executor task, so that other tasks are not held up.
+    // Posted rather than executed, as execute runs inline on the executor thread.
+    private void scheduleRefill() {
+        if (refillScheduled || pool.size() >= poolSize) {
+            return;
+        }
+        refillScheduled = executor.postDelayed(refillTask, 0);
+    }
+
+    private final Runnable refillTask = new Runnable() {
+        @Override
+        public void run() {
+            refillScheduled = false;
+            if (factory == null || poolIceServers == null || pool.size() >= poolSize) {
+                return;
+            }
+            PeerConnection.RTCConfiguration rtcConfig = createRtcConfiguration(poolIceServers);
+            rtcConfig.iceCandidatePoolSize = POOLED_ICE_CANDIDATE_POOL_SIZE;
+            VRPeerConnection connection = createPeerConnectionInternal(rtcConfig,
+                    poolPcConstraints, "pooled-" + nextPooledConnectionNumber++);
+            pool.addLast(new PooledConnection(connection, SystemClock.elapsedRealtime()));
+            scheduleRefill();
+        }
+    };
+
+    private void clearPool() {
+        for (PooledConnection pooled : pool) {
+            pooled.connection.close();
+        }
+        pool.clear();
+    }
+
     VRPeerConnection getConnection(String connectionId){
         return connections.get(connectionId);
     }
@@ -131,6 +293,10 @@ final class PeerConnectionResourceManager {
             connection.close();
         }
         connections.clear();
+        poolSize = 0;
+        clearPool();
+        // The factory is disposed next, so pending refills must not use it.
+        factory = null;
     }
 
 }
@@ -0,0 +1,492 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.peer;
+
+import android.util.Log;
+
+import net.veryrtc.util.Clock;
+
+import org.webrtc.StatsReport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Adapts the published video to the available bandwidth and CPU.
+ * <p>
+ * The controller walks a ladder of rungs, each with a capture resolution, frame rate and maximum
+ * bitrate, ordered from the best to the most degraded quality. It consumes the send-side
+ * statistics of the publishing connection and the CpuMonitor averages, and steps one rung down
+ * when the bandwidth estimate falls below the bitrate of the current rung or the encoder or CPU is
+ * overused. After the current rung has fit with headroom for a while, it probes the next higher
+ * rung by lifting the bitrate cap first, and steps up only if the bandwidth estimate follows.
+ * </p>
+ * <p>
+ * Stepping down reacts within a few seconds; stepping up waits longer, and the wait doubles each
+ * time a step up has to be undone soon after, so that the quality does not oscillate.
+ * </p>
+ */
+public final class PublisherQualityController {
+    private static final String TAG = "PublisherQualityCtrl";
+
+    // Consecutive overused samples before stepping down.
+    private static final int DOWN_SAMPLES = 3;
+    // Consecutive underused samples before stepping up.
+    private static final int UP_SAMPLES = 8;
+    // Minimum time at a rung before stepping up, doubled after each failed step up.
+    private static final long MIN_UP_HOLD_MS = 10000;
+    private static final long MAX_UP_HOLD_MS = 120000;
+    // A step down this soon after a step up counts as a failed step up.
+    private static final long FAILED_UP_WINDOW_MS = 15000;
+    // Bandwidth estimate relative to the bitrate of a rung below which it is overused, and above
+    // which the rung fits.
+    private static final double BANDWIDTH_DOWN_FACTOR = 0.85;
+    private static final double BANDWIDTH_UP_FACTOR = 1.3;
+    // Samples the estimate has to fit the higher rung while probing, and how long a probe may take.
+    private static final int PROBE_SAMPLES = 3;
+    private static final long PROBE_TIMEOUT_MS = 10000;
+    // Bandwidth an unlimited rung is compared with, unless a capped rung of the ladder needs more.
+    private static final int UNLIMITED_NOMINAL_BITRATE_KBPS = 1000;
+    // CPU and encode usage, in percent, above which they are overused and below which they leave
+    // room to step up.
+    private static final int CPU_HIGH_PERCENT = 85;
+    private static final int CPU_LOW_PERCENT = 60;
+    private static final int ENCODE_USAGE_HIGH_PERCENT = 85;
+    private static final int ENCODE_USAGE_LOW_PERCENT = 55;
+
+    /**
+     * One quality level of the published video
+     */
+    public static final class Rung {
+        public final int width;
+        public final int height;
+        public final int fps;
+        // Maximum bitrate, 0 if unlimited.
+        public final int maxBitrateKbps;
+
+        public Rung(int width, int height, int fps, int maxBitrateKbps) {
+            if (width <= 0 || height <= 0 || fps <= 0 || maxBitrateKbps < 0) {
+                throw new IllegalArgumentException("Invalid rung " + width + "x" + height + "@"
+                        + fps + ", " + maxBitrateKbps + " kbps");
+            }
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.maxBitrateKbps = maxBitrateKbps;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + fps + ", "
+                    + (maxBitrateKbps > 0 ? maxBitrateKbps + " kbps" : "unlimited");
+        }
+    }
+
+    /**
+     * Notified when the controller moves to another rung
+     */
+    public interface Listener {
+        /**
+         * Called after the new rung has been requested, without the controller's lock held,
+         * usually on the statistics thread
+         * @param rung The new rung
+         * @param reason Why the controller moved, e.g. "bandwidth" or "cpu"
+         */
+        void onQualityChanged(Rung rung, String reason);
+    }
+
+    /** Applies the chosen rung, implemented by VeryRTCPeer. */
+    interface Target {
+        void setCaptureFormat(int width, int height, int fps);
+
+        void setMaxBitrate(int maxBitrateKbps);
+
+        /** Returns the average CPU usage in percent, or a negative value if unknown. */
+        int getCpuUsageAverage();
+    }
+
+    // The changes made while the lock is held. They are applied to the target and reported to
+    // the listener once the lock has been released.
+    private static class QualityChange {
+        Listener listener;
+        // The rung moved to, or null if only the maximum bitrate changed.
+        Rung rung;
+        String reason;
+        boolean maxBitrateChanged;
+        int maxBitrateKbps;
+    }
+
+    private final Target target;
+    private final Clock clock;
+    private List<Rung> ladder;
+    // Bandwidth the unlimited rungs of |ladder| are compared with.
+    private int unlimitedNominalBitrateKbps;
+    private int rungIndex;
+    private boolean enabled = true;
+    private Listener listener;
+
+    private int overusedSamples;
+    private int underusedSamples;
+    private long lastChangeTimeMs;
+    private long lastStepUpTimeMs;
+    private long upHoldMs = MIN_UP_HOLD_MS;
+    // True while the cap of the next higher rung is applied to see if the bandwidth follows.
+    private boolean probing;
+    private int probeSamples;
+    private long probeStartTimeMs;
+    // Maximum bitrate last applied, 0 if unlimited.
+    private int maxBitrateKbps;
+    // Changes not yet dispatched, or null.
+    private QualityChange pendingChange;
+
+    PublisherQualityController(VeryRTCPeer.PeerConnectionParameters parameters, Target target) {
+        this(createDefaultLadder(parameters), target, Clock.SYSTEM);
+    }
+
+    PublisherQualityController(List<Rung> ladder, Target target, Clock clock) {
+        this.target = target;
+        this.clock = clock;
+        setLadderInternal(ladder);
+        this.maxBitrateKbps = this.ladder.get(0).maxBitrateKbps;
+        this.lastChangeTimeMs = clock.elapsedRealtime();
+    }
+
+    /**
+     * Creates the default ladder, from the configured resolution, frame rate and bitrate down to a
+     * quarter of the resolution at half the frame rate. An unlimited bitrate stays unlimited on the
+     * best rung, and the bitrates of the other rungs are derived from 1000 kbps.
+     */
+    public static List<Rung> createDefaultLadder(VeryRTCPeer.PeerConnectionParameters parameters) {
+        return createDefaultLadder(parameters.videoWidth, parameters.videoHeight,
+                parameters.videoFps, parameters.videoMaxBitrateKbps);
+    }
+
+    static List<Rung> createDefaultLadder(int width, int height, int fps, int maxBitrateKbps) {
+        final int bitrate = maxBitrateKbps > 0 ? maxBitrateKbps : UNLIMITED_NOMINAL_BITRATE_KBPS;
+        final int lowFps = Math.max(7, fps / 2);
+        final List<Rung> ladder = new ArrayList<>();
+        ladder.add(new Rung(width, height, fps, Math.max(0, maxBitrateKbps)));
+        ladder.add(new Rung(even(width * 3 / 4), even(height * 3 / 4), fps, bitrate * 6 / 10));
+        ladder.add(new Rung(even(width / 2), even(height / 2), fps, bitrate * 35 / 100));
+        ladder.add(new Rung(even(width / 2), even(height / 2), lowFps, bitrate * 2 / 10));
+        ladder.add(new Rung(even(width / 4), even(height / 4), lowFps, Math.max(50, bitrate / 10)));
+        return ladder;
+    }
+
+    /**
+     * Replaces the ladder and moves to its best rung
+     * @param ladder The rungs, ordered from the best to the most degraded quality
+     */
+    public void setLadder(List<Rung> ladder) {
+        final QualityChange change;
+        synchronized (this) {
+            setLadderInternal(ladder);
+            moveTo(0, "ladder changed");
+            change = takeChange();
+        }
+        dispatch(change);
+    }
+
+    private void setLadderInternal(List<Rung> ladder) {
+        if (ladder.isEmpty()) {
+            throw new IllegalArgumentException("Empty ladder");
+        }
+        this.ladder = Collections.unmodifiableList(new ArrayList<>(ladder));
+        unlimitedNominalBitrateKbps = UNLIMITED_NOMINAL_BITRATE_KBPS;
+        for (Rung rung : ladder) {
+            unlimitedNominalBitrateKbps =
+                    Math.max(unlimitedNominalBitrateKbps, rung.maxBitrateKbps);
+        }
+    }
+
+    public synchronized List<Rung> getLadder() {
+        return ladder;
+    }
+
+    /**
+     * Enables or disables the controller. Disabling it restores the best rung.
+     */
+    public void setEnabled(boolean enabled) {
+        final QualityChange change;
+        synchronized (this) {
+            if (this.enabled == enabled) {
+                return;
+            }
+            this.enabled = enabled;
+            if (!enabled && rungIndex != 0) {
+                moveTo(0, "disabled");
+            }
+            change = takeChange();
+        }
+        dispatch(change);
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the rung currently published
+     */
+    public synchronized Rung getCurrentRung() {
+        return ladder.get(rungIndex);
+    }
+
+    /**
+     * Returns the maximum bitrate to configure on new senders, 0 if unlimited
+     */
+    synchronized int getMaxBitrateKbps() {
+        return maxBitrateKbps;
+    }
+
+    /**
+     * Consumes the statistics of one connection. Connections that do not send video are ignored.
+     */
+    void onStats(StatsReport[] reports) {
+        boolean sendsVideo = false;
+        int availableSendBandwidthKbps = -1;
+        int encodeUsagePercent = -1;
+        boolean cpuLimited = false;
+        boolean bandwidthLimited = false;
+        for (StatsReport report : reports) {
+            if (report.type.equals("ssrc") && report.id.contains("send")) {
+                final String trackId = getValue(report, "googTrackId");
+                if (trackId == null || !trackId.contains(Constants.VIDEO_TRACK_ID)) {
+                    continue;
+                }
+                sendsVideo = true;
+                encodeUsagePercent = parseInt(getValue(report, "googEncodeUsagePercent"));
+                cpuLimited = "true".equals(getValue(report, "googCpuLimitedResolution"));
+                bandwidthLimited =
+                        "true".equals(getValue(report, "googBandwidthLimitedResolution"));
+            } else if (report.id.equals("bweforvideo")) {
+                final int bandwidthBps = parseInt(getValue(report, "googAvailableSendBandwidth"));
+                if (bandwidthBps >= 0) {
+                    availableSendBandwidthKbps = bandwidthBps / Constants.BPS_IN_KBPS;
+                }
+            }
+        }
+        if (!sendsVideo) {
+            return;
+        }
+        final int cpuUsagePercent = target.getCpuUsageAverage();
+        final QualityChange change;
+        synchronized (this) {
+            if (!enabled) {
+                return;
+            }
+            onSample(availableSendBandwidthKbps, encodeUsagePercent, cpuUsagePercent, cpuLimited,
+                    bandwidthLimited);
+            change = takeChange();
+        }
+        dispatch(change);
+    }
+
+    private void onSample(int availableSendBandwidthKbps, int encodeUsagePercent,
+                          int cpuUsagePercent, boolean cpuLimited, boolean bandwidthLimited) {
+        final int rungBitrateKbps = getNominalBitrateKbps(ladder.get(rungIndex));
+
+        String overuseReason = null;
+        if (availableSendBandwidthKbps >= 0
+                && availableSendBandwidthKbps < rungBitrateKbps * BANDWIDTH_DOWN_FACTOR) {
+            overuseReason = "bandwidth";
+        } else if (bandwidthLimited) {
+            overuseReason = "bandwidth limited";
+        } else if (cpuLimited) {
+            overuseReason = "cpu limited";
+        } else if (encodeUsagePercent > ENCODE_USAGE_HIGH_PERCENT) {
+            overuseReason = "encode usage";
+        } else if (cpuUsagePercent > CPU_HIGH_PERCENT) {
+            overuseReason = "cpu";
+        }
+
+        final long nowMs = clock.elapsedRealtime();
+        if (overuseReason != null) {
+            underusedSamples = 0;
+            if (probing) {
+                endProbe(false /* succeeded */, overuseReason);
+            }
+            if (++overusedSamples >= DOWN_SAMPLES && rungIndex < ladder.size() - 1) {
+                if (nowMs - lastStepUpTimeMs < FAILED_UP_WINDOW_MS) {
+                    upHoldMs = Math.min(upHoldMs * 2, MAX_UP_HOLD_MS);
+                }
+                moveTo(rungIndex + 1, overuseReason);
+            }
+            return;
+        }
+        overusedSamples = 0;
+        if (rungIndex == 0) {
+            return;
+        }
+        final boolean cpuFits = cpuUsagePercent < CPU_LOW_PERCENT
+                && encodeUsagePercent < ENCODE_USAGE_LOW_PERCENT;
+        if (probing) {
+            onProbeSample(availableSendBandwidthKbps, cpuFits, nowMs);
+            return;
+        }
+        // The cap of the current rung keeps the estimate from growing much beyond it, so the
+        // higher rung is not compared until its cap is applied by a probe.
+        final boolean bandwidthFits = availableSendBandwidthKbps < 0
+                || availableSendBandwidthKbps > rungBitrateKbps * BANDWIDTH_UP_FACTOR;
+        if (!bandwidthFits || !cpuFits) {
+            underusedSamples = 0;
+            return;
+        }
+        if (++underusedSamples >= UP_SAMPLES && nowMs - lastChangeTimeMs >= upHoldMs) {
+            if (availableSendBandwidthKbps < 0) {
+                // Without an estimate there is nothing to probe.
+                lastStepUpTimeMs = nowMs;
+                moveTo(rungIndex - 1, "headroom");
+            } else {
+                startProbe(nowMs);
+            }
+        }
+    }
+
+    private void startProbe(long nowMs) {
+        final Rung higherRung = ladder.get(rungIndex - 1);
+        Log.d(TAG, "Probing bitrate of " + higherRung);
+        probing = true;
+        probeSamples = 0;
+        probeStartTimeMs = nowMs;
+        underusedSamples = 0;
+        setMaxBitrate(higherRung.maxBitrateKbps);
+    }
+
+    private void onProbeSample(int availableSendBandwidthKbps, boolean cpuFits, long nowMs) {
+        if (!cpuFits) {
+            endProbe(false /* succeeded */, "cpu");
+            return;
+        }
+        final int higherBitrateKbps = getNominalBitrateKbps(ladder.get(rungIndex - 1));
+        if (availableSendBandwidthKbps >= higherBitrateKbps * BANDWIDTH_DOWN_FACTOR) {
+            if (++probeSamples >= PROBE_SAMPLES) {
+                endProbe(true /* succeeded */, "headroom");
+            }
+        } else if (nowMs - probeStartTimeMs >= PROBE_TIMEOUT_MS) {
+            endProbe(false /* succeeded */, "bandwidth");
+        }
+    }
+
+    private void endProbe(boolean succeeded, String reason) {
+        probing = false;
+        final long nowMs = clock.elapsedRealtime();
+        if (succeeded) {
+            lastStepUpTimeMs = nowMs;
+            moveTo(rungIndex - 1, reason);
+            return;
+        }
+        // A failed probe counts as a failed step up, without having degraded the video.
+        Log.d(TAG, "Probe failed (" + reason + ")");
+        upHoldMs = Math.min(upHoldMs * 2, MAX_UP_HOLD_MS);
+        lastChangeTimeMs = nowMs;
+        underusedSamples = 0;
+        setMaxBitrate(ladder.get(rungIndex).maxBitrateKbps);
+    }
+
+    private int getNominalBitrateKbps(Rung rung) {
+        return (rung.maxBitrateKbps > 0) ? rung.maxBitrateKbps : unlimitedNominalBitrateKbps;
+    }
+
+    private void moveTo(int newRungIndex, String reason) {
+        final Rung rung = ladder.get(newRungIndex);
+        final Rung oldRung = (rungIndex < ladder.size()) ? ladder.get(rungIndex) : null;
+        Log.d(TAG, "Quality " + oldRung + " -> " + rung + " (" + reason + ")");
+        rungIndex = newRungIndex;
+        overusedSamples = 0;
+        underusedSamples = 0;
+        probing = false;
+        lastChangeTimeMs = clock.elapsedRealtime();
+        if (newRungIndex == 0) {
+            upHoldMs = MIN_UP_HOLD_MS;
+        }
+        final QualityChange change = getPendingChange();
+        change.rung = rung;
+        change.reason = reason;
+        setMaxBitrate(rung.maxBitrateKbps);
+    }
+
+    private void setMaxBitrate(int maxBitrateKbps) {
+        this.maxBitrateKbps = maxBitrateKbps;
+        final QualityChange change = getPendingChange();
+        change.maxBitrateChanged = true;
+        change.maxBitrateKbps = maxBitrateKbps;
+    }
+
+    private QualityChange getPendingChange() {
+        if (pendingChange == null) {
+            pendingChange = new QualityChange();
+        }
+        return pendingChange;
+    }
+
+    // Called with the lock held. Returns the pending changes, or null if there are none.
+    private QualityChange takeChange() {
+        final QualityChange change = pendingChange;
+        pendingChange = null;
+        if (change != null) {
+            change.listener = listener;
+        }
+        return change;
+    }
+
+    // Called without the lock held.
+    private void dispatch(QualityChange change) {
+        if (change == null) {
+            return;
+        }
+        if (change.rung != null) {
+            target.setCaptureFormat(change.rung.width, change.rung.height, change.rung.fps);
+        }
+        if (change.maxBitrateChanged) {
+            target.setMaxBitrate(change.maxBitrateKbps);
+        }
+        if (change.rung != null && change.listener != null) {
+            change.listener.onQualityChanged(change.rung, change.reason);
+        }
+    }
+
+    private static String getValue(StatsReport report, String name) {
+        for (StatsReport.Value value : report.values) {
+            if (value.name.equals(name)) {
+                return value.value;
+            }
+        }
+        return null;
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int even(int value) {
+        return Math.max(2, value & ~1);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.peer;
+
+/**
+ * Counters and latencies of the remote ICE candidates of a VeryRTCPeer, across all connections.
+ * <p>
+ * The queue latency is the time from addRemoteIceCandidate(s) until the batch is handed to its
+ * connection on the executor. The apply latency is the time until the candidate is added to the
+ * PeerConnection, which includes waiting for the remote description.
+ * </p>
+ */
+public final class RemoteIceCandidateStats {
+    private long received;
+    private long duplicates;
+    private long stale;
+    private long applied;
+    private long batches;
+    private long totalQueueLatencyMs;
+    private long maxQueueLatencyMs;
+    private long totalApplyLatencyMs;
+    private long maxApplyLatencyMs;
+
+    RemoteIceCandidateStats() {
+    }
+
+    synchronized void onBatch(int candidates, long queueLatencyMs) {
+        received += candidates;
+        ++batches;
+        totalQueueLatencyMs += queueLatencyMs;
+        maxQueueLatencyMs = Math.max(maxQueueLatencyMs, queueLatencyMs);
+    }
+
+    synchronized void onDuplicate() {
+        ++duplicates;
+    }
+
+    synchronized void onStale() {
+        ++stale;
+    }
+
+    synchronized void onApplied(long applyLatencyMs) {
+        ++applied;
+        totalApplyLatencyMs += applyLatencyMs;
+        maxApplyLatencyMs = Math.max(maxApplyLatencyMs, applyLatencyMs);
+    }
+
+    /**
+     * Returns the number of candidates passed to addRemoteIceCandidate(s)
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * Returns the number of candidates dropped because the connection already had them
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Returns the number of candidates dropped because they belong to an earlier ICE generation or
+     * to credentials the remote description no longer uses
+     */
+    public synchronized long getStale() {
+        return stale;
+    }
+
+    /**
+     * Returns the number of candidates added to their PeerConnection
+     */
+    public synchronized long getApplied() {
+        return applied;
+    }
+
+    /**
+     * Returns the number of batches the candidates were coalesced into
+     */
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    public synchronized long getAverageQueueLatencyMs() {
+        return batches == 0 ? 0 : totalQueueLatencyMs / batches;
+    }
+
+    public synchronized long getMaxQueueLatencyMs() {
+        return maxQueueLatencyMs;
+    }
+
+    public synchronized long getAverageApplyLatencyMs() {
+        return applied == 0 ? 0 : totalApplyLatencyMs / applied;
+    }
+
+    public synchronized long getMaxApplyLatencyMs() {
+        return maxApplyLatencyMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "received: " + received + ", batches: " + batches + ", duplicates: " + duplicates
+                + ", stale: " + stale + ", applied: " + applied
+                + ", queue latency avg/max: " + getAverageQueueLatencyMs() + "/" + maxQueueLatencyMs
+                + " ms, apply latency avg/max: " + getAverageApplyLatencyMs() + "/"
+                + maxApplyLatencyMs + " ms";
+    }
+}
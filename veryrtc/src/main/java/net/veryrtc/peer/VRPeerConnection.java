@@ -17,6 +17,7 @@
 
 package net.veryrtc.peer;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import net.veryrtc.util.LooperExecutor;
@@ -37,6 +38,7 @@ import org.webrtc.StatsReport;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -53,6 +55,24 @@ import java.util.regex.Pattern;
 class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
 
     private static final String TAG = "VRPeerConnection";
+    private static final Pattern CANDIDATE_GENERATION_PATTERN =
+            Pattern.compile(" generation (\\d+)");
+    private static final Pattern CANDIDATE_UFRAG_PATTERN = Pattern.compile(" ufrag (\\S+)");
+    private static final Pattern ICE_UFRAG_PATTERN =
+            Pattern.compile("^a=ice-ufrag:(\\S+)", Pattern.MULTILINE);
+
+    /**
+     * A remote candidate waiting for the remote description
+     */
+    private static class QueuedCandidate {
+        final IceCandidate candidate;
+        final long queuedTimeMs;
+
+        QueuedCandidate(IceCandidate candidate, long queuedTimeMs) {
+            this.candidate = candidate;
+            this.queuedTimeMs = queuedTimeMs;
+        }
+    }
 
     private PeerConnection pc;
     private String connectionId;
@@ -64,11 +84,23 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
     private String preferredVideoCodec;
     private boolean isInitiator;
     private HashMap<String, ObservedDataChannel> observedDataChannels;
-    private LinkedList<IceCandidate> queuedRemoteCandidates;
+    private LinkedList<QueuedCandidate> queuedRemoteCandidates;
+    // Remote candidates of the current ICE generation, to drop the ones the server sends again.
+    private final HashSet<String> remoteCandidateKeys = new HashSet<>();
+    // Highest generation of the remote candidates, -1 if they carry none.
+    private int remoteCandidateGeneration = -1;
+    // Ufrags of the remote description, null until it is set.
+    private HashSet<String> remoteIceUfrags;
+    // Owned by the peer, which counts the candidates of all its connections.
+    private final RemoteIceCandidateStats remoteCandidateStats;
+    // Null if all local candidates are signaled.
+    private LocalIceCandidateFilter localCandidateFilter;
     MediaConstraints sdpMediaConstraints = null;
     Vector<Observer> observers;
     VeryRTCPeer.PeerConnectionParameters peerConnectionParameters;
     private Timer statsTimer;
+    // b=AS limit put on the video section of local descriptions, 0 for none.
+    private volatile int receiveBandwidthLimitKbps;
 
     /**
      * An interface which declares WebRTC callbacks
@@ -129,8 +161,10 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
 
         /**
          * WebRTC event which is triggered once peer connection statistics is ready.
+         * @param reports The statistics reports
+         * @param connection The connection for which this event takes place
          */
-        void onPeerConnectionStatsReady(final StatsReport[] reports);
+        void onPeerConnectionStatsReady(final StatsReport[] reports, final VRPeerConnection connection);
 
         /**
          * WebRTC event which is triggered when there is an error with the connection
@@ -220,7 +254,8 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
                             boolean videoCallEnable,
                             String preferredVideoCodec,
                             LooperExecutor executor,
-                            VeryRTCPeer.PeerConnectionParameters params) {
+                            VeryRTCPeer.PeerConnectionParameters params,
+                            RemoteIceCandidateStats remoteCandidateStats) {
 
         this.connectionId = connectionId;
         observers = new Vector<>();
@@ -231,6 +266,7 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
         this.isInitiator = false;
         this.peerConnectionParameters = params;
         queuedRemoteCandidates = new LinkedList<>();
+        this.remoteCandidateStats = remoteCandidateStats;
         observedDataChannels = new HashMap<>();
         localVideoSender = null;
         statsTimer = new Timer();
@@ -258,6 +294,13 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
         return connectionId;
     }
 
+    /**
+     * Renames a pooled connection when it is handed out
+     */
+    void setConnectionId(String connectionId) {
+        this.connectionId = connectionId;
+    }
+
     public DataChannel getDataChannel(String dataChannelId){
         ObservedDataChannel channel = this.observedDataChannels.get(dataChannelId);
         if (channel == null) {
@@ -268,10 +311,35 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
         }
     }
 
+    /**
+     * Limits the video bandwidth the remote peer may send, with b=AS in the local descriptions
+     * created from now on
+     * @param limitKbps The limit, or 0 for none
+     */
+    public void setReceiveBandwidthLimit(int limitKbps) {
+        receiveBandwidthLimitKbps = limitKbps;
+    }
+
     public void setPc(PeerConnection pc) {
         this.pc = pc;
     }
 
+    /**
+     * Filters the local candidates of the connection before they are passed to the observers
+     * @param policy The policy the connection was configured with
+     */
+    void setCandidatePolicy(IceCandidatePolicy policy) {
+        localCandidateFilter = new LocalIceCandidateFilter(policy, executor,
+                new LocalIceCandidateFilter.Listener() {
+                    @Override
+                    public void onSignalCandidate(IceCandidate candidate) {
+                        for (Observer observer : observers) {
+                            observer.onIceCandidate(candidate, VRPeerConnection.this);
+                        }
+                    }
+                });
+    }
+
     public PeerConnection getPc(){
         return pc;
     }
@@ -286,16 +354,32 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
         }
     }
 
+    private void onRemoteDescriptionSet() {
+        if (localCandidateFilter != null) {
+            localCandidateFilter.onRemoteDescriptionSet();
+        }
+    }
+
     private void drainCandidates() {
         if (queuedRemoteCandidates != null) {
             Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
-            for (IceCandidate candidate : queuedRemoteCandidates) {
-                pc.addIceCandidate(candidate);
+            for (QueuedCandidate queued : queuedRemoteCandidates) {
+                // Candidates queued before the remote description could not be matched to it.
+                if (isStaleUfrag(queued.candidate)) {
+                    remoteCandidateStats.onStale();
+                    continue;
+                }
+                applyRemoteCandidate(queued.candidate, queued.queuedTimeMs);
             }
             queuedRemoteCandidates = null;
         }
     }
 
+    private void applyRemoteCandidate(IceCandidate candidate, long queuedTimeMs) {
+        pc.addIceCandidate(candidate);
+        remoteCandidateStats.onApplied(SystemClock.elapsedRealtime() - queuedTimeMs);
+    }
+
     public void createOffer(MediaConstraints sdpMediaConstraints) {
         this.sdpMediaConstraints = sdpMediaConstraints;
         if (pc != null){// && !isError) {
@@ -342,6 +426,7 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
         if (peerConnectionParameters.audioStartBitrate > 0) {
             sdpDescription = setStartBitrate(Constants.AUDIO_CODEC_OPUS, false, sdpDescription, peerConnectionParameters.audioStartBitrate);
         }
+        updateRemoteIceUfrags(sdpDescription);
         Log.d(TAG, "Set remote SDP.");
         SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
         pc.setRemoteDescription(VRPeerConnection.this, sdpRemote);
@@ -356,24 +441,109 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
         });
     }
 
-    public void addRemoteIceCandidate(final IceCandidate candidate) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (pc != null){// && !isError) {
-                    if (queuedRemoteCandidates != null) {
-                        queuedRemoteCandidates.add(candidate);
-                    } else {
-                        pc.addIceCandidate(candidate);
-                    }
+    /**
+     * Adds a batch of remote candidates on the executor, dropping the ones already added and the
+     * ones of earlier ICE generations
+     * @param candidates The received candidates
+     * @param queuedTimeMs When the batch was received, in SystemClock.elapsedRealtime
+     */
+    void addRemoteIceCandidates(List<IceCandidate> candidates, long queuedTimeMs) {
+        if (pc == null) {
+            return;
+        }
+        int added = 0;
+        for (IceCandidate candidate : candidates) {
+            final int generation = parseGeneration(candidate);
+            if (generation > remoteCandidateGeneration) {
+                if (remoteCandidateGeneration >= 0) {
+                    Log.d(TAG, "Remote candidate generation " + generation + ", dropping older.");
+                    dropQueuedCandidatesBefore(generation);
+                    remoteCandidateKeys.clear();
                 }
+                remoteCandidateGeneration = generation;
+            } else if (generation >= 0 && generation < remoteCandidateGeneration) {
+                remoteCandidateStats.onStale();
+                continue;
             }
-        });
+            if (isStaleUfrag(candidate)) {
+                remoteCandidateStats.onStale();
+                continue;
+            }
+            if (!remoteCandidateKeys.add(
+                    candidate.sdpMid + "|" + candidate.sdpMLineIndex + "|" + candidate.sdp)) {
+                remoteCandidateStats.onDuplicate();
+                continue;
+            }
+            if (queuedRemoteCandidates != null) {
+                queuedRemoteCandidates.add(new QueuedCandidate(candidate, queuedTimeMs));
+            } else {
+                applyRemoteCandidate(candidate, queuedTimeMs);
+            }
+            ++added;
+        }
+        if (added < candidates.size()) {
+            Log.d(TAG, "Dropped " + (candidates.size() - added) + " of " + candidates.size()
+                    + " remote candidates for " + connectionId);
+        }
+    }
+
+    private void dropQueuedCandidatesBefore(int generation) {
+        if (queuedRemoteCandidates == null) {
+            return;
+        }
+        Iterator<QueuedCandidate> it = queuedRemoteCandidates.iterator();
+        while (it.hasNext()) {
+            if (parseGeneration(it.next().candidate) < generation) {
+                it.remove();
+                remoteCandidateStats.onStale();
+            }
+        }
+    }
+
+    // An ICE restart changes the remote ufrag, so candidates of the old credentials are useless,
+    // and the new ones may repeat addresses that were already added.
+    private void updateRemoteIceUfrags(String sdpDescription) {
+        final HashSet<String> ufrags = new HashSet<>();
+        final Matcher matcher = ICE_UFRAG_PATTERN.matcher(sdpDescription);
+        while (matcher.find()) {
+            ufrags.add(matcher.group(1));
+        }
+        if (remoteIceUfrags != null && !remoteIceUfrags.equals(ufrags)) {
+            Log.d(TAG, "Remote ICE credentials changed for " + connectionId);
+            remoteCandidateKeys.clear();
+            remoteCandidateGeneration = -1;
+        }
+        remoteIceUfrags = ufrags;
+    }
+
+    private boolean isStaleUfrag(IceCandidate candidate) {
+        if (remoteIceUfrags == null || remoteIceUfrags.isEmpty()) {
+            return false;
+        }
+        final Matcher matcher = CANDIDATE_UFRAG_PATTERN.matcher(candidate.sdp);
+        return matcher.find() && !remoteIceUfrags.contains(matcher.group(1));
+    }
+
+    private static int parseGeneration(IceCandidate candidate) {
+        final Matcher matcher = CANDIDATE_GENERATION_PATTERN.matcher(candidate.sdp);
+        if (!matcher.find()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(matcher.group(1));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid candidate generation " + matcher.group(1));
+            return -1;
+        }
     }
 
     public void close(){
         Log.d(TAG, "Closing peer connection.");
         statsTimer.cancel();
+        if (localCandidateFilter != null) {
+            Log.d(TAG, "Local candidates of " + connectionId + ": " + localCandidateFilter);
+            localCandidateFilter.release();
+        }
 
         if (pc != null) {
             pc.dispose();
@@ -452,6 +622,35 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
         return newSdpDescription.toString();
     }
 
+    /** Replaces the b=AS line of the video media description, or adds one after its c= line. */
+    private static String setVideoBandwidthLimit(String sdpDescription, int limitKbps) {
+        final String[] lines = sdpDescription.split("\r\n");
+        final int mLineIndex = findMediaDescriptionLine(false, lines);
+        if (mLineIndex == -1) {
+            Log.w(TAG, "No m=video line, so can't limit bandwidth");
+            return sdpDescription;
+        }
+        final List<String> newLines = new ArrayList<>();
+        int insertIndex = -1;
+        boolean inVideoSection = false;
+        for (int i = 0; i < lines.length; ++i) {
+            if (lines[i].startsWith("m=")) {
+                inVideoSection = (i == mLineIndex);
+            }
+            if (inVideoSection && lines[i].startsWith("b=AS:")) {
+                continue;
+            }
+            newLines.add(lines[i]);
+            if (inVideoSection && (i == mLineIndex || lines[i].startsWith("c="))) {
+                insertIndex = newLines.size();
+            }
+        }
+        final String bandwidthLine = "b=AS:" + limitKbps;
+        newLines.add(insertIndex, bandwidthLine);
+        Log.d(TAG, "Add local SDP line: " + bandwidthLine);
+        return joinString(newLines, "\r\n", true /* delimiterAtEnd */);
+    }
+
     /** Returns the line number containing "m=audio|video", or -1 if no such line exists. */
     private static int findMediaDescriptionLine(boolean isAudio, String[] sdpLines) {
         final String mediaDescription = isAudio ? "m=audio " : "m=video ";
@@ -590,7 +789,7 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
             @Override
             public void onComplete(final StatsReport[] reports) {
                 for (Observer observer : observers) {
-                    observer.onPeerConnectionStatsReady(reports);
+                    observer.onPeerConnectionStatsReady(reports, VRPeerConnection.this);
                 }
             }
         }, null);
@@ -635,6 +834,9 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
         executor.execute(new Runnable() {
             @Override
             public void run() {
+                if (localCandidateFilter != null) {
+                    localCandidateFilter.onIceConnectionChange(newState);
+                }
                 for (Observer o : observers) {
                     o.onIceConnectionChange(newState, VRPeerConnection.this);
                 }
@@ -660,6 +862,10 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
         executor.execute(new Runnable() {
             @Override
             public void run() {
+                if (localCandidateFilter != null) {
+                    localCandidateFilter.onLocalCandidate(iceCandidate);
+                    return;
+                }
                 for (Observer observer : observers) {
                     observer.onIceCandidate(iceCandidate, VRPeerConnection.this);
                 }
@@ -673,8 +879,15 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
         executor.execute(new Runnable() {
             @Override
             public void run() {
+                IceCandidate[] removed = candidates;
+                if (localCandidateFilter != null) {
+                    removed = localCandidateFilter.onLocalCandidatesRemoved(candidates);
+                    if (removed.length == 0) {
+                        return;
+                    }
+                }
                 for (Observer observer : observers) {
-                    observer.onIceCandidatesRemoved(candidates, VRPeerConnection.this);
+                    observer.onIceCandidatesRemoved(removed, VRPeerConnection.this);
                 }
             }
         });
@@ -771,6 +984,10 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
         if (videoCallEnable) {
             sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
         }
+        final int limitKbps = receiveBandwidthLimitKbps;
+        if (videoCallEnable && limitKbps > 0) {
+            sdpDescription = setVideoBandwidthLimit(sdpDescription, limitKbps);
+        }
         final SessionDescription sdp = new SessionDescription(sessionDescription.type, sdpDescription);
         localSdp = sdp;
         executor.execute(new Runnable() {
@@ -806,6 +1023,7 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
                         // We've just set remote description, so drain remote
                         // and send local ICE candidates.
                         Log.d(TAG, "Remote SDP set succesfully");
+                        onRemoteDescriptionSet();
                         drainCandidates();
                     }
                 } else {
@@ -820,9 +1038,9 @@ class VRPeerConnection implements PeerConnection.Observer, SdpObserver {
                         }
                         drainCandidates();
                     } else {
-                        // We've just set remote SDP - do nothing for now -
-                        // answer will be created soon.
+                        // We've just set remote SDP - answer will be created soon.
                         Log.d(TAG, "Remote SDP set succesfully");
+                        onRemoteDescriptionSet();
                     }
                 }
             }
@@ -20,6 +20,7 @@ package net.veryrtc.peer;
 import android.content.Context;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import net.veryrtc.util.LooperExecutor;
@@ -27,10 +28,13 @@ import net.veryrtc.webrtcpeerandroid.R;
 
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
+import org.webrtc.CameraCapabilityCache;
 import org.webrtc.CameraEnumerationAndroid;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.DataChannel;
 import org.webrtc.EglBase;
+import org.webrtc.GalleryVideoRenderer;
+import org.webrtc.GlProgramCache;
 import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
 import org.webrtc.MediaStream;
@@ -38,21 +42,31 @@ import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnection.IceConnectionState;
 import org.webrtc.PeerConnectionFactory;
 import org.webrtc.SessionDescription;
+import org.webrtc.SharedEglRenderThread;
 import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
-import org.webrtc.voiceengine.WebRtcAudioManager;
+import org.webrtc.VideoFrameProcessor;
+import org.webrtc.VideoRenderer;
+import org.webrtc.VideoSink;
+import org.webrtc.VideoSinkHub;
 import org.webrtc.voiceengine.WebRtcAudioRecord;
 import org.webrtc.voiceengine.WebRtcAudioTrack;
-import org.webrtc.voiceengine.WebRtcAudioUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Class implements the interface for managing WebRTC connections in harmonious manner with
@@ -123,10 +137,52 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
     private MediaResourceManager mediaManager;
     private LinkedList<PeerConnection.IceServer> iceServers;
     private CpuMonitor cpuMonitor;
+    private final PublisherQualityController publisherQualityController;
+    private final DownlinkBandwidthAllocator downlinkBandwidthAllocator;
+    private final CopyOnWriteArrayList<ConnectionStatsListener> connectionStatsListeners =
+            new CopyOnWriteArrayList<>();
     private boolean initialized = false;
     private boolean isError = false;
     private boolean videoCallEnabled;
     private boolean dataChannelEnabled = false;
+    // Idle connections kept pre-created, only accessed on the executor.
+    private int peerConnectionPoolSize = 0;
+    // Only accessed on the executor.
+    private IceCandidatePolicy iceCandidatePolicy = new IceCandidatePolicy();
+    private final RemoteIceCandidateStats remoteIceCandidateStats = new RemoteIceCandidateStats();
+    // Remote candidates received since the last flush, by connection id. Guards the fields below.
+    private final LinkedHashMap<String, List<IceCandidate>> pendingRemoteCandidates =
+            new LinkedHashMap<>();
+    private long pendingRemoteCandidatesTimeMs;
+    private boolean remoteCandidatesFlushPosted;
+
+    // Hands the candidates received within one looper turn to their connections at once.
+    private final Runnable flushRemoteCandidatesTask = new Runnable() {
+        @Override
+        public void run() {
+            final Map<String, List<IceCandidate>> batches;
+            final long queuedTimeMs;
+            synchronized (pendingRemoteCandidates) {
+                batches = new LinkedHashMap<>(pendingRemoteCandidates);
+                queuedTimeMs = pendingRemoteCandidatesTimeMs;
+                pendingRemoteCandidates.clear();
+                remoteCandidatesFlushPosted = false;
+            }
+            final long queueLatencyMs = SystemClock.elapsedRealtime() - queuedTimeMs;
+            for (Map.Entry<String, List<IceCandidate>> batch : batches.entrySet()) {
+                final String connectionId = batch.getKey();
+                remoteIceCandidateStats.onBatch(batch.getValue().size(), queueLatencyMs);
+                VRPeerConnection connection = connectionManager == null
+                        ? null : connectionManager.getConnection(connectionId);
+
+                if (connection != null) {
+                    connection.addRemoteIceCandidates(batch.getValue(), queuedTimeMs);
+                } else {
+                    observer.onPeerConnectionError("Connection for id " + connectionId + " cannot be found!");
+                }
+            }
+        }
+    };
 
     /**
      * An interface which declares WebRTC callbacks
@@ -255,6 +311,18 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
         void onMessage(final DataChannel.Buffer buffer, final String connectionId, final String dataChannelId);
     }
 
+    /**
+     * Receives the raw statistics reports of every connection
+     */
+    public interface ConnectionStatsListener {
+        /**
+         * Called on a WebRTC thread whenever the statistics of a connection are ready
+         * @param connectionId The connection the reports belong to
+         * @param reports The statistics reports
+         */
+        void onConnectionStats(String connectionId, StatsReport[] reports);
+    }
+
     /**
      * Peer connection parameters.
      */
@@ -428,10 +496,63 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
         this.peerConnectionParameters = peerConnectionParameters;
         this.observer = observer;
         this.executor = new LooperExecutor();
-        this.rootEglBase = EglBase.create();
+        this.rootEglBase = PeerConnectionFactoryHolder.acquire();
         this.videoCallEnabled = peerConnectionParameters.videoCallEnable;
         this.dataChannelEnabled = peerConnectionParameters.dataChannelParameters != null;
         this.videoCapturer = null;
+        this.publisherQualityController = new PublisherQualityController(peerConnectionParameters,
+                new PublisherQualityController.Target() {
+            @Override
+            public void setCaptureFormat(final int width, final int height, final int fps) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mediaManager != null) {
+                            mediaManager.changeCaptureFormat(width, height, fps);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void setMaxBitrate(final int maxBitrateKbps) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (connectionManager == null) {
+                            return;
+                        }
+                        // 0 lifts the cap, e.g. when returning to an unlimited best rung.
+                        final Integer bitrateKbps = (maxBitrateKbps > 0) ? maxBitrateKbps : null;
+                        for (VRPeerConnection connection : connectionManager.getConnections()) {
+                            connection.setVideoMaxBitrate(bitrateKbps);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public int getCpuUsageAverage() {
+                final CpuMonitor monitor = cpuMonitor;
+                return (monitor == null) ? -1 : monitor.getCpuUsageAverage();
+            }
+        });
+        this.downlinkBandwidthAllocator = new DownlinkBandwidthAllocator(
+                new DownlinkBandwidthAllocator.Target() {
+            @Override
+            public void setReceiveBandwidthLimit(final String connectionId, final int limitKbps) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final VRPeerConnection connection = (connectionManager == null)
+                                ? null : connectionManager.getConnection(connectionId);
+                        if (connection != null) {
+                            connection.setReceiveBandwidthLimit(limitKbps);
+                        }
+                    }
+                });
+            }
+        });
 
         // Looper thread is started once in private ctor and is used for all
         // peer connection API calls to ensure new peer connection peerConnectionFactory is
@@ -470,26 +591,76 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
             this.iceServers = iceServers;
         }
 
+        // Compile the shaders of the video renderers in the background, so that the first frame of
+        // a new participant is not delayed by shader compilation.
+        if (peerConnectionParameters.videoCallEnable) {
+            GlProgramCache.prewarm(getRenderContext());
+        }
+
+        // Camera enumeration and capturer creation do not depend on the factory, so they run on a
+        // separate thread while the factory is created on the looper thread.
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        final FutureTask<VideoCapturer> capturerTask = new FutureTask<>(
+                new Callable<VideoCapturer>() {
+                    @Override
+                    public VideoCapturer call() {
+                        return peerConnectionParameters.videoCallEnable
+                                ? createVideoCapturer() : null;
+                    }
+                });
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                capturerTask.run();
+                Logging.d(TAG, "Camera capturer created in "
+                        + (SystemClock.elapsedRealtime() - startTimeMs) + " ms.");
+                // The formats are logged off the startup path. Camera1 opens every camera to
+                // query them, which could collide with the capturer opening its camera.
+                if (peerConnectionParameters.videoCallEnable && !screencaptureEnabled
+                        && peerConnectionParameters.useCamera2) {
+                    logSupportedFormats(new Camera2Enumerator(context));
+                }
+            }
+        }, "VeryRTCPeerCamera").start();
+
         executor.execute(new Runnable() {
             @Override
             public void run() {
+                final long factoryStartTimeMs = SystemClock.elapsedRealtime();
                 createPeerConnectionFactoryInternal(context);
 
+                final long cpuMonitorStartTimeMs = SystemClock.elapsedRealtime();
                 cpuMonitor = new CpuMonitor(context);
 
-                if (peerConnectionParameters.videoCallEnable) {
-                    videoCapturer = createVideoCapturer();
-                    if (videoCapturer == null) {
-                        videoCallEnabled = false;
-                    }
+                final long capturerWaitStartTimeMs = SystemClock.elapsedRealtime();
+                try {
+                    videoCapturer = capturerTask.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(TAG, "Failed to create video capturer", e);
+                    videoCapturer = null;
+                }
+                if (peerConnectionParameters.videoCallEnable && videoCapturer == null) {
+                    videoCallEnabled = false;
                 }
 
+                final long managersStartTimeMs = SystemClock.elapsedRealtime();
                 connectionManager =
                         new PeerConnectionResourceManager(peerConnectionParameters,
-                                                        executor, peerConnectionFactory);
+                                executor, peerConnectionFactory, remoteIceCandidateStats);
                 mediaManager =
                         new MediaResourceManager(context, peerConnectionParameters,
                                                 executor, peerConnectionFactory, videoCapturer);
+                connectionManager.setCandidatePolicy(iceCandidatePolicy);
+                if (peerConnectionPoolSize > 0) {
+                    applyPeerConnectionPoolSize();
+                }
+                final long endTimeMs = SystemClock.elapsedRealtime();
+                Log.d(TAG, "Startup: queued " + (factoryStartTimeMs - startTimeMs)
+                        + " ms, factory " + (cpuMonitorStartTimeMs - factoryStartTimeMs)
+                        + " ms, cpu monitor " + (capturerWaitStartTimeMs - cpuMonitorStartTimeMs)
+                        + " ms, camera wait " + (managersStartTimeMs - capturerWaitStartTimeMs)
+                        + " ms, managers " + (endTimeMs - managersStartTimeMs)
+                        + " ms, total " + (endTimeMs - startTimeMs) + " ms.");
                 initialized = true;
                 observer.onInitialize();
             }
@@ -524,6 +695,7 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
         }
 
         Log.d(TAG, "Closing peer connection.");
+        Log.d(TAG, "Remote ICE candidates: " + remoteIceCandidateStats);
 
         for(VRPeerConnection c : connectionManager.getConnections()){
             c.getPc().removeStream(mediaManager.getLocalMediaStream());
@@ -539,16 +711,10 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
             mediaManager = null;
         }
 
-        Log.d(TAG, "Closing peer connection factory.");
-        if (peerConnectionFactory != null) {
-            peerConnectionFactory.dispose();
-            peerConnectionFactory = null;
-        }
-
-        rootEglBase.release();
-
-        PeerConnectionFactory.stopInternalTracingCapture();
-        PeerConnectionFactory.shutdownInternalTracer();
+        // The factory and the root EglBase are shared with later peers, and disposed by the holder
+        // once they have been idle for a while.
+        peerConnectionFactory = null;
+        PeerConnectionFactoryHolder.release();
         Log.d(TAG, "Closing peer connection done.");
 
         initialized = false;
@@ -560,65 +726,6 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
         Log.d(TAG, "Create peer connection peerConnectionFactory. Use video: " + peerConnectionParameters.videoCallEnable);
         isError = false;
 
-        // Initialize field trials.
-        String fieldTrials = "";
-        if (peerConnectionParameters.videoFlexfecEnabled) {
-            fieldTrials += Constants.VIDEO_FLEXFEC_FIELDTRIAL;
-            Log.d(TAG, "Enable FlexFEC field trial.");
-        }
-        fieldTrials += Constants.VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL;
-        if (peerConnectionParameters.disableWebRtcAGCAndHPF) {
-            fieldTrials += Constants.DISABLE_WEBRTC_AGC_FIELDTRIAL;
-            Log.d(TAG, "Disable WebRTC AGC field trial.");
-        }
-        fieldTrials += Constants.VIDEO_FRAME_EMIT_FIELDTRIAL;
-
-        if (peerConnectionParameters.videoCallEnable &&
-            peerConnectionParameters.videoCodec != null &&
-            peerConnectionParameters.videoCodec.equalsIgnoreCase(Constants.VIDEO_CODEC_H264_HIGH)) {
-              // TODO(magjed): Strip High from SDP when selecting Baseline instead of using field trial.
-              fieldTrials += Constants.VIDEO_H264_HIGH_PROFILE_FIELDTRIAL;
-        }
-
-        PeerConnectionFactory.initialize(
-                PeerConnectionFactory.InitializationOptions.builder(context)
-                        .setFieldTrials(fieldTrials)
-                        .setEnableVideoHwAcceleration(peerConnectionParameters.videoCodecHwAcceleration)
-                        .createInitializationOptions());
-
-        // Enable/disable OpenSL ES playback.
-        if (!peerConnectionParameters.useOpenSLES) {
-            Log.d(TAG, "Disable OpenSL ES audio even if device supports it");
-            WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(true /* enable */);
-        } else {
-            Log.d(TAG, "Allow OpenSL ES audio if device supports it");
-            WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(false);
-        }
-
-        if (peerConnectionParameters.disableBuiltInAEC) {
-            Log.d(TAG, "Disable built-in AEC even if device supports it");
-            WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(true);
-        } else {
-            Log.d(TAG, "Enable built-in AEC if device supports it");
-            WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(false);
-        }
-
-        if (peerConnectionParameters.disableBuiltInAGC) {
-            Log.d(TAG, "Disable built-in AGC even if device supports it");
-            WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(true);
-        } else {
-            Log.d(TAG, "Enable built-in AGC if device supports it");
-            WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(false);
-        }
-
-        if (peerConnectionParameters.disableBuiltInNS) {
-            Log.d(TAG, "Disable built-in NS even if device supports it");
-            WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(true);
-        } else {
-            Log.d(TAG, "Enable built-in NS if device supports it");
-            WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(false);
-        }
-
         // Set audio record error callbacks.
         WebRtcAudioRecord.setErrorCallback(new WebRtcAudioRecord.WebRtcAudioRecordErrorCallback() {
             @Override
@@ -661,7 +768,8 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
             }
         });
 
-        peerConnectionFactory = new PeerConnectionFactory(null);
+        peerConnectionFactory = PeerConnectionFactoryHolder.getFactory(context,
+                peerConnectionParameters);
 
         Log.d(TAG, "Peer connection peerConnectionFactory created.");
     }
@@ -670,10 +778,13 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
 
         String connectionId;
         boolean includeLocalMedia;
+        boolean receiveVideo;
 
-        private GenerateOfferSdpTask(String connectionId, boolean includeLocalMedia){
+        private GenerateOfferSdpTask(String connectionId, boolean includeLocalMedia,
+                                     boolean receiveVideo){
             this.connectionId = connectionId;
             this.includeLocalMedia = includeLocalMedia;
+            this.receiveVideo = receiveVideo;
         }
 
         public void run() {
@@ -694,6 +805,9 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
 
                 if (includeLocalMedia) {
                     connection.getPc().addStream(mediaManager.getLocalMediaStream());
+                } else if (receiveVideo) {
+                    // Sets the b=AS limit of the connection inline, as this is the executor thread.
+                    downlinkBandwidthAllocator.addSubscription(connectionId);
                 }
 
                 if (videoCallEnabled) {
@@ -717,7 +831,8 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
 
                 // Create offer. Offer SDP will be sent to answering client in
                 // PeerConnectionEvents.onLocalDescription event.
-                connection.createOffer(mediaManager.getSdpMediaConstraints());
+                connection.createOffer(receiveVideo ? mediaManager.getSdpMediaConstraints()
+                        : mediaManager.getAudioOnlySdpMediaConstraints());
 
             }
         }
@@ -730,7 +845,19 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
     * @param includeLocalMedia
 	*/
     public void generateOffer(String connectionId, boolean includeLocalMedia){
-        executor.execute(new GenerateOfferSdpTask(connectionId, includeLocalMedia));
+        generateOffer(connectionId, includeLocalMedia, true);
+    }
+
+    /**
+     * Generate SDP offer
+     *
+     * @param connectionId A unique identifier for the connection
+     * @param includeLocalMedia True to send the local media on the connection
+     * @param receiveVideo False to offer to receive audio only
+     */
+    public void generateOffer(String connectionId, boolean includeLocalMedia,
+                              boolean receiveVideo){
+        executor.execute(new GenerateOfferSdpTask(connectionId, includeLocalMedia, receiveVideo));
     }
 
     private class ProcessOfferSdpTask implements Runnable {
@@ -812,18 +939,45 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
      * @param connectionId A unique identifier for the connection
      */
     public void addRemoteIceCandidate(IceCandidate remoteIceCandidate, String connectionId) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                VRPeerConnection connection = connectionManager.getConnection(connectionId);
+        addRemoteIceCandidates(Collections.singletonList(remoteIceCandidate), connectionId);
+    }
 
-                if (connection != null) {
-                    connection.addRemoteIceCandidate(remoteIceCandidate);
-                } else {
-                    observer.onPeerConnectionError("Connection for id " + connectionId + " cannot be found!");
-                }
+    /**
+     * Adds remote ice candidates for connection
+     * <p>
+     * Candidates received until the executor runs next are added in one batch per connection.
+     * Candidates the connection already has and candidates of earlier ICE generations or
+     * credentials, which the server sends again on ICE restarts, are dropped.
+     * </p>
+     * @param remoteIceCandidates The received ICE candidates
+     * @param connectionId A unique identifier for the connection
+     */
+    public void addRemoteIceCandidates(List<IceCandidate> remoteIceCandidates,
+                                       String connectionId) {
+        synchronized (pendingRemoteCandidates) {
+            if (pendingRemoteCandidates.isEmpty()) {
+                pendingRemoteCandidatesTimeMs = SystemClock.elapsedRealtime();
             }
-        });
+            List<IceCandidate> pending = pendingRemoteCandidates.get(connectionId);
+            if (pending == null) {
+                pending = new ArrayList<>();
+                pendingRemoteCandidates.put(connectionId, pending);
+            }
+            pending.addAll(remoteIceCandidates);
+            if (!remoteCandidatesFlushPosted) {
+                // Posted even on the executor thread, so that candidates added in the same turn
+                // join the batch. If the executor is not running, the candidates stay pending and
+                // the post is retried with the next candidates.
+                remoteCandidatesFlushPosted = executor.postDelayed(flushRemoteCandidatesTask, 0);
+            }
+        }
+    }
+
+    /**
+     * Returns the counters and latencies of the remote ICE candidates of all connections
+     */
+    public RemoteIceCandidateStats getRemoteIceCandidateStats(){
+        return remoteIceCandidateStats;
     }
 
     private void startAecDump() {
@@ -850,6 +1004,7 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
         }
         connectionManager.getConnection(connectionId).getPc().removeStream(mediaManager.getLocalMediaStream());
         connectionManager.closeConnection(connectionId);
+        downlinkBandwidthAllocator.removeSubscription(connectionId);
     }
 
     @SuppressWarnings("unused")
@@ -878,25 +1033,30 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
         }
     }
 
-    private VideoCapturer createCameraCapturer(CameraEnumerator enumerator) {
-        final String[] deviceNames = enumerator.getDeviceNames();
-
-        for (String deviceName : deviceNames) {
+    private void logSupportedFormats(CameraEnumerator enumerator) {
+        final CameraCapabilityCache capabilityCache = CameraCapabilityCache.getInstance(context);
+        for (String deviceName : enumerator.getDeviceNames()) {
             Logging.d(TAG, deviceName);
             final List<CameraEnumerationAndroid.CaptureFormat> formatList =
-                    enumerator.getSupportedFormats(deviceName);
+                    capabilityCache.getSupportedFormats(enumerator, deviceName);
             for (CameraEnumerationAndroid.CaptureFormat format:
                     formatList) {
                 Logging.d(TAG, format.toString());
             }
         }
+    }
+
+    private VideoCapturer createCameraCapturer(CameraEnumerator enumerator) {
+        final String[] deviceNames = enumerator.getDeviceNames();
+        // The facing of each camera is cached across launches.
+        final CameraCapabilityCache capabilityCache = CameraCapabilityCache.getInstance(context);
 
         // First, try to find front facing camera
         Logging.d(TAG, "Looking for front facing cameras.");
         // If current camera is set to front and the device has one
         if (peerConnectionParameters.cameraPosition == VeryRTCPeerConfiguration.NBMCameraPosition.FRONT) {
             for (String deviceName : deviceNames) {
-                if (enumerator.isFrontFacing(deviceName)) {
+                if (capabilityCache.isFrontFacing(enumerator, deviceName)) {
                     Logging.d(TAG, "Creating front facing camera capturer.");
                     VideoCapturer videoCapturer = enumerator.createCapturer(deviceName, null);
 
@@ -911,7 +1071,7 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
         else if (peerConnectionParameters.cameraPosition == VeryRTCPeerConfiguration.NBMCameraPosition.BACK) {
             // Front facing camera not found, try something else
             for (String deviceName : deviceNames) {
-                if (!enumerator.isFrontFacing(deviceName)) {
+                if (!capabilityCache.isFrontFacing(enumerator, deviceName)) {
                     Logging.d(TAG, "Creating back facing camera capturer.");
                     VideoCapturer videoCapturer = enumerator.createCapturer(deviceName, null);
 
@@ -925,7 +1085,7 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
         // If current camera is set to any then we pick the faceing-front camera of the device
         else {
             for (String deviceName : deviceNames) {
-                if (enumerator.isFrontFacing(deviceName)) {
+                if (capabilityCache.isFrontFacing(enumerator, deviceName)) {
                     Logging.d(TAG, "Creating other camera capturer.");
                     VideoCapturer videoCapturer = enumerator.createCapturer(deviceName, null);
 
@@ -1009,6 +1169,198 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
         mediaManager.attachRendererToRemoteStream(remoteRender, remoteStream);
     }
 
+    /**
+     * Creates a render thread that many remote renderers can share, e.g. the tiles of a gallery.
+     * The caller must release it after all renderers attached to it have been released.
+     * @param name Name used for the render thread and its log messages
+     * @return The shared render thread
+     */
+    public SharedEglRenderThread createSharedRenderThread(String name){
+        return SharedEglRenderThread.create(name, getRenderContext());
+    }
+
+    /**
+     * Attaches remote stream to a renderer that draws on a shared render thread instead of its own
+     * @param remoteRender A render view for rendering the remote media
+     * @param remoteStream The remote media stream
+     * @param renderThread A render thread created by createSharedRenderThread
+     */
+    public void attachRendererToRemoteStream(SurfaceViewRenderer remoteRender, MediaStream remoteStream,
+                                             SharedEglRenderThread renderThread){
+        remoteRender.init(renderThread, null);
+        remoteRender.setEnableHardwareScaler(true);
+        mediaManager.attachRendererToRemoteStream(remoteRender, remoteStream);
+    }
+
+    /**
+     * Initializes a gallery view that composites many remote streams into a single surface
+     * @param galleryRenderer The gallery view
+     */
+    public void initGalleryRenderer(GalleryVideoRenderer galleryRenderer){
+        galleryRenderer.init(getRenderContext());
+    }
+
+    /**
+     * Attaches remote stream to a tile of a gallery view initialized by initGalleryRenderer
+     * @param tile A tile obtained from GalleryVideoRenderer.addTile
+     * @param remoteStream The remote media stream
+     */
+    public void attachTileToRemoteStream(GalleryVideoRenderer.Tile tile, MediaStream remoteStream){
+        mediaManager.attachRendererToRemoteStream(tile, remoteStream);
+    }
+
+    /**
+     * Detaches a renderer or gallery tile from its remote stream, e.g. before releasing it.
+     * Renderers are detached automatically when their remote stream is removed.
+     * @param remoteRender A renderer attached with attachRendererToRemoteStream or
+     *                     attachTileToRemoteStream
+     */
+    public void detachRendererFromRemoteStream(VideoRenderer.Callbacks remoteRender){
+        mediaManager.detachRendererFromRemoteStream(remoteRender);
+    }
+
+    /**
+     * Adds a sink to the local video, e.g. a recorder, next to the local renderer. Frames are
+     * shared with the sink without copying. A slow sink never delays the local renderer or the
+     * encoder: its frames are queued and delivered on its own thread, and dropped when the queue
+     * is full.
+     * @param sink The sink receiving the local video frames
+     * @param queueCapacity Maximum number of frames queued for the sink, 0 to deliver inline
+     * @param maxFps Maximum frame rate delivered to the sink, 0 for no limit
+     * @param dropPolicy Which frame to drop when the queue of the sink is full
+     */
+    public void addLocalVideoSink(VideoSink sink, int queueCapacity, float maxFps,
+                                  VideoSinkHub.DropPolicy dropPolicy){
+        mediaManager.addLocalVideoSink(sink, queueCapacity, maxFps, dropPolicy);
+    }
+
+    /**
+     * Removes a sink added by addLocalVideoSink. Frames still queued for it are dropped
+     * @param sink The sink to remove
+     */
+    public void removeLocalVideoSink(VideoSink sink){
+        mediaManager.removeLocalVideoSink(sink);
+    }
+
+    /**
+     * Appends a processor to the chain that transforms captured frames before they are rendered
+     * and encoded, e.g. one of VideoFrameProcessors. Downscaling here is much cheaper on low-end
+     * devices than letting the encoder resize.
+     * @param processor The processor to append
+     */
+    public void addLocalVideoProcessor(VideoFrameProcessor processor){
+        mediaManager.addLocalVideoProcessor(processor);
+    }
+
+    /**
+     * Removes a processor added by addLocalVideoProcessor
+     * @param processor The processor to remove
+     */
+    public void removeLocalVideoProcessor(VideoFrameProcessor processor){
+        mediaManager.removeLocalVideoProcessor(processor);
+    }
+
+    /**
+     * Returns the controller that adapts the published video to the available bandwidth and CPU
+     * @return The publisher quality controller
+     */
+    public PublisherQualityController getPublisherQualityController(){
+        return publisherQualityController;
+    }
+
+    /**
+     * Adds a listener for the raw statistics reports of every connection
+     * @param listener The listener to add
+     */
+    public void addConnectionStatsListener(ConnectionStatsListener listener){
+        connectionStatsListeners.add(listener);
+    }
+
+    /**
+     * Runs a task on the thread that owns the connections. Tasks that close or create connections
+     * in response to events on other threads, e.g. statistics, must run there.
+     * @param task The task to run
+     */
+    public void execute(Runnable task){
+        executor.execute(task);
+    }
+
+    /**
+     * Removes a listener added by addConnectionStatsListener
+     * @param listener The listener to remove
+     */
+    public void removeConnectionStatsListener(ConnectionStatsListener listener){
+        connectionStatsListeners.remove(listener);
+    }
+
+    /**
+     * Returns the allocator that divides the downlink bandwidth among the subscriptions, i.e. the
+     * connections generated without local media
+     * @return The downlink bandwidth allocator
+     */
+    public DownlinkBandwidthAllocator getDownlinkBandwidthAllocator(){
+        return downlinkBandwidthAllocator;
+    }
+
+    /**
+     * Sets how long the PeerConnectionFactory shared by all peers is kept after the last peer is
+     * closed, so that the next meeting can reuse it. The default is one minute.
+     * @param timeoutMs The idle timeout, 0 to dispose the factory when the last peer is closed
+     */
+    public static void setFactoryIdleTimeout(long timeoutMs){
+        PeerConnectionFactoryHolder.setIdleTimeout(timeoutMs);
+    }
+
+    /**
+     * Keeps a number of idle connections pre-created, with their ICE candidates gathered, so that
+     * generateOffer and processOffer do not wait for them. Can be called before initialize.
+     * @param size The number of idle connections, 0 to dispose them
+     */
+    public void setPeerConnectionPoolSize(final int size){
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                peerConnectionPoolSize = size;
+                if (connectionManager != null) {
+                    applyPeerConnectionPoolSize();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets which local ICE candidates are gathered and signaled through Observer.onIceCandidate,
+     * for the connections created from now on. Can be called before initialize.
+     * @param policy The candidate policy
+     */
+    public void setIceCandidatePolicy(final IceCandidatePolicy policy){
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                iceCandidatePolicy = policy;
+                if (connectionManager != null) {
+                    connectionManager.setCandidatePolicy(policy);
+                }
+            }
+        });
+    }
+
+    private void applyPeerConnectionPoolSize() {
+        if (mediaManager.getPcConstraints() == null) {
+            mediaManager.createMediaConstraints();
+        }
+        connectionManager.setPoolSize(peerConnectionPoolSize, iceServers,
+                mediaManager.getPcConstraints());
+    }
+
+    /**
+     * Returns the manager that throttles remote renderers according to their visibility
+     * @return The visibility manager of the remote renderers
+     */
+    public VideoVisibilityManager getVideoVisibilityManager(){
+        return mediaManager.getVideoVisibilityManager();
+    }
+
     /**
      * Switches camera between front and back
      */
@@ -1016,6 +1368,23 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
         mediaManager.switchCamera();
     }
 
+    /**
+     * Opens the other camera in the background when a switch is likely, e.g. when the camera menu
+     * is opened, so that the next switchCamera swaps cameras without a gap in the video. The other
+     * camera is closed by cancelCameraSwitch or after 15 seconds. Devices that cannot open both
+     * cameras at once switch as usual.
+     */
+    public void prepareCameraSwitch(){
+        mediaManager.prepareCameraSwitch();
+    }
+
+    /**
+     * Closes the camera opened by prepareCameraSwitch, e.g. when the camera menu is dismissed
+     */
+    public void cancelCameraSwitch(){
+        mediaManager.cancelCameraSwitch();
+    }
+
     /**
      * Check if video is enabled
      * @return true if video is enabled, otherwise false
@@ -1174,8 +1543,9 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
             observer.onLocalSdpOfferGenerated(localSdpOffer, connection.getConnectionId());
         }
 
-        if (peerConnectionParameters.videoMaxBitrateKbps > 0) {
-            connection.setVideoMaxBitrate(peerConnectionParameters.videoMaxBitrateKbps);
+        final int maxBitrateKbps = publisherQualityController.getMaxBitrateKbps();
+        if (maxBitrateKbps > 0) {
+            connection.setVideoMaxBitrate(maxBitrateKbps);
         }
     }
 
@@ -1190,8 +1560,9 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
         synchronized (observer) {
             observer.onLocalSdpAnswerGenerated(localSdpAnswer, connection.getConnectionId());
         }
-        if (peerConnectionParameters.videoMaxBitrateKbps > 0) {
-            connection.setVideoMaxBitrate(peerConnectionParameters.videoMaxBitrateKbps);
+        final int maxBitrateKbps = publisherQualityController.getMaxBitrateKbps();
+        if (maxBitrateKbps > 0) {
+            connection.setVideoMaxBitrate(maxBitrateKbps);
         }
     }
 
@@ -1281,9 +1652,18 @@ public class VeryRTCPeer implements VRPeerConnection.Observer {
      * WebRTC event which is triggered once peer connection statistics is ready.
      *
      * @param reports
+     * @param connection The connection for which this event takes place
      */
     @Override
-    public void onPeerConnectionStatsReady(StatsReport[] reports) {
+    public void onPeerConnectionStatsReady(StatsReport[] reports, VRPeerConnection connection) {
+        for (ConnectionStatsListener listener : connectionStatsListeners) {
+            listener.onConnectionStats(connection.getConnectionId(), reports);
+        }
+        if (downlinkBandwidthAllocator.isSubscription(connection.getConnectionId())) {
+            downlinkBandwidthAllocator.onStats(connection.getConnectionId(), reports);
+        } else if (videoCallEnabled) {
+            publisherQualityController.onStats(reports);
+        }
         updateEncoderStatistics(reports);
     }
 
@@ -0,0 +1,171 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.peer;
+
+import android.util.Log;
+
+import org.webrtc.EglRenderer;
+import org.webrtc.SurfaceViewRenderer;
+import org.webrtc.VideoRenderer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Throttles remote video renderers according to how visible they are on screen.
+ * <p>
+ * The application reports the visibility of each remote renderer whenever its layout changes.
+ * Visible renderers render at full frame rate, partially visible and minimized ones at a reduced
+ * frame rate, and hidden ones not at all: their frames are dropped before they reach the renderer.
+ * Optionally, the remote video track of a hidden renderer is disabled as well, so that the
+ * remote video is not delivered to the application at all.
+ * </p>
+ * <p>
+ * Frame rate reduction applies to SurfaceViewRenderer and EglRenderer. Other renderers, e.g. the
+ * tiles of a GalleryVideoRenderer, only support hiding.
+ * </p>
+ */
+public final class VideoVisibilityManager {
+    private static final String TAG = "VideoVisibilityManager";
+
+    private static final float DEFAULT_PARTIALLY_VISIBLE_FPS = 15f;
+    private static final float DEFAULT_MINIMIZED_FPS = 5f;
+
+    public enum Visibility {
+        // Fully on screen.
+        VISIBLE,
+        // Partly scrolled out of view, or shown as a thumbnail.
+        PARTIALLY_VISIBLE,
+        // Shown in a minimized window, e.g. picture-in-picture.
+        MINIMIZED,
+        // Off screen.
+        HIDDEN
+    }
+
+    private final MediaResourceManager mediaManager;
+    private final Map<VideoRenderer.Callbacks, Visibility> visibilities = new HashMap<>();
+    private float partiallyVisibleFps = DEFAULT_PARTIALLY_VISIBLE_FPS;
+    private float minimizedFps = DEFAULT_MINIMIZED_FPS;
+    private boolean disableHiddenTracks = false;
+
+    VideoVisibilityManager(MediaResourceManager mediaManager) {
+        this.mediaManager = mediaManager;
+    }
+
+    /**
+     * Reports the visibility of a remote renderer
+     * @param remoteRender A renderer attached to a remote stream
+     * @param visibility The current visibility of the renderer
+     */
+    public synchronized void setVisibility(VideoRenderer.Callbacks remoteRender,
+                                           Visibility visibility) {
+        if (visibilities.put(remoteRender, visibility) == visibility) {
+            return;
+        }
+        Log.d(TAG, "Renderer " + remoteRender + " is " + visibility);
+        apply(remoteRender, visibility);
+    }
+
+    /**
+     * Returns the last reported visibility of a remote renderer, VISIBLE if none was reported
+     */
+    public synchronized Visibility getVisibility(VideoRenderer.Callbacks remoteRender) {
+        Visibility visibility = visibilities.get(remoteRender);
+        return (visibility == null) ? Visibility.VISIBLE : visibility;
+    }
+
+    /**
+     * Forgets a remote renderer, e.g. after it has been released, and restores its full frame rate
+     */
+    public synchronized void removeRenderer(VideoRenderer.Callbacks remoteRender) {
+        if (visibilities.remove(remoteRender) != null) {
+            apply(remoteRender, Visibility.VISIBLE);
+        }
+    }
+
+    /**
+     * Sets the frame rates of partially visible and minimized renderers
+     */
+    public synchronized void setReducedFps(float partiallyVisibleFps, float minimizedFps) {
+        if (partiallyVisibleFps <= 0 || minimizedFps <= 0) {
+            throw new IllegalArgumentException("Reduced fps must be positive.");
+        }
+        this.partiallyVisibleFps = partiallyVisibleFps;
+        this.minimizedFps = minimizedFps;
+        applyAll();
+    }
+
+    /**
+     * Enables or disables turning off the remote video tracks of hidden renderers. A track stays
+     * enabled as long as some renderer attached to it is not hidden.
+     */
+    public synchronized void setDisableHiddenTracks(boolean disableHiddenTracks) {
+        if (this.disableHiddenTracks == disableHiddenTracks) {
+            return;
+        }
+        this.disableHiddenTracks = disableHiddenTracks;
+        applyAll();
+    }
+
+    private void applyAll() {
+        for (Map.Entry<VideoRenderer.Callbacks, Visibility> entry : visibilities.entrySet()) {
+            apply(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void apply(VideoRenderer.Callbacks remoteRender, Visibility visibility) {
+        final boolean hidden = (visibility == Visibility.HIDDEN);
+        switch (visibility) {
+            case VISIBLE:
+                setRendererFps(remoteRender, Float.POSITIVE_INFINITY);
+                break;
+            case PARTIALLY_VISIBLE:
+                setRendererFps(remoteRender, partiallyVisibleFps);
+                break;
+            case MINIMIZED:
+                setRendererFps(remoteRender, minimizedFps);
+                break;
+            case HIDDEN:
+                setRendererFps(remoteRender, 0);
+                break;
+        }
+        mediaManager.setRemoteRendererHidden(remoteRender, hidden, disableHiddenTracks);
+    }
+
+    private static void setRendererFps(VideoRenderer.Callbacks remoteRender, float fps) {
+        if (remoteRender instanceof SurfaceViewRenderer) {
+            SurfaceViewRenderer renderer = (SurfaceViewRenderer) remoteRender;
+            if (fps == Float.POSITIVE_INFINITY) {
+                renderer.disableFpsReduction();
+            } else if (fps == 0) {
+                renderer.pauseVideo();
+            } else {
+                renderer.setFpsReduction(fps);
+            }
+        } else if (remoteRender instanceof EglRenderer) {
+            EglRenderer renderer = (EglRenderer) remoteRender;
+            if (fps == Float.POSITIVE_INFINITY) {
+                renderer.disableFpsReduction();
+            } else if (fps == 0) {
+                renderer.pauseVideo();
+            } else {
+                renderer.setFpsReduction(fps);
+            }
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.room;
+
+import android.util.Log;
+
+import net.veryrtc.peer.DownlinkBandwidthAllocator;
+import net.veryrtc.peer.VeryRTCPeer;
+import net.veryrtc.util.Clock;
+
+import org.webrtc.StatsReport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Subscribes to the video of the loudest speakers only.
+ * <p>
+ * Every participant is subscribed to, but only pinned participants and the N loudest speakers
+ * with video; everyone else is subscribed with audio only. Speakers are ranked by the smoothed
+ * audioOutputLevel of their subscription. A silent subscriber with video is only replaced when a
+ * speaker is clearly louder and the subscriber has kept its video for a minimum dwell time, so
+ * that short interjections do not cause churn. Slots are filled, given up and swapped one at a
+ * time, at most once per switch interval.
+ * </p>
+ * <p>
+ * Kurento Room has one endpoint per subscription, so switching between audio only and video
+ * unsubscribes and subscribes again: the manager calls sendUnsubscribeFromVideo, closes the
+ * connection and generates a new offer. The application sends the offer with
+ * sendReceiveVideoFrom from onLocalSdpOfferGenerated, as for any subscription. Participants are
+ * added with addParticipant instead of generating their offers directly. Request ids are taken
+ * from KurentoRoomAPI.nextRequestId, so the application must take its ids from there too.
+ * </p>
+ * <p>
+ * All decisions are made on the executor of the peer, which owns the connections.
+ * </p>
+ */
+public class ActiveSpeakerSubscriptionManager implements VeryRTCPeer.ConnectionStatsListener {
+    private static final String TAG = "ActiveSpeakerSubs";
+
+    // Weight of a new sample in the smoothed audio level.
+    private static final double LEVEL_SMOOTHING = 0.4;
+    // Smoothed audio level below which a participant counts as silent. audioOutputLevel ranges
+    // from 0 to 32767.
+    private static final double SPEAKING_LEVEL = 1000;
+    // A speaker replaces a subscriber with video only if its level is this much higher.
+    private static final double SWITCH_MARGIN = 1.5;
+    // Minimum time a participant keeps its video before it can be replaced.
+    private static final long MIN_DWELL_MS = 8000;
+    // Minimum time between two subscription changes, across all participants.
+    private static final long MIN_SWITCH_INTERVAL_MS = 2000;
+
+    /** Carries out the subscription changes, implemented with VeryRTCPeer and KurentoRoomAPI. */
+    interface Target {
+        /** Runs a task on the thread that owns the connections. */
+        void execute(Runnable task);
+
+        void subscribe(String connectionId, boolean video);
+
+        void unsubscribe(String userId, String streamId, String connectionId);
+
+        void setPriority(String connectionId, DownlinkBandwidthAllocator.Priority priority);
+
+        void removeConnectionStatsListener(VeryRTCPeer.ConnectionStatsListener listener);
+    }
+
+    private static class Participant {
+        final String userId;
+        final String streamId;
+        final String connectionId;
+        double level;
+        boolean pinned;
+        boolean video;
+        long videoChangeTimeMs;
+
+        Participant(String userId, String streamId, String connectionId) {
+            this.userId = userId;
+            this.streamId = streamId;
+            this.connectionId = connectionId;
+        }
+    }
+
+    private final Target target;
+    private final Clock clock;
+    // The following variables are only modified on the executor, and synchronized on |this| so
+    // that getVideoSubscriptions may be called on any thread.
+    // Ordered by join time, which breaks ties between equal levels.
+    private final Map<String, Participant> participants = new LinkedHashMap<>();
+    private final Map<String, Participant> participantsByConnection = new HashMap<>();
+    private int maxVideoSubscriptions;
+    private long lastSwitchTimeMs;
+
+    /**
+     * Creates a manager and registers it for the statistics of the peer
+     * @param peer The peer creating the subscription connections
+     * @param roomApi The room the participants are in
+     * @param maxVideoSubscriptions The number of loudest speakers subscribed with video
+     */
+    public ActiveSpeakerSubscriptionManager(final VeryRTCPeer peer, final KurentoRoomAPI roomApi,
+                                            int maxVideoSubscriptions) {
+        this(new Target() {
+            @Override
+            public void execute(Runnable task) {
+                peer.execute(task);
+            }
+
+            @Override
+            public void subscribe(String connectionId, boolean video) {
+                peer.generateOffer(connectionId, false /* includeLocalMedia */, video);
+            }
+
+            @Override
+            public void unsubscribe(String userId, String streamId, String connectionId) {
+                roomApi.sendUnsubscribeFromVideo(userId, streamId, roomApi.nextRequestId());
+                peer.closeConnection(connectionId);
+            }
+
+            @Override
+            public void setPriority(String connectionId,
+                                    DownlinkBandwidthAllocator.Priority priority) {
+                peer.getDownlinkBandwidthAllocator().setPriority(connectionId, priority);
+            }
+
+            @Override
+            public void removeConnectionStatsListener(
+                    VeryRTCPeer.ConnectionStatsListener listener) {
+                peer.removeConnectionStatsListener(listener);
+            }
+        }, Clock.SYSTEM, maxVideoSubscriptions);
+        peer.addConnectionStatsListener(this);
+    }
+
+    ActiveSpeakerSubscriptionManager(Target target, Clock clock, int maxVideoSubscriptions) {
+        this.target = target;
+        this.clock = clock;
+        this.maxVideoSubscriptions = maxVideoSubscriptions;
+    }
+
+    /**
+     * Unregisters the manager from the peer
+     */
+    public void release() {
+        target.removeConnectionStatsListener(this);
+    }
+
+    /**
+     * Subscribes to a participant, with video if a slot is free or the participant is pinned
+     * @param userId The publisher's user name
+     * @param streamId The name of the published stream, typically webcam
+     * @param connectionId The connection to create for the subscription
+     */
+    public void addParticipant(final String userId, final String streamId,
+                               final String connectionId) {
+        target.execute(new Runnable() {
+            @Override
+            public void run() {
+                addParticipantInternal(userId, streamId, connectionId);
+            }
+        });
+    }
+
+    /**
+     * Forgets a participant that left the room. Its connection is closed by the application.
+     */
+    public void removeParticipant(final String userId) {
+        target.execute(new Runnable() {
+            @Override
+            public void run() {
+                removeParticipantInternal(userId);
+            }
+        });
+    }
+
+    /**
+     * Pins a participant, whose video is then always subscribed to
+     */
+    public void setPinned(final String userId, final boolean pinned) {
+        target.execute(new Runnable() {
+            @Override
+            public void run() {
+                setPinnedInternal(userId, pinned);
+            }
+        });
+    }
+
+    /**
+     * Sets the number of loudest speakers subscribed with video, in addition to pinned ones
+     */
+    public void setMaxVideoSubscriptions(final int maxVideoSubscriptions) {
+        target.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ActiveSpeakerSubscriptionManager.this) {
+                    ActiveSpeakerSubscriptionManager.this.maxVideoSubscriptions =
+                            maxVideoSubscriptions;
+                    evaluate();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the user names of the participants currently subscribed with video
+     */
+    public synchronized List<String> getVideoSubscriptions() {
+        final List<String> userIds = new ArrayList<>();
+        for (Participant participant : participants.values()) {
+            if (participant.video) {
+                userIds.add(participant.userId);
+            }
+        }
+        return userIds;
+    }
+
+    /**
+     * Called on a WebRTC thread. The level is parsed there, and applied on the executor.
+     */
+    @Override
+    public void onConnectionStats(final String connectionId, StatsReport[] reports) {
+        final int level = getAudioOutputLevel(reports);
+        if (level < 0) {
+            return;
+        }
+        target.execute(new Runnable() {
+            @Override
+            public void run() {
+                onAudioLevel(connectionId, level);
+            }
+        });
+    }
+
+    private synchronized void addParticipantInternal(String userId, String streamId,
+                                                     String connectionId) {
+        if (participants.containsKey(userId)) {
+            return;
+        }
+        final Participant participant = new Participant(userId, streamId, connectionId);
+        participants.put(userId, participant);
+        participantsByConnection.put(connectionId, participant);
+        participant.video = countUnpinnedVideo() < maxVideoSubscriptions;
+        participant.videoChangeTimeMs = clock.elapsedRealtime();
+        Log.d(TAG, "Subscribing to " + userId + (participant.video ? " with video." : "."));
+        target.subscribe(connectionId, participant.video);
+    }
+
+    private synchronized void removeParticipantInternal(String userId) {
+        final Participant participant = participants.remove(userId);
+        if (participant != null) {
+            participantsByConnection.remove(participant.connectionId);
+            evaluate();
+        }
+    }
+
+    private synchronized void setPinnedInternal(String userId, boolean pinned) {
+        final Participant participant = participants.get(userId);
+        if (participant == null || participant.pinned == pinned) {
+            return;
+        }
+        participant.pinned = pinned;
+        // Pinning is asked for by the user, so it is not held back by the switch interval.
+        if (pinned && !participant.video) {
+            resubscribe(participant, true);
+            lastSwitchTimeMs = clock.elapsedRealtime();
+        }
+        evaluate();
+    }
+
+    private synchronized void onAudioLevel(String connectionId, int level) {
+        final Participant participant = participantsByConnection.get(connectionId);
+        if (participant == null) {
+            return;
+        }
+        participant.level = (1 - LEVEL_SMOOTHING) * participant.level + LEVEL_SMOOTHING * level;
+        evaluate();
+    }
+
+    // Returns the audioOutputLevel of the received audio, or -1 if there is none.
+    private static int getAudioOutputLevel(StatsReport[] reports) {
+        for (StatsReport report : reports) {
+            if (!report.type.equals("ssrc") || !report.id.contains("recv")) {
+                continue;
+            }
+            for (StatsReport.Value value : report.values) {
+                if (value.name.equals("audioOutputLevel")) {
+                    try {
+                        return Integer.parseInt(value.value);
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Invalid audio level " + value.value);
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void evaluate() {
+        final long nowMs = clock.elapsedRealtime();
+        final List<Participant> ranked = new ArrayList<>();
+        for (Participant participant : participants.values()) {
+            if (!participant.pinned) {
+                ranked.add(participant);
+            }
+        }
+        // Stable, so equal levels keep join order.
+        Collections.sort(ranked, new Comparator<Participant>() {
+            @Override
+            public int compare(Participant a, Participant b) {
+                return Double.compare(b.level, a.level);
+            }
+        });
+
+        final List<Participant> withVideo = new ArrayList<>();
+        final List<Participant> withoutVideo = new ArrayList<>();
+        for (Participant participant : ranked) {
+            (participant.video ? withVideo : withoutVideo).add(participant);
+        }
+
+        if (nowMs - lastSwitchTimeMs >= MIN_SWITCH_INTERVAL_MS) {
+            if (withVideo.size() > maxVideoSubscriptions) {
+                // Give up a slot beyond the limit, the quietest first.
+                final Participant quietest = withVideo.remove(withVideo.size() - 1);
+                resubscribe(quietest, false);
+                lastSwitchTimeMs = nowMs;
+            } else if (withVideo.size() < maxVideoSubscriptions && !withoutVideo.isEmpty()) {
+                // Fill a free slot with the loudest participant without video.
+                final Participant loudest = withoutVideo.remove(0);
+                resubscribe(loudest, true);
+                withVideo.add(loudest);
+                lastSwitchTimeMs = nowMs;
+            } else if (!withVideo.isEmpty() && !withoutVideo.isEmpty()) {
+                replaceQuietest(withVideo, withoutVideo.get(0), nowMs);
+            }
+        }
+        updatePriorities(withVideo);
+    }
+
+    // Replaces the quietest subscriber with video by |loudest| if it is clearly louder.
+    private void replaceQuietest(List<Participant> withVideo, Participant loudest, long nowMs) {
+        Participant quietest = null;
+        for (Participant participant : withVideo) {
+            if (nowMs - participant.videoChangeTimeMs >= MIN_DWELL_MS
+                    && (quietest == null || participant.level < quietest.level)) {
+                quietest = participant;
+            }
+        }
+        if (quietest != null && loudest.level >= SPEAKING_LEVEL
+                && loudest.level > quietest.level * SWITCH_MARGIN) {
+            Log.d(TAG, "Active speaker " + loudest.userId + " replaces " + quietest.userId);
+            resubscribe(quietest, false);
+            resubscribe(loudest, true);
+            withVideo.remove(quietest);
+            withVideo.add(loudest);
+            lastSwitchTimeMs = nowMs;
+        }
+    }
+
+    // Gives the loudest speaker and the pinned participants a larger share of the downlink.
+    private void updatePriorities(List<Participant> unpinnedWithVideo) {
+        Participant loudest = null;
+        for (Participant participant : unpinnedWithVideo) {
+            if (participant.level >= SPEAKING_LEVEL
+                    && (loudest == null || participant.level > loudest.level)) {
+                loudest = participant;
+            }
+        }
+        for (Participant participant : participants.values()) {
+            if (!participant.video) {
+                continue;
+            }
+            final DownlinkBandwidthAllocator.Priority priority;
+            if (participant.pinned) {
+                priority = DownlinkBandwidthAllocator.Priority.PINNED;
+            } else if (participant == loudest) {
+                priority = DownlinkBandwidthAllocator.Priority.ACTIVE_SPEAKER;
+            } else {
+                priority = DownlinkBandwidthAllocator.Priority.VISIBLE;
+            }
+            target.setPriority(participant.connectionId, priority);
+        }
+    }
+
+    private void resubscribe(Participant participant, boolean video) {
+        if (participant.video == video) {
+            return;
+        }
+        Log.d(TAG, (video ? "Subscribing to video of " : "Unsubscribing from video of ")
+                + participant.userId);
+        participant.video = video;
+        participant.videoChangeTimeMs = clock.elapsedRealtime();
+        target.unsubscribe(participant.userId, participant.streamId, participant.connectionId);
+        target.subscribe(participant.connectionId, video);
+    }
+
+    private int countUnpinnedVideo() {
+        int count = 0;
+        for (Participant participant : participants.values()) {
+            if (participant.video && !participant.pinned) {
+                ++count;
+            }
+        }
+        return count;
+    }
+}
@@ -29,6 +29,7 @@ import org.java_websocket.handshake.ServerHandshake;
 
 import java.net.URI;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -40,6 +41,7 @@ public abstract class KurentoAPI implements JsonRpcWebSocketClient.WebSocketConn
     protected JsonRpcWebSocketClient client = null;
     protected LooperExecutor executor = null;
     protected String wsUri = null;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
 
     /**
      * Constructor that initializes required instances and parameters for the API calls.
@@ -110,6 +112,17 @@ public abstract class KurentoAPI implements JsonRpcWebSocketClient.WebSocketConn
         }
     }
 
+    /**
+     * Returns a request id that is unique among the ids returned by this method. Components that
+     * send requests on their own, e.g. ActiveSpeakerSubscriptionManager, take their ids from here,
+     * so the application should do the same to match every response to its request.
+     *
+     * @return A new request id
+     */
+    public int nextRequestId() {
+        return nextRequestId.getAndIncrement();
+    }
+
     /**
      *
      * @param method
@@ -115,4 +115,29 @@ public class LooperExecutor extends Thread implements Executor {
 			handler.post(runnable);
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Posts a runnable to the looper thread. Unlike execute, it is queued also when called on the
+	 * looper thread, so it runs after the current task.
+	 * @param runnable The runnable object to be executed
+	 * @param delayMs The delay before the runnable is executed
+	 * @return True if the runnable was posted, false if the executor is not running
+	 */
+	public synchronized boolean postDelayed(final Runnable runnable, long delayMs) {
+		if (!running) {
+			Log.w(TAG, "Running looper executor without calling requestStart()");
+			return false;
+		}
+		return handler.postDelayed(runnable, delayMs);
+	}
+
+	/**
+	 * Removes pending posts of a runnable
+	 * @param runnable The runnable object passed to postDelayed
+	 */
+	public synchronized void removeCallbacks(final Runnable runnable) {
+		if (handler != null) {
+			handler.removeCallbacks(runnable);
+		}
+	}
+}
@@ -39,6 +39,9 @@ public class Camera2Enumerator implements CameraEnumerator {
   // lazily in getSupportedFormats(), and cached for future reference.
   private static final Map<String, List<CaptureFormat>> cachedSupportedFormats =
       new HashMap<String, List<CaptureFormat>>();
+  // Characteristics do not change while the process runs, and querying them is slow.
+  private static final Map<String, CameraCharacteristics> cachedCharacteristics =
+      new HashMap<String, CameraCharacteristics>();
 
   final Context context;
   final CameraManager cameraManager;
@@ -92,7 +95,7 @@ public class Camera2Enumerator implements CameraEnumerator {
 
   private CameraCharacteristics getCameraCharacteristics(String deviceName) {
     try {
-      return cameraManager.getCameraCharacteristics(deviceName);
+      return getCameraCharacteristics(cameraManager, deviceName);
       // On Android OS pre 4.4.2, a class will not load because of VerifyError if it contains a
       // catch statement with an Exception from a newer API, even if the code is never executed.
       // https://code.google.com/p/android/issues/detail?id=209129
@@ -102,6 +105,18 @@ public class Camera2Enumerator implements CameraEnumerator {
     }
   }
 
+  static CameraCharacteristics getCameraCharacteristics(
+      CameraManager cameraManager, String cameraId) throws AndroidException {
+    synchronized (cachedCharacteristics) {
+      CameraCharacteristics characteristics = cachedCharacteristics.get(cameraId);
+      if (characteristics == null) {
+        characteristics = cameraManager.getCameraCharacteristics(cameraId);
+        cachedCharacteristics.put(cameraId, characteristics);
+      }
+      return characteristics;
+    }
+  }
+
   /**
    * Checks if API is supported and all cameras have better than legacy support.
    */
@@ -114,7 +129,7 @@ public class Camera2Enumerator implements CameraEnumerator {
     try {
       String[] cameraIds = cameraManager.getCameraIdList();
       for (String id : cameraIds) {
-        CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(id);
+        CameraCharacteristics characteristics = getCameraCharacteristics(cameraManager, id);
         if (characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL)
             == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
           return false;
@@ -182,7 +197,7 @@ public class Camera2Enumerator implements CameraEnumerator {
 
       final CameraCharacteristics cameraCharacteristics;
       try {
-        cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
+        cameraCharacteristics = getCameraCharacteristics(cameraManager, cameraId);
       } catch (Exception ex) {
         Logging.e(TAG, "getCameraCharacteristics(): " + ex);
         return new ArrayList<CaptureFormat>();
@@ -23,6 +23,7 @@ import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.media.MediaRecorder;
 import android.os.Handler;
+import android.util.AndroidException;
 import android.util.Range;
 import android.view.Surface;
 import android.view.WindowManager;
@@ -340,8 +341,8 @@ class Camera2Session implements CameraSession {
     Logging.d(TAG, "start");
 
     try {
-      cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
-    } catch (final CameraAccessException e) {
+      cameraCharacteristics = Camera2Enumerator.getCameraCharacteristics(cameraManager, cameraId);
+    } catch (final AndroidException e) {
       reportError("getCameraCharacteristics(): " + e.getMessage());
       return;
     }
@@ -0,0 +1,239 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+/**
+ * Capabilities of the cameras of the device, persisted across launches so that the facing and the
+ * supported formats of a camera are only queried once per device build. Querying them is slow with
+ * Camera2, and Camera1 even opens the camera to do so.
+ *
+ * Also selects the capture format for a target resolution, frame rate and power budget. Selections
+ * are memoized, so repeated requests for the same target are a single map lookup.
+ */
+public class CameraCapabilityCache {
+  private static final String TAG = "CameraCapabilityCache";
+  private static final String PREFERENCES_NAME = "org.webrtc.CameraCapabilityCache";
+  private static final String BUILD_KEY = "build";
+
+  /** How much the selected format may cost in sensor bandwidth and processing. */
+  public enum PowerBudget {
+    /** The largest format that does not exceed the target, to save power. */
+    LOW,
+    /** The format closest to the target. */
+    BALANCED,
+    /** The smallest format that covers the target, for the best quality after scaling. */
+    HIGH
+  }
+
+  private static class Capabilities {
+    final boolean frontFacing;
+    final boolean backFacing;
+    // Sorted by increasing pixel count.
+    final List<CaptureFormat> formats;
+    final Map<String, CaptureFormat> selections = new HashMap<String, CaptureFormat>();
+
+    Capabilities(boolean frontFacing, boolean backFacing, List<CaptureFormat> formats) {
+      this.frontFacing = frontFacing;
+      this.backFacing = backFacing;
+      final List<CaptureFormat> sortedFormats = new ArrayList<CaptureFormat>(formats);
+      Collections.sort(sortedFormats, new Comparator<CaptureFormat>() {
+        @Override
+        public int compare(CaptureFormat a, CaptureFormat b) {
+          final int areaA = a.width * a.height;
+          final int areaB = b.width * b.height;
+          return (areaA < areaB) ? -1 : ((areaA == areaB) ? 0 : 1);
+        }
+      });
+      this.formats = Collections.unmodifiableList(sortedFormats);
+    }
+  }
+
+  private static CameraCapabilityCache instance;
+
+  private final SharedPreferences preferences;
+  private final Map<String, Capabilities> capabilities = new HashMap<String, Capabilities>();
+
+  public static synchronized CameraCapabilityCache getInstance(Context context) {
+    if (instance == null) {
+      instance = new CameraCapabilityCache(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private CameraCapabilityCache(Context context) {
+    preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    // Capabilities can change with a system update, so they are only valid for the build that
+    // stored them.
+    if (!Build.FINGERPRINT.equals(preferences.getString(BUILD_KEY, null))) {
+      Logging.d(TAG, "Device build changed, clearing cached camera capabilities.");
+      preferences.edit().clear().putString(BUILD_KEY, Build.FINGERPRINT).apply();
+    }
+  }
+
+  public boolean isFrontFacing(CameraEnumerator enumerator, String deviceName) {
+    return getCapabilities(enumerator, deviceName).frontFacing;
+  }
+
+  public boolean isBackFacing(CameraEnumerator enumerator, String deviceName) {
+    return getCapabilities(enumerator, deviceName).backFacing;
+  }
+
+  /** Returns the supported formats of |deviceName|, sorted by increasing pixel count. */
+  public List<CaptureFormat> getSupportedFormats(CameraEnumerator enumerator, String deviceName) {
+    return getCapabilities(enumerator, deviceName).formats;
+  }
+
+  /**
+   * Returns the format of |deviceName| that best matches |width|x|height| at |fps| frames per
+   * second within |powerBudget|, or null if the camera reports no formats. Formats that cannot
+   * reach |fps| are only selected if no format can.
+   */
+  public CaptureFormat selectFormat(CameraEnumerator enumerator, String deviceName, int width,
+      int height, int fps, PowerBudget powerBudget) {
+    final Capabilities cameraCapabilities = getCapabilities(enumerator, deviceName);
+    final String selectionKey = width + "x" + height + "@" + fps + "/" + powerBudget;
+    synchronized (cameraCapabilities.selections) {
+      if (cameraCapabilities.selections.containsKey(selectionKey)) {
+        return cameraCapabilities.selections.get(selectionKey);
+      }
+      final CaptureFormat format =
+          selectFormat(cameraCapabilities.formats, width, height, fps, powerBudget);
+      Logging.d(TAG, "Selected " + format + " for " + selectionKey);
+      cameraCapabilities.selections.put(selectionKey, format);
+      return format;
+    }
+  }
+
+  // |formats| are sorted by increasing pixel count.
+  static CaptureFormat selectFormat(
+      List<CaptureFormat> formats, int width, int height, int fps, PowerBudget powerBudget) {
+    List<CaptureFormat> candidates = new ArrayList<CaptureFormat>();
+    for (CaptureFormat format : formats) {
+      if (format.framerate.max >= fps * 1000) {
+        candidates.add(format);
+      }
+    }
+    if (candidates.isEmpty()) {
+      candidates = formats;
+    }
+    return selectFormat(candidates, width, height, powerBudget);
+  }
+
+  private static CaptureFormat selectFormat(
+      List<CaptureFormat> formats, int width, int height, PowerBudget powerBudget) {
+    if (formats.isEmpty()) {
+      return null;
+    }
+    switch (powerBudget) {
+      case LOW:
+        for (int i = formats.size() - 1; i >= 0; --i) {
+          final CaptureFormat format = formats.get(i);
+          if (format.width <= width && format.height <= height) {
+            return format;
+          }
+        }
+        return formats.get(0);
+      case HIGH:
+        for (CaptureFormat format : formats) {
+          if (format.width >= width && format.height >= height) {
+            return format;
+          }
+        }
+        return formats.get(formats.size() - 1);
+      case BALANCED:
+      default:
+        CaptureFormat closestFormat = null;
+        int closestDiff = Integer.MAX_VALUE;
+        for (CaptureFormat format : formats) {
+          final int diff = Math.abs(format.width - width) + Math.abs(format.height - height);
+          if (diff < closestDiff) {
+            closestFormat = format;
+            closestDiff = diff;
+          }
+        }
+        return closestFormat;
+    }
+  }
+
+  private synchronized Capabilities getCapabilities(
+      CameraEnumerator enumerator, String deviceName) {
+    // Camera1 and Camera2 name the same camera differently.
+    final String key = enumerator.getClass().getSimpleName() + "/" + deviceName;
+    Capabilities cameraCapabilities = capabilities.get(key);
+    if (cameraCapabilities != null) {
+      return cameraCapabilities;
+    }
+    cameraCapabilities = decode(preferences.getString(key, null));
+    if (cameraCapabilities == null) {
+      final long startTimeMs = SystemClock.elapsedRealtime();
+      cameraCapabilities = new Capabilities(enumerator.isFrontFacing(deviceName),
+          enumerator.isBackFacing(deviceName), enumerator.getSupportedFormats(deviceName));
+      Logging.d(TAG, "Queried capabilities of " + key + " in "
+              + (SystemClock.elapsedRealtime() - startTimeMs) + " ms.");
+      // Cameras that failed to report formats are queried again next time.
+      if (!cameraCapabilities.formats.isEmpty()) {
+        preferences.edit().putString(key, encode(cameraCapabilities)).apply();
+      }
+    }
+    capabilities.put(key, cameraCapabilities);
+    return cameraCapabilities;
+  }
+
+  // Encoded as "front,back;width,height,minFps,maxFps;...".
+  private static String encode(Capabilities cameraCapabilities) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(cameraCapabilities.frontFacing).append(',').append(cameraCapabilities.backFacing);
+    for (CaptureFormat format : cameraCapabilities.formats) {
+      sb.append(';')
+          .append(format.width)
+          .append(',')
+          .append(format.height)
+          .append(',')
+          .append(format.framerate.min)
+          .append(',')
+          .append(format.framerate.max);
+    }
+    return sb.toString();
+  }
+
+  private static Capabilities decode(String encoded) {
+    if (encoded == null) {
+      return null;
+    }
+    try {
+      final String[] entries = encoded.split(";");
+      final String[] facing = entries[0].split(",");
+      final List<CaptureFormat> formats = new ArrayList<CaptureFormat>();
+      for (int i = 1; i < entries.length; ++i) {
+        final String[] values = entries[i].split(",");
+        formats.add(new CaptureFormat(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+            Integer.parseInt(values[2]), Integer.parseInt(values[3])));
+      }
+      return new Capabilities(
+          Boolean.parseBoolean(facing[0]), Boolean.parseBoolean(facing[1]), formats);
+    } catch (RuntimeException e) {
+      Logging.w(TAG, "Invalid cached capabilities: " + encoded);
+      return null;
+    }
+  }
+}
@@ -16,6 +16,7 @@ import android.os.Handler;
 import android.os.Looper;
 
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("deprecation")
 abstract class CameraCapturer implements CameraVideoCapturer {
@@ -36,6 +37,12 @@ abstract class CameraCapturer implements CameraVideoCapturer {
   private final static int MAX_OPEN_CAMERA_ATTEMPTS = 3;
   private final static int OPEN_CAMERA_DELAY_MS = 500;
   private final static int OPEN_CAMERA_TIMEOUT = 10000;
+  // A camera opened by prepareCameraSwitch() is closed if not switched to within this time.
+  private final static int WARM_SESSION_TIMEOUT_MS = 15000;
+
+  // Created on the first switch, as the native library is not loaded yet when the first capturer
+  // may be created.
+  private static Histogram switchLatencyMsHistogram;
 
   private final CameraEnumerator cameraEnumerator;
   private final CameraEventsHandler eventsHandler;
@@ -54,6 +61,7 @@ abstract class CameraCapturer implements CameraVideoCapturer {
             capturerObserver.onCapturerStarted(true /* success */);
             sessionOpening = false;
             currentSession = session;
+            currentSessionHelper = surfaceHelper;
             cameraStatistics = new CameraStatistics(surfaceHelper, eventsHandler);
             firstFrameObserved = false;
             stateLock.notifyAll();
@@ -160,6 +168,9 @@ abstract class CameraCapturer implements CameraVideoCapturer {
           Logging.w(TAG, "onCameraDisconnected from another session.");
           return;
         }
+        if (restartAfterEvictionLocked()) {
+          return;
+        }
         eventsHandler.onCameraDisconnected();
         stopCapture();
       }
@@ -185,11 +196,7 @@ abstract class CameraCapturer implements CameraVideoCapturer {
           Logging.w(TAG, "onTextureFrameCaptured from another session.");
           return;
         }
-        if (!firstFrameObserved) {
-          eventsHandler.onFirstFrameAvailable();
-          firstFrameObserved = true;
-        }
-        cameraStatistics.addFrame();
+        observeFrame();
         capturerObserver.onFrameCaptured(frame);
       }
     }
@@ -203,11 +210,7 @@ abstract class CameraCapturer implements CameraVideoCapturer {
           Logging.w(TAG, "onByteBufferFrameCaptured from another session.");
           return;
         }
-        if (!firstFrameObserved) {
-          eventsHandler.onFirstFrameAvailable();
-          firstFrameObserved = true;
-        }
-        cameraStatistics.addFrame();
+        observeFrame();
         capturerObserver.onByteBufferFrameCaptured(data, width, height, rotation, timestamp);
       }
     }
@@ -222,11 +225,7 @@ abstract class CameraCapturer implements CameraVideoCapturer {
           surfaceHelper.returnTextureFrame();
           return;
         }
-        if (!firstFrameObserved) {
-          eventsHandler.onFirstFrameAvailable();
-          firstFrameObserved = true;
-        }
-        cameraStatistics.addFrame();
+        observeFrame();
         capturerObserver.onTextureFrameCaptured(
             width, height, oesTextureId, transformMatrix, rotation, timestamp);
       }
@@ -240,6 +239,14 @@ abstract class CameraCapturer implements CameraVideoCapturer {
     }
   };
 
+  private final Runnable warmSessionTimeoutRunnable = new Runnable() {
+    @Override
+    public void run() {
+      Logging.d(TAG, "Prepared camera switch timed out.");
+      cancelCameraSwitch();
+    }
+  };
+
   // Initialized on initialize
   // -------------------------
   private Handler cameraThreadHandler;
@@ -260,6 +267,24 @@ abstract class CameraCapturer implements CameraVideoCapturer {
   // Valid from onDone call until stopCapture, otherwise null.
   private CameraStatistics cameraStatistics; /* guarded by stateLock */
   private boolean firstFrameObserved; /* guarded by stateLock */
+  // Helper whose thread |currentSession| runs on, |surfaceHelper| or |standbyHelper|.
+  private SurfaceTextureHelper currentSessionHelper; /* guarded by stateLock */
+  // Start of the switch whose latency is reported with the first frame, 0 if none.
+  private long switchStartTimeNs; /* guarded by stateLock */
+
+  // Session opened by prepareCameraSwitch() on the helper that |currentSession| does not use.
+  // Sessions created with createSessionInternal() always use |surfaceHelper|.
+  private SurfaceTextureHelper standbyHelper; /* guarded by stateLock */
+  private CameraSession warmSession; /* guarded by stateLock */
+  private SurfaceTextureHelper warmSessionHelper; /* guarded by stateLock */
+  private String warmCameraName; /* guarded by stateLock */
+  private boolean warmSessionOpening; /* guarded by stateLock */
+  // The warm session is closed as soon as it opens.
+  private boolean warmSessionCancelled; /* guarded by stateLock */
+  // A switch waits for the warm session to open.
+  private boolean warmSwitchPending; /* guarded by stateLock */
+  // Cleared when opening a warm session disconnected the current camera.
+  private boolean warmSessionsSupported = true; /* guarded by stateLock */
 
   // Variables used on camera thread - do not require stateLock synchronization.
   private MediaRecorderState mediaRecorderState = MediaRecorderState.IDLE;
@@ -349,23 +374,21 @@ abstract class CameraCapturer implements CameraVideoCapturer {
     Logging.d(TAG, "Stop capture");
 
     synchronized (stateLock) {
-      while (sessionOpening) {
+      cancelWarmSessionLocked();
+      while (sessionOpening || warmSessionOpening) {
         Logging.d(TAG, "Stop capture: Waiting for session to open");
         ThreadUtils.waitUninterruptibly(stateLock);
       }
+      // The other camera may have been prepared while waiting.
+      cancelWarmSessionLocked();
 
       if (currentSession != null) {
         Logging.d(TAG, "Stop capture: Nulling session");
         cameraStatistics.release();
         cameraStatistics = null;
-        final CameraSession oldSession = currentSession;
-        cameraThreadHandler.post(new Runnable() {
-          @Override
-          public void run() {
-            oldSession.stop();
-          }
-        });
+        stopSession(currentSession, currentSessionHelper);
         currentSession = null;
+        switchStartTimeNs = 0;
         capturerObserver.onCapturerStopped();
       } else {
         Logging.d(TAG, "Stop capture: No session open");
@@ -388,19 +411,55 @@ abstract class CameraCapturer implements CameraVideoCapturer {
   public void dispose() {
     Logging.d(TAG, "dispose");
     stopCapture();
+    synchronized (stateLock) {
+      if (standbyHelper != null) {
+        // Posted, so that sessions stopped on the standby thread are closed first.
+        final SurfaceTextureHelper helper = standbyHelper;
+        helper.getHandler().post(new Runnable() {
+          @Override
+          public void run() {
+            helper.dispose();
+          }
+        });
+        standbyHelper = null;
+      }
+    }
   }
 
   @Override
   public void switchCamera(final CameraSwitchHandler switchEventsHandler) {
     Logging.d(TAG, "switchCamera");
+    final long startTimeNs = System.nanoTime();
     cameraThreadHandler.post(new Runnable() {
       @Override
       public void run() {
+        synchronized (stateLock) {
+          switchStartTimeNs = startTimeNs;
+        }
         switchCameraInternal(switchEventsHandler);
       }
     });
   }
 
+  @Override
+  public void prepareCameraSwitch() {
+    Logging.d(TAG, "prepareCameraSwitch");
+    cameraThreadHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        prepareCameraSwitchInternal();
+      }
+    });
+  }
+
+  @Override
+  public void cancelCameraSwitch() {
+    Logging.d(TAG, "cancelCameraSwitch");
+    synchronized (stateLock) {
+      cancelWarmSessionLocked();
+    }
+  }
+
   @Override
   public void addMediaRecorderToCamera(
       final MediaRecorder mediaRecorder, final MediaRecorderHandler mediaRecoderEventsHandler) {
@@ -447,6 +506,7 @@ abstract class CameraCapturer implements CameraVideoCapturer {
 
   private void reportCameraSwitchError(String error, CameraSwitchHandler switchEventsHandler) {
     Logging.e(TAG, error);
+    switchStartTimeNs = 0;
     if (switchEventsHandler != null) {
       switchEventsHandler.onCameraSwitchError(error);
     }
@@ -457,14 +517,11 @@ abstract class CameraCapturer implements CameraVideoCapturer {
 
     final String[] deviceNames = cameraEnumerator.getDeviceNames();
 
-    if (deviceNames.length < 2) {
-      if (switchEventsHandler != null) {
-        switchEventsHandler.onCameraSwitchError("No camera to switch to.");
-      }
-      return;
-    }
-
     synchronized (stateLock) {
+      if (deviceNames.length < 2) {
+        reportCameraSwitchError("No camera to switch to.", switchEventsHandler);
+        return;
+      }
       if (switchState != SwitchState.IDLE) {
         reportCameraSwitchError("Camera switch already in progress.", switchEventsHandler);
         return;
@@ -486,16 +543,23 @@ abstract class CameraCapturer implements CameraVideoCapturer {
         switchState = SwitchState.IN_PROGRESS;
       }
 
+      if (warmSession != null) {
+        switchToWarmSessionLocked();
+        return;
+      }
+      if (warmSessionOpening) {
+        // Even if cancelled, as the warm session may hold the camera switched to.
+        Logging.d(TAG, "switchCamera: Waiting for warm session to open");
+        uiThreadHandler.removeCallbacks(warmSessionTimeoutRunnable);
+        warmSessionCancelled = false;
+        warmSwitchPending = true;
+        return;
+      }
+
       Logging.d(TAG, "switchCamera: Stopping session");
       cameraStatistics.release();
       cameraStatistics = null;
-      final CameraSession oldSession = currentSession;
-      cameraThreadHandler.post(new Runnable() {
-        @Override
-        public void run() {
-          oldSession.stop();
-        }
-      });
+      stopSession(currentSession, currentSessionHelper);
       currentSession = null;
 
       int cameraNameIndex = Arrays.asList(deviceNames).indexOf(cameraName);
@@ -508,6 +572,318 @@ abstract class CameraCapturer implements CameraVideoCapturer {
     Logging.d(TAG, "switchCamera done");
   }
 
+  private void prepareCameraSwitchInternal() {
+    final String[] deviceNames = cameraEnumerator.getDeviceNames();
+
+    synchronized (stateLock) {
+      if (deviceNames.length < 2 || !warmSessionsSupported) {
+        Logging.d(TAG, "prepareCameraSwitch: Not supported.");
+        return;
+      }
+      if (switchState != SwitchState.IDLE || mediaRecorderState != MediaRecorderState.IDLE
+          || sessionOpening || currentSession == null) {
+        Logging.d(TAG, "prepareCameraSwitch: Camera is not running or busy.");
+        return;
+      }
+      uiThreadHandler.removeCallbacks(warmSessionTimeoutRunnable);
+      if (warmSessionOpening || warmSession != null) {
+        if (!warmSessionCancelled) {
+          Logging.d(TAG, "prepareCameraSwitch: Already prepared.");
+          uiThreadHandler.postDelayed(warmSessionTimeoutRunnable, WARM_SESSION_TIMEOUT_MS);
+          return;
+        }
+        // Keep the session that is still opening instead of opening the camera twice.
+        warmSessionCancelled = false;
+        return;
+      }
+
+      final SurfaceTextureHelper helper;
+      if (currentSessionHelper == surfaceHelper) {
+        if (standbyHelper == null) {
+          standbyHelper =
+              SurfaceTextureHelper.create("CameraStandbyThread", surfaceHelper.getEglContext());
+          if (standbyHelper == null) {
+            Logging.e(TAG, "prepareCameraSwitch: Failed to create standby helper.");
+            warmSessionsSupported = false;
+            return;
+          }
+        }
+        helper = standbyHelper;
+      } else {
+        helper = surfaceHelper;
+      }
+
+      final int cameraNameIndex = Arrays.asList(deviceNames).indexOf(cameraName);
+      warmCameraName = deviceNames[(cameraNameIndex + 1) % deviceNames.length];
+      warmSessionHelper = helper;
+      warmSessionOpening = true;
+      Logging.d(TAG, "prepareCameraSwitch: Opening " + warmCameraName);
+
+      final String name = warmCameraName;
+      final int warmWidth = width;
+      final int warmHeight = height;
+      final int warmFramerate = framerate;
+      helper.getHandler().post(new Runnable() {
+        @Override
+        public void run() {
+          createCameraSession(createWarmSessionCallback(helper), createWarmSessionEvents(helper),
+              applicationContext, helper, null /* mediaRecorder */, name, warmWidth, warmHeight,
+              warmFramerate);
+        }
+      });
+    }
+  }
+
+  // Closes the warm session, or marks it to be closed when it opens. Keeps it if a switch waits
+  // for it.
+  private void cancelWarmSessionLocked() {
+    uiThreadHandler.removeCallbacks(warmSessionTimeoutRunnable);
+    if (warmSwitchPending) {
+      return;
+    }
+    if (warmSessionOpening) {
+      warmSessionCancelled = true;
+    } else if (warmSession != null) {
+      Logging.d(TAG, "Closing warm session");
+      stopSession(warmSession, warmSessionHelper);
+      warmSession = null;
+      warmSessionHelper = null;
+    }
+  }
+
+  // Makes the warm session current and stops the previous one. The warm session has been
+  // capturing all along, so the switch completes without waiting for a frame.
+  private void switchToWarmSessionLocked() {
+    Logging.d(TAG, "switchCamera: Switching to warm session");
+    uiThreadHandler.removeCallbacks(warmSessionTimeoutRunnable);
+    cameraStatistics.release();
+    stopSession(currentSession, currentSessionHelper);
+
+    currentSession = warmSession;
+    currentSessionHelper = warmSessionHelper;
+    cameraName = warmCameraName;
+    warmSession = null;
+    warmSessionHelper = null;
+    cameraStatistics = new CameraStatistics(currentSessionHelper, eventsHandler);
+    firstFrameObserved = false;
+
+    if (switchEventsHandler != null) {
+      switchEventsHandler.onCameraSwitchDone(cameraEnumerator.isFrontFacing(cameraName));
+      switchEventsHandler = null;
+    }
+    switchState = SwitchState.IDLE;
+  }
+
+  // Devices that cannot open two cameras at once disconnect the current camera when the warm one
+  // opens. Reopens the current camera and stops using warm sessions instead of reporting the
+  // disconnect. Returns false if there was no warm session.
+  private boolean restartAfterEvictionLocked() {
+    if (warmSession == null && !warmSessionOpening) {
+      return false;
+    }
+    Logging.w(TAG, "Camera disconnected by the warm session, disabling prepared switches.");
+    warmSessionsSupported = false;
+    if (warmSwitchPending) {
+      // The warm session becomes current when it opens.
+      return true;
+    }
+    cancelWarmSessionLocked();
+    cameraStatistics.release();
+    cameraStatistics = null;
+    stopSession(currentSession, currentSessionHelper);
+    currentSession = null;
+
+    sessionOpening = true;
+    openAttemptsRemaining = MAX_OPEN_CAMERA_ATTEMPTS;
+    createSessionInternal(OPEN_CAMERA_DELAY_MS, null /* mediaRecorder */);
+    return true;
+  }
+
+  private CameraSession.CreateSessionCallback createWarmSessionCallback(
+      final SurfaceTextureHelper helper) {
+    return new CameraSession.CreateSessionCallback() {
+      @Override
+      public void onDone(CameraSession session) {
+        checkIsOnThread(helper);
+        synchronized (stateLock) {
+          Logging.d(TAG, "Create warm session done. Switch pending: " + warmSwitchPending);
+          warmSessionOpening = false;
+          stateLock.notifyAll();
+          if (warmSessionCancelled) {
+            warmSessionCancelled = false;
+            warmSessionHelper = null;
+            stopSession(session, helper);
+            return;
+          }
+          warmSession = session;
+          if (warmSwitchPending) {
+            warmSwitchPending = false;
+            switchToWarmSessionLocked();
+          } else {
+            uiThreadHandler.postDelayed(warmSessionTimeoutRunnable, WARM_SESSION_TIMEOUT_MS);
+          }
+        }
+      }
+
+      @Override
+      public void onFailure(CameraSession.FailureType failureType, String error) {
+        checkIsOnThread(helper);
+        synchronized (stateLock) {
+          Logging.w(TAG, "Opening warm session failed: " + error);
+          warmSessionOpening = false;
+          warmSessionCancelled = false;
+          warmSessionHelper = null;
+          stateLock.notifyAll();
+          if (warmSwitchPending) {
+            // Fall back to closing the current camera before opening the other one.
+            warmSwitchPending = false;
+            switchState = SwitchState.IDLE;
+            switchCameraInternal(switchEventsHandler);
+          }
+        }
+      }
+    };
+  }
+
+  // Events of a session opened by prepareCameraSwitch(), which runs on the thread of |helper|.
+  // Its frames are dropped until it becomes the current session.
+  private CameraSession.Events createWarmSessionEvents(final SurfaceTextureHelper helper) {
+    return new CameraSession.Events() {
+      @Override
+      public void onCameraOpening() {}
+
+      @Override
+      public void onCameraError(CameraSession session, String error) {
+        checkIsOnThread(helper);
+        synchronized (stateLock) {
+          if (session == warmSession) {
+            Logging.w(TAG, "Warm session failed: " + error);
+            cancelWarmSessionLocked();
+            return;
+          }
+          if (session != currentSession) {
+            Logging.w(TAG, "onCameraError from another session: " + error);
+            return;
+          }
+          eventsHandler.onCameraError(error);
+          stopCapture();
+        }
+      }
+
+      @Override
+      public void onCameraDisconnected(CameraSession session) {
+        checkIsOnThread(helper);
+        synchronized (stateLock) {
+          if (session == warmSession) {
+            Logging.w(TAG, "Warm session disconnected.");
+            cancelWarmSessionLocked();
+            return;
+          }
+          if (session != currentSession) {
+            Logging.w(TAG, "onCameraDisconnected from another session.");
+            return;
+          }
+          if (restartAfterEvictionLocked()) {
+            return;
+          }
+          eventsHandler.onCameraDisconnected();
+          stopCapture();
+        }
+      }
+
+      @Override
+      public void onCameraClosed(CameraSession session) {
+        checkIsOnThread(helper);
+        synchronized (stateLock) {
+          if (session != currentSession) {
+            Logging.d(TAG, "onCameraClosed from another session.");
+            return;
+          }
+          eventsHandler.onCameraClosed();
+        }
+      }
+
+      @Override
+      public void onFrameCaptured(CameraSession session, VideoFrame frame) {
+        checkIsOnThread(helper);
+        synchronized (stateLock) {
+          if (session != currentSession) {
+            return;
+          }
+          observeFrame();
+          capturerObserver.onFrameCaptured(frame);
+        }
+      }
+
+      @Override
+      public void onByteBufferFrameCaptured(CameraSession session, byte[] data, int width,
+          int height, int rotation, long timestamp) {
+        checkIsOnThread(helper);
+        synchronized (stateLock) {
+          if (session != currentSession) {
+            return;
+          }
+          observeFrame();
+          capturerObserver.onByteBufferFrameCaptured(data, width, height, rotation, timestamp);
+        }
+      }
+
+      @Override
+      public void onTextureFrameCaptured(CameraSession session, int width, int height,
+          int oesTextureId, float[] transformMatrix, int rotation, long timestamp) {
+        checkIsOnThread(helper);
+        synchronized (stateLock) {
+          if (session != currentSession) {
+            helper.returnTextureFrame();
+            return;
+          }
+          observeFrame();
+          if (helper == surfaceHelper) {
+            capturerObserver.onTextureFrameCaptured(
+                width, height, oesTextureId, transformMatrix, rotation, timestamp);
+            return;
+          }
+          // The observer returns texture frames to |surfaceHelper|. A VideoFrame returns the
+          // texture to the helper that created its buffer.
+          final VideoFrame frame = new VideoFrame(helper.createTextureBuffer(width, height,
+              RendererCommon.convertMatrixToAndroidGraphicsMatrix(transformMatrix)),
+              rotation, timestamp);
+          capturerObserver.onFrameCaptured(frame);
+          frame.release();
+        }
+      }
+    };
+  }
+
+  // Called with stateLock held for every frame of the current session.
+  private void observeFrame() {
+    if (!firstFrameObserved) {
+      eventsHandler.onFirstFrameAvailable();
+      firstFrameObserved = true;
+      if (switchStartTimeNs != 0) {
+        final int latencyMs =
+            (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - switchStartTimeNs);
+        Logging.d(TAG, "Camera switch latency: " + latencyMs + " ms.");
+        if (switchLatencyMsHistogram == null) {
+          switchLatencyMsHistogram = Histogram.createCounts(
+              "WebRTC.Android.CameraCapturer.SwitchLatencyMs", 1, 10000, 50);
+        }
+        switchLatencyMsHistogram.addSample(latencyMs);
+        switchStartTimeNs = 0;
+      }
+    }
+    cameraStatistics.addFrame();
+  }
+
+  private static void stopSession(final CameraSession session, SurfaceTextureHelper helper) {
+    helper.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        session.stop();
+      }
+    });
+  }
+
   private void reportUpdateMediaRecorderError(
       String error, MediaRecorderHandler mediaRecoderEventsHandler) {
     checkIsOnCameraThread();
@@ -553,15 +929,10 @@ abstract class CameraCapturer implements CameraVideoCapturer {
           addMediaRecorder ? MediaRecorderState.IDLE_TO_ACTIVE : MediaRecorderState.ACTIVE_TO_IDLE;
 
       Logging.d(TAG, "updateMediaRecoder: Stopping session");
+      cancelWarmSessionLocked();
       cameraStatistics.release();
       cameraStatistics = null;
-      final CameraSession oldSession = currentSession;
-      cameraThreadHandler.post(new Runnable() {
-        @Override
-        public void run() {
-          oldSession.stop();
-        }
-      });
+      stopSession(currentSession, currentSessionHelper);
       currentSession = null;
 
       sessionOpening = true;
@@ -572,7 +943,11 @@ abstract class CameraCapturer implements CameraVideoCapturer {
   }
 
   private void checkIsOnCameraThread() {
-    if (Thread.currentThread() != cameraThreadHandler.getLooper().getThread()) {
+    checkIsOnThread(surfaceHelper);
+  }
+
+  private static void checkIsOnThread(SurfaceTextureHelper helper) {
+    if (Thread.currentThread() != helper.getHandler().getLooper().getThread()) {
       Logging.e(TAG, "Check is on camera thread failed.");
       throw new RuntimeException("Not on camera thread.");
     }
@@ -61,6 +61,22 @@ public interface CameraVideoCapturer extends VideoCapturer {
    */
   void switchCamera(CameraSwitchHandler switchEventsHandler);
 
+  /**
+   * Opens the camera that the next switchCamera() switches to while the current one keeps
+   * capturing, e.g. when the user opens a menu with a switch button. The next switch then swaps
+   * sessions without a gap in the video. The prepared camera is closed again by
+   * cancelCameraSwitch(), by stopCapture() or when it is not used within a timeout. Devices that
+   * cannot open two cameras at once fall back to a regular switch.
+   * This function can be called from any thread.
+   */
+  void prepareCameraSwitch();
+
+  /**
+   * Closes the camera opened by prepareCameraSwitch(), if it was not switched to.
+   * This function can be called from any thread.
+   */
+  void cancelCameraSwitch();
+
   /**
    * MediaRecorder add/remove handler - one of these functions are invoked with the result of
    * addMediaRecorderToCamera() or removeMediaRecorderFromCamera calls.
@@ -33,6 +33,8 @@ class EglBase14 extends EglBase {
   private EGLConfig eglConfig;
   private EGLDisplay eglDisplay;
   private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+  // False if |eglContext| belongs to another instance, see createContextSharingInstance().
+  private final boolean isContextOwner;
 
   // EGL 1.4 is supported from API 17. But EGLExt that is used for setting presentation
   // time stamp on a surface is supported from 18 so we require 18.
@@ -65,6 +67,28 @@ class EglBase14 extends EglBase {
     eglDisplay = getEglDisplay();
     eglConfig = getEglConfig(eglDisplay, configAttributes);
     eglContext = createEglContext(sharedContext, eglDisplay, eglConfig);
+    isContextOwner = true;
+    GlProgramCache.onContextCreated(
+        eglContext, sharedContext == null ? null : sharedContext.egl14Context);
+  }
+
+  // Create an instance that uses the EGLContext of |contextOwner|.
+  private EglBase14(EglBase14 contextOwner) {
+    contextOwner.checkIsNotReleased();
+    eglDisplay = contextOwner.eglDisplay;
+    eglConfig = contextOwner.eglConfig;
+    eglContext = contextOwner.eglContext;
+    isContextOwner = false;
+  }
+
+  /**
+   * Returns an instance that draws with the EGLContext of this instance, but to its own EGLSurface.
+   * This allows a single thread to render to several surfaces without switching contexts. Calling
+   * release() on the returned instance only releases its surface, and it must be released before
+   * this instance.
+   */
+  EglBase14 createContextSharingInstance() {
+    return new EglBase14(this);
   }
 
   // Create EGLSurface from the Android Surface.
@@ -158,7 +182,15 @@ class EglBase14 extends EglBase {
   public void release() {
     checkIsNotReleased();
     releaseSurface();
+    if (!isContextOwner) {
+      // The context is still in use by its owner.
+      eglContext = EGL14.EGL_NO_CONTEXT;
+      eglDisplay = EGL14.EGL_NO_DISPLAY;
+      eglConfig = null;
+      return;
+    }
     detachCurrent();
+    GlProgramCache.onContextDestroyed(eglContext);
     EGL14.eglDestroyContext(eglDisplay, eglContext);
     EGL14.eglReleaseThread();
     EGL14.eglTerminate(eglDisplay);
@@ -14,6 +14,7 @@ import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -35,6 +36,8 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
   private static final String TAG = "EglRenderer";
   private static final long LOG_INTERVAL_SEC = 4;
   private static final int MAX_SURFACE_CLEAR_COUNT = 3;
+  // Time between issuing an asynchronous snapshot readback and mapping its result.
+  private static final long SNAPSHOT_READBACK_DELAY_MS = 20;
 
   public interface FrameListener { void onFrame(Bitmap frame); }
 
@@ -83,6 +86,11 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
   // on |handlerLock|.
   private final Object handlerLock = new Object();
   private Handler renderThreadHandler;
+  // Non-null if the render thread and EGL context are shared with other renderers. Set together
+  // with |renderThreadHandler|.
+  private SharedEglRenderThread sharedRenderThread;
+  // Deadline for rendering a frame on |sharedRenderThread|, or 0 to use the thread's default.
+  private volatile long renderDeadlineMs;
 
   private final ArrayList<FrameListenerAndParams> frameListeners = new ArrayList<>();
 
@@ -129,6 +137,22 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
 
   // Used for bitmap capturing.
   private GlTextureFrameBuffer bitmapTextureFramebuffer;
+  // Reused for the pixels of frame listener bitmaps.
+  private ByteBuffer bitmapBuffer;
+
+  // Used for FrameSnapshotService. Only accessed on the render thread.
+  private FrameSnapshotService.Request pendingSnapshotRequest;
+  // Request whose pixels are being read back into |snapshotPboId|.
+  private FrameSnapshotService.Request snapshotReadbackRequest;
+  private int snapshotReadbackWidth;
+  private int snapshotReadbackHeight;
+  private GlTextureFrameBuffer snapshotTextureFramebuffer;
+  // Pixel pack buffer for asynchronous readback, or 0 if not allocated.
+  private int snapshotPboId;
+  private int snapshotPboSize;
+  // Whether pixel pack buffers can be used. Queried on first snapshot.
+  private Boolean snapshotPboSupported;
+  private final Runnable finishSnapshotReadbackRunnable = this ::finishSnapshotReadback;
 
   private final Runnable logStatisticsRunnable = new Runnable() {
     @Override
@@ -195,6 +219,49 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
     }
   }
 
+  /**
+   * Initialize this class to render on |renderThread|, together with other renderers using the
+   * same thread and its EGL context. The custom |drawer| will be used for drawing frames on the
+   * EGLSurface. This class is responsible for calling release() on |drawer|. This renderer must be
+   * released before |renderThread|.
+   */
+  public void init(final SharedEglRenderThread renderThread, RendererCommon.GlDrawer drawer) {
+    synchronized (handlerLock) {
+      if (renderThreadHandler != null) {
+        throw new IllegalStateException(name + "Already initialized");
+      }
+      logD("Initializing EglRenderer on shared render thread");
+      this.drawer = drawer;
+      sharedRenderThread = renderThread;
+      renderThreadHandler = renderThread.getHandler();
+      ThreadUtils.invokeAtFrontUninterruptibly(
+          renderThreadHandler, () -> { eglBase = renderThread.createRendererEglBase(); });
+      renderThread.addRenderer(this);
+      renderThreadHandler.post(eglSurfaceCreationRunnable);
+      final long currentTimeNs = System.nanoTime();
+      resetStatistics(currentTimeNs);
+      renderThreadHandler.postDelayed(
+          logStatisticsRunnable, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+    }
+  }
+
+  /**
+   * Set the deadline for rendering a frame after it has been received, when rendering on a
+   * SharedEglRenderThread. Tiles that miss their deadline are rendered before other tiles. Set this
+   * to 0 to use the default deadline.
+   */
+  public void setRenderDeadlineMs(long deadlineMs) {
+    renderDeadlineMs = deadlineMs;
+  }
+
+  long getRenderDeadlineMs() {
+    return renderDeadlineMs;
+  }
+
+  String getName() {
+    return name;
+  }
+
   public void createEglSurface(Surface surface) {
     createEglSurfaceInternal(surface);
   }
@@ -223,8 +290,21 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
         return;
       }
       renderThreadHandler.removeCallbacks(logStatisticsRunnable);
+      renderThreadHandler.removeCallbacks(eglSurfaceCreationRunnable);
+      renderThreadHandler.removeCallbacks(finishSnapshotReadbackRunnable);
+      final SharedEglRenderThread sharedRenderThread = this.sharedRenderThread;
       // Release EGL and GL resources on render thread.
       renderThreadHandler.postAtFrontOfQueue(() -> {
+        if (sharedRenderThread != null) {
+          sharedRenderThread.removeRenderer(this);
+          // The GL resources belong to the shared context, which may currently be used with
+          // another renderer's surface.
+          if (eglBase != null && eglBase.hasSurface()) {
+            eglBase.makeCurrent();
+          } else {
+            sharedRenderThread.makeSharedContextCurrent();
+          }
+        }
         if (drawer != null) {
           drawer.release();
           drawer = null;
@@ -234,22 +314,32 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
           bitmapTextureFramebuffer.release();
           bitmapTextureFramebuffer = null;
         }
+        bitmapBuffer = null;
+        releaseSnapshotResources();
         if (eglBase != null) {
           logD("eglBase detach and release.");
-          eglBase.detachCurrent();
+          if (sharedRenderThread != null) {
+            // Keep the shared context current for the other renderers.
+            sharedRenderThread.makeSharedContextCurrent();
+          } else {
+            eglBase.detachCurrent();
+          }
           eglBase.release();
           eglBase = null;
         }
         eglCleanupBarrier.countDown();
       });
-      final Looper renderLooper = renderThreadHandler.getLooper();
-      // TODO(magjed): Replace this post() with renderLooper.quitSafely() when API support >= 18.
-      renderThreadHandler.post(() -> {
-        logD("Quitting render thread.");
-        renderLooper.quit();
-      });
+      if (sharedRenderThread == null) {
+        final Looper renderLooper = renderThreadHandler.getLooper();
+        // TODO(magjed): Replace this post() with renderLooper.quitSafely() when API support >= 18.
+        renderThreadHandler.post(() -> {
+          logD("Quitting render thread.");
+          renderLooper.quit();
+        });
+      }
       // Don't accept any more frames or messages to the render thread.
       renderThreadHandler = null;
+      this.sharedRenderThread = null;
     }
     // Make sure the EGL/GL cleanup posted above is executed.
     ThreadUtils.awaitUninterruptibly(eglCleanupBarrier);
@@ -441,7 +531,11 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
         }
         pendingFrame = frame;
         pendingFrame.retain();
-        renderThreadHandler.post(this ::renderFrameOnRenderThread);
+        if (sharedRenderThread != null) {
+          sharedRenderThread.scheduleFrame(this);
+        } else {
+          renderThreadHandler.post(this ::renderFrameOnRenderThread);
+        }
       }
     }
     if (dropOldFrame) {
@@ -461,9 +555,14 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
     synchronized (handlerLock) {
       if (renderThreadHandler != null) {
         renderThreadHandler.removeCallbacks(eglSurfaceCreationRunnable);
+        final SharedEglRenderThread sharedRenderThread = this.sharedRenderThread;
         renderThreadHandler.postAtFrontOfQueue(() -> {
           if (eglBase != null) {
-            eglBase.detachCurrent();
+            if (sharedRenderThread != null) {
+              sharedRenderThread.makeSharedContextCurrent();
+            } else {
+              eglBase.detachCurrent();
+            }
             eglBase.releaseSurface();
           }
           completionCallback.run();
@@ -485,9 +584,23 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
     }
   }
 
+  // With a shared render thread the current surface may belong to another renderer, so this must be
+  // called before drawing. Renderers with their own thread keep their surface current.
+  private void makeCurrentOnRenderThread() {
+    if (sharedRenderThread == null || eglBase == null) {
+      return;
+    }
+    if (eglBase.hasSurface()) {
+      eglBase.makeCurrent();
+    } else {
+      sharedRenderThread.makeSharedContextCurrent();
+    }
+  }
+
   private void clearSurfaceOnRenderThread(float r, float g, float b, float a) {
     if (eglBase != null && eglBase.hasSurface()) {
       logD("clearSurface");
+      makeCurrentOnRenderThread();
       GLES20.glClearColor(r, g, b, a);
       GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
       eglBase.swapBuffers();
@@ -516,7 +629,7 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
   /**
    * Renders and releases |pendingFrame|.
    */
-  private void renderFrameOnRenderThread() {
+  void renderFrameOnRenderThread() {
     // Fetch and render |pendingFrame|.
     final VideoFrame frame;
     synchronized (frameLock) {
@@ -531,6 +644,7 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
       frame.release();
       return;
     }
+    makeCurrentOnRenderThread();
     // Check if fps reduction is active.
     final boolean shouldRenderFrame;
     synchronized (fpsReductionLock) {
@@ -598,6 +712,7 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
     }
 
     notifyCallbacks(frame, shouldRenderFrame);
+    takeSnapshot(frame);
     frame.release();
   }
 
@@ -642,7 +757,11 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
       frameDrawer.drawFrame(frame, listenerAndParams.drawer, drawMatrix, 0 /* viewportX */,
           0 /* viewportY */, scaledWidth, scaledHeight);
 
-      final ByteBuffer bitmapBuffer = ByteBuffer.allocateDirect(scaledWidth * scaledHeight * 4);
+      final int bitmapBufferSize = scaledWidth * scaledHeight * 4;
+      if (bitmapBuffer == null || bitmapBuffer.capacity() < bitmapBufferSize) {
+        bitmapBuffer = ByteBuffer.allocateDirect(bitmapBufferSize);
+      }
+      bitmapBuffer.clear();
       GLES20.glViewport(0, 0, scaledWidth, scaledHeight);
       GLES20.glReadPixels(
           0, 0, scaledWidth, scaledHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, bitmapBuffer);
@@ -656,6 +775,145 @@ public class EglRenderer implements VideoRenderer.Callbacks, VideoSink {
     }
   }
 
+  /**
+   * Takes a snapshot of the next frame for a FrameSnapshotService. A request that is still pending
+   * is replaced.
+   */
+  void requestSnapshot(final FrameSnapshotService.Request request) {
+    synchronized (handlerLock) {
+      if (renderThreadHandler == null) {
+        request.cancel();
+        return;
+      }
+      renderThreadHandler.post(() -> {
+        if (pendingSnapshotRequest != null) {
+          pendingSnapshotRequest.cancel();
+        }
+        pendingSnapshotRequest = request;
+      });
+    }
+  }
+
+  // Draws |frame| downscaled to the width of the pending snapshot request and starts reading it
+  // back. With pixel pack buffers the pixels are mapped later in finishSnapshotReadback(), so the
+  // render thread doesn't wait for the GPU.
+  private void takeSnapshot(VideoFrame frame) {
+    final FrameSnapshotService.Request request = pendingSnapshotRequest;
+    if (request == null || snapshotReadbackRequest != null) {
+      return;
+    }
+    pendingSnapshotRequest = null;
+
+    final int width = Math.min(request.width, frame.getRotatedWidth());
+    final int height =
+        Math.max(1, Math.round(width * frame.getRotatedHeight() / (float) frame.getRotatedWidth()));
+
+    drawMatrix.reset();
+    drawMatrix.preTranslate(0.5f, 0.5f);
+    if (mirror)
+      drawMatrix.preScale(-1f, 1f);
+    drawMatrix.preScale(1f, -1f); // We want the output to be upside down for Bitmap.
+    drawMatrix.preTranslate(-0.5f, -0.5f);
+
+    if (snapshotTextureFramebuffer == null) {
+      snapshotTextureFramebuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+    }
+    snapshotTextureFramebuffer.setSize(width, height);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, snapshotTextureFramebuffer.getFrameBufferId());
+    GLES20.glClearColor(0 /* red */, 0 /* green */, 0 /* blue */, 0 /* alpha */);
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    frameDrawer.drawFrame(frame, drawer, drawMatrix, 0 /* viewportX */, 0 /* viewportY */, width,
+        height);
+
+    if (snapshotPboSupported == null) {
+      snapshotPboSupported = YuvConverter.isPixelPackBufferSupported();
+    }
+    final int size = width * height * 4;
+    if (snapshotPboSupported) {
+      if (snapshotPboId == 0) {
+        final int[] pboIds = new int[1];
+        GLES30.glGenBuffers(1, pboIds, 0);
+        snapshotPboId = pboIds[0];
+      }
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, snapshotPboId);
+      if (snapshotPboSize != size) {
+        GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+        snapshotPboSize = size;
+      }
+      GLES30.glReadPixels(
+          0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0 /* offset */);
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+      GlUtil.checkNoGLES2Error("EglRenderer.takeSnapshot");
+      snapshotReadbackRequest = request;
+      snapshotReadbackWidth = width;
+      snapshotReadbackHeight = height;
+      synchronized (handlerLock) {
+        if (renderThreadHandler != null) {
+          renderThreadHandler.postDelayed(
+              finishSnapshotReadbackRunnable, SNAPSHOT_READBACK_DELAY_MS);
+        }
+      }
+      return;
+    }
+
+    final ByteBuffer buffer = request.obtainBuffer(size);
+    GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    GlUtil.checkNoGLES2Error("EglRenderer.takeSnapshot");
+    request.deliver(buffer, width, height);
+  }
+
+  private void finishSnapshotReadback() {
+    final FrameSnapshotService.Request request = snapshotReadbackRequest;
+    if (request == null) {
+      return;
+    }
+    snapshotReadbackRequest = null;
+    if (eglBase == null) {
+      request.cancel();
+      return;
+    }
+    makeCurrentOnRenderThread();
+    final int size = snapshotReadbackWidth * snapshotReadbackHeight * 4;
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, snapshotPboId);
+    final ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(
+        GLES30.GL_PIXEL_PACK_BUFFER, 0 /* offset */, size, GLES30.GL_MAP_READ_BIT);
+    if (pixels == null) {
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+      Logging.e(TAG, "Failed to map snapshot pixel buffer.");
+      request.cancel();
+      return;
+    }
+    final ByteBuffer buffer = request.obtainBuffer(size);
+    buffer.put(pixels);
+    GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    GlUtil.checkNoGLES2Error("EglRenderer.finishSnapshotReadback");
+    request.deliver(buffer, snapshotReadbackWidth, snapshotReadbackHeight);
+  }
+
+  private void releaseSnapshotResources() {
+    if (pendingSnapshotRequest != null) {
+      pendingSnapshotRequest.cancel();
+      pendingSnapshotRequest = null;
+    }
+    if (snapshotReadbackRequest != null) {
+      snapshotReadbackRequest.cancel();
+      snapshotReadbackRequest = null;
+    }
+    if (snapshotTextureFramebuffer != null) {
+      snapshotTextureFramebuffer.release();
+      snapshotTextureFramebuffer = null;
+    }
+    if (snapshotPboId != 0) {
+      GLES30.glDeleteBuffers(1, new int[] {snapshotPboId}, 0);
+      snapshotPboId = 0;
+      snapshotPboSize = 0;
+    }
+    snapshotPboSupported = null;
+  }
+
   private String averageTimeAsString(long sumTimeNs, int count) {
     return (count <= 0) ? "NA" : TimeUnit.NANOSECONDS.toMicros(sumTimeNs / count) + " μs";
   }
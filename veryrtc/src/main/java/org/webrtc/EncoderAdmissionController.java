@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which input frames are handed to a hardware encoder. At most |maxInFlightFrames| frames
+ * are in the codec at once, and one of those slots is reserved for key frames, so delta frames are
+ * dropped first when the codec falls behind. When the smoothed input-to-output latency exceeds
+ * |targetLatencyMs|, e.g. under thermal throttling, delta frames are only admitted into an empty
+ * codec until the latency has recovered. This bounds the encode latency instead of letting it grow
+ * until the queue overflows.
+ *
+ * Frames are admitted on the encode thread and completed on the output thread, so this class is
+ * thread safe.
+ */
+class EncoderAdmissionController {
+  private static final String TAG = "EncoderAdmissionController";
+  private static final long LOG_INTERVAL_SEC = 10;
+  // Weight of a new sample in the smoothed encode latency.
+  private static final double LATENCY_SMOOTHING_FACTOR = 0.1;
+  // Leave the congested state once the smoothed latency drops below this fraction of the target.
+  private static final double LATENCY_RECOVERY_FRACTION = 0.5;
+
+  // Created on first use, as the histograms need the native library.
+  private static class Histograms {
+    static final Histogram encodeLatencyMs = Histogram.createCounts(
+        "WebRTC.Android.HardwareVideoEncoder.EncodeLatencyMs", 1, 1000, 50);
+    static final Histogram queueDepth =
+        Histogram.createCounts("WebRTC.Android.HardwareVideoEncoder.QueueDepth", 1, 16, 16);
+  }
+
+  private final int maxInFlightFrames;
+  private final long targetLatencyNs;
+  private final boolean recordHistograms;
+
+  // Input times of the frames currently in the codec, in encode order.
+  private final ArrayDeque<Long> inFlightInputTimesNs = new ArrayDeque<>();
+  private double smoothedLatencyNs;
+  private boolean congested;
+
+  // Statistics since |statisticsStartTimeNs|.
+  private int framesAdmitted;
+  private int deltaFramesDropped;
+  private int keyFramesDropped;
+  // Admitted frames for which the codec had no input buffer.
+  private int framesQueueFailed;
+  private int framesEncoded;
+  private long encodeLatencyNs;
+  private long maxEncodeLatencyNs;
+  private int maxQueueDepth;
+  private long statisticsStartTimeNs = System.nanoTime();
+
+  public EncoderAdmissionController(int maxInFlightFrames, long targetLatencyMs) {
+    this(maxInFlightFrames, targetLatencyMs, true /* recordHistograms */);
+  }
+
+  // Unit tests run without the native library, and pass false for |recordHistograms|.
+  EncoderAdmissionController(
+      int maxInFlightFrames, long targetLatencyMs, boolean recordHistograms) {
+    if (maxInFlightFrames < 2) {
+      throw new IllegalArgumentException("Invalid maxInFlightFrames: " + maxInFlightFrames);
+    }
+    this.maxInFlightFrames = maxInFlightFrames;
+    this.targetLatencyNs = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+    this.recordHistograms = recordHistograms;
+  }
+
+  /**
+   * Returns true if a frame should be passed to the codec. Every admitted frame must be followed by
+   * either onFrameQueueFailed() or onFrameEncoded().
+   */
+  public synchronized boolean admitFrame(boolean isKeyFrame) {
+    final int queueDepth = inFlightInputTimesNs.size();
+    if (recordHistograms) {
+      Histograms.queueDepth.addSample(queueDepth);
+    }
+
+    final int maxDepth;
+    if (isKeyFrame) {
+      maxDepth = maxInFlightFrames;
+    } else if (congested) {
+      maxDepth = 1;
+    } else {
+      maxDepth = maxInFlightFrames - 1;
+    }
+    if (queueDepth >= maxDepth) {
+      if (isKeyFrame) {
+        ++keyFramesDropped;
+      } else {
+        ++deltaFramesDropped;
+      }
+      return false;
+    }
+
+    ++framesAdmitted;
+    inFlightInputTimesNs.offer(System.nanoTime());
+    maxQueueDepth = Math.max(maxQueueDepth, inFlightInputTimesNs.size());
+    return true;
+  }
+
+  /** Call if an admitted frame could not be queued in the codec after all. */
+  public synchronized void onFrameQueueFailed() {
+    inFlightInputTimesNs.pollLast();
+    ++framesQueueFailed;
+  }
+
+  /** Call when the codec outputs the oldest frame in flight. */
+  public synchronized void onFrameEncoded() {
+    final Long inputTimeNs = inFlightInputTimesNs.poll();
+    if (inputTimeNs == null) {
+      return;
+    }
+    final long currentTimeNs = System.nanoTime();
+    final long latencyNs = currentTimeNs - inputTimeNs;
+    if (recordHistograms) {
+      Histograms.encodeLatencyMs.addSample((int) TimeUnit.NANOSECONDS.toMillis(latencyNs));
+    }
+
+    smoothedLatencyNs = (smoothedLatencyNs == 0)
+        ? latencyNs
+        : smoothedLatencyNs + LATENCY_SMOOTHING_FACTOR * (latencyNs - smoothedLatencyNs);
+    if (!congested && smoothedLatencyNs > targetLatencyNs) {
+      Logging.w(TAG, "Encode latency " + TimeUnit.NANOSECONDS.toMillis((long) smoothedLatencyNs)
+              + " ms exceeds target, dropping delta frames.");
+      congested = true;
+    } else if (congested && smoothedLatencyNs < targetLatencyNs * LATENCY_RECOVERY_FRACTION) {
+      Logging.d(TAG, "Encode latency recovered.");
+      congested = false;
+    }
+
+    ++framesEncoded;
+    encodeLatencyNs += latencyNs;
+    maxEncodeLatencyNs = Math.max(maxEncodeLatencyNs, latencyNs);
+    maybeLogStatistics(currentTimeNs);
+  }
+
+  /** Forget all frames in flight, e.g. when the codec is released. */
+  public synchronized void reset() {
+    inFlightInputTimesNs.clear();
+    smoothedLatencyNs = 0;
+    congested = false;
+  }
+
+  private void maybeLogStatistics(long currentTimeNs) {
+    final long elapsedTimeNs = currentTimeNs - statisticsStartTimeNs;
+    if (elapsedTimeNs < TimeUnit.SECONDS.toNanos(LOG_INTERVAL_SEC)) {
+      return;
+    }
+    Logging.d(TAG, "Duration: " + TimeUnit.NANOSECONDS.toMillis(elapsedTimeNs) + " ms."
+        + " Admitted: " + framesAdmitted + "."
+        + " Encoded: " + framesEncoded + "."
+        + " Dropped delta: " + deltaFramesDropped + "."
+        + " Dropped key: " + keyFramesDropped + "."
+        + " Queue failures: " + framesQueueFailed + "."
+        + " Average latency: "
+        + (framesEncoded == 0
+                  ? "NA"
+                  : TimeUnit.NANOSECONDS.toMillis(encodeLatencyNs / framesEncoded) + " ms")
+        + "."
+        + " Max latency: " + TimeUnit.NANOSECONDS.toMillis(maxEncodeLatencyNs) + " ms."
+        + " Max queue depth: " + maxQueueDepth + "."
+        + " Congested: " + congested + ".");
+    framesAdmitted = 0;
+    deltaFramesDropped = 0;
+    keyFramesDropped = 0;
+    framesQueueFailed = 0;
+    framesEncoded = 0;
+    encodeLatencyNs = 0;
+    maxEncodeLatencyNs = 0;
+    maxQueueDepth = 0;
+    statisticsStartTimeNs = currentTimeNs;
+  }
+}
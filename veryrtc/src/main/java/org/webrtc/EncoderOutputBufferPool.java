@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of direct ByteBuffers for encoded frames. Pooled buffers are sized from a percentile of the
+ * recently observed frame sizes, so that almost every frame fits in a reused buffer while the
+ * occasional oversized key frame gets a one-off allocation instead of growing every buffer. The
+ * pool never holds more than |maxBuffers| buffers.
+ *
+ * This class is not thread safe and should only be used from a single thread.
+ */
+class EncoderOutputBufferPool {
+  private static final String TAG = "EncoderOutputBufferPool";
+  private static final long LOG_INTERVAL_SEC = 10;
+  // Number of recent frame sizes used to estimate the pooled buffer size.
+  private static final int SIZE_HISTORY_LENGTH = 128;
+  // Pooled buffers are sized to hold this percentile of recent frames.
+  private static final int SIZE_PERCENTILE = 95;
+  // Recompute the pooled buffer size after this many frames.
+  private static final int SIZE_UPDATE_INTERVAL_FRAMES = 30;
+  // Round buffer sizes up to a multiple of this, to avoid reallocating on small size changes.
+  private static final int SIZE_ALIGNMENT_BYTES = 4096;
+
+  private static final Histogram poolHitPercentHistogram = Histogram.createCounts(
+      "WebRTC.Android.HardwareVideoEncoder.OutputBufferPoolHitPercent", 1, 100, 50);
+
+  private final int maxBuffers;
+  // All buffers owned by the pool, both free and handed out.
+  private final ArrayList<ByteBuffer> pooledBuffers = new ArrayList<>();
+  private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+  private final int[] sizeHistory = new int[SIZE_HISTORY_LENGTH];
+  private int sizeHistoryCount;
+  private int sizeHistoryIndex;
+  // Capacity of buffers allocated for the pool.
+  private int pooledBufferSize;
+
+  // Statistics since |statisticsStartTimeNs|.
+  private int acquired;
+  private int reused;
+  private int allocated;
+  // Buffers allocated outside of the pool because the frame was too large or the pool was full.
+  private int unpooled;
+  private long statisticsStartTimeNs = System.nanoTime();
+
+  public EncoderOutputBufferPool(int maxBuffers) {
+    if (maxBuffers <= 0) {
+      throw new IllegalArgumentException("Invalid maxBuffers: " + maxBuffers);
+    }
+    this.maxBuffers = maxBuffers;
+  }
+
+  /**
+   * Returns a buffer with position 0 and limit |size|. The buffer should be handed back with
+   * release() once the encoded frame has been consumed.
+   */
+  public ByteBuffer acquire(int size) {
+    ++acquired;
+    recordSize(size);
+
+    ByteBuffer buffer = null;
+    while (buffer == null && !freeBuffers.isEmpty()) {
+      final ByteBuffer candidate = freeBuffers.poll();
+      if (candidate.capacity() >= size) {
+        buffer = candidate;
+        ++reused;
+      } else {
+        // Frame sizes have grown beyond this buffer, drop it.
+        removePooledBuffer(candidate);
+      }
+    }
+    if (buffer == null) {
+      if (size > pooledBufferSize || pooledBuffers.size() >= maxBuffers) {
+        ++unpooled;
+        buffer = ByteBuffer.allocateDirect(size);
+      } else {
+        ++allocated;
+        buffer = ByteBuffer.allocateDirect(pooledBufferSize);
+        pooledBuffers.add(buffer);
+      }
+    }
+    buffer.clear();
+    buffer.limit(size);
+    maybeLogStatistics();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer obtained from acquire() to the pool.
+   */
+  public void release(ByteBuffer buffer) {
+    if (!isPooledBuffer(buffer)) {
+      // Unpooled buffer, let it be garbage collected.
+      return;
+    }
+    if (buffer.capacity() < pooledBufferSize) {
+      removePooledBuffer(buffer);
+      return;
+    }
+    freeBuffers.offer(buffer);
+  }
+
+  /** Drops all pooled buffers. */
+  public void clear() {
+    pooledBuffers.clear();
+    freeBuffers.clear();
+  }
+
+  // The pool holds at most |maxBuffers| buffers, so a linear identity scan is cheap.
+  private boolean isPooledBuffer(ByteBuffer buffer) {
+    for (int i = 0; i < pooledBuffers.size(); ++i) {
+      if (pooledBuffers.get(i) == buffer) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void removePooledBuffer(ByteBuffer buffer) {
+    for (int i = 0; i < pooledBuffers.size(); ++i) {
+      if (pooledBuffers.get(i) == buffer) {
+        pooledBuffers.remove(i);
+        return;
+      }
+    }
+  }
+
+  private void recordSize(int size) {
+    sizeHistory[sizeHistoryIndex] = size;
+    sizeHistoryIndex = (sizeHistoryIndex + 1) % SIZE_HISTORY_LENGTH;
+    sizeHistoryCount = Math.min(sizeHistoryCount + 1, SIZE_HISTORY_LENGTH);
+    if (pooledBufferSize == 0 || (acquired % SIZE_UPDATE_INTERVAL_FRAMES) == 0) {
+      final int[] sorted = Arrays.copyOf(sizeHistory, sizeHistoryCount);
+      Arrays.sort(sorted);
+      final int percentileSize = sorted[(sorted.length - 1) * SIZE_PERCENTILE / 100];
+      pooledBufferSize = alignSize(percentileSize);
+    }
+  }
+
+  private static int alignSize(int size) {
+    return Math.max(1, (size + SIZE_ALIGNMENT_BYTES - 1) / SIZE_ALIGNMENT_BYTES)
+        * SIZE_ALIGNMENT_BYTES;
+  }
+
+  private void maybeLogStatistics() {
+    final long currentTimeNs = System.nanoTime();
+    final long elapsedTimeNs = currentTimeNs - statisticsStartTimeNs;
+    if (elapsedTimeNs < TimeUnit.SECONDS.toNanos(LOG_INTERVAL_SEC) || acquired == 0) {
+      return;
+    }
+    final float hitPercent = 100f * reused / acquired;
+    poolHitPercentHistogram.addSample(Math.max(1, Math.round(hitPercent)));
+    Logging.d(TAG, "Duration: " + TimeUnit.NANOSECONDS.toMillis(elapsedTimeNs) + " ms."
+        + " Acquired: " + acquired + "."
+        + " Reused: " + reused + " (" + String.format(Locale.US, "%.1f", hitPercent) + "%)."
+        + " Allocated: " + allocated + "."
+        + " Unpooled: " + unpooled + "."
+        + " Pooled buffer size: " + pooledBufferSize + " bytes."
+        + " Pooled buffers: " + pooledBuffers.size() + "/" + maxBuffers + ".");
+    acquired = 0;
+    reused = 0;
+    allocated = 0;
+    unpooled = 0;
+    statisticsStartTimeNs = currentTimeNs;
+  }
+}
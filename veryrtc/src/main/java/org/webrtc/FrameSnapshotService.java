@@ -0,0 +1,305 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes periodic, downscaled snapshots of EglRenderers, e.g. for thumbnails in a participant list.
+ * Unlike EglRenderer.addFrameListener(), which reads back every requested frame synchronously
+ * into a newly allocated buffer and Bitmap, the service:
+ *  - draws each snapshot at thumbnail size on the GPU,
+ *  - reads it back asynchronously through a pixel pack buffer when GLES3 is available,
+ *  - reuses pixel buffers and Bitmaps from pools, and
+ *  - spreads snapshots over time so that all renderers together stay within one rate budget.
+ *
+ * Snapshots are delivered on the service thread. The listener may keep the Bitmap, or hand it
+ * back with recycleBitmap() once it has been drawn so that the next snapshot can reuse it.
+ */
+public class FrameSnapshotService {
+  private static final String TAG = "FrameSnapshotService";
+  private static final long LOG_INTERVAL_SEC = 4;
+  // A snapshot that hasn't been delivered after this time is given up, e.g. because the renderer
+  // stopped receiving frames.
+  private static final long REQUEST_TIMEOUT_MS = 2000;
+  private static final int MAX_POOLED_BITMAPS = 8;
+  private static final int MAX_POOLED_BUFFERS = 4;
+
+  public interface SnapshotListener {
+    /**
+     * Called on the service thread with a snapshot of |renderer|. The Bitmap is owned by the
+     * listener; pass it to recycleBitmap() when it is no longer needed.
+     */
+    void onSnapshot(EglRenderer renderer, Bitmap bitmap);
+  }
+
+  /** Snapshot request handed to an EglRenderer, which takes it from its next frame. */
+  static class Request {
+    private final FrameSnapshotService service;
+    private final Target target;
+    final int width;
+
+    private Request(FrameSnapshotService service, Target target) {
+      this.service = service;
+      this.target = target;
+      this.width = target.width;
+    }
+
+    /** Returns a pooled buffer of at least |capacity| bytes for the pixels of the snapshot. */
+    ByteBuffer obtainBuffer(int capacity) {
+      return service.obtainBuffer(capacity);
+    }
+
+    /** Delivers the RGBA pixels in |buffer|, which must come from obtainBuffer(). */
+    void deliver(ByteBuffer buffer, int width, int height) {
+      service.onRequestDone(this, buffer, width, height);
+    }
+
+    /** Gives up the request, e.g. because the renderer has been released. */
+    void cancel() {
+      service.onRequestDone(this, null /* buffer */, 0 /* width */, 0 /* height */);
+    }
+  }
+
+  private static class Target {
+    final EglRenderer renderer;
+    final int width;
+    final long intervalMs;
+    final SnapshotListener listener;
+    long nextSnapshotTimeMs;
+    // Non-null while a request is pending in the renderer.
+    Request pendingRequest;
+    long requestTimeMs;
+
+    Target(EglRenderer renderer, int width, long intervalMs, SnapshotListener listener) {
+      this.renderer = renderer;
+      this.width = width;
+      this.intervalMs = intervalMs;
+      this.listener = listener;
+    }
+  }
+
+  private final HandlerThread thread;
+  private final Handler handler;
+  // Minimum time between two snapshots, across all renderers.
+  private final long budgetIntervalMs;
+  // Only accessed on the service thread.
+  private final List<Target> targets = new ArrayList<>();
+  private boolean released;
+
+  // Pools, synchronized on |poolLock|, since buffers are taken on render threads.
+  private final Object poolLock = new Object();
+  private final List<ByteBuffer> freeBuffers = new ArrayList<>();
+  private final List<Bitmap> freeBitmaps = new ArrayList<>();
+
+  // Statistics, only accessed on the service thread.
+  private int snapshotsDelivered;
+  private int requestsTimedOut;
+  private int bitmapsAllocated;
+  private long statisticsStartTimeMs;
+
+  private final Runnable scheduleRunnable = new Runnable() {
+    @Override
+    public void run() {
+      scheduleNextSnapshot();
+      handler.postDelayed(this, budgetIntervalMs);
+    }
+  };
+
+  private final Runnable logStatisticsRunnable = new Runnable() {
+    @Override
+    public void run() {
+      logStatistics();
+      handler.postDelayed(this, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+    }
+  };
+
+  /**
+   * Creates a service that takes at most |maxSnapshotsPerSecond| snapshots per second in total.
+   */
+  public FrameSnapshotService(float maxSnapshotsPerSecond) {
+    if (maxSnapshotsPerSecond <= 0) {
+      throw new IllegalArgumentException("Invalid snapshot rate: " + maxSnapshotsPerSecond);
+    }
+    budgetIntervalMs = Math.max(1, (long) (1000 / maxSnapshotsPerSecond));
+    thread = new HandlerThread(TAG);
+    thread.start();
+    handler = new Handler(thread.getLooper());
+    statisticsStartTimeMs = SystemClock.elapsedRealtime();
+    handler.post(scheduleRunnable);
+    handler.postDelayed(logStatisticsRunnable, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+  }
+
+  /**
+   * Takes a snapshot of |renderer| about every |intervalMs| milliseconds, |width| pixels wide and
+   * with the aspect ratio of the video. Snapshots are taken less often if the rate budget is
+   * exceeded.
+   */
+  public void addRenderer(final EglRenderer renderer, final int width, final long intervalMs,
+      final SnapshotListener listener) {
+    if (width <= 0 || intervalMs <= 0) {
+      throw new IllegalArgumentException("Invalid width or interval: " + width + ", " + intervalMs);
+    }
+    handler.post(() -> {
+      removeTarget(renderer);
+      targets.add(new Target(renderer, width, intervalMs, listener));
+    });
+  }
+
+  /** Stops taking snapshots of |renderer|. Snapshots in flight are discarded. */
+  public void removeRenderer(final EglRenderer renderer) {
+    handler.post(() -> removeTarget(renderer));
+  }
+
+  /** Returns a Bitmap received in onSnapshot() to the pool. */
+  public void recycleBitmap(Bitmap bitmap) {
+    synchronized (poolLock) {
+      if (freeBitmaps.size() < MAX_POOLED_BITMAPS && !bitmap.isRecycled()) {
+        freeBitmaps.add(bitmap);
+      }
+    }
+  }
+
+  /** Stops taking snapshots and quits the service thread. */
+  public void release() {
+    handler.post(() -> {
+      released = true;
+      targets.clear();
+      handler.removeCallbacks(scheduleRunnable);
+      handler.removeCallbacks(logStatisticsRunnable);
+      synchronized (poolLock) {
+        freeBuffers.clear();
+        freeBitmaps.clear();
+      }
+      thread.quit();
+    });
+  }
+
+  private void removeTarget(EglRenderer renderer) {
+    final Iterator<Target> it = targets.iterator();
+    while (it.hasNext()) {
+      if (it.next().renderer == renderer) {
+        it.remove();
+      }
+    }
+  }
+
+  // Spends one slot of the rate budget on the most overdue renderer.
+  private void scheduleNextSnapshot() {
+    final long nowMs = SystemClock.elapsedRealtime();
+    Target next = null;
+    for (Target target : targets) {
+      if (target.pendingRequest != null) {
+        if (nowMs - target.requestTimeMs < REQUEST_TIMEOUT_MS) {
+          continue;
+        }
+        ++requestsTimedOut;
+        target.pendingRequest = null;
+        target.nextSnapshotTimeMs = nowMs + target.intervalMs;
+        continue;
+      }
+      if (target.nextSnapshotTimeMs <= nowMs
+          && (next == null || target.nextSnapshotTimeMs < next.nextSnapshotTimeMs)) {
+        next = target;
+      }
+    }
+    if (next == null) {
+      return;
+    }
+    next.pendingRequest = new Request(this, next);
+    next.requestTimeMs = nowMs;
+    next.renderer.requestSnapshot(next.pendingRequest);
+  }
+
+  private void onRequestDone(
+      final Request request, final ByteBuffer buffer, final int width, final int height) {
+    handler.post(() -> {
+      final Target target = request.target;
+      if (released || target.pendingRequest != request || !targets.contains(target)) {
+        // Timed out, removed or released meanwhile.
+        returnBuffer(buffer);
+        return;
+      }
+      target.pendingRequest = null;
+      target.nextSnapshotTimeMs = SystemClock.elapsedRealtime() + target.intervalMs;
+      if (buffer == null) {
+        return;
+      }
+      final Bitmap bitmap = obtainBitmap(width, height);
+      buffer.rewind();
+      bitmap.copyPixelsFromBuffer(buffer);
+      returnBuffer(buffer);
+      ++snapshotsDelivered;
+      target.listener.onSnapshot(target.renderer, bitmap);
+    });
+  }
+
+  private ByteBuffer obtainBuffer(int capacity) {
+    synchronized (poolLock) {
+      final Iterator<ByteBuffer> it = freeBuffers.iterator();
+      while (it.hasNext()) {
+        final ByteBuffer buffer = it.next();
+        if (buffer.capacity() >= capacity) {
+          it.remove();
+          buffer.clear();
+          return buffer;
+        }
+      }
+    }
+    return ByteBuffer.allocateDirect(capacity);
+  }
+
+  private void returnBuffer(ByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    synchronized (poolLock) {
+      if (freeBuffers.size() < MAX_POOLED_BUFFERS) {
+        freeBuffers.add(buffer);
+      }
+    }
+  }
+
+  private Bitmap obtainBitmap(int width, int height) {
+    synchronized (poolLock) {
+      final Iterator<Bitmap> it = freeBitmaps.iterator();
+      while (it.hasNext()) {
+        final Bitmap bitmap = it.next();
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+          it.remove();
+          return bitmap;
+        }
+      }
+    }
+    ++bitmapsAllocated;
+    return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  private void logStatistics() {
+    final long currentTimeMs = SystemClock.elapsedRealtime();
+    Logging.d(TAG, "Duration: " + (currentTimeMs - statisticsStartTimeMs) + " ms."
+            + " Renderers: " + targets.size() + ". Snapshots: " + snapshotsDelivered
+            + ". Timed out: " + requestsTimedOut + ". Bitmaps allocated: " + bitmapsAllocated
+            + ".");
+    snapshotsDelivered = 0;
+    requestsTimedOut = 0;
+    bitmapsAllocated = 0;
+    statisticsStartTimeMs = currentTimeMs;
+  }
+}
@@ -0,0 +1,595 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.content.Context;
+import android.content.res.Resources.NotFoundException;
+import android.graphics.Point;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Displays many video streams in one SurfaceView. Each stream is rendered into a Tile, which is a
+ * VideoSink with its own layout rectangle, scaling type and mirroring. All tiles are composited in
+ * a single GL pass and a single swap, at most once per vsync and only when something changed.
+ *
+ * Every tile keeps its latest picture in an RGB texture. A new frame is drawn into that texture
+ * once and released immediately, so a tile never holds on to decoder buffers and unchanged tiles
+ * are not uploaded again. Compositing then draws one textured quad per tile.
+ */
+public class GalleryVideoRenderer extends SurfaceView implements SurfaceHolder.Callback {
+  private static final String TAG = "GalleryVideoRenderer";
+  private static final long LOG_INTERVAL_SEC = 4;
+
+  /**
+   * A tile of the gallery. Frames passed to a tile are shown in its layout rectangle. All methods
+   * are thread safe.
+   */
+  public class Tile implements VideoRenderer.Callbacks, VideoSink {
+    // These variables are synchronized on the Tile.
+    private VideoFrame pendingFrame;
+    private boolean removed;
+    // Layout rectangle as fractions of the surface size, with the origin in the top left corner.
+    private float layoutX;
+    private float layoutY;
+    private float layoutWidth;
+    private float layoutHeight;
+    private boolean mirror;
+    private RendererCommon.ScalingType scalingType = RendererCommon.ScalingType.SCALE_ASPECT_FILL;
+
+    // Latest picture of this tile. Only accessed on the render thread.
+    private GlTextureFrameBuffer textureFrameBuffer;
+    private boolean hasPicture;
+
+    private Tile() {}
+
+    /**
+     * Set the rectangle this tile is drawn in, as fractions of the surface size, with the origin in
+     * the top left corner.
+     */
+    public void setLayout(float x, float y, float width, float height) {
+      synchronized (this) {
+        layoutX = x;
+        layoutY = y;
+        layoutWidth = width;
+        layoutHeight = height;
+      }
+      requestRender();
+    }
+
+    /** Set if the video stream of this tile should be mirrored or not. */
+    public void setMirror(boolean mirror) {
+      synchronized (this) {
+        this.mirror = mirror;
+      }
+      requestRender();
+    }
+
+    /** Set how the video will fill the layout rectangle of this tile. */
+    public void setScalingType(RendererCommon.ScalingType scalingType) {
+      synchronized (this) {
+        this.scalingType = scalingType;
+      }
+      requestRender();
+    }
+
+    // VideoRenderer.Callbacks interface.
+    @Override
+    public void renderFrame(VideoRenderer.I420Frame frame) {
+      final VideoFrame videoFrame = frame.toVideoFrame();
+      onFrame(videoFrame);
+      videoFrame.release();
+    }
+
+    // VideoSink interface.
+    @Override
+    public void onFrame(VideoFrame frame) {
+      final boolean dropOldFrame;
+      // Holding |handlerLock| keeps release() from running until the frame is stored, so it
+      // cannot miss the frame.
+      synchronized (handlerLock) {
+        if (renderThreadHandler == null) {
+          // Not initialized, or released. Nothing would ever draw or release the frame.
+          return;
+        }
+        synchronized (this) {
+          if (removed) {
+            return;
+          }
+          dropOldFrame = (pendingFrame != null);
+          if (dropOldFrame) {
+            pendingFrame.release();
+          }
+          pendingFrame = frame;
+          pendingFrame.retain();
+        }
+      }
+      synchronized (statisticsLock) {
+        ++framesReceived;
+        if (dropOldFrame) {
+          ++framesDropped;
+        }
+      }
+      requestRender();
+    }
+
+    private synchronized VideoFrame takePendingFrame() {
+      final VideoFrame frame = pendingFrame;
+      pendingFrame = null;
+      return frame;
+    }
+
+    // Draws |frame| into the texture of this tile. Called on the render thread.
+    private void updatePicture(VideoFrame frame, int maxWidth, int maxHeight) {
+      // No need to keep more pixels than the tile can show.
+      final int frameWidth = frame.getRotatedWidth();
+      final int frameHeight = frame.getRotatedHeight();
+      final float scale =
+          Math.min(1f, Math.max(maxWidth / (float) frameWidth, maxHeight / (float) frameHeight));
+      final int width = Math.max(1, Math.round(frameWidth * scale));
+      final int height = Math.max(1, Math.round(frameHeight * scale));
+
+      if (textureFrameBuffer == null) {
+        textureFrameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+      }
+      textureFrameBuffer.setSize(width, height);
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, textureFrameBuffer.getFrameBufferId());
+      frameDrawer.drawFrame(frame, drawer, null /* additionalRenderMatrix */, 0 /* viewportX */,
+          0 /* viewportY */, width, height);
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+      hasPicture = true;
+    }
+
+    // Draws the latest picture in the layout rectangle. Called on the render thread.
+    private void drawPicture(int surfaceWidth, int surfaceHeight) {
+      if (!hasPicture) {
+        return;
+      }
+      final float x;
+      final float y;
+      final float width;
+      final float height;
+      final boolean mirror;
+      final RendererCommon.ScalingType scalingType;
+      synchronized (this) {
+        x = layoutX;
+        y = layoutY;
+        width = layoutWidth;
+        height = layoutHeight;
+        mirror = this.mirror;
+        scalingType = this.scalingType;
+      }
+      final int viewportWidth = Math.round(width * surfaceWidth);
+      final int viewportHeight = Math.round(height * surfaceHeight);
+      if (viewportWidth <= 0 || viewportHeight <= 0) {
+        return;
+      }
+      final int pictureWidth = textureFrameBuffer.getWidth();
+      final int pictureHeight = textureFrameBuffer.getHeight();
+      final float pictureAspectRatio = pictureWidth / (float) pictureHeight;
+      // Shrink the viewport as much as the scaling type allows, and crop the rest.
+      final Point displaySize = RendererCommon.getDisplaySize(
+          scalingType, pictureAspectRatio, viewportWidth, viewportHeight);
+      final float[] layoutMatrix = RendererCommon.getLayoutMatrix(
+          mirror, pictureAspectRatio, displaySize.x / (float) displaySize.y);
+      // GL viewports have the origin in the bottom left corner.
+      final int viewportX = Math.round(x * surfaceWidth) + (viewportWidth - displaySize.x) / 2;
+      final int viewportY = surfaceHeight - Math.round(y * surfaceHeight) - viewportHeight
+          + (viewportHeight - displaySize.y) / 2;
+      drawer.drawRgb(textureFrameBuffer.getTextureId(), layoutMatrix, pictureWidth, pictureHeight,
+          viewportX, viewportY, displaySize.x, displaySize.y);
+    }
+
+    // Called on the render thread.
+    private void releaseGlResources() {
+      if (textureFrameBuffer != null) {
+        textureFrameBuffer.release();
+        textureFrameBuffer = null;
+      }
+      hasPicture = false;
+    }
+
+    private void releasePendingFrame() {
+      final VideoFrame frame = takePendingFrame();
+      if (frame != null) {
+        frame.release();
+      }
+    }
+  }
+
+  private final String resourceName;
+
+  // |renderThreadHandler| is synchronized on |handlerLock|.
+  private final Object handlerLock = new Object();
+  private Handler renderThreadHandler;
+
+  // Only accessed on the render thread after init().
+  private EglBase eglBase;
+  private RendererCommon.GlDrawer drawer;
+  private final VideoFrameDrawer frameDrawer = new VideoFrameDrawer();
+  private Choreographer choreographer;
+  // True if |frameCallback| is posted to |choreographer|.
+  private boolean frameCallbackPosted;
+  // Removed tiles whose GL resources could not be released yet because there was no surface.
+  private final List<Tile> removedTiles = new ArrayList<>();
+
+  // Synchronized on |tiles|.
+  private final List<Tile> tiles = new ArrayList<>();
+  // True if a composition has been requested but not started yet. Synchronized on |tiles|.
+  private boolean renderRequested;
+
+  // These variables are synchronized on |statisticsLock|.
+  private final Object statisticsLock = new Object();
+  private int framesReceived;
+  private int framesDropped;
+  private int compositions;
+  private int tilesUpdated;
+  private long uploadTimeNs;
+  private long compositionTimeNs;
+  private long statisticsStartTimeNs;
+
+  private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      frameCallbackPosted = false;
+      renderOnRenderThread();
+    }
+  };
+
+  private final Runnable postFrameCallbackRunnable = new Runnable() {
+    @Override
+    public void run() {
+      if (choreographer != null && !frameCallbackPosted) {
+        frameCallbackPosted = true;
+        choreographer.postFrameCallback(frameCallback);
+      }
+    }
+  };
+
+  private final Runnable logStatisticsRunnable = new Runnable() {
+    @Override
+    public void run() {
+      logStatistics();
+      synchronized (handlerLock) {
+        if (renderThreadHandler != null) {
+          renderThreadHandler.removeCallbacks(logStatisticsRunnable);
+          renderThreadHandler.postDelayed(
+              logStatisticsRunnable, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+        }
+      }
+    }
+  };
+
+  /**
+   * Standard View constructor. In order to render something, you must first call init().
+   */
+  public GalleryVideoRenderer(Context context) {
+    super(context);
+    resourceName = getResourceName();
+    getHolder().addCallback(this);
+  }
+
+  /**
+   * Standard View constructor. In order to render something, you must first call init().
+   */
+  public GalleryVideoRenderer(Context context, AttributeSet attrs) {
+    super(context, attrs);
+    resourceName = getResourceName();
+    getHolder().addCallback(this);
+  }
+
+  /**
+   * Initialize this class, sharing resources with |sharedContext|. It is allowed to call init() to
+   * reinitialize the renderer after a previous init()/release() cycle.
+   */
+  public void init(final EglBase.Context sharedContext) {
+    synchronized (handlerLock) {
+      if (renderThreadHandler != null) {
+        throw new IllegalStateException(resourceName + "Already initialized");
+      }
+      logD("Initializing.");
+      final HandlerThread renderThread = new HandlerThread(resourceName + "GalleryVideoRenderer");
+      renderThread.start();
+      renderThreadHandler = new Handler(renderThread.getLooper());
+      ThreadUtils.invokeAtFrontUninterruptibly(renderThreadHandler, () -> {
+        eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PLAIN_WITH_PIXEL_BUFFER);
+        drawer = new GlRectDrawer();
+        // Frame callbacks are delivered on the thread that created the Choreographer.
+        choreographer = Choreographer.getInstance();
+      });
+      synchronized (tiles) {
+        renderRequested = false;
+      }
+      resetStatistics(System.nanoTime());
+      renderThreadHandler.postDelayed(
+          logStatisticsRunnable, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+    }
+  }
+
+  /**
+   * Block until all GL resources are released. Frames passed to tiles after this are dropped.
+   */
+  public void release() {
+    logD("Releasing.");
+    synchronized (handlerLock) {
+      if (renderThreadHandler == null) {
+        logD("Already released");
+        return;
+      }
+      renderThreadHandler.removeCallbacks(logStatisticsRunnable);
+      ThreadUtils.invokeAtFrontUninterruptibly(renderThreadHandler, () -> {
+        if (choreographer != null) {
+          choreographer.removeFrameCallback(frameCallback);
+          choreographer = null;
+        }
+        frameCallbackPosted = false;
+        if (eglBase.hasSurface()) {
+          eglBase.makeCurrent();
+        } else {
+          eglBase.createDummyPbufferSurface();
+          eglBase.makeCurrent();
+        }
+        synchronized (tiles) {
+          for (Tile tile : tiles) {
+            tile.releaseGlResources();
+          }
+        }
+        releaseRemovedTiles();
+        drawer.release();
+        drawer = null;
+        frameDrawer.release();
+        eglBase.detachCurrent();
+        eglBase.release();
+        eglBase = null;
+      });
+      final Looper renderLooper = renderThreadHandler.getLooper();
+      renderThreadHandler.post(() -> {
+        logD("Quitting render thread.");
+        renderLooper.quit();
+      });
+      renderThreadHandler = null;
+    }
+    synchronized (tiles) {
+      // A composition that was requested before now never runs.
+      renderRequested = false;
+      for (Tile tile : tiles) {
+        tile.releasePendingFrame();
+      }
+    }
+    logD("Releasing done.");
+  }
+
+  /** Adds a tile. It is not shown until its layout has been set. */
+  public Tile addTile() {
+    final Tile tile = new Tile();
+    synchronized (tiles) {
+      tiles.add(tile);
+    }
+    return tile;
+  }
+
+  /** Removes |tile| from the gallery. Frames passed to it afterwards are not shown. */
+  public void removeTile(final Tile tile) {
+    synchronized (tiles) {
+      if (!tiles.remove(tile)) {
+        return;
+      }
+    }
+    synchronized (handlerLock) {
+      if (renderThreadHandler != null) {
+        renderThreadHandler.post(() -> {
+          removedTiles.add(tile);
+          if (eglBase != null && eglBase.hasSurface()) {
+            releaseRemovedTiles();
+          }
+        });
+      }
+    }
+    synchronized (tile) {
+      tile.removed = true;
+    }
+    tile.releasePendingFrame();
+    requestRender();
+  }
+
+  // Called on the render thread with the context current.
+  private void releaseRemovedTiles() {
+    for (Tile tile : removedTiles) {
+      tile.releaseGlResources();
+    }
+    removedTiles.clear();
+  }
+
+  // Schedules a composition on the next vsync, unless one is already scheduled.
+  private void requestRender() {
+    synchronized (handlerLock) {
+      if (renderThreadHandler == null) {
+        return;
+      }
+      synchronized (tiles) {
+        if (renderRequested) {
+          return;
+        }
+        renderRequested = true;
+      }
+      renderThreadHandler.post(postFrameCallbackRunnable);
+    }
+  }
+
+  // Draws new frames into their tiles, then composites all tiles.
+  private void renderOnRenderThread() {
+    final List<Tile> currentTiles;
+    synchronized (tiles) {
+      renderRequested = false;
+      currentTiles = new ArrayList<>(tiles);
+    }
+    if (eglBase == null || !eglBase.hasSurface()) {
+      // Drop the frames, the tiles keep their previous pictures.
+      for (Tile tile : currentTiles) {
+        tile.releasePendingFrame();
+      }
+      return;
+    }
+    final long startTimeNs = System.nanoTime();
+    releaseRemovedTiles();
+    final int surfaceWidth = eglBase.surfaceWidth();
+    final int surfaceHeight = eglBase.surfaceHeight();
+
+    int updatedTiles = 0;
+    for (Tile tile : currentTiles) {
+      final VideoFrame frame = tile.takePendingFrame();
+      if (frame == null) {
+        continue;
+      }
+      final int maxWidth;
+      final int maxHeight;
+      synchronized (tile) {
+        maxWidth = Math.max(1, Math.round(tile.layoutWidth * surfaceWidth));
+        maxHeight = Math.max(1, Math.round(tile.layoutHeight * surfaceHeight));
+      }
+      tile.updatePicture(frame, maxWidth, maxHeight);
+      frame.release();
+      ++updatedTiles;
+    }
+    final long compositionStartTimeNs = System.nanoTime();
+
+    GLES20.glClearColor(0 /* red */, 0 /* green */, 0 /* blue */, 0 /* alpha */);
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    for (Tile tile : currentTiles) {
+      tile.drawPicture(surfaceWidth, surfaceHeight);
+    }
+    eglBase.swapBuffers();
+
+    final long currentTimeNs = System.nanoTime();
+    synchronized (statisticsLock) {
+      ++compositions;
+      tilesUpdated += updatedTiles;
+      uploadTimeNs += compositionStartTimeNs - startTimeNs;
+      compositionTimeNs += currentTimeNs - compositionStartTimeNs;
+    }
+  }
+
+  // SurfaceHolder.Callback interface.
+  @Override
+  public void surfaceCreated(final SurfaceHolder holder) {
+    ThreadUtils.checkIsOnMainThread();
+    synchronized (handlerLock) {
+      if (renderThreadHandler == null) {
+        return;
+      }
+      renderThreadHandler.post(() -> {
+        if (eglBase != null && !eglBase.hasSurface()) {
+          eglBase.createSurface(holder.getSurface());
+          eglBase.makeCurrent();
+          // Necessary for YUV frames with odd width.
+          GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        }
+      });
+    }
+    requestRender();
+  }
+
+  @Override
+  public void surfaceDestroyed(SurfaceHolder holder) {
+    ThreadUtils.checkIsOnMainThread();
+    final CountDownLatch completionLatch = new CountDownLatch(1);
+    synchronized (handlerLock) {
+      if (renderThreadHandler == null) {
+        return;
+      }
+      renderThreadHandler.postAtFrontOfQueue(() -> {
+        if (eglBase != null && eglBase.hasSurface()) {
+          // Keep the tile pictures, they are redrawn when a new surface is created.
+          eglBase.detachCurrent();
+          eglBase.releaseSurface();
+        }
+        completionLatch.countDown();
+      });
+    }
+    ThreadUtils.awaitUninterruptibly(completionLatch);
+  }
+
+  @Override
+  public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    ThreadUtils.checkIsOnMainThread();
+    logD("surfaceChanged: format: " + format + " size: " + width + "x" + height);
+    requestRender();
+  }
+
+  private void resetStatistics(long currentTimeNs) {
+    synchronized (statisticsLock) {
+      statisticsStartTimeNs = currentTimeNs;
+      framesReceived = 0;
+      framesDropped = 0;
+      compositions = 0;
+      tilesUpdated = 0;
+      uploadTimeNs = 0;
+      compositionTimeNs = 0;
+    }
+  }
+
+  private static String averageTimeAsString(long sumTimeNs, int count) {
+    return (count <= 0) ? "NA" : TimeUnit.NANOSECONDS.toMicros(sumTimeNs / count) + " μs";
+  }
+
+  private void logStatistics() {
+    final long currentTimeNs = System.nanoTime();
+    final int tileCount;
+    synchronized (tiles) {
+      tileCount = tiles.size();
+    }
+    synchronized (statisticsLock) {
+      final long elapsedTimeNs = currentTimeNs - statisticsStartTimeNs;
+      if (elapsedTimeNs <= 0) {
+        return;
+      }
+      final float compositionFps =
+          compositions * TimeUnit.SECONDS.toNanos(1) / (float) elapsedTimeNs;
+      logD("Duration: " + TimeUnit.NANOSECONDS.toMillis(elapsedTimeNs) + " ms."
+          + " Tiles: " + tileCount + "."
+          + " Frames received: " + framesReceived + "."
+          + " Dropped: " + framesDropped + "."
+          + " Compositions: " + compositions + "."
+          + " Composition fps: " + String.format(Locale.US, "%.1f", compositionFps) + "."
+          + " Tiles updated per composition: "
+          + (compositions == 0 ? "NA" : String.format(Locale.US, "%.1f",
+                                           tilesUpdated / (float) compositions))
+          + "."
+          + " Average upload time: " + averageTimeAsString(uploadTimeNs, compositions) + "."
+          + " Average composition time: " + averageTimeAsString(compositionTimeNs, compositions)
+          + ".");
+      resetStatistics(currentTimeNs);
+    }
+  }
+
+  private String getResourceName() {
+    try {
+      return getResources().getResourceEntryName(getId()) + ": ";
+    } catch (NotFoundException e) {
+      return "";
+    }
+  }
+
+  private void logD(String string) {
+    Logging.d(TAG, resourceName + string);
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of linked shader programs, keyed by EGL share group and shader source.
+ * Programs are shared between all contexts created from the same root context, so a program
+ * compiled once, e.g. by prewarm(), can be handed to any renderer in the share group.
+ *
+ * Uniform values are program state, and two contexts must not modify them concurrently. A
+ * program is therefore leased to one context at a time: drawers on the same context share one
+ * refcounted instance, while a drawer on another context gets an idle instance or a newly
+ * compiled one. Programs are kept when their refcount drops to zero, so that the next renderer
+ * reuses them without compiling.
+ *
+ * Share groups are tracked for contexts created by EglBase14. On other contexts, acquire() and
+ * release() simply compile and delete the program.
+ */
+public class GlProgramCache {
+  private static final String TAG = "GlProgramCache";
+  // Unused programs kept per share group and shader source.
+  private static final int MAX_IDLE_PROGRAMS = 2;
+
+  private static class ProgramKey {
+    final String vertexSource;
+    final String fragmentSource;
+
+    ProgramKey(String vertexSource, String fragmentSource) {
+      this.vertexSource = vertexSource;
+      this.fragmentSource = fragmentSource;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof ProgramKey)) {
+        return false;
+      }
+      final ProgramKey that = (ProgramKey) other;
+      return vertexSource.equals(that.vertexSource) && fragmentSource.equals(that.fragmentSource);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * vertexSource.hashCode() + fragmentSource.hashCode();
+    }
+  }
+
+  private static class Program {
+    final GlShader shader;
+    final Object shareGroup;
+    final ProgramKey key;
+    // The context the program is leased to, or null if it is idle.
+    EGLContext owner;
+    int refCount;
+
+    Program(GlShader shader, Object shareGroup, ProgramKey key) {
+      this.shader = shader;
+      this.shareGroup = shareGroup;
+      this.key = key;
+    }
+  }
+
+  private static class ShareGroup {
+    // Number of live contexts in the group.
+    int contextCount;
+    final Map<ProgramKey, List<Program>> programs = new HashMap<ProgramKey, List<Program>>();
+  }
+
+  private static final Object lock = new Object();
+  // Share group of each registered context. Contexts in a group map to the same key.
+  private static final Map<EGLContext, Object> shareGroupKeys = new HashMap<EGLContext, Object>();
+  private static final Map<Object, ShareGroup> shareGroups = new HashMap<Object, ShareGroup>();
+  private static final Map<GlShader, Program> programsByShader =
+      new IdentityHashMap<GlShader, Program>();
+
+  private GlProgramCache() {}
+
+  /**
+   * Returns a program for the given shader sources that can be used on the EGL context current on
+   * this thread. Must be balanced with a call to release() on the same context.
+   */
+  public static GlShader acquire(String vertexSource, String fragmentSource) {
+    final EGLContext context = EGL14.eglGetCurrentContext();
+    if (context == null || context.equals(EGL14.EGL_NO_CONTEXT)) {
+      throw new IllegalStateException("GlProgramCache.acquire called without a current context");
+    }
+    final ProgramKey key = new ProgramKey(vertexSource, fragmentSource);
+    final Object shareGroupKey;
+    synchronized (lock) {
+      shareGroupKey = shareGroupKeys.get(context);
+      final List<Program> candidates =
+          (shareGroupKey == null) ? null : shareGroups.get(shareGroupKey).programs.get(key);
+      if (candidates != null) {
+        Program idleProgram = null;
+        for (Program program : candidates) {
+          if (context.equals(program.owner)) {
+            ++program.refCount;
+            return program.shader;
+          }
+          if (program.owner == null && idleProgram == null) {
+            idleProgram = program;
+          }
+        }
+        if (idleProgram != null) {
+          idleProgram.owner = context;
+          idleProgram.refCount = 1;
+          return idleProgram.shader;
+        }
+      }
+    }
+
+    // Compile outside the lock, other threads may be drawing with cached programs meanwhile.
+    final long startTimeMs = SystemClock.elapsedRealtime();
+    final GlShader shader = new GlShader(vertexSource, fragmentSource);
+    Logging.d(
+        TAG, "Compiled program in " + (SystemClock.elapsedRealtime() - startTimeMs) + " ms.");
+
+    synchronized (lock) {
+      if (shareGroupKey == null || !shareGroups.containsKey(shareGroupKey)) {
+        // Not a tracked context, or the share group ended while compiling.
+        return shader;
+      }
+      final Program program = new Program(shader, shareGroupKey, key);
+      program.owner = context;
+      program.refCount = 1;
+      final ShareGroup shareGroup = getShareGroup(shareGroupKey);
+      List<Program> programs = shareGroup.programs.get(key);
+      if (programs == null) {
+        programs = new ArrayList<Program>();
+        shareGroup.programs.put(key, programs);
+      }
+      programs.add(program);
+      programsByShader.put(shader, program);
+    }
+    return shader;
+  }
+
+  /**
+   * Returns a program obtained from acquire(). The program stays cached for later users, unless
+   * enough idle programs with the same sources are cached already.
+   */
+  public static void release(GlShader shader) {
+    final boolean deleteProgram;
+    synchronized (lock) {
+      final Program program = programsByShader.get(shader);
+      if (program == null) {
+        // Not cached.
+        deleteProgram = true;
+      } else if (program.refCount == 0 || --program.refCount > 0) {
+        return;
+      } else {
+        deleteProgram = makeIdle(program);
+      }
+    }
+    if (deleteProgram) {
+      shader.release();
+    }
+  }
+
+  // Returns true if |program| was dropped from the cache and should be deleted.
+  private static boolean makeIdle(Program program) {
+    program.owner = null;
+    final List<Program> programs = shareGroups.get(program.shareGroup).programs.get(program.key);
+    int idleCount = 0;
+    for (Program other : programs) {
+      if (other.owner == null) {
+        ++idleCount;
+      }
+    }
+    if (idleCount <= MAX_IDLE_PROGRAMS) {
+      return false;
+    }
+    // GL calls are only valid on a context that belongs to the share group of the program.
+    final EGLContext context = EGL14.eglGetCurrentContext();
+    if (context == null || program.shareGroup != shareGroupKeys.get(context)) {
+      return false;
+    }
+    programs.remove(program);
+    programsByShader.remove(program.shader);
+    return true;
+  }
+
+  /**
+   * Compiles the programs of GlRectDrawer and YuvConverter on a background thread, in a context
+   * that shares data with |sharedContext|. Renderers created later in the same share group then
+   * find their programs already linked.
+   */
+  public static void prewarm(final EglBase.Context sharedContext) {
+    if (!(sharedContext instanceof EglBase14.Context)) {
+      // Share groups are only tracked for EglBase14 contexts.
+      return;
+    }
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        EglBase eglBase = null;
+        try {
+          eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PIXEL_BUFFER);
+          eglBase.createDummyPbufferSurface();
+          eglBase.makeCurrent();
+          GlRectDrawer.prewarmPrograms();
+          YuvConverter.prewarmProgram();
+          // Make sure compilation has finished before the programs are used from other contexts.
+          GLES20.glFinish();
+          Logging.d(TAG, "Prewarmed programs in " + (SystemClock.elapsedRealtime() - startTimeMs)
+                  + " ms.");
+        } catch (RuntimeException e) {
+          Logging.e(TAG, "Failed to prewarm programs", e);
+        } finally {
+          if (eglBase != null) {
+            eglBase.release();
+          }
+        }
+      }
+    }, "GlProgramCacheWarmup").start();
+  }
+
+  /** Called by EglBase14 when |context| has been created, sharing data with |sharedContext|. */
+  static void onContextCreated(EGLContext context, EGLContext sharedContext) {
+    synchronized (lock) {
+      Object shareGroupKey = (sharedContext == null) ? null : shareGroupKeys.get(sharedContext);
+      if (shareGroupKey == null) {
+        // A new share group, or one whose root was not created by EglBase14. The key is a fresh
+        // object, since EGL may reuse the handles of destroyed contexts.
+        shareGroupKey = new Object();
+      }
+      shareGroupKeys.put(context, shareGroupKey);
+      ++getShareGroup(shareGroupKey).contextCount;
+    }
+  }
+
+  /** Called by EglBase14 before |context| is destroyed. */
+  static void onContextDestroyed(EGLContext context) {
+    synchronized (lock) {
+      final Object shareGroupKey = shareGroupKeys.remove(context);
+      if (shareGroupKey == null) {
+        return;
+      }
+      final ShareGroup shareGroup = shareGroups.get(shareGroupKey);
+      if (--shareGroup.contextCount > 0) {
+        // Programs leased to the context are no longer in use.
+        for (List<Program> programs : shareGroup.programs.values()) {
+          for (Program program : programs) {
+            if (context.equals(program.owner)) {
+              program.owner = null;
+              program.refCount = 0;
+            }
+          }
+        }
+        return;
+      }
+      // The last context of the group takes its programs with it.
+      dropShareGroup(shareGroupKey);
+    }
+  }
+
+  private static ShareGroup getShareGroup(Object shareGroupKey) {
+    ShareGroup shareGroup = shareGroups.get(shareGroupKey);
+    if (shareGroup == null) {
+      shareGroup = new ShareGroup();
+      shareGroups.put(shareGroupKey, shareGroup);
+    }
+    return shareGroup;
+  }
+
+  private static void dropShareGroup(Object shareGroupKey) {
+    final ShareGroup shareGroup = shareGroups.remove(shareGroupKey);
+    if (shareGroup == null) {
+      return;
+    }
+    for (List<Program> programs : shareGroup.programs.values()) {
+      for (Program program : programs) {
+        programsByShader.remove(program.shader);
+      }
+    }
+  }
+}
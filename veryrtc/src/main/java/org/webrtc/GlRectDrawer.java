@@ -20,7 +20,8 @@ import java.util.Map;
 /**
  * Helper class to draw an opaque quad on the target viewport location. Rotation, mirror, and
  * cropping is specified using a 4x4 texture coordinate transform matrix. The frame input can either
- * be an OES texture or YUV textures in I420 format. The GL state must be preserved between draw
+ * be an OES texture, an RGB texture, YUV textures in I420 format, or Y and chroma textures in NV12
+ * or NV21 format. The GL state must be preserved between draw
  * calls, this is intentional to maximize performance. The function release() must be called
  * manually to free the resources held by this object.
  */
@@ -57,6 +58,43 @@ public class GlRectDrawer implements RendererCommon.GlDrawer {
       + "                      y + 1.77 * u, 1);\n"
       + "}\n";
 
+  // NV12 and NV21 frames are drawn from a luminance Y-texture and a luminance-alpha texture that
+  // holds the interleaved chroma samples: the first byte of each pair in the luminance channel and
+  // the second byte in the alpha channel.
+  private static final String NV12_FRAGMENT_SHADER_STRING =
+        "precision mediump float;\n"
+      + "varying vec2 interp_tc;\n"
+      + "\n"
+      + "uniform sampler2D y_tex;\n"
+      + "uniform sampler2D uv_tex;\n"
+      + "\n"
+      + "void main() {\n"
+      + "  float y = texture2D(y_tex, interp_tc).r;\n"
+      + "  vec4 uv = texture2D(uv_tex, interp_tc);\n"
+      + "  float u = uv.r - 0.5;\n"
+      + "  float v = uv.a - 0.5;\n"
+      + "  gl_FragColor = vec4(y + 1.403 * v, "
+      + "                      y - 0.344 * u - 0.714 * v, "
+      + "                      y + 1.77 * u, 1);\n"
+      + "}\n";
+
+  private static final String NV21_FRAGMENT_SHADER_STRING =
+        "precision mediump float;\n"
+      + "varying vec2 interp_tc;\n"
+      + "\n"
+      + "uniform sampler2D y_tex;\n"
+      + "uniform sampler2D uv_tex;\n"
+      + "\n"
+      + "void main() {\n"
+      + "  float y = texture2D(y_tex, interp_tc).r;\n"
+      + "  vec4 vu = texture2D(uv_tex, interp_tc);\n"
+      + "  float u = vu.a - 0.5;\n"
+      + "  float v = vu.r - 0.5;\n"
+      + "  gl_FragColor = vec4(y + 1.403 * v, "
+      + "                      y - 0.344 * u - 0.714 * v, "
+      + "                      y + 1.77 * u, 1);\n"
+      + "}\n";
+
   private static final String RGB_FRAGMENT_SHADER_STRING =
         "precision mediump float;\n"
       + "varying vec2 interp_tc;\n"
@@ -101,11 +139,23 @@ public class GlRectDrawer implements RendererCommon.GlDrawer {
     public final int texMatrixLocation;
 
     public Shader(String fragmentShader) {
-      this.glShader = new GlShader(VERTEX_SHADER_STRING, fragmentShader);
+      this.glShader = GlProgramCache.acquire(VERTEX_SHADER_STRING, fragmentShader);
       this.texMatrixLocation = glShader.getUniformLocation("texMatrix");
     }
   }
 
+  /**
+   * Compiles the programs of all frame types into GlProgramCache, so that drawers in the share
+   * group of the current context don't have to. Must be called on a thread with a current context.
+   */
+  static void prewarmPrograms() {
+    for (String fragmentShader : new String[] {OES_FRAGMENT_SHADER_STRING,
+             RGB_FRAGMENT_SHADER_STRING, YUV_FRAGMENT_SHADER_STRING, NV12_FRAGMENT_SHADER_STRING,
+             NV21_FRAGMENT_SHADER_STRING}) {
+      GlProgramCache.release(GlProgramCache.acquire(VERTEX_SHADER_STRING, fragmentShader));
+    }
+  }
+
   // The keys are one of the fragments shaders above.
   private final Map<String, Shader> shaders = new IdentityHashMap<String, Shader>();
 
@@ -161,6 +211,43 @@ public class GlRectDrawer implements RendererCommon.GlDrawer {
     }
   }
 
+  /**
+   * Draw an NV12 frame with specified texture transformation matrix. |nvTextures| holds the
+   * luminance Y-texture and the luminance-alpha U/V-texture. Required resources are allocated at
+   * the first call to this function.
+   */
+  public void drawNv12(int[] nvTextures, float[] texMatrix, int frameWidth, int frameHeight,
+      int viewportX, int viewportY, int viewportWidth, int viewportHeight) {
+    prepareShader(NV12_FRAGMENT_SHADER_STRING, texMatrix);
+    drawSemiPlanar(nvTextures, viewportX, viewportY, viewportWidth, viewportHeight);
+  }
+
+  /**
+   * Draw an NV21 frame with specified texture transformation matrix. |nvTextures| holds the
+   * luminance Y-texture and the luminance-alpha V/U-texture. Required resources are allocated at
+   * the first call to this function.
+   */
+  public void drawNv21(int[] nvTextures, float[] texMatrix, int frameWidth, int frameHeight,
+      int viewportX, int viewportY, int viewportWidth, int viewportHeight) {
+    prepareShader(NV21_FRAGMENT_SHADER_STRING, texMatrix);
+    drawSemiPlanar(nvTextures, viewportX, viewportY, viewportWidth, viewportHeight);
+  }
+
+  private void drawSemiPlanar(int[] nvTextures, int viewportX, int viewportY, int viewportWidth,
+      int viewportHeight) {
+    // Bind the textures.
+    for (int i = 0; i < 2; ++i) {
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, nvTextures[i]);
+    }
+    drawRectangle(viewportX, viewportY, viewportWidth, viewportHeight);
+    // Unbind the textures as a precaution.
+    for (int i = 0; i < 2; ++i) {
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+  }
+
   private void drawRectangle(int x, int y, int width, int height) {
     // Draw quad.
     GLES20.glViewport(x, y, width, height);
@@ -181,6 +268,10 @@ public class GlRectDrawer implements RendererCommon.GlDrawer {
         GLES20.glUniform1i(shader.glShader.getUniformLocation("y_tex"), 0);
         GLES20.glUniform1i(shader.glShader.getUniformLocation("u_tex"), 1);
         GLES20.glUniform1i(shader.glShader.getUniformLocation("v_tex"), 2);
+      } else if (fragmentShader == NV12_FRAGMENT_SHADER_STRING
+          || fragmentShader == NV21_FRAGMENT_SHADER_STRING) {
+        GLES20.glUniform1i(shader.glShader.getUniformLocation("y_tex"), 0);
+        GLES20.glUniform1i(shader.glShader.getUniformLocation("uv_tex"), 1);
       } else if (fragmentShader == RGB_FRAGMENT_SHADER_STRING) {
         GLES20.glUniform1i(shader.glShader.getUniformLocation("rgb_tex"), 0);
       } else if (fragmentShader == OES_FRAGMENT_SHADER_STRING) {
@@ -204,7 +295,7 @@ public class GlRectDrawer implements RendererCommon.GlDrawer {
   @Override
   public void release() {
     for (Shader shader : shaders.values()) {
-      shader.glShader.release();
+      GlProgramCache.release(shader.glShader);
     }
     shaders.clear();
   }
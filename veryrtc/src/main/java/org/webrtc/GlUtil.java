@@ -40,6 +40,15 @@ public class GlUtil {
     return fb;
   }
 
+  /**
+   * Returns true if the context current on this thread is an OpenGL ES 3.0 or later context.
+   */
+  public static boolean isGles3ContextCurrent() {
+    final String version = GLES20.glGetString(GLES20.GL_VERSION);
+    return version != null && version.startsWith("OpenGL ES ")
+        && !version.startsWith("OpenGL ES 2") && !version.startsWith("OpenGL ES 1");
+  }
+
   /**
    * Generate texture with standard parameters.
    */
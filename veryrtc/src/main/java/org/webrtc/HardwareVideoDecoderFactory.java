@@ -10,10 +10,8 @@
 
 package org.webrtc;
 
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecInfo.CodecCapabilities;
-import android.media.MediaCodecList;
 import android.os.Build;
+import org.webrtc.MediaCodecCapabilityRegistry.CodecEntry;
 
 import static org.webrtc.MediaCodecUtils.EXYNOS_PREFIX;
 import static org.webrtc.MediaCodecUtils.INTEL_PREFIX;
@@ -44,33 +42,26 @@ public class HardwareVideoDecoderFactory implements VideoDecoderFactory {
   @Override
   public VideoDecoder createDecoder(String codecType) {
     VideoCodecType type = VideoCodecType.valueOf(codecType);
-    MediaCodecInfo info = findCodecForType(type);
+    CodecEntry info = findCodecForType(type);
 
     if (info == null) {
       return null; // No support for this codec type.
     }
 
-    CodecCapabilities capabilities = info.getCapabilitiesForType(type.mimeType());
-    return new HardwareVideoDecoder(info.getName(), type,
-        MediaCodecUtils.selectColorFormat(MediaCodecUtils.DECODER_COLOR_FORMATS, capabilities),
+    return new HardwareVideoDecoder(info.name, type,
+        MediaCodecUtils.selectColorFormat(
+            MediaCodecUtils.DECODER_COLOR_FORMATS, info.getColorFormats(type.mimeType())),
         sharedContext);
   }
 
-  private MediaCodecInfo findCodecForType(VideoCodecType type) {
+  private CodecEntry findCodecForType(VideoCodecType type) {
     // HW decoding is not supported on builds before KITKAT.
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
       return null;
     }
 
-    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
-      MediaCodecInfo info = null;
-      try {
-        info = MediaCodecList.getCodecInfoAt(i);
-      } catch (IllegalArgumentException e) {
-        Logging.e(TAG, "Cannot retrieve encoder codec info", e);
-      }
-
-      if (info == null || info.isEncoder()) {
+    for (CodecEntry info : MediaCodecCapabilityRegistry.getCodecs()) {
+      if (info.isEncoder) {
         continue;
       }
 
@@ -81,22 +72,22 @@ public class HardwareVideoDecoderFactory implements VideoDecoderFactory {
     return null; // No support for this type.
   }
 
-  // Returns true if the given MediaCodecInfo indicates a supported encoder for the given type.
-  private boolean isSupportedCodec(MediaCodecInfo info, VideoCodecType type) {
+  // Returns true if the given codec indicates a supported encoder for the given type.
+  private boolean isSupportedCodec(CodecEntry info, VideoCodecType type) {
     if (!MediaCodecUtils.codecSupportsType(info, type)) {
       return false;
     }
     // Check for a supported color format.
     if (MediaCodecUtils.selectColorFormat(
-            MediaCodecUtils.DECODER_COLOR_FORMATS, info.getCapabilitiesForType(type.mimeType()))
+            MediaCodecUtils.DECODER_COLOR_FORMATS, info.getColorFormats(type.mimeType()))
         == null) {
       return false;
     }
     return isHardwareSupported(info, type);
   }
 
-  private boolean isHardwareSupported(MediaCodecInfo info, VideoCodecType type) {
-    String name = info.getName();
+  private boolean isHardwareSupported(CodecEntry info, VideoCodecType type) {
+    String name = info.name;
     switch (type) {
       case VP8:
         // QCOM, Intel, Exynos, and Nvidia all supported for VP8.
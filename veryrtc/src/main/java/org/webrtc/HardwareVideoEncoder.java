@@ -45,8 +45,15 @@ class HardwareVideoEncoder implements VideoEncoder {
 
   private static final int MAX_VIDEO_FRAMERATE = 30;
 
-  // See MAX_ENCODER_Q_SIZE in androidmediaencoder_jni.cc.
+  // See MAX_ENCODER_Q_SIZE in androidmediaencoder_jni.cc. Up to MAX_ENCODER_Q_SIZE + 1 frames may
+  // be in the codec; the last slot is reserved for key frames.
   private static final int MAX_ENCODER_Q_SIZE = 2;
+  // Input to output latency above which delta frames are dropped rather than queued.
+  private static final int TARGET_ENCODE_LATENCY_MS = 150;
+
+  // Maximum number of output buffers kept for reuse. Frames are handed to the callback one at a time,
+  // so a small pool is enough; the rest covers simulcast layers sharing an output thread.
+  private static final int MAX_OUTPUT_BUFFER_POOL_SIZE = 4;
 
   private static final int MEDIA_CODEC_RELEASE_TIMEOUT_MS = 5000;
   private static final int DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US = 100000;
@@ -72,6 +79,9 @@ class HardwareVideoEncoder implements VideoEncoder {
   // A queue of EncodedImage.Builders that correspond to frames in the codec.  These builders are
   // pre-populated with all the information that can't be sent through MediaCodec.
   private final BlockingDeque<EncodedImage.Builder> outputBuilders = new LinkedBlockingDeque<>();
+  // Decides which frames enter the codec. Kept in sync with |outputBuilders|.
+  private final EncoderAdmissionController admissionController =
+      new EncoderAdmissionController(MAX_ENCODER_Q_SIZE + 1, TARGET_ENCODE_LATENCY_MS);
 
   private final ThreadChecker encodeThreadChecker = new ThreadChecker();
   private final ThreadChecker outputThreadChecker = new ThreadChecker();
@@ -99,11 +109,18 @@ class HardwareVideoEncoder implements VideoEncoder {
   // --- Only accessed from the encoding thread.
   // Presentation timestamp of the last requested (or forced) key frame.
   private long lastKeyFrameNs;
+  // Set if a key frame was requested for a frame that was dropped before reaching the codec.
+  private boolean keyFrameRequestPending;
 
   // --- Only accessed on the output thread.
   // Contents of the last observed config frame output by the MediaCodec. Used by H.264.
   private ByteBuffer configBuffer = null;
   private int adjustedBitrate;
+  // Reused buffers for encoded frames. The native callback copies the frame before returning from
+  // onEncodedFrame(), so buffers can be returned to the pool right after delivery. It copies the
+  // whole capacity of the buffer, so frames are delivered in slices sized exactly to the frame.
+  private final EncoderOutputBufferPool outputBufferPool =
+      new EncoderOutputBufferPool(MAX_OUTPUT_BUFFER_POOL_SIZE);
 
   // Whether the encoder is running.  Volatile so that the output thread can watch this value and
   // exit when the encoder stops.
@@ -259,6 +276,7 @@ class HardwareVideoEncoder implements VideoEncoder {
       textureInputSurface = null;
     }
     outputBuilders.clear();
+    admissionController.reset();
 
     codec = null;
     outputThread = null;
@@ -287,20 +305,25 @@ class HardwareVideoEncoder implements VideoEncoder {
       }
     }
 
-    if (outputBuilders.size() > MAX_ENCODER_Q_SIZE) {
-      // Too many frames in the encoder.  Drop this frame.
-      Logging.e(TAG, "Dropped frame, encoder queue full");
-      return VideoCodecStatus.NO_OUTPUT; // See webrtc bug 2887.
-    }
-
-    boolean requestedKeyFrame = false;
+    boolean requestedKeyFrame = keyFrameRequestPending;
     for (EncodedImage.FrameType frameType : encodeInfo.frameTypes) {
       if (frameType == EncodedImage.FrameType.VideoFrameKey) {
         requestedKeyFrame = true;
       }
     }
+    final boolean isKeyFrame =
+        requestedKeyFrame || shouldForceKeyFrame(videoFrame.getTimestampNs());
 
-    if (requestedKeyFrame || shouldForceKeyFrame(videoFrame.getTimestampNs())) {
+    if (!admissionController.admitFrame(isKeyFrame)) {
+      // Too many frames in the encoder, or the encoder is too slow.  Drop this frame, but don't
+      // lose a key frame request.
+      Logging.e(TAG, "Dropped frame, encoder queue full");
+      keyFrameRequestPending = requestedKeyFrame;
+      return VideoCodecStatus.NO_OUTPUT; // See webrtc bug 2887.
+    }
+    keyFrameRequestPending = false;
+
+    if (isKeyFrame) {
       requestKeyFrame(videoFrame.getTimestampNs());
     }
 
@@ -326,6 +349,7 @@ class HardwareVideoEncoder implements VideoEncoder {
     if (returnValue != VideoCodecStatus.OK) {
       // Keep the output builders in sync with buffers in the codec.
       outputBuilders.pollLast();
+      admissionController.onFrameQueueFailed();
     }
 
     return returnValue;
@@ -498,11 +522,11 @@ class HardwareVideoEncoder implements VideoEncoder {
               "Prepending config frame of size " + configBuffer.capacity()
                   + " to output buffer with offset " + info.offset + ", size " + info.size);
           // For H.264 key frame prepend SPS and PPS NALs at the start.
-          frameBuffer = ByteBuffer.allocateDirect(info.size + configBuffer.capacity());
+          frameBuffer = outputBufferPool.acquire(info.size + configBuffer.capacity());
           configBuffer.rewind();
           frameBuffer.put(configBuffer);
         } else {
-          frameBuffer = ByteBuffer.allocateDirect(info.size);
+          frameBuffer = outputBufferPool.acquire(info.size);
         }
         frameBuffer.put(codecOutputBuffer);
         frameBuffer.rewind();
@@ -512,9 +536,14 @@ class HardwareVideoEncoder implements VideoEncoder {
             : EncodedImage.FrameType.VideoFrameDelta;
 
         EncodedImage.Builder builder = outputBuilders.poll();
-        builder.setBuffer(frameBuffer).setFrameType(frameType);
+        admissionController.onFrameEncoded();
+        builder.setBuffer(frameBuffer.slice()).setFrameType(frameType);
         // TODO(mellem):  Set codec-specific info.
-        callback.onEncodedFrame(builder.createEncodedImage(), new CodecSpecificInfo());
+        try {
+          callback.onEncodedFrame(builder.createEncodedImage(), new CodecSpecificInfo());
+        } finally {
+          outputBufferPool.release(frameBuffer);
+        }
       }
       codec.releaseOutputBuffer(index, false);
     } catch (IllegalStateException e) {
@@ -538,6 +567,7 @@ class HardwareVideoEncoder implements VideoEncoder {
       shutdownException = e;
     }
     configBuffer = null;
+    outputBufferPool.clear();
     Logging.d(TAG, "Release on output thread done");
   }
 
@@ -10,8 +10,6 @@
 
 package org.webrtc;
 
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.os.Build;
 
 import java.util.ArrayList;
@@ -19,6 +17,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import org.webrtc.MediaCodecCapabilityRegistry.CodecEntry;
 
 import static org.webrtc.MediaCodecUtils.EXYNOS_PREFIX;
 import static org.webrtc.MediaCodecUtils.INTEL_PREFIX;
@@ -43,9 +42,21 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
   private final EglBase14.Context sharedContext;
   private final boolean enableIntelVp8Encoder;
   private final boolean enableH264HighProfile;
+  private final boolean enablePredictiveBitrateAdjuster;
 
   public HardwareVideoEncoderFactory(
       EglBase.Context sharedContext, boolean enableIntelVp8Encoder, boolean enableH264HighProfile) {
+    this(sharedContext, enableIntelVp8Encoder, enableH264HighProfile,
+        false /* enablePredictiveBitrateAdjuster */);
+  }
+
+  /**
+   * |enablePredictiveBitrateAdjuster| replaces the dynamic bitrate adjustment of Exynos VP8
+   * encoders with PredictiveBitrateAdjuster, which recovers from post-scene-change overshoot
+   * faster.
+   */
+  public HardwareVideoEncoderFactory(EglBase.Context sharedContext, boolean enableIntelVp8Encoder,
+      boolean enableH264HighProfile, boolean enablePredictiveBitrateAdjuster) {
     // Texture mode requires EglBase14.
     if (sharedContext instanceof EglBase14.Context) {
       this.sharedContext = (EglBase14.Context) sharedContext;
@@ -55,6 +66,7 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     }
     this.enableIntelVp8Encoder = enableIntelVp8Encoder;
     this.enableH264HighProfile = enableH264HighProfile;
+    this.enablePredictiveBitrateAdjuster = enablePredictiveBitrateAdjuster;
   }
 
   @Deprecated
@@ -65,18 +77,18 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
   @Override
   public VideoEncoder createEncoder(VideoCodecInfo input) {
     VideoCodecType type = VideoCodecType.valueOf(input.name);
-    MediaCodecInfo info = findCodecForType(type);
+    CodecEntry info = findCodecForType(type);
 
     if (info == null) {
       return null; // No support for this type.
     }
 
-    String codecName = info.getName();
+    String codecName = info.name;
     String mime = type.mimeType();
     Integer surfaceColorFormat = MediaCodecUtils.selectColorFormat(
-        MediaCodecUtils.TEXTURE_COLOR_FORMATS, info.getCapabilitiesForType(mime));
+        MediaCodecUtils.TEXTURE_COLOR_FORMATS, info.getColorFormats(mime));
     Integer yuvColorFormat = MediaCodecUtils.selectColorFormat(
-        MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getCapabilitiesForType(mime));
+        MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getColorFormats(mime));
 
     return new HardwareVideoEncoder(codecName, type, surfaceColorFormat, yuvColorFormat,
         input.params, getKeyFrameIntervalSec(type), getForcedKeyFrameIntervalMs(type, codecName),
@@ -90,7 +102,7 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     // VP8, VP9, H264 (high profile), and H264 (baseline profile).
     for (VideoCodecType type :
         new VideoCodecType[] {VideoCodecType.VP8, VideoCodecType.VP9, VideoCodecType.H264}) {
-      MediaCodecInfo codec = findCodecForType(type);
+      CodecEntry codec = findCodecForType(type);
       if (codec != null) {
         String name = type.name();
         if (type == VideoCodecType.H264 && isH264HighProfileSupported(codec)) {
@@ -103,16 +115,9 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     return supportedCodecInfos.toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
   }
 
-  private MediaCodecInfo findCodecForType(VideoCodecType type) {
-    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
-      MediaCodecInfo info = null;
-      try {
-        info = MediaCodecList.getCodecInfoAt(i);
-      } catch (IllegalArgumentException e) {
-        Logging.e(TAG, "Cannot retrieve encoder codec info", e);
-      }
-
-      if (info == null || !info.isEncoder()) {
+  private CodecEntry findCodecForType(VideoCodecType type) {
+    for (CodecEntry info : MediaCodecCapabilityRegistry.getCodecs()) {
+      if (!info.isEncoder) {
         continue;
       }
 
@@ -123,23 +128,23 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     return null; // No support for this type.
   }
 
-  // Returns true if the given MediaCodecInfo indicates a supported encoder for the given type.
-  private boolean isSupportedCodec(MediaCodecInfo info, VideoCodecType type) {
+  // Returns true if the given codec indicates a supported encoder for the given type.
+  private boolean isSupportedCodec(CodecEntry info, VideoCodecType type) {
     if (!MediaCodecUtils.codecSupportsType(info, type)) {
       return false;
     }
     // Check for a supported color format.
     if (MediaCodecUtils.selectColorFormat(
-            MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getCapabilitiesForType(type.mimeType()))
+            MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getColorFormats(type.mimeType()))
         == null) {
       return false;
     }
     return isHardwareSupportedInCurrentSdk(info, type);
   }
 
-  // Returns true if the given MediaCodecInfo indicates a hardware module that is supported on the
+  // Returns true if the given codec indicates a hardware module that is supported on the
   // current SDK.
-  private boolean isHardwareSupportedInCurrentSdk(MediaCodecInfo info, VideoCodecType type) {
+  private boolean isHardwareSupportedInCurrentSdk(CodecEntry info, VideoCodecType type) {
     switch (type) {
       case VP8:
         return isHardwareSupportedInCurrentSdkVp8(info);
@@ -151,8 +156,8 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     return false;
   }
 
-  private boolean isHardwareSupportedInCurrentSdkVp8(MediaCodecInfo info) {
-    String name = info.getName();
+  private boolean isHardwareSupportedInCurrentSdkVp8(CodecEntry info) {
+    String name = info.name;
     // QCOM Vp8 encoder is supported in KITKAT or later.
     return (name.startsWith(QCOM_PREFIX) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
         // Exynos VP8 encoder is supported in M or later.
@@ -162,19 +167,19 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
                && enableIntelVp8Encoder);
   }
 
-  private boolean isHardwareSupportedInCurrentSdkVp9(MediaCodecInfo info) {
-    String name = info.getName();
+  private boolean isHardwareSupportedInCurrentSdkVp9(CodecEntry info) {
+    String name = info.name;
     return (name.startsWith(QCOM_PREFIX) || name.startsWith(EXYNOS_PREFIX))
         // Both QCOM and Exynos VP9 encoders are supported in N or later.
         && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
   }
 
-  private boolean isHardwareSupportedInCurrentSdkH264(MediaCodecInfo info) {
+  private boolean isHardwareSupportedInCurrentSdkH264(CodecEntry info) {
     // First, H264 hardware might perform poorly on this model.
     if (H264_HW_EXCEPTION_MODELS.contains(Build.MODEL)) {
       return false;
     }
-    String name = info.getName();
+    String name = info.name;
     // QCOM H264 encoder is supported in KITKAT or later.
     return (name.startsWith(QCOM_PREFIX) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
         // Exynos H264 encoder is supported in LOLLIPOP or later.
@@ -212,7 +217,8 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     if (codecName.startsWith(EXYNOS_PREFIX)) {
       if (type == VideoCodecType.VP8) {
         // Exynos VP8 encoders need dynamic bitrate adjustment.
-        return new DynamicBitrateAdjuster();
+        return enablePredictiveBitrateAdjuster ? new PredictiveBitrateAdjuster()
+                                               : new DynamicBitrateAdjuster();
       } else {
         // Exynos VP9 and H264 encoders need framerate-based bitrate adjustment.
         return new FramerateBitrateAdjuster();
@@ -222,8 +228,8 @@ public class HardwareVideoEncoderFactory implements VideoEncoderFactory {
     return new BaseBitrateAdjuster();
   }
 
-  private boolean isH264HighProfileSupported(MediaCodecInfo info) {
-    return enableH264HighProfile && info.getName().startsWith(QCOM_PREFIX);
+  private boolean isH264HighProfileSupported(CodecEntry info) {
+    return enableH264HighProfile && info.name.startsWith(QCOM_PREFIX);
   }
 
   private Map<String, String> getCodecProperties(VideoCodecType type, boolean highProfile) {
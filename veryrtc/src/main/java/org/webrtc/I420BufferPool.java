@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Pool of I420 buffers. The memory of a buffer obtained from the pool returns to the pool when the
+ * buffer is released for the last time, so that frames of a steady resolution are processed
+ * without allocating. Thread safe.
+ */
+public class I420BufferPool {
+  private final int maxFreeBuffers;
+  // Synchronized on |this|.
+  private final List<Storage> freeStorage = new ArrayList<>();
+  private int buffersAllocated;
+
+  private static class Storage {
+    final int width;
+    final int height;
+    final ByteBuffer data;
+
+    Storage(int width, int height) {
+      this.width = width;
+      this.height = height;
+      final int chromaSize = ((width + 1) / 2) * ((height + 1) / 2);
+      this.data = ByteBuffer.allocateDirect(width * height + 2 * chromaSize);
+    }
+  }
+
+  /** Creates a pool that keeps at most |maxFreeBuffers| unused buffers. */
+  public I420BufferPool(int maxFreeBuffers) {
+    this.maxFreeBuffers = maxFreeBuffers;
+  }
+
+  /** Returns a buffer of the given size with undefined contents. */
+  public VideoFrame.I420Buffer obtain(int width, int height) {
+    Storage storage = null;
+    synchronized (this) {
+      final Iterator<Storage> it = freeStorage.iterator();
+      while (it.hasNext()) {
+        final Storage candidate = it.next();
+        if (candidate.width == width && candidate.height == height) {
+          it.remove();
+          storage = candidate;
+          break;
+        }
+      }
+      if (storage == null) {
+        ++buffersAllocated;
+      }
+    }
+    if (storage == null) {
+      storage = new Storage(width, height);
+    }
+    return wrap(storage);
+  }
+
+  /**
+   * Crops and scales |buffer| like VideoFrame.Buffer.cropAndScale(). Texture buffers are cropped
+   * and scaled lazily, through their transformation matrix, without reading back their pixels.
+   * I420 and NV21 buffers are scaled into a buffer from the pool.
+   */
+  public VideoFrame.Buffer cropAndScale(VideoFrame.Buffer buffer, int cropX, int cropY,
+      int cropWidth, int cropHeight, int scaleWidth, int scaleHeight) {
+    if (buffer instanceof VideoFrame.TextureBuffer) {
+      return buffer.cropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight);
+    }
+    if (buffer instanceof VideoFrame.I420Buffer) {
+      final VideoFrame.I420Buffer dst = obtain(scaleWidth, scaleHeight);
+      VideoFrame.cropAndScaleI420(
+          (VideoFrame.I420Buffer) buffer, cropX, cropY, cropWidth, cropHeight, dst);
+      return dst;
+    }
+    if (buffer instanceof NV21Buffer) {
+      final VideoFrame.I420Buffer dst = obtain(scaleWidth, scaleHeight);
+      ((NV21Buffer) buffer).cropAndScale(cropX, cropY, cropWidth, cropHeight, dst);
+      return dst;
+    }
+    return buffer.cropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight);
+  }
+
+  /**
+   * Returns an I420 copy of |buffer| that the caller may modify. Texture buffers are read back,
+   * other buffers are copied into a buffer from the pool.
+   */
+  public VideoFrame.I420Buffer copyToI420(VideoFrame.Buffer buffer) {
+    if (buffer instanceof VideoFrame.TextureBuffer) {
+      // Reading back a texture creates a new buffer.
+      return buffer.toI420();
+    }
+    final int width = buffer.getWidth();
+    final int height = buffer.getHeight();
+    final VideoFrame.Buffer copy = cropAndScale(buffer, 0, 0, width, height, width, height);
+    if (copy instanceof VideoFrame.I420Buffer) {
+      return (VideoFrame.I420Buffer) copy;
+    }
+    final VideoFrame.I420Buffer i420Copy = copy.toI420();
+    copy.release();
+    return i420Copy;
+  }
+
+  /** Returns the number of buffers allocated since the last call. */
+  public synchronized int getAndResetAllocationCount() {
+    final int count = buffersAllocated;
+    buffersAllocated = 0;
+    return count;
+  }
+
+  /** Drops all unused buffers. */
+  public synchronized void clear() {
+    freeStorage.clear();
+  }
+
+  private VideoFrame.I420Buffer wrap(final Storage storage) {
+    final int width = storage.width;
+    final int height = storage.height;
+    final int strideUV = (width + 1) / 2;
+    final int chromaSize = strideUV * ((height + 1) / 2);
+    final ByteBuffer data = storage.data.duplicate();
+
+    data.position(0);
+    data.limit(width * height);
+    final ByteBuffer dataY = data.slice();
+
+    data.limit(width * height + chromaSize);
+    data.position(width * height);
+    final ByteBuffer dataU = data.slice();
+
+    data.limit(width * height + 2 * chromaSize);
+    data.position(width * height + chromaSize);
+    final ByteBuffer dataV = data.slice();
+
+    return JavaI420Buffer.wrap(width, height, dataY, width, dataU, strideUV, dataV, strideUV,
+        () -> returnStorage(storage));
+  }
+
+  private synchronized void returnStorage(Storage storage) {
+    if (freeStorage.size() < maxFreeBuffers) {
+      freeStorage.add(storage);
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.os.SystemClock;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide registry of the codecs in MediaCodecList and their color formats. Enumerating
+ * MediaCodecList is slow, so the result is kept in memory and persisted to a small file in the
+ * application cache directory. Later processes read that file instead of enumerating again, as
+ * long as it was written on a build with the same device fingerprint. The fingerprint includes the
+ * OS build, so an OS upgrade invalidates the file.
+ *
+ * If ContextUtils has not been initialized, the registry still caches in memory but does not
+ * persist.
+ */
+@SuppressWarnings("deprecation") // API level 16 requires use of deprecated methods.
+class MediaCodecCapabilityRegistry {
+  private static final String TAG = "MediaCodecCapabilityRegistry";
+  private static final String CACHE_FILE_NAME = "webrtc_media_codec_capabilities";
+  // Bump this when the file layout changes.
+  private static final int CACHE_FILE_VERSION = 1;
+  // Stored in place of the color formats if the capabilities of a type could not be queried.
+  private static final int NO_CAPABILITIES = -1;
+
+  /** Snapshot of the parts of a MediaCodecInfo that the codec factories look at. */
+  static class CodecEntry {
+    public final String name;
+    public final boolean isEncoder;
+    // Supported mime types, in MediaCodecInfo order, mapped to the color formats of each type, or
+    // to null if its capabilities could not be retrieved.
+    private final Map<String, int[]> colorFormatsByType;
+
+    CodecEntry(String name, boolean isEncoder, Map<String, int[]> colorFormatsByType) {
+      this.name = name;
+      this.isEncoder = isEncoder;
+      this.colorFormatsByType = colorFormatsByType;
+    }
+
+    public boolean supportsType(String mimeType) {
+      return colorFormatsByType.containsKey(mimeType);
+    }
+
+    /** Returns the color formats for |mimeType|, or null if they are unknown. */
+    public int[] getColorFormats(String mimeType) {
+      return colorFormatsByType.get(mimeType);
+    }
+  }
+
+  private static List<CodecEntry> codecs;
+
+  /** Returns all codecs on the device, in MediaCodecList order. */
+  public static synchronized List<CodecEntry> getCodecs() {
+    if (codecs != null) {
+      return codecs;
+    }
+    final long startTimeMs = SystemClock.elapsedRealtime();
+    final String fingerprint = getDeviceFingerprint();
+    final File cacheFile = getCacheFile();
+
+    List<CodecEntry> loadedCodecs = null;
+    if (cacheFile != null && cacheFile.exists()) {
+      loadedCodecs = readCacheFile(cacheFile, fingerprint);
+    }
+    if (loadedCodecs != null) {
+      Logging.d(TAG, "Loaded " + loadedCodecs.size() + " codecs from cache in "
+              + (SystemClock.elapsedRealtime() - startTimeMs) + " ms.");
+    } else {
+      final List<CodecEntry> enumeratedCodecs = new ArrayList<>();
+      final boolean complete = enumerateCodecs(enumeratedCodecs);
+      Logging.d(TAG, "Enumerated " + enumeratedCodecs.size() + " codecs in "
+              + (SystemClock.elapsedRealtime() - startTimeMs) + " ms.");
+      // Don't persist a partial result, the next process should try again.
+      if (complete && cacheFile != null) {
+        writeCacheFile(cacheFile, fingerprint, enumeratedCodecs);
+      }
+      loadedCodecs = enumeratedCodecs;
+    }
+    codecs = Collections.unmodifiableList(loadedCodecs);
+    return codecs;
+  }
+
+  // Returns false if some codec could not be queried.
+  private static boolean enumerateCodecs(List<CodecEntry> result) {
+    boolean complete = true;
+    final int codecCount = MediaCodecList.getCodecCount();
+    for (int i = 0; i < codecCount; ++i) {
+      MediaCodecInfo info = null;
+      try {
+        info = MediaCodecList.getCodecInfoAt(i);
+      } catch (IllegalArgumentException e) {
+        Logging.e(TAG, "Cannot retrieve codec info", e);
+      }
+      if (info == null) {
+        complete = false;
+        continue;
+      }
+
+      final Map<String, int[]> colorFormatsByType = new LinkedHashMap<>();
+      for (String mimeType : info.getSupportedTypes()) {
+        int[] colorFormats = null;
+        try {
+          final CodecCapabilities capabilities = info.getCapabilitiesForType(mimeType);
+          colorFormats = capabilities.colorFormats;
+        } catch (IllegalArgumentException e) {
+          Logging.e(TAG, "Cannot retrieve capabilities of " + info.getName() + " for " + mimeType,
+              e);
+          complete = false;
+        }
+        colorFormatsByType.put(mimeType, colorFormats);
+      }
+      result.add(new CodecEntry(info.getName(), info.isEncoder(), colorFormatsByType));
+    }
+    return complete;
+  }
+
+  private static String getDeviceFingerprint() {
+    return Build.FINGERPRINT + "|" + Build.VERSION.SDK_INT + "|" + Build.VERSION.INCREMENTAL;
+  }
+
+  private static File getCacheFile() {
+    final Context context = ContextUtils.getApplicationContext();
+    if (context == null) {
+      return null;
+    }
+    final File cacheDir = context.getCacheDir();
+    return (cacheDir == null) ? null : new File(cacheDir, CACHE_FILE_NAME);
+  }
+
+  // Returns null if the file is unreadable or was written for another fingerprint.
+  private static List<CodecEntry> readCacheFile(File file, String fingerprint) {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != CACHE_FILE_VERSION || !fingerprint.equals(in.readUTF())) {
+        Logging.d(TAG, "Codec cache is stale.");
+        return null;
+      }
+      final int codecCount = in.readInt();
+      final List<CodecEntry> result = new ArrayList<>(codecCount);
+      for (int i = 0; i < codecCount; ++i) {
+        final String name = in.readUTF();
+        final boolean isEncoder = in.readBoolean();
+        final int typeCount = in.readInt();
+        final Map<String, int[]> colorFormatsByType = new LinkedHashMap<>();
+        for (int j = 0; j < typeCount; ++j) {
+          final String mimeType = in.readUTF();
+          final int colorFormatCount = in.readInt();
+          int[] colorFormats = null;
+          if (colorFormatCount != NO_CAPABILITIES) {
+            colorFormats = new int[colorFormatCount];
+            for (int k = 0; k < colorFormatCount; ++k) {
+              colorFormats[k] = in.readInt();
+            }
+          }
+          colorFormatsByType.put(mimeType, colorFormats);
+        }
+        result.add(new CodecEntry(name, isEncoder, colorFormatsByType));
+      }
+      return result;
+    } catch (IOException | RuntimeException e) {
+      Logging.e(TAG, "Failed to read codec cache", e);
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  private static void writeCacheFile(File file, String fingerprint, List<CodecEntry> entries) {
+    // Write to a temporary file first, so that a concurrent or interrupted write never leaves a
+    // truncated cache behind.
+    final File tempFile = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      out.writeInt(CACHE_FILE_VERSION);
+      out.writeUTF(fingerprint);
+      out.writeInt(entries.size());
+      for (CodecEntry entry : entries) {
+        out.writeUTF(entry.name);
+        out.writeBoolean(entry.isEncoder);
+        out.writeInt(entry.colorFormatsByType.size());
+        for (Map.Entry<String, int[]> type : entry.colorFormatsByType.entrySet()) {
+          out.writeUTF(type.getKey());
+          final int[] colorFormats = type.getValue();
+          if (colorFormats == null) {
+            out.writeInt(NO_CAPABILITIES);
+            continue;
+          }
+          out.writeInt(colorFormats.length);
+          for (int colorFormat : colorFormats) {
+            out.writeInt(colorFormat);
+          }
+        }
+      }
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(file)) {
+        Logging.w(TAG, "Failed to store codec cache.");
+        tempFile.delete();
+      }
+    } catch (IOException e) {
+      Logging.e(TAG, "Failed to write codec cache", e);
+      closeQuietly(out);
+      tempFile.delete();
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Ignore.
+    }
+  }
+
+  private MediaCodecCapabilityRegistry() {
+    // This class should not be instantiated.
+  }
+}
@@ -11,7 +11,6 @@
 package org.webrtc;
 
 import android.annotation.TargetApi;
-import android.media.MediaCodecInfo;
 import android.media.MediaCodecInfo.CodecCapabilities;
 
 /** Container class for static constants and helpers used with MediaCodec. */
@@ -53,9 +52,13 @@ class MediaCodecUtils {
   // Color formats supported by texture mode encoding - in order of preference.
   static final int[] TEXTURE_COLOR_FORMATS = {CodecCapabilities.COLOR_FormatSurface};
 
-  static Integer selectColorFormat(int[] supportedColorFormats, CodecCapabilities capabilities) {
+  // Returns the first of |supportedColorFormats| found in |codecColorFormats|, which may be null.
+  static Integer selectColorFormat(int[] supportedColorFormats, int[] codecColorFormats) {
+    if (codecColorFormats == null) {
+      return null;
+    }
     for (int supportedColorFormat : supportedColorFormats) {
-      for (int codecColorFormat : capabilities.colorFormats) {
+      for (int codecColorFormat : codecColorFormats) {
         if (codecColorFormat == supportedColorFormat) {
           return codecColorFormat;
         }
@@ -64,13 +67,9 @@ class MediaCodecUtils {
     return null;
   }
 
-  static boolean codecSupportsType(MediaCodecInfo info, VideoCodecType type) {
-    for (String mimeType : info.getSupportedTypes()) {
-      if (type.mimeType().equals(mimeType)) {
-        return true;
-      }
-    }
-    return false;
+  static boolean codecSupportsType(
+      MediaCodecCapabilityRegistry.CodecEntry codec, VideoCodecType type) {
+    return codec.supportsType(type.mimeType());
   }
 
   private MediaCodecUtils() {
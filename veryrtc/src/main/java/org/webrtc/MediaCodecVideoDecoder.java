@@ -11,9 +11,7 @@
 package org.webrtc;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaCodecInfo.CodecCapabilities;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.SystemClock;
@@ -206,26 +204,14 @@ public class MediaCodecVideoDecoder {
       return null; // MediaCodec.setParameters is missing.
     }
     Logging.d(TAG, "Trying to find HW decoder for mime " + mime);
-    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
-      MediaCodecInfo info = null;
-      try {
-        info = MediaCodecList.getCodecInfoAt(i);
-      } catch (IllegalArgumentException e) {
-        Logging.e(TAG, "Cannot retrieve decoder codec info", e);
-      }
-      if (info == null || info.isEncoder()) {
+    for (MediaCodecCapabilityRegistry.CodecEntry info : MediaCodecCapabilityRegistry.getCodecs()) {
+      if (info.isEncoder) {
         continue;
       }
-      String name = null;
-      for (String mimeType : info.getSupportedTypes()) {
-        if (mimeType.equals(mime)) {
-          name = info.getName();
-          break;
-        }
-      }
-      if (name == null) {
+      if (!info.supportsType(mime)) {
         continue; // No HW support in this codec; try the next one.
       }
+      String name = info.name;
       Logging.d(TAG, "Found candidate decoder " + name);
 
       // Check if this is supported decoder.
@@ -241,18 +227,16 @@ public class MediaCodecVideoDecoder {
       }
 
       // Check if codec supports either yuv420 or nv12.
-      CodecCapabilities capabilities;
-      try {
-        capabilities = info.getCapabilitiesForType(mime);
-      } catch (IllegalArgumentException e) {
-        Logging.e(TAG, "Cannot retrieve decoder capabilities", e);
+      final int[] codecColorFormats = info.getColorFormats(mime);
+      if (codecColorFormats == null) {
+        Logging.e(TAG, "Cannot retrieve decoder capabilities");
         continue;
       }
-      for (int colorFormat : capabilities.colorFormats) {
+      for (int colorFormat : codecColorFormats) {
         Logging.v(TAG, "   Color: 0x" + Integer.toHexString(colorFormat));
       }
       for (int supportedColorFormat : supportedColorList) {
-        for (int codecColorFormat : capabilities.colorFormats) {
+        for (int codecColorFormat : codecColorFormats) {
           if (codecColorFormat == supportedColorFormat) {
             // Found supported HW decoder.
             Logging.d(TAG, "Found target decoder " + name + ". Color: 0x"
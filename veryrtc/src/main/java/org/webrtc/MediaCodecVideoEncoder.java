@@ -13,9 +13,7 @@ package org.webrtc;
 import android.annotation.TargetApi;
 import android.graphics.Matrix;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaCodecInfo.CodecCapabilities;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.opengl.GLES20;
 import android.os.Build;
@@ -316,26 +314,14 @@ public class MediaCodecVideoEncoder {
       }
     }
 
-    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
-      MediaCodecInfo info = null;
-      try {
-        info = MediaCodecList.getCodecInfoAt(i);
-      } catch (IllegalArgumentException e) {
-        Logging.e(TAG, "Cannot retrieve encoder codec info", e);
-      }
-      if (info == null || !info.isEncoder()) {
+    for (MediaCodecCapabilityRegistry.CodecEntry info : MediaCodecCapabilityRegistry.getCodecs()) {
+      if (!info.isEncoder) {
         continue;
       }
-      String name = null;
-      for (String mimeType : info.getSupportedTypes()) {
-        if (mimeType.equals(mime)) {
-          name = info.getName();
-          break;
-        }
-      }
-      if (name == null) {
+      if (!info.supportsType(mime)) {
         continue; // No HW support in this codec; try the next one.
       }
+      String name = info.name;
       Logging.v(TAG, "Found candidate encoder " + name);
 
       // Check if this is supported HW encoder.
@@ -362,19 +348,17 @@ public class MediaCodecVideoEncoder {
       }
 
       // Check if HW codec supports known color format.
-      CodecCapabilities capabilities;
-      try {
-        capabilities = info.getCapabilitiesForType(mime);
-      } catch (IllegalArgumentException e) {
-        Logging.e(TAG, "Cannot retrieve encoder capabilities", e);
+      final int[] codecColorFormats = info.getColorFormats(mime);
+      if (codecColorFormats == null) {
+        Logging.e(TAG, "Cannot retrieve encoder capabilities");
         continue;
       }
-      for (int colorFormat : capabilities.colorFormats) {
+      for (int colorFormat : codecColorFormats) {
         Logging.v(TAG, "   Color: 0x" + Integer.toHexString(colorFormat));
       }
 
       for (int supportedColorFormat : colorList) {
-        for (int codecColorFormat : capabilities.colorFormats) {
+        for (int codecColorFormat : codecColorFormats) {
           if (codecColorFormat == supportedColorFormat) {
             // Found supported HW encoder.
             Logging.d(TAG, "Found target encoder for mime " + mime + " : " + name + ". Color: 0x"
@@ -45,6 +45,22 @@ public class NV12Buffer implements VideoFrame.Buffer {
     return height;
   }
 
+  /**
+   * Returns the NV12 data: the Y-plane, followed by the interleaved U/V-plane at offset
+   * |stride| * |sliceHeight|.
+   */
+  ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  int getStride() {
+    return stride;
+  }
+
+  int getSliceHeight() {
+    return sliceHeight;
+  }
+
   @Override
   public VideoFrame.I420Buffer toI420() {
     return (VideoFrame.I420Buffer) cropAndScale(0, 0, width, height, width, height);
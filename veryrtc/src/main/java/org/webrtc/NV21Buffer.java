@@ -38,6 +38,11 @@ public class NV21Buffer implements VideoFrame.Buffer {
     return height;
   }
 
+  /** Returns the NV21 data: the Y-plane followed by the interleaved V/U-plane, both packed. */
+  byte[] getData() {
+    return data;
+  }
+
   @Override
   public VideoFrame.I420Buffer toI420() {
     // Cropping converts the frame to I420. Just crop and scale to the whole image.
@@ -71,6 +76,14 @@ public class NV21Buffer implements VideoFrame.Buffer {
     return newBuffer;
   }
 
+  /** Crops the buffer and scales it into |dst|, which determines the scaled size. */
+  void cropAndScale(
+      int cropX, int cropY, int cropWidth, int cropHeight, VideoFrame.I420Buffer dst) {
+    nativeCropAndScale(cropX, cropY, cropWidth, cropHeight, dst.getWidth(), dst.getHeight(), data,
+        width, height, dst.getDataY(), dst.getStrideY(), dst.getDataU(), dst.getStrideU(),
+        dst.getDataV(), dst.getStrideV());
+  }
+
   private static native void nativeCropAndScale(int cropX, int cropY, int cropWidth, int cropHeight,
       int scaleWidth, int scaleHeight, byte[] src, int srcWidth, int srcHeight, ByteBuffer dstY,
       int dstStrideY, ByteBuffer dstU, int dstStrideU, ByteBuffer dstV, int dstStrideV);
@@ -222,6 +222,15 @@ public class PeerConnectionFactory {
   }
 
   public VideoSource createVideoSource(VideoCapturer capturer) {
+    return createVideoSource(capturer, null /* processorChain */);
+  }
+
+  /**
+   * Creates a video source whose captured frames run through |processorChain| first. A chain can
+   * only be used for one source.
+   */
+  public VideoSource createVideoSource(
+      VideoCapturer capturer, VideoProcessorChain processorChain) {
     final EglBase.Context eglContext =
         localEglbase == null ? null : localEglbase.getEglBaseContext();
     final SurfaceTextureHelper surfaceTextureHelper =
@@ -230,6 +239,10 @@ public class PeerConnectionFactory {
         nativeCreateVideoSource(nativeFactory, surfaceTextureHelper, capturer.isScreencast());
     VideoCapturer.CapturerObserver capturerObserver =
         new AndroidVideoTrackSourceObserver(nativeAndroidVideoTrackSource);
+    if (processorChain != null) {
+      processorChain.attach(capturerObserver, surfaceTextureHelper);
+      capturerObserver = processorChain;
+    }
     capturer.initialize(
         surfaceTextureHelper, ContextUtils.getApplicationContext(), capturerObserver);
     return new VideoSource(nativeAndroidVideoTrackSource);
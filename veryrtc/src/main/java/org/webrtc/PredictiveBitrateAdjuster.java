@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+/**
+ * BitrateAdjuster that predicts the encoder's bitrate error and compensates for it within one
+ * second. It tracks a smoothed ratio between the produced and the configured frame sizes, divides
+ * the target by that ratio, and corrects for bytes sent in excess of the target so that an
+ * overshoot is paid back instead of only stopped. Unlike DynamicBitrateAdjuster, which waits for a
+ * fixed three-second cycle, the bitrate is re-evaluated every half second.
+ */
+class PredictiveBitrateAdjuster extends BaseBitrateAdjuster {
+  // Re-evaluate the bitrate at most this often.
+  private static final double BITRATE_ADJUSTMENT_SEC = 0.5;
+  // Time constant of the smoothed encoder gain.
+  private static final double GAIN_TIME_CONSTANT_SEC = 0.3;
+  // Per-frame gain samples are clamped to this range, so that single key frames don't dominate.
+  private static final double MIN_FRAME_GAIN = 0.25;
+  private static final double MAX_FRAME_GAIN = 3.0;
+  // Fraction of the accumulated deviation paid back per second.
+  private static final double DEVIATION_CORRECTION_PER_SEC = 0.5;
+  // Deviation older than this many seconds is forgotten.
+  private static final double DEVIATION_WINDOW_SEC = 2.0;
+  // The adjusted bitrate stays within [target / MAX_SCALE, target * MAX_SCALE].
+  private static final double BITRATE_ADJUSTMENT_MAX_SCALE = 4;
+  // Changes smaller than this fraction are not applied, to avoid reconfiguring the codec.
+  private static final double MIN_BITRATE_CHANGE = 0.05;
+
+  private static final double BITS_PER_BYTE = 8.0;
+
+  // Smoothed ratio between produced and configured frame size.
+  private double encoderGain = 1.0;
+  // How far the produced bytes have deviated above (or below) the target.
+  private double deviationBytes = 0;
+  private double timeSinceLastAdjustmentSec = 0;
+  private int adjustedBitrateBps = 0;
+
+  @Override
+  public void setTargets(int targetBitrateBps, int targetFps) {
+    if (this.targetBitrateBps > 0 && targetBitrateBps < this.targetBitrateBps) {
+      // Rescale the accumulator level if the target decreases.
+      deviationBytes = deviationBytes * targetBitrateBps / this.targetBitrateBps;
+    }
+    super.setTargets(targetBitrateBps, targetFps);
+    adjustedBitrateBps = computeAdjustedBitrate();
+  }
+
+  @Override
+  public void reportEncodedFrame(int size) {
+    if (targetFps == 0 || adjustedBitrateBps == 0) {
+      return;
+    }
+    final double frameDurationSec = 1.0 / targetFps;
+
+    // Update the encoder gain from the size the encoder was asked for.
+    final double configuredBytesPerFrame = adjustedBitrateBps / BITS_PER_BYTE / targetFps;
+    final double frameGain =
+        Math.max(MIN_FRAME_GAIN, Math.min(MAX_FRAME_GAIN, size / configuredBytesPerFrame));
+    final double alpha = 1 - Math.exp(-frameDurationSec / GAIN_TIME_CONSTANT_SEC);
+    encoderGain += alpha * (frameGain - encoderGain);
+
+    // Accumulate the difference between actual and target frame sizes, with a bounded memory.
+    final double targetBytesPerFrame = targetBitrateBps / BITS_PER_BYTE / targetFps;
+    deviationBytes += size - targetBytesPerFrame;
+    deviationBytes *= 1 - frameDurationSec / DEVIATION_WINDOW_SEC;
+
+    timeSinceLastAdjustmentSec += frameDurationSec;
+    if (timeSinceLastAdjustmentSec < BITRATE_ADJUSTMENT_SEC) {
+      return;
+    }
+    timeSinceLastAdjustmentSec = 0;
+
+    final int newBitrateBps = computeAdjustedBitrate();
+    if (Math.abs(newBitrateBps - adjustedBitrateBps) > MIN_BITRATE_CHANGE * adjustedBitrateBps) {
+      adjustedBitrateBps = newBitrateBps;
+    }
+  }
+
+  private int computeAdjustedBitrate() {
+    final double targetBytesPerSec = targetBitrateBps / BITS_PER_BYTE;
+    // Pay back a fraction of the deviation over the next second.
+    double correction = 1.0;
+    if (targetBytesPerSec > 0) {
+      correction = 1.0 - DEVIATION_CORRECTION_PER_SEC * deviationBytes / targetBytesPerSec;
+    }
+    final double scale = Math.max(1 / BITRATE_ADJUSTMENT_MAX_SCALE,
+        Math.min(BITRATE_ADJUSTMENT_MAX_SCALE, correction / encoderGain));
+    return (int) (targetBitrateBps * scale);
+  }
+
+  @Override
+  public int getAdjustedBitrateBps() {
+    return adjustedBitrateBps;
+  }
+}
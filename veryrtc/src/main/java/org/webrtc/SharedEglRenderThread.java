@@ -0,0 +1,364 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Render thread and EGL context shared by several EglRenderers, e.g. the tiles of a video gallery.
+ * Instead of one thread and one EGL context per renderer, every attached renderer draws to its own
+ * EGLSurface with the context of this thread. Large galleries can be spread over a few instances.
+ *
+ * Tiles with a pending frame are served round-robin, one frame at a time, so that a busy tile
+ * cannot starve the others. Each tile has a deadline, counted from when its oldest unrendered frame
+ * arrived. Tiles whose deadline has passed are served before the others, and the number of missed
+ * deadlines is reported in the per-tile statistics together with render time and queue delay.
+ *
+ * The thread is created by create() and must be released after all renderers using it.
+ */
+public class SharedEglRenderThread {
+  private static final String TAG = "SharedEglRenderThread";
+  private static final long LOG_INTERVAL_SEC = 4;
+  // Deadline for tiles that did not set one, i.e. one frame interval at 30 fps.
+  private static final long DEFAULT_TILE_DEADLINE_MS = 33;
+
+  /** Render statistics for one tile over the last statistics interval. */
+  public static class TileStatistics {
+    public final String name;
+    public final int framesRendered;
+    public final long averageRenderTimeUs;
+    public final long maxRenderTimeUs;
+    // Average time from when a frame arrived until its tile was rendered.
+    public final long averageQueueDelayUs;
+    public final int deadlinesMissed;
+
+    TileStatistics(String name, int framesRendered, long averageRenderTimeUs,
+        long maxRenderTimeUs, long averageQueueDelayUs, int deadlinesMissed) {
+      this.name = name;
+      this.framesRendered = framesRendered;
+      this.averageRenderTimeUs = averageRenderTimeUs;
+      this.maxRenderTimeUs = maxRenderTimeUs;
+      this.averageQueueDelayUs = averageQueueDelayUs;
+      this.deadlinesMissed = deadlinesMissed;
+    }
+
+    @Override
+    public String toString() {
+      return name + ": Rendered: " + framesRendered + "."
+          + " Average render time: " + averageRenderTimeUs + " μs."
+          + " Max render time: " + maxRenderTimeUs + " μs."
+          + " Average queue delay: " + averageQueueDelayUs + " μs."
+          + " Missed deadlines: " + deadlinesMissed + ".";
+    }
+  }
+
+  private static class Tile {
+    public final EglRenderer renderer;
+    // Time the oldest unrendered frame arrived, or 0 if no frame is pending.
+    public long frameArrivalTimeNs;
+
+    // Statistics since |statisticsStartTimeNs|.
+    public int framesRendered;
+    public long renderTimeNs;
+    public long maxRenderTimeNs;
+    public long queueDelayNs;
+    public int deadlinesMissed;
+
+    public Tile(EglRenderer renderer) {
+      this.renderer = renderer;
+    }
+
+    public TileStatistics getStatistics() {
+      return new TileStatistics(renderer.getName(), framesRendered,
+          averageTimeUs(renderTimeNs, framesRendered),
+          TimeUnit.NANOSECONDS.toMicros(maxRenderTimeNs),
+          averageTimeUs(queueDelayNs, framesRendered), deadlinesMissed);
+    }
+
+    public void resetStatistics() {
+      framesRendered = 0;
+      renderTimeNs = 0;
+      maxRenderTimeNs = 0;
+      queueDelayNs = 0;
+      deadlinesMissed = 0;
+    }
+  }
+
+  private final String name;
+  private final Handler handler;
+  // Owner of the shared context, with a pixel buffer surface. Only accessed on the render thread.
+  private EglBase eglBase;
+
+  // These variables are synchronized on |tileLock|.
+  private final Object tileLock = new Object();
+  private final List<Tile> tiles = new ArrayList<>();
+  // Index in |tiles| where the next round-robin scan starts.
+  private int nextTileIndex;
+  // True if |dispatchRunnable| is posted or running.
+  private boolean dispatchPending;
+  private List<TileStatistics> lastStatistics = Collections.emptyList();
+  private long statisticsStartTimeNs;
+  private boolean released;
+
+  private final Runnable dispatchRunnable = this ::dispatchOnRenderThread;
+
+  private final Runnable logStatisticsRunnable = new Runnable() {
+    @Override
+    public void run() {
+      logStatistics();
+      synchronized (tileLock) {
+        if (!released) {
+          handler.postDelayed(logStatisticsRunnable, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+        }
+      }
+    }
+  };
+
+  /**
+   * Creates a render thread whose EGL context shares resources with |sharedContext|, so that
+   * texture frames can be rendered.
+   */
+  public static SharedEglRenderThread create(String name, final EglBase.Context sharedContext) {
+    final HandlerThread thread = new HandlerThread(name + "SharedEglRenderThread");
+    thread.start();
+    return new SharedEglRenderThread(name, new Handler(thread.getLooper()), sharedContext);
+  }
+
+  private SharedEglRenderThread(
+      String name, Handler handler, final EglBase.Context sharedContext) {
+    this.name = name;
+    this.handler = handler;
+    ThreadUtils.invokeAtFrontUninterruptibly(handler, () -> {
+      eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PLAIN_WITH_PIXEL_BUFFER);
+      eglBase.createDummyPbufferSurface();
+      eglBase.makeCurrent();
+      // Necessary for YUV frames with odd width.
+      GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+      if (!(eglBase instanceof EglBase14)) {
+        Logging.w(TAG, name + "EGL 1.4 is not available, tiles will use separate contexts.");
+      }
+    });
+    statisticsStartTimeNs = System.nanoTime();
+    handler.postDelayed(logStatisticsRunnable, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+  }
+
+  /**
+   * Stops the render thread and releases the shared context. All renderers using this thread must
+   * have been released.
+   */
+  public void release() {
+    synchronized (tileLock) {
+      if (released) {
+        return;
+      }
+      if (!tiles.isEmpty()) {
+        throw new IllegalStateException(name + "Released with " + tiles.size() + " renderers");
+      }
+      released = true;
+    }
+    handler.removeCallbacks(logStatisticsRunnable);
+    ThreadUtils.invokeAtFrontUninterruptibly(handler, () -> {
+      eglBase.release();
+      eglBase = null;
+    });
+    final Looper looper = handler.getLooper();
+    handler.post(() -> {
+      Logging.d(TAG, name + "Quitting render thread.");
+      looper.quit();
+    });
+  }
+
+  /** Returns the statistics of each tile over the last completed statistics interval. */
+  public List<TileStatistics> getTileStatistics() {
+    synchronized (tileLock) {
+      return lastStatistics;
+    }
+  }
+
+  Handler getHandler() {
+    return handler;
+  }
+
+  // Called on the render thread. Returns an EglBase for a renderer, drawing with the shared context
+  // if possible.
+  EglBase createRendererEglBase() {
+    if (eglBase instanceof EglBase14) {
+      return ((EglBase14) eglBase).createContextSharingInstance();
+    }
+    return EglBase.create(eglBase.getEglBaseContext(), EglBase.CONFIG_PLAIN_WITH_PIXEL_BUFFER);
+  }
+
+  // Called on the render thread. Makes the shared context current without a renderer surface, e.g.
+  // for releasing GL resources of a renderer that has no surface.
+  void makeSharedContextCurrent() {
+    eglBase.makeCurrent();
+  }
+
+  void addRenderer(EglRenderer renderer) {
+    synchronized (tileLock) {
+      if (released) {
+        throw new IllegalStateException(name + "Already released");
+      }
+      tiles.add(new Tile(renderer));
+    }
+  }
+
+  void removeRenderer(EglRenderer renderer) {
+    synchronized (tileLock) {
+      final int index = findTileIndex(renderer);
+      if (index < 0) {
+        return;
+      }
+      tiles.remove(index);
+      if (nextTileIndex > index) {
+        --nextTileIndex;
+      }
+      if (nextTileIndex >= tiles.size()) {
+        nextTileIndex = 0;
+      }
+    }
+  }
+
+  // Called on any thread when |renderer| has a new pending frame.
+  void scheduleFrame(EglRenderer renderer) {
+    synchronized (tileLock) {
+      final int index = findTileIndex(renderer);
+      if (index < 0) {
+        return;
+      }
+      final Tile tile = tiles.get(index);
+      // A frame replacing an unrendered one inherits its arrival time, so that a tile whose frames
+      // keep getting replaced still reaches its deadline.
+      if (tile.frameArrivalTimeNs == 0) {
+        tile.frameArrivalTimeNs = System.nanoTime();
+      }
+      if (!dispatchPending) {
+        dispatchPending = true;
+        handler.post(dispatchRunnable);
+      }
+    }
+  }
+
+  private int findTileIndex(EglRenderer renderer) {
+    for (int i = 0; i < tiles.size(); ++i) {
+      if (tiles.get(i).renderer == renderer) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Returns the next tile to render, or null if no tile has a pending frame. Tiles that missed
+  // their deadline come first, otherwise tiles are served in round-robin order.
+  private Tile selectNextTile(long currentTimeNs) {
+    Tile firstPendingTile = null;
+    int firstPendingIndex = -1;
+    for (int i = 0; i < tiles.size(); ++i) {
+      final int index = (nextTileIndex + i) % tiles.size();
+      final Tile tile = tiles.get(index);
+      if (tile.frameArrivalTimeNs == 0) {
+        continue;
+      }
+      if (currentTimeNs - tile.frameArrivalTimeNs > getDeadlineNs(tile)) {
+        nextTileIndex = (index + 1) % tiles.size();
+        return tile;
+      }
+      if (firstPendingTile == null) {
+        firstPendingTile = tile;
+        firstPendingIndex = index;
+      }
+    }
+    if (firstPendingTile != null) {
+      nextTileIndex = (firstPendingIndex + 1) % tiles.size();
+    }
+    return firstPendingTile;
+  }
+
+  private static long getDeadlineNs(Tile tile) {
+    final long deadlineMs = tile.renderer.getRenderDeadlineMs();
+    return TimeUnit.MILLISECONDS.toNanos(deadlineMs > 0 ? deadlineMs : DEFAULT_TILE_DEADLINE_MS);
+  }
+
+  private boolean hasPendingTile() {
+    for (Tile tile : tiles) {
+      if (tile.frameArrivalTimeNs != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Renders one frame, then yields so that other messages on the render thread, e.g. surface
+  // changes, are not delayed by a long run of frames.
+  private void dispatchOnRenderThread() {
+    final Tile tile;
+    final long arrivalTimeNs;
+    final long startTimeNs = System.nanoTime();
+    synchronized (tileLock) {
+      tile = selectNextTile(startTimeNs);
+      if (tile == null) {
+        dispatchPending = false;
+        return;
+      }
+      arrivalTimeNs = tile.frameArrivalTimeNs;
+      tile.frameArrivalTimeNs = 0;
+    }
+
+    tile.renderer.renderFrameOnRenderThread();
+
+    final long endTimeNs = System.nanoTime();
+    synchronized (tileLock) {
+      final long renderTimeNs = endTimeNs - startTimeNs;
+      ++tile.framesRendered;
+      tile.renderTimeNs += renderTimeNs;
+      tile.maxRenderTimeNs = Math.max(tile.maxRenderTimeNs, renderTimeNs);
+      tile.queueDelayNs += startTimeNs - arrivalTimeNs;
+      if (endTimeNs - arrivalTimeNs > getDeadlineNs(tile)) {
+        ++tile.deadlinesMissed;
+      }
+      if (hasPendingTile()) {
+        handler.post(dispatchRunnable);
+      } else {
+        dispatchPending = false;
+      }
+    }
+  }
+
+  private void logStatistics() {
+    final long currentTimeNs = System.nanoTime();
+    synchronized (tileLock) {
+      final long elapsedTimeNs = currentTimeNs - statisticsStartTimeNs;
+      final List<TileStatistics> statistics = new ArrayList<>(tiles.size());
+      for (Tile tile : tiles) {
+        statistics.add(tile.getStatistics());
+        tile.resetStatistics();
+      }
+      lastStatistics = Collections.unmodifiableList(statistics);
+      statisticsStartTimeNs = currentTimeNs;
+      Logging.d(TAG, name + "Duration: " + TimeUnit.NANOSECONDS.toMillis(elapsedTimeNs) + " ms."
+          + " Tiles: " + tiles.size() + ".");
+      for (TileStatistics tileStatistics : statistics) {
+        Logging.d(TAG, name + tileStatistics);
+      }
+    }
+  }
+
+  private static long averageTimeUs(long sumTimeNs, int count) {
+    return (count <= 0) ? 0 : TimeUnit.NANOSECONDS.toMicros(sumTimeNs / count);
+  }
+}
@@ -188,6 +188,14 @@ public class SurfaceTextureHelper {
     return handler;
   }
 
+  /**
+   * Retrieve the EGL context of this helper, to create another helper whose textures can be
+   * consumed by the same renderers and encoders.
+   */
+  EglBase.Context getEglContext() {
+    return eglBase.getEglBaseContext();
+  }
+
   /**
    * Call this function to signal that you are done with the frame received in
    * onTextureFrameAvailable(). Only one texture frame can be in flight at once, so you must call
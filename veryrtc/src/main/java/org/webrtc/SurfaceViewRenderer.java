@@ -101,6 +101,33 @@ public class SurfaceViewRenderer
     eglRenderer.init(sharedContext, configAttributes, drawer);
   }
 
+  /**
+   * Initialize this class to render on |renderThread|, sharing the thread and its EGL context with
+   * other renderers. This renderer must be released before |renderThread|. It is allowed to call
+   * init() to reinitialize the renderer after a previous init()/release() cycle.
+   */
+  public void init(
+      SharedEglRenderThread renderThread, RendererCommon.RendererEvents rendererEvents) {
+    init(renderThread, rendererEvents, new GlRectDrawer());
+  }
+
+  /**
+   * Initialize this class to render on |renderThread|. The custom |drawer| will be used for drawing
+   * frames on the EGLSurface. This class is responsible for calling release() on |drawer|.
+   */
+  public void init(SharedEglRenderThread renderThread,
+      RendererCommon.RendererEvents rendererEvents, RendererCommon.GlDrawer drawer) {
+    ThreadUtils.checkIsOnMainThread();
+    this.rendererEvents = rendererEvents;
+    synchronized (layoutLock) {
+      isFirstFrameRendered = false;
+      rotatedFrameWidth = 0;
+      rotatedFrameHeight = 0;
+      frameRotation = 0;
+    }
+    eglRenderer.init(renderThread, drawer);
+  }
+
   /**
    * Block until any pending frame is returned and all GL resources released, even if an interrupt
    * occurs. If an interrupt occurs during release(), the interrupt flag will be set. This function
@@ -142,6 +169,18 @@ public class SurfaceViewRenderer
     eglRenderer.removeFrameListener(listener);
   }
 
+  /**
+   * Take periodic snapshots of this renderer with |service|, see FrameSnapshotService.addRenderer.
+   */
+  public void addSnapshotListener(FrameSnapshotService service, int width, long intervalMs,
+      FrameSnapshotService.SnapshotListener listener) {
+    service.addRenderer(eglRenderer, width, intervalMs, listener);
+  }
+
+  public void removeSnapshotListener(FrameSnapshotService service) {
+    service.removeRenderer(eglRenderer);
+  }
+
   /**
    * Enables fixed size for the surface. This provides better performance but might be buggy on some
    * devices. By default this is turned off.
@@ -202,6 +241,14 @@ public class SurfaceViewRenderer
     eglRenderer.pauseVideo();
   }
 
+  /**
+   * Set the deadline for rendering a frame when this renderer shares a render thread. See
+   * EglRenderer.setRenderDeadlineMs().
+   */
+  public void setRenderDeadlineMs(long deadlineMs) {
+    eglRenderer.setRenderDeadlineMs(deadlineMs);
+  }
+
   // VideoRenderer.Callbacks interface.
   @Override
   public void renderFrame(VideoRenderer.I420Frame frame) {
@@ -116,7 +116,10 @@ public interface VideoEncoder {
   }
 
   public interface Callback {
-    /** Call to return an encoded frame. */
+    /**
+     * Call to return an encoded frame. The frame buffer is only valid for the duration of the call
+     * and may be reused by the encoder afterwards.
+     */
     void onEncodedFrame(EncodedImage frame, CodecSpecificInfo info);
   }
 
@@ -20,14 +20,17 @@ import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
 
 /**
- * Can be used to save the video frames to file.
+ * Can be used to save the video frames to file. Frames can be fed either as a renderer or as a
+ * VideoSink, e.g. a queued sink of a VideoSinkHub.
  */
-public class VideoFileRenderer implements VideoRenderer.Callbacks {
+public class VideoFileRenderer implements VideoRenderer.Callbacks, VideoSink {
   static {
     System.loadLibrary("jingle_peerconnection_so");
   }
 
   private static final String TAG = "VideoFileRenderer";
+  // Number of pixel pack buffers used for pipelined texture readback.
+  private static final int READBACK_PIPELINE_DEPTH = 2;
 
   private final HandlerThread renderThread;
   private final Object handlerLock = new Object();
@@ -70,19 +73,106 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
         eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PIXEL_BUFFER);
         eglBase.createDummyPbufferSurface();
         eglBase.makeCurrent();
-        yuvConverter = new YuvConverter();
+        yuvConverter = new YuvConverter(READBACK_PIPELINE_DEPTH);
       }
     });
   }
 
   @Override
   public void renderFrame(final VideoRenderer.I420Frame frame) {
-    renderThreadHandler.post(new Runnable() {
+    final boolean posted = renderThreadHandler.post(new Runnable() {
       @Override
       public void run() {
         renderFrameOnRenderThread(frame);
       }
     });
+    // The render thread has quit after release().
+    if (!posted) {
+      VideoRenderer.renderFrameDone(frame);
+    }
+  }
+
+  @Override
+  public void onFrame(final VideoFrame frame) {
+    frame.retain();
+    final boolean posted = renderThreadHandler.post(() -> {
+      try {
+        writeVideoFrame(frame);
+      } finally {
+        frame.release();
+      }
+    });
+    // The render thread has quit after release().
+    if (!posted) {
+      frame.release();
+    }
+  }
+
+  // Writes |frame| rotated upright, like renderFrameOnRenderThread() does for texture frames.
+  private void writeVideoFrame(VideoFrame frame) {
+    final VideoFrame.I420Buffer i420Buffer = frame.getBuffer().toI420();
+    final VideoFrame.I420Buffer rotatedBuffer = rotateI420(i420Buffer, frame.getRotation());
+    try {
+      writeI420Frame(rotatedBuffer.getDataY(), rotatedBuffer.getStrideY(),
+          rotatedBuffer.getDataU(), rotatedBuffer.getStrideU(), rotatedBuffer.getDataV(),
+          rotatedBuffer.getStrideV(), rotatedBuffer.getWidth(), rotatedBuffer.getHeight());
+    } finally {
+      if (rotatedBuffer != i420Buffer) {
+        rotatedBuffer.release();
+      }
+      i420Buffer.release();
+    }
+  }
+
+  // Returns |buffer| rotated clockwise by |rotation| degrees, or |buffer| itself for 0 degrees.
+  private static VideoFrame.I420Buffer rotateI420(VideoFrame.I420Buffer buffer, int rotation) {
+    if (rotation % 360 == 0) {
+      return buffer;
+    }
+    final int width = buffer.getWidth();
+    final int height = buffer.getHeight();
+    final boolean swapSides = rotation % 180 != 0;
+    final JavaI420Buffer rotatedBuffer =
+        JavaI420Buffer.allocate(swapSides ? height : width, swapSides ? width : height);
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    rotatePlane(buffer.getDataY(), buffer.getStrideY(), width, height, rotatedBuffer.getDataY(),
+        rotatedBuffer.getStrideY(), rotation);
+    rotatePlane(buffer.getDataU(), buffer.getStrideU(), chromaWidth, chromaHeight,
+        rotatedBuffer.getDataU(), rotatedBuffer.getStrideU(), rotation);
+    rotatePlane(buffer.getDataV(), buffer.getStrideV(), chromaWidth, chromaHeight,
+        rotatedBuffer.getDataV(), rotatedBuffer.getStrideV(), rotation);
+    return rotatedBuffer;
+  }
+
+  private static void rotatePlane(ByteBuffer src, int srcStride, int width, int height,
+      ByteBuffer dst, int dstStride, int rotation) {
+    final int degrees = (rotation % 360 + 360) % 360;
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        final int dstX;
+        final int dstY;
+        switch (degrees) {
+          case 90:
+            dstX = height - 1 - y;
+            dstY = x;
+            break;
+          case 180:
+            dstX = width - 1 - x;
+            dstY = height - 1 - y;
+            break;
+          case 270:
+            dstX = y;
+            dstY = width - 1 - x;
+            break;
+          default:
+            dstX = x;
+            dstY = y;
+            break;
+        }
+        dst.put(dstY * dstStride + dstX, src.get(y * srcStride + x));
+      }
+    }
   }
 
   private void renderFrameOnRenderThread(VideoRenderer.I420Frame frame) {
@@ -95,39 +185,58 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
     final float[] texMatrix = RendererCommon.multiplyMatrices(rotatedSamplingMatrix, layoutMatrix);
 
     try {
-      ByteBuffer buffer = nativeCreateNativeByteBuffer(outputFrameSize);
       if (!frame.yuvFrame) {
-        yuvConverter.convert(outputFrameBuffer, outputFileWidth, outputFileHeight, outputFileWidth,
-            frame.textureId, texMatrix);
+        // The converted frame is delivered asynchronously to writeConvertedFrame(), once its
+        // readback has completed. The texture itself can be returned right away.
+        yuvConverter.convertAsync(outputFileWidth, outputFileHeight, outputFileWidth,
+            frame.textureId, texMatrix, 0 /* timestampNs */, this ::writeConvertedFrame);
+      } else {
+        writeI420Frame(frame.yuvPlanes[0], frame.yuvStrides[0], frame.yuvPlanes[1],
+            frame.yuvStrides[1], frame.yuvPlanes[2], frame.yuvStrides[2], frame.width,
+            frame.height);
+      }
+    } finally {
+      VideoRenderer.renderFrameDone(frame);
+    }
+  }
 
-        int stride = outputFileWidth;
-        byte[] data = outputFrameBuffer.array();
-        int offset = outputFrameBuffer.arrayOffset();
+  // Scales an I420 frame to the output size and stores it. Called on the render thread.
+  private void writeI420Frame(ByteBuffer dataY, int strideY, ByteBuffer dataU, int strideU,
+      ByteBuffer dataV, int strideV, int width, int height) {
+    nativeI420Scale(dataY, strideY, dataU, strideU, dataV, strideV, width, height,
+        outputFrameBuffer, outputFileWidth, outputFileHeight);
 
-        // Write Y
-        buffer.put(data, offset, outputFileWidth * outputFileHeight);
+    ByteBuffer buffer = nativeCreateNativeByteBuffer(outputFrameSize);
+    buffer.put(outputFrameBuffer.array(), outputFrameBuffer.arrayOffset(), outputFrameSize);
+    buffer.rewind();
+    rawFrames.add(buffer);
+  }
 
-        // Write U
-        for (int r = outputFileHeight; r < outputFileHeight * 3 / 2; ++r) {
-          buffer.put(data, offset + r * stride, stride / 2);
-        }
+  // Called on the render thread with the output of YuvConverter.convertAsync().
+  private void writeConvertedFrame(
+      ByteBuffer yuv, int width, int height, int stride, long timestampNs) {
+    final ByteBuffer buffer = nativeCreateNativeByteBuffer(outputFrameSize);
+    final ByteBuffer src = yuv.duplicate();
 
-        // Write V
-        for (int r = outputFileHeight; r < outputFileHeight * 3 / 2; ++r) {
-          buffer.put(data, offset + r * stride + stride / 2, stride / 2);
-        }
-      } else {
-        nativeI420Scale(frame.yuvPlanes[0], frame.yuvStrides[0], frame.yuvPlanes[1],
-            frame.yuvStrides[1], frame.yuvPlanes[2], frame.yuvStrides[2], frame.width, frame.height,
-            outputFrameBuffer, outputFileWidth, outputFileHeight);
+    // Write Y
+    for (int r = 0; r < height; ++r) {
+      src.limit(r * stride + width).position(r * stride);
+      buffer.put(src);
+    }
 
-        buffer.put(outputFrameBuffer.array(), outputFrameBuffer.arrayOffset(), outputFrameSize);
-      }
-      buffer.rewind();
-      rawFrames.add(buffer);
-    } finally {
-      VideoRenderer.renderFrameDone(frame);
+    // Write U
+    for (int r = height; r < height * 3 / 2; ++r) {
+      src.limit(r * stride + width / 2).position(r * stride);
+      buffer.put(src);
+    }
+
+    // Write V
+    for (int r = height; r < height * 3 / 2; ++r) {
+      src.limit(r * stride + stride / 2 + width / 2).position(r * stride + stride / 2);
+      buffer.put(src);
     }
+    buffer.rewind();
+    rawFrames.add(buffer);
   }
 
   /**
@@ -138,6 +247,7 @@ public class VideoFileRenderer implements VideoRenderer.Callbacks {
     renderThreadHandler.post(new Runnable() {
       @Override
       public void run() {
+        yuvConverter.flush();
         yuvConverter.release();
         eglBase.release();
         renderThread.quit();
@@ -13,6 +13,7 @@ package org.webrtc;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 
 import java.nio.ByteBuffer;
 
@@ -49,15 +50,32 @@ public class VideoFrameDrawer {
   }
 
   /**
-   * Helper class for uploading YUV bytebuffer frames to textures that handles stride > width. This
-   * class keeps an internal ByteBuffer to avoid unnecessary allocations for intermediate copies.
+   * Helper class for uploading YUV bytebuffer frames to textures that handles stride > width. The
+   * textures are allocated once per resolution and updated with glTexSubImage2D. On GLES3,
+   * GL_UNPACK_ROW_LENGTH lets GL read strided planes directly; on GLES2 this class keeps an
+   * internal ByteBuffer to avoid unnecessary allocations for intermediate copies.
    */
   private static class YuvUploader {
-    // Intermediate copy buffer for uploading yuv frames that are not packed, i.e. stride > width.
-    // TODO(magjed): Investigate when GL_UNPACK_ROW_LENGTH is available, or make a custom shader
-    // that handles stride and compare performance with intermediate copy.
+    // Intermediate copy buffer for uploading yuv frames that are not packed, i.e. stride > width,
+    // on contexts without GL_UNPACK_ROW_LENGTH.
     private ByteBuffer copyBuffer;
     private int[] yuvTextures;
+    private int[] semiPlanarTextures;
+    // Size of the storage currently allocated for each texture, as {width, height}.
+    private final int[][] yuvTextureSizes = new int[3][2];
+    private final int[][] semiPlanarTextureSizes = new int[2][2];
+    // Reused for every frame to keep uploads allocation free.
+    private final int[] strides = new int[3];
+    private final ByteBuffer[] planes = new ByteBuffer[3];
+    // NV21 frames are byte arrays. Camera1 cycles through a few of them, so the wrapping
+    // ByteBuffer is usually reused.
+    private byte[] lastNv21Data;
+    private ByteBuffer lastNv21Buffer;
+    // Whether GL_UNPACK_ROW_LENGTH is available. Queried on first upload, since it needs a current
+    // context.
+    private Boolean supportsUnpackRowLength;
+    // GL_UNPACK_ALIGNMENT of the caller, restored after each upload.
+    private final int[] previousUnpackAlignment = new int[1];
 
     /**
      * Upload |planes| into OpenGL textures, taking stride into consideration.
@@ -65,67 +83,173 @@ public class VideoFrameDrawer {
      * @return Array of three texture indices corresponding to Y-, U-, and V-plane respectively.
      */
     public int[] uploadYuvData(int width, int height, int[] strides, ByteBuffer[] planes) {
-      final int[] planeWidths = new int[] {width, width / 2, width / 2};
-      final int[] planeHeights = new int[] {height, height / 2, height / 2};
-      // Make a first pass to see if we need a temporary copy buffer.
-      int copyCapacityNeeded = 0;
-      for (int i = 0; i < 3; ++i) {
-        if (strides[i] > planeWidths[i]) {
-          copyCapacityNeeded = Math.max(copyCapacityNeeded, planeWidths[i] * planeHeights[i]);
-        }
+      if (yuvTextures == null) {
+        yuvTextures = generateTextures(yuvTextureSizes);
       }
-      // Allocate copy buffer if necessary.
-      if (copyCapacityNeeded > 0
-          && (copyBuffer == null || copyBuffer.capacity() < copyCapacityNeeded)) {
-        copyBuffer = ByteBuffer.allocateDirect(copyCapacityNeeded);
+      final int chromaWidth = (width + 1) / 2;
+      final int chromaHeight = (height + 1) / 2;
+      beginUpload();
+      uploadPlane(0, yuvTextures[0], yuvTextureSizes[0], GLES20.GL_LUMINANCE, 1 /* bytesPerTexel */,
+          width, height, strides[0], planes[0]);
+      uploadPlane(1, yuvTextures[1], yuvTextureSizes[1], GLES20.GL_LUMINANCE, 1 /* bytesPerTexel */,
+          chromaWidth, chromaHeight, strides[1], planes[1]);
+      uploadPlane(2, yuvTextures[2], yuvTextureSizes[2], GLES20.GL_LUMINANCE, 1 /* bytesPerTexel */,
+          chromaWidth, chromaHeight, strides[2], planes[2]);
+      endUpload();
+      return yuvTextures;
+    }
+
+    /**
+     * Upload a semi-planar frame, i.e. a Y-plane followed by an interleaved chroma plane, into a
+     * luminance and a luminance-alpha texture. Both planes use |stride|. |width| and |height| must
+     * be even.
+     *
+     * @return Array of two texture indices corresponding to Y- and UV-plane respectively.
+     */
+    public int[] uploadSemiPlanarData(
+        int width, int height, int stride, ByteBuffer yPlane, ByteBuffer uvPlane) {
+      if (semiPlanarTextures == null) {
+        semiPlanarTextures = generateTextures(semiPlanarTextureSizes);
       }
-      // Make sure YUV textures are allocated.
-      if (yuvTextures == null) {
-        yuvTextures = new int[3];
-        for (int i = 0; i < 3; i++) {
-          yuvTextures[i] = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
-        }
+      beginUpload();
+      uploadPlane(0, semiPlanarTextures[0], semiPlanarTextureSizes[0], GLES20.GL_LUMINANCE,
+          1 /* bytesPerTexel */, width, height, stride, yPlane);
+      uploadPlane(1, semiPlanarTextures[1], semiPlanarTextureSizes[1], GLES20.GL_LUMINANCE_ALPHA,
+          2 /* bytesPerTexel */, width / 2, height / 2, stride, uvPlane);
+      endUpload();
+      return semiPlanarTextures;
+    }
+
+    // Rows of odd-width planes are not 4-byte aligned, so planes are uploaded with an alignment
+    // of 1. The renderers set their own alignment, which is left as it was.
+    private void beginUpload() {
+      GLES20.glGetIntegerv(GLES20.GL_UNPACK_ALIGNMENT, previousUnpackAlignment, 0);
+      if (previousUnpackAlignment[0] != 1) {
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
       }
-      // Upload each plane.
-      for (int i = 0; i < 3; ++i) {
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, yuvTextures[i]);
-        // GLES only accepts packed data, i.e. stride == planeWidth.
-        final ByteBuffer packedByteBuffer;
-        if (strides[i] == planeWidths[i]) {
-          // Input is packed already.
-          packedByteBuffer = planes[i];
-        } else {
-          VideoRenderer.nativeCopyPlane(
-              planes[i], planeWidths[i], planeHeights[i], strides[i], copyBuffer, planeWidths[i]);
-          packedByteBuffer = copyBuffer;
+    }
+
+    private void endUpload() {
+      if (previousUnpackAlignment[0] != 1) {
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, previousUnpackAlignment[0]);
+      }
+    }
+
+    private static int[] generateTextures(int[][] textureSizes) {
+      final int[] textures = new int[textureSizes.length];
+      for (int i = 0; i < textures.length; ++i) {
+        textures[i] = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
+        textureSizes[i][0] = 0;
+        textureSizes[i][1] = 0;
+      }
+      return textures;
+    }
+
+    // Uploads a plane of |planeWidth| x |planeHeight| texels, whose rows start |stride| bytes
+    // apart, to texture unit |unit|. The texture storage is only reallocated if |textureSize|
+    // differs from the plane size.
+    private void uploadPlane(int unit, int textureId, int[] textureSize, int format,
+        int bytesPerTexel, int planeWidth, int planeHeight, int stride, ByteBuffer plane) {
+      if (supportsUnpackRowLength == null) {
+        supportsUnpackRowLength = GlUtil.isGles3ContextCurrent();
+      }
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+      if (textureSize[0] != planeWidth || textureSize[1] != planeHeight) {
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, planeWidth, planeHeight, 0, format,
+            GLES20.GL_UNSIGNED_BYTE, null);
+        textureSize[0] = planeWidth;
+        textureSize[1] = planeHeight;
+      }
+      final int rowBytes = planeWidth * bytesPerTexel;
+      final boolean useRowLength =
+          stride != rowBytes && supportsUnpackRowLength && (stride % bytesPerTexel) == 0;
+      final ByteBuffer packedByteBuffer;
+      if (stride == rowBytes || useRowLength) {
+        // Input is packed already, or GL can skip the padding itself.
+        packedByteBuffer = plane;
+      } else {
+        // GLES2 only accepts packed data, i.e. stride == planeWidth.
+        final int copyCapacityNeeded = rowBytes * planeHeight;
+        if (copyBuffer == null || copyBuffer.capacity() < copyCapacityNeeded) {
+          copyBuffer = ByteBuffer.allocateDirect(copyCapacityNeeded);
         }
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, planeWidths[i],
-            planeHeights[i], 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, packedByteBuffer);
+        VideoRenderer.nativeCopyPlane(plane, rowBytes, planeHeight, stride, copyBuffer, rowBytes);
+        packedByteBuffer = copyBuffer;
+      }
+      if (useRowLength) {
+        GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, stride / bytesPerTexel);
+      }
+      GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, planeWidth, planeHeight, format,
+          GLES20.GL_UNSIGNED_BYTE, packedByteBuffer);
+      if (useRowLength) {
+        GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0);
       }
-      return yuvTextures;
     }
 
     public int[] uploadFromBuffer(VideoFrame.I420Buffer buffer) {
-      int[] strides = {buffer.getStrideY(), buffer.getStrideU(), buffer.getStrideV()};
-      ByteBuffer[] planes = {buffer.getDataY(), buffer.getDataU(), buffer.getDataV()};
-      return uploadYuvData(buffer.getWidth(), buffer.getHeight(), strides, planes);
+      strides[0] = buffer.getStrideY();
+      strides[1] = buffer.getStrideU();
+      strides[2] = buffer.getStrideV();
+      planes[0] = buffer.getDataY();
+      planes[1] = buffer.getDataU();
+      planes[2] = buffer.getDataV();
+      final int[] textures = uploadYuvData(buffer.getWidth(), buffer.getHeight(), strides, planes);
+      // Don't keep the frame's buffers reachable after the upload.
+      planes[0] = null;
+      planes[1] = null;
+      planes[2] = null;
+      return textures;
+    }
+
+    public int[] uploadFromBuffer(NV21Buffer buffer) {
+      final byte[] data = buffer.getData();
+      if (data != lastNv21Data) {
+        lastNv21Data = data;
+        lastNv21Buffer = ByteBuffer.wrap(data);
+      }
+      final int width = buffer.getWidth();
+      final int height = buffer.getHeight();
+      lastNv21Buffer.position(width * height);
+      final ByteBuffer vuPlane = lastNv21Buffer.slice();
+      lastNv21Buffer.position(0);
+      return uploadSemiPlanarData(width, height, width /* stride */, lastNv21Buffer, vuPlane);
+    }
+
+    public int[] uploadFromBuffer(NV12Buffer buffer) {
+      final ByteBuffer yPlane = buffer.getBuffer().duplicate();
+      yPlane.position(buffer.getStride() * buffer.getSliceHeight());
+      final ByteBuffer uvPlane = yPlane.slice();
+      yPlane.position(0);
+      return uploadSemiPlanarData(
+          buffer.getWidth(), buffer.getHeight(), buffer.getStride(), yPlane, uvPlane);
     }
 
     public int[] getYuvTextures() {
       return yuvTextures;
     }
 
+    public int[] getSemiPlanarTextures() {
+      return semiPlanarTextures;
+    }
+
     /**
      * Releases cached resources. Uploader can still be used and the resources will be reallocated
      * on first use.
      */
     public void release() {
       copyBuffer = null;
+      lastNv21Data = null;
+      lastNv21Buffer = null;
+      supportsUnpackRowLength = null;
       if (yuvTextures != null) {
         GLES20.glDeleteTextures(3, yuvTextures, 0);
         yuvTextures = null;
       }
+      if (semiPlanarTextures != null) {
+        GLES20.glDeleteTextures(2, semiPlanarTextures, 0);
+        semiPlanarTextures = null;
+      }
     }
   }
 
@@ -167,7 +291,7 @@ public class VideoFrameDrawer {
 
   private final YuvUploader yuvUploader = new YuvUploader();
   // This variable will only be used for checking reference equality and is used for caching I420
-  // textures.
+  // and semi-planar textures.
   private VideoFrame lastI420Frame;
   private final Matrix renderMatrix = new Matrix();
 
@@ -205,6 +329,27 @@ public class VideoFrameDrawer {
       lastI420Frame = null;
       drawTexture(drawer, (VideoFrame.TextureBuffer) frame.getBuffer(), renderMatrix, renderWidth,
           renderHeight, viewportX, viewportY, viewportWidth, viewportHeight);
+    } else if (canDrawSemiPlanar(frame.getBuffer(), drawer)) {
+      // Draw NV21 and NV12 frames from their two planes, without converting them to I420 first.
+      final VideoFrame.Buffer buffer = frame.getBuffer();
+      if (frame != lastI420Frame) {
+        lastI420Frame = frame;
+        if (buffer instanceof NV21Buffer) {
+          yuvUploader.uploadFromBuffer((NV21Buffer) buffer);
+        } else {
+          yuvUploader.uploadFromBuffer((NV12Buffer) buffer);
+        }
+      }
+
+      final GlRectDrawer rectDrawer = (GlRectDrawer) drawer;
+      final float[] texMatrix = RendererCommon.convertMatrixFromAndroidGraphicsMatrix(renderMatrix);
+      if (buffer instanceof NV21Buffer) {
+        rectDrawer.drawNv21(yuvUploader.getSemiPlanarTextures(), texMatrix, renderWidth,
+            renderHeight, viewportX, viewportY, viewportWidth, viewportHeight);
+      } else {
+        rectDrawer.drawNv12(yuvUploader.getSemiPlanarTextures(), texMatrix, renderWidth,
+            renderHeight, viewportX, viewportY, viewportWidth, viewportHeight);
+      }
     } else {
       // Only upload the I420 data to textures once per frame, if we are called multiple times
       // with the same frame.
@@ -221,6 +366,15 @@ public class VideoFrameDrawer {
     }
   }
 
+  // The two-plane shaders are specific to GlRectDrawer, and chroma subsampling requires even
+  // dimensions.
+  private static boolean canDrawSemiPlanar(
+      VideoFrame.Buffer buffer, RendererCommon.GlDrawer drawer) {
+    return (buffer instanceof NV21Buffer || buffer instanceof NV12Buffer)
+        && drawer instanceof GlRectDrawer && buffer.getWidth() % 2 == 0
+        && buffer.getHeight() % 2 == 0;
+  }
+
   public void release() {
     yuvUploader.release();
     lastI420Frame = null;
@@ -0,0 +1,30 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+/**
+ * Stage of a VideoProcessorChain, transforming captured frames before they reach the VideoSource.
+ */
+public interface VideoFrameProcessor {
+  /**
+   * Processes a captured frame. Called on the capture thread.
+   *
+   * Returns |frame| itself to pass it on unchanged, null to drop it, or a new frame that replaces
+   * it. A new frame is owned by the caller, which releases it. |frame| stays owned by the caller
+   * and must not be referenced after this function returns; in particular, byte buffer frames may
+   * be overwritten by the capturer.
+   *
+   * Buffers written on the CPU should come from |bufferPool|, which reuses their memory. Texture
+   * frames that need no CPU work should be passed on as textures, e.g. cropped and scaled with
+   * bufferPool.cropAndScale(), which does not read back their pixels.
+   */
+  VideoFrame process(VideoFrame frame, I420BufferPool bufferPool);
+}
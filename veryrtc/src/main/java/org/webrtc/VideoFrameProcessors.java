@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.RectF;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Common VideoFrameProcessors. Sizes and aspect ratios are orientation agnostic: a 1280x720 limit
+ * also admits 720x1280 frames.
+ */
+public class VideoFrameProcessors {
+  // Luma and chroma values of black in limited range.
+  private static final byte BLACK_Y = 16;
+  private static final byte BLACK_UV = (byte) 128;
+
+  private VideoFrameProcessors() {}
+
+  /**
+   * Returns a processor that downscales frames to fit within |maxWidth|x|maxHeight|, keeping the
+   * aspect ratio. Smaller frames pass unchanged. Texture frames stay textures.
+   */
+  public static VideoFrameProcessor downscale(final int maxWidth, final int maxHeight) {
+    if (maxWidth <= 0 || maxHeight <= 0) {
+      throw new IllegalArgumentException("Invalid size: " + maxWidth + "x" + maxHeight);
+    }
+    final int maxLongSide = Math.max(maxWidth, maxHeight);
+    final int maxShortSide = Math.min(maxWidth, maxHeight);
+    return new VideoFrameProcessor() {
+      @Override
+      public VideoFrame process(VideoFrame frame, I420BufferPool bufferPool) {
+        final VideoFrame.Buffer buffer = frame.getBuffer();
+        final int width = buffer.getWidth();
+        final int height = buffer.getHeight();
+        final float scale = Math.min((float) maxLongSide / Math.max(width, height),
+            (float) maxShortSide / Math.min(width, height));
+        if (scale >= 1) {
+          return frame;
+        }
+        final int scaledWidth = Math.max(2, roundToEven(width * scale));
+        final int scaledHeight = Math.max(2, roundToEven(height * scale));
+        return new VideoFrame(
+            bufferPool.cropAndScale(buffer, 0, 0, width, height, scaledWidth, scaledHeight),
+            frame.getRotation(), frame.getTimestampNs());
+      }
+
+      @Override
+      public String toString() {
+        return "Downscale(" + maxWidth + "x" + maxHeight + ")";
+      }
+    };
+  }
+
+  /**
+   * Returns a processor that crops frames in the center to |aspectRatio|, e.g. 16/9f. Texture
+   * frames stay textures.
+   */
+  public static VideoFrameProcessor cropToAspectRatio(final float aspectRatio) {
+    if (aspectRatio <= 0) {
+      throw new IllegalArgumentException("Invalid aspect ratio: " + aspectRatio);
+    }
+    final float landscapeAspectRatio = Math.max(aspectRatio, 1 / aspectRatio);
+    return new VideoFrameProcessor() {
+      @Override
+      public VideoFrame process(VideoFrame frame, I420BufferPool bufferPool) {
+        final VideoFrame.Buffer buffer = frame.getBuffer();
+        final int width = buffer.getWidth();
+        final int height = buffer.getHeight();
+        final float targetAspectRatio =
+            (width >= height) ? landscapeAspectRatio : 1 / landscapeAspectRatio;
+        int cropWidth = width;
+        int cropHeight = height;
+        if ((float) width / height > targetAspectRatio) {
+          cropWidth = Math.min(width, roundToEven(height * targetAspectRatio));
+        } else {
+          cropHeight = Math.min(height, roundToEven(width / targetAspectRatio));
+        }
+        if (cropWidth >= width && cropHeight >= height) {
+          return frame;
+        }
+        // Even offsets keep the chroma planes aligned.
+        final int cropX = ((width - cropWidth) / 2) & ~1;
+        final int cropY = ((height - cropHeight) / 2) & ~1;
+        return new VideoFrame(bufferPool.cropAndScale(buffer, cropX, cropY, cropWidth, cropHeight,
+                                  cropWidth, cropHeight),
+            frame.getRotation(), frame.getTimestampNs());
+      }
+
+      @Override
+      public String toString() {
+        return "CropToAspectRatio(" + aspectRatio + ")";
+      }
+    };
+  }
+
+  /** Returns a processor that drops frames to stay at or below |maxFps|. */
+  public static VideoFrameProcessor decimate(final float maxFps) {
+    if (maxFps <= 0) {
+      throw new IllegalArgumentException("Invalid fps: " + maxFps);
+    }
+    final long minFramePeriodNs = (long) (TimeUnit.SECONDS.toNanos(1) / maxFps);
+    return new VideoFrameProcessor() {
+      // Only accessed on the capture thread.
+      private long nextFrameTimeNs;
+
+      @Override
+      public VideoFrame process(VideoFrame frame, I420BufferPool bufferPool) {
+        final long timestampNs = frame.getTimestampNs();
+        if (timestampNs < nextFrameTimeNs) {
+          return null;
+        }
+        nextFrameTimeNs += minFramePeriodNs;
+        // The time for the next frame should always be in the future.
+        nextFrameTimeNs = Math.max(nextFrameTimeNs, timestampNs);
+        return frame;
+      }
+
+      @Override
+      public String toString() {
+        return "Decimate(" + maxFps + " fps)";
+      }
+    };
+  }
+
+  /**
+   * Returns a processor that blacks out |regions| of each frame. The regions are given as
+   * fractions of the captured frame, before rotation, e.g. (0, 0, 0.5, 1) for its left half. Masked
+   * frames are always processed on the CPU, so texture frames are read back.
+   */
+  public static VideoFrameProcessor privacyMask(final RectF... regions) {
+    final RectF[] maskRegions = regions.clone();
+    return new VideoFrameProcessor() {
+      private byte[] fillRow = new byte[0];
+
+      @Override
+      public VideoFrame process(VideoFrame frame, I420BufferPool bufferPool) {
+        if (maskRegions.length == 0) {
+          return frame;
+        }
+        final VideoFrame.I420Buffer buffer = bufferPool.copyToI420(frame.getBuffer());
+        final int width = buffer.getWidth();
+        final int height = buffer.getHeight();
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        for (RectF region : maskRegions) {
+          final int left = clamp(Math.round(region.left * width), width) & ~1;
+          final int top = clamp(Math.round(region.top * height), height) & ~1;
+          final int right = clamp(Math.round(region.right * width), width);
+          final int bottom = clamp(Math.round(region.bottom * height), height);
+          if (right <= left || bottom <= top) {
+            continue;
+          }
+          fill(buffer.getDataY(), buffer.getStrideY(), left, top, right - left, bottom - top,
+              BLACK_Y);
+          final int chromaRight = Math.min((right + 1) / 2, chromaWidth);
+          final int chromaBottom = Math.min((bottom + 1) / 2, chromaHeight);
+          fill(buffer.getDataU(), buffer.getStrideU(), left / 2, top / 2,
+              chromaRight - left / 2, chromaBottom - top / 2, BLACK_UV);
+          fill(buffer.getDataV(), buffer.getStrideV(), left / 2, top / 2,
+              chromaRight - left / 2, chromaBottom - top / 2, BLACK_UV);
+        }
+        return new VideoFrame(buffer, frame.getRotation(), frame.getTimestampNs());
+      }
+
+      private void fill(
+          ByteBuffer plane, int stride, int x, int y, int width, int height, byte value) {
+        if (fillRow.length < width) {
+          fillRow = new byte[width];
+        }
+        Arrays.fill(fillRow, 0, width, value);
+        for (int row = y; row < y + height; ++row) {
+          plane.position(row * stride + x);
+          plane.put(fillRow, 0, width);
+        }
+      }
+
+      @Override
+      public String toString() {
+        return "PrivacyMask(" + maskRegions.length + " regions)";
+      }
+    };
+  }
+
+  private static int roundToEven(float value) {
+    return Math.round(value / 2) * 2;
+  }
+
+  private static int clamp(int value, int max) {
+    return Math.max(0, Math.min(value, max));
+  }
+}
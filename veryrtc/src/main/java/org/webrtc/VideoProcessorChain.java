@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chain of VideoFrameProcessors between a VideoCapturer and its VideoSource, created with
+ * PeerConnectionFactory.createVideoSource(capturer, chain). Every captured frame runs through the
+ * processors in the order they were added; processors can be added and removed at any time. An
+ * empty chain passes frames on unchanged.
+ *
+ * Intermediate buffers come from a shared I420BufferPool, and the time spent in each processor is
+ * logged periodically.
+ */
+public class VideoProcessorChain implements VideoCapturer.CapturerObserver {
+  private static final String TAG = "VideoProcessorChain";
+  private static final long LOG_INTERVAL_SEC = 4;
+  private static final int MAX_POOLED_BUFFERS = 4;
+
+  private static class Stage {
+    final VideoFrameProcessor processor;
+    // Statistics, only accessed on the capture thread.
+    long processingTimeNs;
+    int framesProcessed;
+    int framesDropped;
+
+    Stage(VideoFrameProcessor processor) {
+      this.processor = processor;
+    }
+  }
+
+  private final CopyOnWriteArrayList<Stage> stages = new CopyOnWriteArrayList<>();
+  private final I420BufferPool bufferPool = new I420BufferPool(MAX_POOLED_BUFFERS);
+  private VideoCapturer.CapturerObserver downstream;
+  private SurfaceTextureHelper surfaceTextureHelper;
+  // Only accessed on the capture thread.
+  private long statisticsStartTimeNs;
+
+  /** Appends |processor| to the chain. */
+  public void addProcessor(VideoFrameProcessor processor) {
+    stages.add(new Stage(processor));
+  }
+
+  /** Removes |processor| from the chain. */
+  public void removeProcessor(VideoFrameProcessor processor) {
+    for (Stage stage : stages) {
+      if (stage.processor == processor) {
+        stages.remove(stage);
+      }
+    }
+  }
+
+  /** Called by PeerConnectionFactory when the chain is inserted in front of a VideoSource. */
+  void attach(
+      VideoCapturer.CapturerObserver downstream, SurfaceTextureHelper surfaceTextureHelper) {
+    if (this.downstream != null) {
+      throw new IllegalStateException("VideoProcessorChain is already attached to a source.");
+    }
+    this.downstream = downstream;
+    this.surfaceTextureHelper = surfaceTextureHelper;
+  }
+
+  @Override
+  public void onCapturerStarted(boolean success) {
+    statisticsStartTimeNs = System.nanoTime();
+    downstream.onCapturerStarted(success);
+  }
+
+  @Override
+  public void onCapturerStopped() {
+    bufferPool.clear();
+    downstream.onCapturerStopped();
+  }
+
+  @Override
+  public void onByteBufferFrameCaptured(
+      byte[] data, int width, int height, int rotation, long timeStamp) {
+    if (stages.isEmpty()) {
+      downstream.onByteBufferFrameCaptured(data, width, height, rotation, timeStamp);
+      return;
+    }
+    // The capturer reuses |data| once this returns, so it is only passed on as is if no processor
+    // replaced it; the source then copies it right away.
+    final NV21Buffer buffer = new NV21Buffer(data, width, height, null /* releaseCallback */);
+    final VideoFrame frame = new VideoFrame(buffer, rotation, timeStamp);
+    final VideoFrame processedFrame = process(frame);
+    if (processedFrame == null) {
+      return;
+    }
+    if (processedFrame.getBuffer() == buffer) {
+      downstream.onByteBufferFrameCaptured(data, width, height, processedFrame.getRotation(),
+          processedFrame.getTimestampNs());
+    } else {
+      downstream.onFrameCaptured(processedFrame);
+    }
+    if (processedFrame != frame) {
+      processedFrame.release();
+    }
+  }
+
+  @Override
+  public void onTextureFrameCaptured(int width, int height, int oesTextureId,
+      float[] transformMatrix, int rotation, long timestamp) {
+    if (stages.isEmpty() || surfaceTextureHelper == null) {
+      downstream.onTextureFrameCaptured(
+          width, height, oesTextureId, transformMatrix, rotation, timestamp);
+      return;
+    }
+    // The texture is returned to the capturer when the last reference to the buffer is released.
+    final VideoFrame.TextureBuffer buffer = surfaceTextureHelper.createTextureBuffer(
+        width, height, RendererCommon.convertMatrixToAndroidGraphicsMatrix(transformMatrix));
+    final VideoFrame frame = new VideoFrame(buffer, rotation, timestamp);
+    onFrameCaptured(frame);
+    frame.release();
+  }
+
+  @Override
+  public void onFrameCaptured(VideoFrame frame) {
+    if (stages.isEmpty()) {
+      downstream.onFrameCaptured(frame);
+      return;
+    }
+    final VideoFrame processedFrame = process(frame);
+    if (processedFrame == null) {
+      return;
+    }
+    downstream.onFrameCaptured(processedFrame);
+    if (processedFrame != frame) {
+      processedFrame.release();
+    }
+  }
+
+  // Runs |frame| through all stages. Returns null if the frame was dropped, |frame| if it passed
+  // unchanged, or a new frame owned by the caller.
+  private VideoFrame process(VideoFrame frame) {
+    VideoFrame current = frame;
+    for (Stage stage : stages) {
+      final long startTimeNs = System.nanoTime();
+      final VideoFrame output = stage.processor.process(current, bufferPool);
+      stage.processingTimeNs += System.nanoTime() - startTimeNs;
+      ++stage.framesProcessed;
+      if (output != current && current != frame) {
+        current.release();
+      }
+      if (output == null) {
+        ++stage.framesDropped;
+        current = null;
+        break;
+      }
+      current = output;
+    }
+    final long currentTimeNs = System.nanoTime();
+    if (currentTimeNs - statisticsStartTimeNs > TimeUnit.SECONDS.toNanos(LOG_INTERVAL_SEC)) {
+      logStatistics(currentTimeNs);
+    }
+    return current;
+  }
+
+  private void logStatistics(long currentTimeNs) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("Duration: ")
+        .append(TimeUnit.NANOSECONDS.toMillis(currentTimeNs - statisticsStartTimeNs))
+        .append(" ms.");
+    for (Stage stage : stages) {
+      sb.append(" ").append(stage.processor).append(": ");
+      if (stage.framesProcessed == 0) {
+        sb.append("NA.");
+      } else {
+        sb.append(TimeUnit.NANOSECONDS.toMicros(stage.processingTimeNs / stage.framesProcessed))
+            .append(" us/frame, dropped ")
+            .append(stage.framesDropped)
+            .append("/")
+            .append(stage.framesProcessed)
+            .append(".");
+      }
+      stage.processingTimeNs = 0;
+      stage.framesProcessed = 0;
+      stage.framesDropped = 0;
+    }
+    sb.append(" Buffers allocated: ").append(bufferPool.getAndResetAllocationCount()).append(".");
+    Logging.d(TAG, sb.toString());
+    statisticsStartTimeNs = currentTimeNs;
+  }
+}
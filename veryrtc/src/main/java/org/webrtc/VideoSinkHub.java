@@ -0,0 +1,370 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * VideoSink that fans each frame out to any number of sinks without copying it. Every sink gets
+ * the same VideoFrame, retained for as long as the sink holds it.
+ *
+ * A sink is either delivered to inline, on the thread that calls onFrame(), or through its own
+ * bounded queue and delivery thread. Inline delivery suits sinks that return quickly, e.g.
+ * renderers, which post frames to their own thread anyway. Queued delivery suits slow sinks, e.g.
+ * a recorder, which then can never hold up the other sinks or the caller: when a queue is full,
+ * frames are dropped according to the sink's DropPolicy. Both kinds may limit their frame rate.
+ *
+ * Queued sinks receive I420 frames. A texture frame is converted once, on a converter thread of
+ * the hub, and the converted frame is shared by all queued sinks. The texture is returned to the
+ * producer as soon as it is converted, before the frame enters any queue, so a slow queued sink
+ * never holds up the producer. The converter never waits for sinks. If a new texture frame arrives
+ * while the previous one still waits for conversion, the previous one is dropped.
+ */
+public class VideoSinkHub implements VideoSink {
+  private static final String TAG = "VideoSinkHub";
+
+  public enum DropPolicy {
+    // Drop the oldest queued frame to make room for the new one. Keeps latency low.
+    DROP_OLDEST,
+    // Drop the new frame. Keeps runs of consecutive frames intact.
+    DROP_NEWEST
+  }
+
+  private static class SinkEntry {
+    final VideoSink sink;
+    final int queueCapacity;
+    final DropPolicy dropPolicy;
+    // Minimum time between frames, or 0 if the frame rate is not limited. Only accessed on the
+    // thread that calls onFrame().
+    final long minFramePeriodNs;
+    long nextFrameTimeNs;
+
+    // Held while a frame is delivered inline, so that release() can wait for it.
+    final Object inlineDeliveryLock = new Object();
+
+    // Queue of I420 frames and delivery thread, for queued sinks only. Synchronized on |this|.
+    final ArrayDeque<VideoFrame> queue;
+    final Thread thread;
+    boolean released;
+    int framesDelivered;
+    int framesDroppedQueueFull;
+    int framesDroppedFps;
+
+    SinkEntry(VideoSink sink, int queueCapacity, float maxFps, DropPolicy dropPolicy) {
+      this.sink = sink;
+      this.queueCapacity = queueCapacity;
+      this.dropPolicy = dropPolicy;
+      this.minFramePeriodNs = (maxFps > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / maxFps) : 0;
+      if (queueCapacity > 0) {
+        queue = new ArrayDeque<>(queueCapacity);
+        thread = new Thread(this ::deliverQueuedFrames, TAG + "." + sink);
+        thread.start();
+      } else {
+        queue = null;
+        thread = null;
+      }
+    }
+
+    // Returns true if the frame rate limit lets the frame pass.
+    boolean acceptFrame(long timestampNs) {
+      if (minFramePeriodNs <= 0) {
+        return true;
+      }
+      if (timestampNs < nextFrameTimeNs) {
+        synchronized (this) {
+          ++framesDroppedFps;
+        }
+        return false;
+      }
+      nextFrameTimeNs += minFramePeriodNs;
+      // The time for the next frame should always be in the future.
+      nextFrameTimeNs = Math.max(nextFrameTimeNs, timestampNs);
+      return true;
+    }
+
+    void deliverInline(VideoFrame frame) {
+      synchronized (inlineDeliveryLock) {
+        synchronized (this) {
+          if (released) {
+            return;
+          }
+        }
+        sink.onFrame(frame);
+      }
+      synchronized (this) {
+        ++framesDelivered;
+      }
+    }
+
+    // Retains |frame|, which must be an I420 frame.
+    synchronized void enqueue(VideoFrame frame) {
+      if (released) {
+        return;
+      }
+      if (queue.size() >= queueCapacity) {
+        ++framesDroppedQueueFull;
+        if (dropPolicy == DropPolicy.DROP_NEWEST) {
+          return;
+        }
+        queue.poll().release();
+      }
+      frame.retain();
+      queue.add(frame);
+      notifyAll();
+    }
+
+    private void deliverQueuedFrames() {
+      while (true) {
+        final VideoFrame frame;
+        synchronized (this) {
+          while (queue.isEmpty() && !released) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              return;
+            }
+          }
+          if (released) {
+            return;
+          }
+          frame = queue.poll();
+        }
+        try {
+          sink.onFrame(frame);
+        } finally {
+          frame.release();
+        }
+        synchronized (this) {
+          ++framesDelivered;
+        }
+      }
+    }
+
+    // Stops delivery, waits for a frame that is being delivered and releases queued frames.
+    void release() {
+      if (thread == null) {
+        // Waits for an inline delivery on another thread. The lock is reentrant, so a sink may
+        // remove itself from its own onFrame().
+        synchronized (inlineDeliveryLock) {
+          synchronized (this) {
+            released = true;
+          }
+        }
+        return;
+      }
+      synchronized (this) {
+        released = true;
+        for (VideoFrame frame : queue) {
+          frame.release();
+        }
+        queue.clear();
+        notifyAll();
+      }
+      if (Thread.currentThread() != thread) {
+        ThreadUtils.joinUninterruptibly(thread);
+      }
+    }
+
+    synchronized String getStatistics() {
+      return "Delivered: " + framesDelivered + ". Dropped, queue full: " + framesDroppedQueueFull
+          + ". Dropped, fps limit: " + framesDroppedFps + ".";
+    }
+  }
+
+  // Converts texture frames for the queued sinks. Only the newest frame waits for conversion.
+  private static class TextureConverter {
+    private final Thread thread;
+    // These variables are synchronized on the TextureConverter.
+    private VideoFrame pendingFrame;
+    private List<SinkEntry> pendingEntries;
+    private boolean released;
+    private int framesConverted;
+    private int framesDropped;
+
+    TextureConverter() {
+      thread = new Thread(this ::convertFrames, TAG + ".converter");
+      thread.start();
+    }
+
+    // Retains |frame| until it is converted and enqueued for |entries|.
+    synchronized void convert(VideoFrame frame, List<SinkEntry> entries) {
+      if (released) {
+        return;
+      }
+      if (pendingFrame != null) {
+        pendingFrame.release();
+        ++framesDropped;
+      }
+      frame.retain();
+      pendingFrame = frame;
+      pendingEntries = entries;
+      notifyAll();
+    }
+
+    private void convertFrames() {
+      while (true) {
+        final VideoFrame frame;
+        final List<SinkEntry> entries;
+        synchronized (this) {
+          while (pendingFrame == null && !released) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              return;
+            }
+          }
+          if (released) {
+            return;
+          }
+          frame = pendingFrame;
+          entries = pendingEntries;
+          pendingFrame = null;
+          pendingEntries = null;
+        }
+        final VideoFrame i420Frame;
+        try {
+          i420Frame = new VideoFrame(
+              frame.getBuffer().toI420(), frame.getRotation(), frame.getTimestampNs());
+        } finally {
+          // Returns the texture before the frame enters any queue.
+          frame.release();
+        }
+        for (SinkEntry entry : entries) {
+          entry.enqueue(i420Frame);
+        }
+        i420Frame.release();
+        synchronized (this) {
+          ++framesConverted;
+        }
+      }
+    }
+
+    void release() {
+      synchronized (this) {
+        released = true;
+        if (pendingFrame != null) {
+          pendingFrame.release();
+          pendingFrame = null;
+          pendingEntries = null;
+        }
+        notifyAll();
+      }
+      if (Thread.currentThread() != thread) {
+        ThreadUtils.joinUninterruptibly(thread);
+      }
+    }
+
+    synchronized String getStatistics() {
+      return "Converted: " + framesConverted + ". Dropped while converting: " + framesDropped + ".";
+    }
+  }
+
+  private final CopyOnWriteArrayList<SinkEntry> sinks = new CopyOnWriteArrayList<>();
+  // Created with the first queued sink. Guarded by |this| for writes.
+  private volatile TextureConverter converter;
+
+  /** Adds a sink that receives every frame inline, on the thread that calls onFrame(). */
+  public void addSink(VideoSink sink) {
+    addSink(sink, 0 /* queueCapacity */, 0 /* maxFps */, DropPolicy.DROP_OLDEST);
+  }
+
+  /**
+   * Adds a sink.
+   *
+   * @param queueCapacity Maximum number of frames queued for the sink, or 0 to deliver inline.
+   * @param maxFps        Maximum frame rate delivered to the sink, or 0 for no limit.
+   * @param dropPolicy    Which frame to drop when the queue is full.
+   */
+  public void addSink(VideoSink sink, int queueCapacity, float maxFps, DropPolicy dropPolicy) {
+    if (queueCapacity < 0 || maxFps < 0) {
+      throw new IllegalArgumentException(
+          "Invalid queue capacity or fps: " + queueCapacity + ", " + maxFps);
+    }
+    removeSink(sink);
+    if (queueCapacity > 0) {
+      synchronized (this) {
+        if (converter == null) {
+          converter = new TextureConverter();
+        }
+      }
+    }
+    sinks.add(new SinkEntry(sink, queueCapacity, maxFps, dropPolicy));
+  }
+
+  /**
+   * Removes a sink. Queued frames are dropped, and the sink receives no frames after this returns,
+   * unless it is called from the sink's own onFrame().
+   */
+  public void removeSink(VideoSink sink) {
+    for (SinkEntry entry : sinks) {
+      if (entry.sink == sink) {
+        sinks.remove(entry);
+        entry.release();
+        Logging.d(TAG, "Removed sink " + sink + ". " + entry.getStatistics());
+      }
+    }
+  }
+
+  /** Removes all sinks and stops the converter thread. */
+  public void release() {
+    for (SinkEntry entry : sinks) {
+      removeSink(entry.sink);
+    }
+    final TextureConverter oldConverter;
+    synchronized (this) {
+      oldConverter = converter;
+      converter = null;
+    }
+    if (oldConverter != null) {
+      oldConverter.release();
+      Logging.d(TAG, "Released converter. " + oldConverter.getStatistics());
+    }
+  }
+
+  @Override
+  public void onFrame(VideoFrame frame) {
+    final long timestampNs = frame.getTimestampNs();
+    // The queued sinks that take the frame.
+    List<SinkEntry> queuedEntries = null;
+    for (SinkEntry entry : sinks) {
+      if (!entry.acceptFrame(timestampNs)) {
+        continue;
+      }
+      if (entry.queue == null) {
+        entry.deliverInline(frame);
+        continue;
+      }
+      if (queuedEntries == null) {
+        queuedEntries = new ArrayList<>();
+      }
+      queuedEntries.add(entry);
+    }
+    if (queuedEntries == null) {
+      return;
+    }
+    if (!(frame.getBuffer() instanceof VideoFrame.TextureBuffer)) {
+      for (SinkEntry entry : queuedEntries) {
+        entry.enqueue(frame);
+      }
+      return;
+    }
+    final TextureConverter currentConverter = converter;
+    if (currentConverter != null) {
+      currentConverter.convert(frame, queuedEntries);
+    }
+  }
+}
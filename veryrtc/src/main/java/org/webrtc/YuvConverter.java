@@ -10,17 +10,61 @@
 
 package org.webrtc;
 
+import android.annotation.TargetApi;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class for converting OES textures to a YUV ByteBuffer. It should be constructed on a thread with
  * an active EGL context, and only be used from that thread.
+ *
+ * Besides the synchronous convert(), the class supports a pipelined convertAsync() that reads the
+ * converted frame back through a ring of pixel pack buffers. Frame N is then delivered while frame
+ * N + 1 is being drawn, so glReadPixels() no longer stalls the GL pipeline. Pipelining requires a
+ * GLES3 capable EGL14 context; on GLES2 convertAsync() falls back to a synchronous readback.
  */
 class YuvConverter {
+  private static final String TAG = "YuvConverter";
+  private static final long LOG_INTERVAL_SEC = 4;
+  // Valid number of pixel pack buffers in pipelined mode.
+  private static final int MIN_PIPELINE_DEPTH = 2;
+  private static final int MAX_PIPELINE_DEPTH = 3;
+
+  /**
+   * Callback for frames converted with convertAsync(). Called on the converter thread.
+   */
+  public interface ReadbackCallback {
+    /**
+     * |buf| holds the YUV data laid out as described in convert(). It is only valid for the
+     * duration of the call.
+     */
+    void onReadback(ByteBuffer buf, int width, int height, int stride, long timestampNs);
+  }
+
+  // A pixel pack buffer and the frame that is currently being read back into it.
+  private static class PendingReadback {
+    public final int pboId;
+    public int capacity;
+    public int size;
+    public int width;
+    public int height;
+    public int stride;
+    public long timestampNs;
+    // Non-null while a readback is in flight.
+    public ReadbackCallback callback;
+
+    public PendingReadback(int pboId) {
+      this.pboId = pboId;
+    }
+  }
+
   // Vertex coordinates in Normalized Device Coordinates, i.e.
   // (-1, -1) is bottom-left and (1, 1) is top-right.
   private static final FloatBuffer DEVICE_RECTANGLE = GlUtil.createFloatBuffer(new float[] {
@@ -89,13 +133,42 @@ class YuvConverter {
   private final ThreadUtils.ThreadChecker threadChecker = new ThreadUtils.ThreadChecker();
   private boolean released = false;
 
+  // Ring of pixel pack buffers used by convertAsync(), or null if pipelining is not available.
+  private final PendingReadback[] readbacks;
+  private int nextReadbackIndex;
+  // Reused output buffer for convertAsync() when falling back to synchronous readback.
+  private ByteBuffer fallbackBuffer;
+
+  // Statistics, only accessed from the converter thread.
+  // Number of converted frames since |statisticsStartTimeNs|.
+  private int framesConverted;
+  // Time in ns the converter thread was blocked waiting for pixel data.
+  private long stallTimeNs;
+  private long statisticsStartTimeNs;
+  // Values from the last completed statistics interval.
+  private float convertFps;
+  private long averageStallTimeUs;
+
   /**
    * This class should be constructed on a thread that has an active EGL context.
    */
   public YuvConverter() {
+    this(0 /* pipelineDepth */);
+  }
+
+  /**
+   * Create a converter that pipelines convertAsync() readbacks over |pipelineDepth| pixel pack
+   * buffers. Use 0 to disable pipelining. If the current context does not support GLES3, the
+   * converter silently falls back to synchronous readback.
+   */
+  public YuvConverter(int pipelineDepth) {
     threadChecker.checkIsOnValidThread();
+    if (pipelineDepth != 0
+        && (pipelineDepth < MIN_PIPELINE_DEPTH || pipelineDepth > MAX_PIPELINE_DEPTH)) {
+      throw new IllegalArgumentException("Invalid pipeline depth: " + pipelineDepth);
+    }
     textureFrameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
-    shader = new GlShader(VERTEX_SHADER, FRAGMENT_SHADER);
+    shader = GlProgramCache.acquire(VERTEX_SHADER, FRAGMENT_SHADER);
     shader.useProgram();
     texMatrixLoc = shader.getUniformLocation("texMatrix");
     xUnitLoc = shader.getUniformLocation("xUnit");
@@ -107,6 +180,34 @@ class YuvConverter {
     // If the width is not a multiple of 4 pixels, the texture
     // will be scaled up slightly and clipped at the right border.
     shader.setVertexAttribArray("in_tc", 2, TEXTURE_RECTANGLE);
+
+    if (pipelineDepth != 0 && isPixelPackBufferSupported()) {
+      readbacks = createReadbacks(pipelineDepth);
+      Logging.d(TAG, "Pipelined readback enabled, depth: " + pipelineDepth);
+    } else {
+      readbacks = null;
+    }
+    statisticsStartTimeNs = System.nanoTime();
+  }
+
+  /**
+   * Compiles the conversion program into GlProgramCache. Must be called on a thread with a current
+   * context.
+   */
+  static void prewarmProgram() {
+    GlProgramCache.release(GlProgramCache.acquire(VERTEX_SHADER, FRAGMENT_SHADER));
+  }
+
+  /**
+   * Returns true if the EGL context current on this thread can read pixels into pixel pack
+   * buffers, i.e. it is an EGL14 context with GLES3 support.
+   */
+  public static boolean isPixelPackBufferSupported() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2
+        || !EglBase14.isEGL14Supported()) {
+      return false;
+    }
+    return GlUtil.isGles3ContextCurrent();
   }
 
   public void convert(ByteBuffer buf, int width, int height, int stride, int srcTextureId,
@@ -115,7 +216,128 @@ class YuvConverter {
     if (released) {
       throw new IllegalStateException("YuvConverter.convert called on released object");
     }
+    checkStride(width, stride);
+    if (buf.capacity() < getBufferSize(height, stride)) {
+      throw new IllegalArgumentException("YuvConverter.convert called with too small buffer");
+    }
+
+    drawYuv(width, height, stride, srcTextureId, transformMatrix);
+
+    final long readStartTimeNs = System.nanoTime();
+    GLES20.glReadPixels(
+        0, 0, stride / 4, getTotalHeight(height), GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
+    final long readTimeNs = System.nanoTime() - readStartTimeNs;
+
+    GlUtil.checkNoGLES2Error("YuvConverter.convert");
+    restoreFrameBuffer();
+    updateStatistics(readTimeNs);
+  }
+
+  /**
+   * Convert |srcTextureId| like convert(), but deliver the result to |callback| later, from a
+   * subsequent convertAsync() or flush() call. The texture may be reused as soon as this function
+   * returns. Callbacks are delivered in submission order.
+   */
+  public void convertAsync(int width, int height, int stride, int srcTextureId,
+      float[] transformMatrix, long timestampNs, ReadbackCallback callback) {
+    threadChecker.checkIsOnValidThread();
+    if (released) {
+      throw new IllegalStateException("YuvConverter.convertAsync called on released object");
+    }
+    checkStride(width, stride);
+    final int size = getBufferSize(height, stride);
+
+    if (readbacks == null) {
+      if (fallbackBuffer == null || fallbackBuffer.capacity() < size) {
+        fallbackBuffer = ByteBuffer.allocateDirect(size);
+      }
+      fallbackBuffer.clear();
+      convert(fallbackBuffer, width, height, stride, srcTextureId, transformMatrix);
+      callback.onReadback(fallbackBuffer, width, height, stride, timestampNs);
+      return;
+    }
+
+    final PendingReadback readback = readbacks[nextReadbackIndex];
+    if (readback.callback != null) {
+      // Should not happen since the slot is drained below, but keep the ring consistent.
+      deliverReadback(readback);
+    }
+    drawYuv(width, height, stride, srcTextureId, transformMatrix);
+    queueReadback(readback, size, stride / 4, getTotalHeight(height));
+    readback.size = size;
+    readback.width = width;
+    readback.height = height;
+    readback.stride = stride;
+    readback.timestampNs = timestampNs;
+    readback.callback = callback;
+    restoreFrameBuffer();
+
+    nextReadbackIndex = (nextReadbackIndex + 1) % readbacks.length;
+    // Deliver the oldest frame, whose readback has been overlapping the draws issued since.
+    final PendingReadback oldest = readbacks[nextReadbackIndex];
+    if (oldest.callback != null) {
+      deliverReadback(oldest);
+    }
+  }
+
+  /**
+   * Deliver all frames queued with convertAsync() that have not been delivered yet.
+   */
+  public void flush() {
+    threadChecker.checkIsOnValidThread();
+    if (readbacks == null) {
+      return;
+    }
+    for (int i = 0; i < readbacks.length; ++i) {
+      final PendingReadback readback = readbacks[(nextReadbackIndex + i) % readbacks.length];
+      if (readback.callback != null) {
+        deliverReadback(readback);
+      }
+    }
+  }
+
+  /**
+   * Returns true if convertAsync() pipelines readbacks through pixel pack buffers.
+   */
+  public boolean isPipelined() {
+    return readbacks != null;
+  }
+
+  /**
+   * Converted frames per second over the last statistics interval.
+   */
+  public float getConvertFps() {
+    return convertFps;
+  }
+
+  /**
+   * Average time per frame the converter thread was blocked on pixel readback over the last
+   * statistics interval.
+   */
+  public long getAverageStallTimeUs() {
+    return averageStallTimeUs;
+  }
+
+  private static void checkStride(int width, int stride) {
+    if (stride % 8 != 0) {
+      throw new IllegalArgumentException("Invalid stride, must be a multiple of 8");
+    }
+    if (stride < width) {
+      throw new IllegalArgumentException("Invalid stride, must >= width");
+    }
+  }
+
+  private static int getTotalHeight(int height) {
+    return height + (height + 1) / 2;
+  }
+
+  private static int getBufferSize(int height, int stride) {
+    return stride * getTotalHeight(height);
+  }
 
+  // Draws the YUV planes of |srcTextureId| into |textureFrameBuffer|, which is left bound.
+  private void drawYuv(
+      int width, int height, int stride, int srcTextureId, float[] transformMatrix) {
     // We draw into a buffer laid out like
     //
     //    +---------+
@@ -145,22 +367,11 @@ class YuvConverter {
     // larger pixel, it is not sufficient that |stride| is even, it
     // has to be a multiple of 8 pixels.
 
-    if (stride % 8 != 0) {
-      throw new IllegalArgumentException("Invalid stride, must be a multiple of 8");
-    }
-    if (stride < width) {
-      throw new IllegalArgumentException("Invalid stride, must >= width");
-    }
-
     int y_width = (width + 3) / 4;
     int uv_width = (width + 7) / 8;
     int uv_height = (height + 1) / 2;
     int total_height = height + uv_height;
-    int size = stride * total_height;
 
-    if (buf.capacity() < size) {
-      throw new IllegalArgumentException("YuvConverter.convert called with too small buffer");
-    }
     // Produce a frame buffer starting at top-left corner, not
     // bottom-left.
     transformMatrix =
@@ -200,12 +411,9 @@ class YuvConverter {
     GLES20.glViewport(stride / 8, height, uv_width, uv_height);
     GLES20.glUniform4f(coeffsLoc, 0.499f, -0.418f, -0.0813f, 0.5f);
     GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+  }
 
-    GLES20.glReadPixels(
-        0, 0, frameBufferWidth, frameBufferHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
-
-    GlUtil.checkNoGLES2Error("YuvConverter.convert");
-
+  private void restoreFrameBuffer() {
     // Restore normal framebuffer.
     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
@@ -215,10 +423,100 @@ class YuvConverter {
     GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
   }
 
+  @TargetApi(18)
+  private static PendingReadback[] createReadbacks(int depth) {
+    final int[] pboIds = new int[depth];
+    GLES30.glGenBuffers(depth, pboIds, 0);
+    GlUtil.checkNoGLES2Error("glGenBuffers");
+    final PendingReadback[] readbacks = new PendingReadback[depth];
+    for (int i = 0; i < depth; ++i) {
+      readbacks[i] = new PendingReadback(pboIds[i]);
+    }
+    return readbacks;
+  }
+
+  // Starts an asynchronous read of the bound framebuffer into the pixel pack buffer of |readback|.
+  @TargetApi(18)
+  private static void queueReadback(
+      PendingReadback readback, int size, int frameBufferWidth, int frameBufferHeight) {
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, readback.pboId);
+    if (readback.capacity < size) {
+      GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+      readback.capacity = size;
+    }
+    GLES30.glReadPixels(0, 0, frameBufferWidth, frameBufferHeight, GLES30.GL_RGBA,
+        GLES30.GL_UNSIGNED_BYTE, 0 /* offset */);
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    GlUtil.checkNoGLES2Error("YuvConverter.queueReadback");
+  }
+
+  @TargetApi(18)
+  private void deliverReadback(PendingReadback readback) {
+    final ReadbackCallback callback = readback.callback;
+    readback.callback = null;
+
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, readback.pboId);
+    final long mapStartTimeNs = System.nanoTime();
+    final ByteBuffer buf = (ByteBuffer) GLES30.glMapBufferRange(
+        GLES30.GL_PIXEL_PACK_BUFFER, 0 /* offset */, readback.size, GLES30.GL_MAP_READ_BIT);
+    final long mapTimeNs = System.nanoTime() - mapStartTimeNs;
+    if (buf == null) {
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+      Logging.e(TAG, "Failed to map pixel pack buffer, dropping frame.");
+      return;
+    }
+    try {
+      callback.onReadback(
+          buf, readback.width, readback.height, readback.stride, readback.timestampNs);
+    } finally {
+      GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+    GlUtil.checkNoGLES2Error("YuvConverter.deliverReadback");
+    updateStatistics(mapTimeNs);
+  }
+
+  private void updateStatistics(long frameStallTimeNs) {
+    ++framesConverted;
+    stallTimeNs += frameStallTimeNs;
+    final long currentTimeNs = System.nanoTime();
+    final long elapsedTimeNs = currentTimeNs - statisticsStartTimeNs;
+    if (elapsedTimeNs < TimeUnit.SECONDS.toNanos(LOG_INTERVAL_SEC)) {
+      return;
+    }
+    convertFps = framesConverted * TimeUnit.SECONDS.toNanos(1) / (float) elapsedTimeNs;
+    averageStallTimeUs = TimeUnit.NANOSECONDS.toMicros(stallTimeNs / framesConverted);
+    Logging.d(TAG, "Duration: " + TimeUnit.NANOSECONDS.toMillis(elapsedTimeNs) + " ms."
+        + " Frames converted: " + framesConverted + "."
+        + " Convert fps: " + String.format(Locale.US, "%.1f", convertFps) + "."
+        + " Average stall time: " + averageStallTimeUs + " μs."
+        + " Pipelined: " + isPipelined() + ".");
+    framesConverted = 0;
+    stallTimeNs = 0;
+    statisticsStartTimeNs = currentTimeNs;
+  }
+
+  /**
+   * Release GL resources. Frames queued with convertAsync() and not yet delivered are dropped; call
+   * flush() first to receive them.
+   */
   public void release() {
     threadChecker.checkIsOnValidThread();
     released = true;
-    shader.release();
+    GlProgramCache.release(shader);
     textureFrameBuffer.release();
+    if (readbacks != null) {
+      releaseReadbacks(readbacks);
+    }
+  }
+
+  @TargetApi(18)
+  private static void releaseReadbacks(PendingReadback[] readbacks) {
+    final int[] pboIds = new int[readbacks.length];
+    for (int i = 0; i < readbacks.length; ++i) {
+      pboIds[i] = readbacks[i].pboId;
+      readbacks[i].callback = null;
+    }
+    GLES30.glDeleteBuffers(pboIds.length, pboIds, 0);
   }
 }
@@ -0,0 +1,205 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.peer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DownlinkBandwidthAllocatorTest {
+    private static class FakeTarget implements DownlinkBandwidthAllocator.Target {
+        final Map<String, Integer> limits = new HashMap<>();
+
+        @Override
+        public void setReceiveBandwidthLimit(String connectionId, int limitKbps) {
+            limits.put(connectionId, limitKbps);
+        }
+    }
+
+    private static class RecordingListener implements DownlinkBandwidthAllocator.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onSubscriptionPaused(String connectionId, boolean paused) {
+            events.add(connectionId + (paused ? " paused" : " resumed"));
+        }
+
+        @Override
+        public void onAllocationChanged(DownlinkBandwidthAllocator.Metrics metrics) {
+        }
+    }
+
+    private FakeTarget target;
+    private RecordingListener listener;
+    private DownlinkBandwidthAllocator allocator;
+
+    @Before
+    public void setUp() {
+        target = new FakeTarget();
+        listener = new RecordingListener();
+        allocator = new DownlinkBandwidthAllocator(target);
+        allocator.setListener(listener);
+    }
+
+    private static StatsReport[] createReports(int availableReceiveBandwidthKbps) {
+        return new StatsReport[] {new StatsReport("bweforvideo", "VideoBwe", 0,
+                new StatsReport.Value[] {new StatsReport.Value("googAvailableReceiveBandwidth",
+                        Integer.toString(availableReceiveBandwidthKbps * 1000))})};
+    }
+
+    @Test
+    public void testSharesBudgetByPriority() {
+        allocator.setBudgetCap(1000);
+        allocator.addSubscription("a");
+        allocator.addSubscription("b");
+        allocator.setPriority("a", DownlinkBandwidthAllocator.Priority.ACTIVE_SPEAKER);
+
+        // Minimums of 300 and 150 kbps, then the remaining 550 kbps by weights 8 and 3.
+        assertEquals(700, allocator.getAllocatedBitrateKbps("a"));
+        assertEquals(300, allocator.getAllocatedBitrateKbps("b"));
+        assertEquals(1000, allocator.getMetrics().allocatedKbps);
+    }
+
+    @Test
+    public void testSharesAreCappedAtPriorityMaximum() {
+        allocator.addSubscription("a");
+        // The default budget exceeds the 600 kbps maximum of a visible subscription.
+        assertEquals(600, allocator.getAllocatedBitrateKbps("a"));
+    }
+
+    @Test
+    public void testPausesSubscriptionWhoseMinimumDoesNotFit() {
+        allocator.addSubscription("a");
+        allocator.addSubscription("b");
+        allocator.setBudgetCap(200);
+
+        assertEquals(200, allocator.getAllocatedBitrateKbps("a"));
+        assertEquals(0, allocator.getAllocatedBitrateKbps("b"));
+        assertEquals(1, allocator.getMetrics().pausedSubscriptions);
+        assertEquals("b paused", listener.events.get(0));
+
+        allocator.setBudgetCap(0);
+        assertEquals("b resumed", listener.events.get(1));
+        assertEquals(0, allocator.getMetrics().pausedSubscriptions);
+    }
+
+    @Test
+    public void testLowerPrioritiesArePausedWhenHigherMinimumDoesNotFit() {
+        allocator.addSubscription("a");
+        allocator.addSubscription("b");
+        allocator.addSubscription("c");
+        allocator.setPriority("a", DownlinkBandwidthAllocator.Priority.ACTIVE_SPEAKER);
+        allocator.setPriority("c", DownlinkBandwidthAllocator.Priority.THUMBNAIL);
+        allocator.setBudgetCap(250);
+
+        // The minimums of b and c would fit, but a is paused, so they are too.
+        assertEquals(0, allocator.getAllocatedBitrateKbps("a"));
+        assertEquals(0, allocator.getAllocatedBitrateKbps("b"));
+        assertEquals(0, allocator.getAllocatedBitrateKbps("c"));
+        assertEquals(3, allocator.getMetrics().pausedSubscriptions);
+
+        allocator.setBudgetCap(400);
+        assertEquals(400, allocator.getAllocatedBitrateKbps("a"));
+        assertEquals(0, allocator.getAllocatedBitrateKbps("b"));
+        assertEquals(2, allocator.getMetrics().pausedSubscriptions);
+    }
+
+    @Test
+    public void testPausedSubscriptionsKeepTheirEstimate() {
+        allocator.addSubscription("a");
+        allocator.addSubscription("b");
+        allocator.addSubscription("c");
+        for (int i = 0; i < 20; ++i) {
+            allocator.onStats("a", createReports(300));
+            allocator.onStats("b", createReports(300));
+            allocator.onStats("c", createReports(300));
+        }
+        assertEquals(900, allocator.getMetrics().estimatedKbps, 10);
+
+        allocator.setBudgetCap(400);
+        assertEquals(1, allocator.getMetrics().pausedSubscriptions);
+
+        // The paused subscription no longer receives video, so its own estimate collapses.
+        for (int i = 0; i < 10; ++i) {
+            allocator.onStats("a", createReports(300));
+            allocator.onStats("b", createReports(300));
+            allocator.onStats("c", createReports(10));
+        }
+        assertEquals(900, allocator.getMetrics().estimatedKbps, 10);
+    }
+
+    @Test
+    public void testTargetGetsChangedAllocations() {
+        allocator.addSubscription("a");
+        assertEquals(600, (int) target.limits.get("a"));
+
+        allocator.setBudgetCap(300);
+        assertEquals(300, (int) target.limits.get("a"));
+
+        allocator.addSubscription("b");
+        assertEquals(150, (int) target.limits.get("a"));
+        assertEquals(150, (int) target.limits.get("b"));
+    }
+
+    @Test
+    public void testListenerIsCalledWithoutLock() {
+        final boolean[] lockFree = new boolean[1];
+        allocator.setListener(new DownlinkBandwidthAllocator.Listener() {
+            @Override
+            public void onSubscriptionPaused(String connectionId, boolean paused) {
+            }
+
+            @Override
+            public void onAllocationChanged(DownlinkBandwidthAllocator.Metrics metrics) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        allocator.getMetrics();
+                    }
+                });
+                thread.start();
+                try {
+                    thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                lockFree[0] = !thread.isAlive();
+            }
+        });
+        allocator.addSubscription("a");
+        assertTrue(lockFree[0]);
+    }
+
+    @Test
+    public void testRemovedSubscriptionIsForgotten() {
+        allocator.addSubscription("a");
+        allocator.removeSubscription("a");
+        assertFalse(allocator.isSubscription("a"));
+        assertEquals(0, allocator.getAllocatedBitrateKbps("a"));
+        assertEquals(0, allocator.getMetrics().allocations.size());
+    }
+}
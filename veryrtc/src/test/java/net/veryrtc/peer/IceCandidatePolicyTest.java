@@ -0,0 +1,61 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.peer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+public class IceCandidatePolicyTest {
+    @Test
+    public void testEqualPoliciesAreEqual() {
+        final IceCandidatePolicy policy = new IceCandidatePolicy(
+                IceCandidatePolicy.RelayMode.RELAY_LAST, 1500, true, 2, false, true);
+        final IceCandidatePolicy other = new IceCandidatePolicy(
+                IceCandidatePolicy.RelayMode.RELAY_LAST, 1500, true, 2, false, true);
+        assertEquals(policy, other);
+        assertEquals(policy.hashCode(), other.hashCode());
+        assertEquals(new IceCandidatePolicy(), new IceCandidatePolicy());
+    }
+
+    @Test
+    public void testDifferentPoliciesAreNotEqual() {
+        final IceCandidatePolicy policy = new IceCandidatePolicy();
+        assertFalse(policy.equals(new IceCandidatePolicy(
+                IceCandidatePolicy.RelayMode.ALL, 1000, false, 0, true, true)));
+        assertFalse(policy.equals(new IceCandidatePolicy(
+                IceCandidatePolicy.RelayMode.ALL, 2000, false, 0, false, true)));
+        assertFalse(policy.equals(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNullRelayMode() {
+        new IceCandidatePolicy(null, 1000, false, 0, false, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeRelayDelay() {
+        new IceCandidatePolicy(IceCandidatePolicy.RelayMode.RELAY_LAST, -1, false, 0, false, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeCandidatesPerNetwork() {
+        new IceCandidatePolicy(IceCandidatePolicy.RelayMode.ALL, 1000, false, -1, false, true);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.peer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.veryrtc.util.LooperExecutor;
+
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LocalIceCandidateFilterTest {
+    private static final long RELAY_DELAY_MS = 1000;
+
+    private static final IceCandidate HOST = createCandidate(
+            "candidate:1 1 udp 2122260223 192.168.1.2 50000 typ host generation 0 ufrag abcd"
+                    + " network-id 1");
+    private static final IceCandidate SRFLX = createCandidate(
+            "candidate:2 1 udp 1686052607 203.0.113.5 40000 typ srflx raddr 192.168.1.2"
+                    + " rport 50000 generation 0 ufrag abcd network-id 1");
+    // Another interface behind the same NAT.
+    private static final IceCandidate SRFLX_SAME_ADDRESS = createCandidate(
+            "candidate:3 1 udp 1686052351 203.0.113.5 40000 typ srflx raddr 10.0.0.2"
+                    + " rport 50002 generation 0 ufrag abcd network-id 2");
+    private static final IceCandidate RELAY = createCandidate(
+            "candidate:4 1 udp 41885439 198.51.100.7 3478 typ relay raddr 203.0.113.5"
+                    + " rport 40000 generation 0 ufrag abcd network-id 1");
+
+    // Keeps the delayed tasks until the test runs them.
+    private static class FakeExecutor extends LooperExecutor {
+        final List<Runnable> delayedTasks = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+
+        @Override
+        public boolean postDelayed(Runnable runnable, long delayMs) {
+            delayedTasks.add(runnable);
+            delays.add(delayMs);
+            return true;
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            final int index = delayedTasks.indexOf(runnable);
+            if (index >= 0) {
+                delayedTasks.remove(index);
+                delays.remove(index);
+            }
+        }
+
+        void runDelayedTasks() {
+            while (!delayedTasks.isEmpty()) {
+                delays.remove(0);
+                delayedTasks.remove(0).run();
+            }
+        }
+    }
+
+    private final FakeExecutor executor = new FakeExecutor();
+    private final List<IceCandidate> signaled = new ArrayList<>();
+
+    private static IceCandidate createCandidate(String sdp) {
+        return new IceCandidate("audio", 0, sdp);
+    }
+
+    private LocalIceCandidateFilter createFilter(IceCandidatePolicy.RelayMode relayMode,
+                                                 boolean filterRedundant,
+                                                 int maxCandidatesPerNetwork) {
+        final IceCandidatePolicy policy = new IceCandidatePolicy(relayMode, RELAY_DELAY_MS,
+                filterRedundant, maxCandidatesPerNetwork, false /* tcpCandidates */,
+                true /* gatherContinually */);
+        return new LocalIceCandidateFilter(policy, executor,
+                new LocalIceCandidateFilter.Listener() {
+                    @Override
+                    public void onSignalCandidate(IceCandidate candidate) {
+                        signaled.add(candidate);
+                    }
+                });
+    }
+
+    private static void addAll(LocalIceCandidateFilter filter, IceCandidate... candidates) {
+        for (IceCandidate candidate : candidates) {
+            filter.onLocalCandidate(candidate);
+        }
+    }
+
+    @Test
+    public void testDefaultPolicySignalsAll() {
+        final LocalIceCandidateFilter filter =
+                createFilter(IceCandidatePolicy.RelayMode.ALL, false, 0);
+        addAll(filter, HOST, SRFLX, SRFLX_SAME_ADDRESS, RELAY);
+        assertEquals(4, signaled.size());
+        assertTrue(executor.delayedTasks.isEmpty());
+    }
+
+    @Test
+    public void testRelayOnlyExcludesOtherCandidates() {
+        final LocalIceCandidateFilter filter =
+                createFilter(IceCandidatePolicy.RelayMode.RELAY_ONLY, false, 0);
+        addAll(filter, HOST, SRFLX, RELAY);
+        assertEquals(1, signaled.size());
+        assertSame(RELAY, signaled.get(0));
+    }
+
+    @Test
+    public void testRedundantAddressIsDropped() {
+        final LocalIceCandidateFilter filter =
+                createFilter(IceCandidatePolicy.RelayMode.ALL, true, 0);
+        addAll(filter, HOST, SRFLX, SRFLX_SAME_ADDRESS);
+        assertEquals(2, signaled.size());
+        assertSame(SRFLX, signaled.get(1));
+    }
+
+    @Test
+    public void testNetworkCapDoesNotCountRelay() {
+        final LocalIceCandidateFilter filter =
+                createFilter(IceCandidatePolicy.RelayMode.ALL, false, 1);
+        addAll(filter, HOST, SRFLX, SRFLX_SAME_ADDRESS, RELAY);
+        // The reflexive candidate of network 1 is over the cap, the one of network 2 is not.
+        assertEquals(3, signaled.size());
+        assertSame(HOST, signaled.get(0));
+        assertSame(SRFLX_SAME_ADDRESS, signaled.get(1));
+        assertSame(RELAY, signaled.get(2));
+    }
+
+    @Test
+    public void testUnknownFormatIsSignaled() {
+        final LocalIceCandidateFilter filter =
+                createFilter(IceCandidatePolicy.RelayMode.RELAY_ONLY, true, 1);
+        final IceCandidate candidate = createCandidate("candidate:1 1 udp");
+        filter.onLocalCandidate(candidate);
+        assertSame(candidate, signaled.get(0));
+    }
+
+    @Test
+    public void testRelayDelayStartsWithRemoteDescription() {
+        final LocalIceCandidateFilter filter =
+                createFilter(IceCandidatePolicy.RelayMode.RELAY_LAST, false, 0);
+        addAll(filter, HOST, RELAY);
+        assertEquals(1, signaled.size());
+        // Gathering alone does not start the delay.
+        assertTrue(executor.delayedTasks.isEmpty());
+
+        filter.onRemoteDescriptionSet();
+        filter.onIceConnectionChange(PeerConnection.IceConnectionState.CHECKING);
+        assertEquals(1, executor.delayedTasks.size());
+        assertEquals(RELAY_DELAY_MS, (long) executor.delays.get(0));
+
+        executor.runDelayedTasks();
+        assertEquals(2, signaled.size());
+        assertSame(RELAY, signaled.get(1));
+    }
+
+    @Test
+    public void testRelayDelayStartsWithChecking() {
+        final LocalIceCandidateFilter filter =
+                createFilter(IceCandidatePolicy.RelayMode.RELAY_LAST, false, 0);
+        filter.onIceConnectionChange(PeerConnection.IceConnectionState.CHECKING);
+        assertEquals(1, executor.delayedTasks.size());
+        executor.runDelayedTasks();
+
+        // Once the delay has elapsed, relay candidates are signaled right away.
+        addAll(filter, RELAY);
+        assertSame(RELAY, signaled.get(0));
+    }
+
+    @Test
+    public void testRelayIsWithheldWhenConnectedUntilFailure() {
+        final LocalIceCandidateFilter filter =
+                createFilter(IceCandidatePolicy.RelayMode.RELAY_LAST, false, 0);
+        filter.onRemoteDescriptionSet();
+        addAll(filter, HOST, RELAY);
+        filter.onIceConnectionChange(PeerConnection.IceConnectionState.CONNECTED);
+        executor.runDelayedTasks();
+        assertEquals(1, signaled.size());
+
+        filter.onIceConnectionChange(PeerConnection.IceConnectionState.FAILED);
+        assertEquals(2, signaled.size());
+        assertSame(RELAY, signaled.get(1));
+    }
+
+    @Test
+    public void testRemovalReportsSignaledCandidatesOnly() {
+        final LocalIceCandidateFilter filter =
+                createFilter(IceCandidatePolicy.RelayMode.RELAY_LAST, false, 0);
+        addAll(filter, HOST, RELAY);
+
+        // The reflexive candidate was never gathered and the relay candidate is still held back.
+        final IceCandidate[] removed =
+                filter.onLocalCandidatesRemoved(new IceCandidate[] {HOST, SRFLX, RELAY});
+        assertEquals(1, removed.length);
+        assertSame(HOST, removed[0]);
+
+        // The removed relay candidate is not signaled when the delay elapses.
+        filter.onRemoteDescriptionSet();
+        executor.runDelayedTasks();
+        assertEquals(1, signaled.size());
+    }
+
+    @Test
+    public void testReleaseCancelsRelayDelay() {
+        final LocalIceCandidateFilter filter =
+                createFilter(IceCandidatePolicy.RelayMode.RELAY_LAST, false, 0);
+        filter.onRemoteDescriptionSet();
+        filter.release();
+        assertTrue(executor.delayedTasks.isEmpty());
+    }
+}
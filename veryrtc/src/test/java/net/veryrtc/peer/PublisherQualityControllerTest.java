@@ -0,0 +1,192 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.peer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.veryrtc.util.Clock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PublisherQualityControllerTest {
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    private static class FakeClock implements Clock {
+        long nowMs = 100000;
+
+        @Override
+        public long elapsedRealtime() {
+            return nowMs;
+        }
+    }
+
+    private static class FakeTarget implements PublisherQualityController.Target {
+        final List<Integer> maxBitrates = new ArrayList<>();
+        int width;
+        int cpuUsagePercent = -1;
+
+        @Override
+        public void setCaptureFormat(int width, int height, int fps) {
+            this.width = width;
+        }
+
+        @Override
+        public void setMaxBitrate(int maxBitrateKbps) {
+            maxBitrates.add(maxBitrateKbps);
+        }
+
+        @Override
+        public int getCpuUsageAverage() {
+            return cpuUsagePercent;
+        }
+
+        int getLastMaxBitrate() {
+            return maxBitrates.get(maxBitrates.size() - 1);
+        }
+    }
+
+    private FakeClock clock;
+    private FakeTarget target;
+    private PublisherQualityController controller;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        target = new FakeTarget();
+        controller = new PublisherQualityController(
+                PublisherQualityController.createDefaultLadder(1280, 720, 30, 0), target, clock);
+    }
+
+    private static StatsReport[] createReports(int availableSendBandwidthKbps) {
+        final StatsReport ssrc = new StatsReport("ssrc_1234_send", "ssrc", 0,
+                new StatsReport.Value[] {
+                        new StatsReport.Value("googTrackId", Constants.VIDEO_TRACK_ID)});
+        final StatsReport bwe = new StatsReport("bweforvideo", "VideoBwe", 0,
+                new StatsReport.Value[] {new StatsReport.Value("googAvailableSendBandwidth",
+                        Integer.toString(availableSendBandwidthKbps * 1000))});
+        return new StatsReport[] {ssrc, bwe};
+    }
+
+    private void feed(int availableSendBandwidthKbps, int samples) {
+        for (int i = 0; i < samples; ++i) {
+            clock.nowMs += SAMPLE_INTERVAL_MS;
+            controller.onStats(createReports(availableSendBandwidthKbps));
+        }
+    }
+
+    // Steps down from the best rung, then waits until the controller starts a probe.
+    private void stepDownAndStartProbe() {
+        feed(500, 3);
+        assertEquals(600, controller.getCurrentRung().maxBitrateKbps);
+        feed(900, 10);
+    }
+
+    @Test
+    public void testUnlimitedBestRungStaysUnlimited() {
+        final List<PublisherQualityController.Rung> ladder =
+                PublisherQualityController.createDefaultLadder(1280, 720, 30, 0);
+        assertEquals(0, ladder.get(0).maxBitrateKbps);
+        assertEquals(600, ladder.get(1).maxBitrateKbps);
+        assertEquals(0, controller.getMaxBitrateKbps());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeBitrate() {
+        new PublisherQualityController.Rung(640, 480, 30, -1);
+    }
+
+    @Test
+    public void testStepsDownAfterOverusedSamples() {
+        feed(500, 2);
+        assertEquals(1280, controller.getCurrentRung().width);
+        feed(500, 1);
+        assertEquals(960, controller.getCurrentRung().width);
+        assertEquals(960, target.width);
+        assertEquals(600, target.getLastMaxBitrate());
+    }
+
+    @Test
+    public void testProbeLiftsCapBeforeSteppingUp() {
+        stepDownAndStartProbe();
+        // The cap of the best rung is applied while the video stays at the lower rung.
+        assertEquals(0, target.getLastMaxBitrate());
+        assertEquals(960, controller.getCurrentRung().width);
+
+        feed(900, 3);
+        assertEquals(1280, controller.getCurrentRung().width);
+        assertEquals(0, target.getLastMaxBitrate());
+    }
+
+    @Test
+    public void testFailedProbeRestoresCapAndDoublesHold() {
+        stepDownAndStartProbe();
+        assertEquals(0, target.getLastMaxBitrate());
+
+        // The estimate fits the current rung but does not follow the lifted cap.
+        feed(800, 10);
+        assertEquals(960, controller.getCurrentRung().width);
+        assertEquals(600, target.getLastMaxBitrate());
+
+        // The next probe waits twice as long.
+        final int changes = target.maxBitrates.size();
+        feed(900, 19);
+        assertEquals(changes, target.maxBitrates.size());
+        feed(900, 1);
+        assertEquals(0, target.getLastMaxBitrate());
+    }
+
+    @Test
+    public void testCpuOveruseEndsProbe() {
+        stepDownAndStartProbe();
+        target.cpuUsagePercent = 70;
+        feed(900, 1);
+        assertEquals(600, target.getLastMaxBitrate());
+        assertEquals(960, controller.getCurrentRung().width);
+    }
+
+    @Test
+    public void testListenerIsCalledWithoutLock() {
+        final boolean[] lockFree = new boolean[1];
+        controller.setListener(new PublisherQualityController.Listener() {
+            @Override
+            public void onQualityChanged(PublisherQualityController.Rung rung, String reason) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        controller.getCurrentRung();
+                    }
+                });
+                thread.start();
+                try {
+                    thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                lockFree[0] = !thread.isAlive();
+            }
+        });
+        feed(500, 3);
+        assertTrue(lockFree[0]);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * (C) Copyright 2016 VTT (http://www.vtt.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.veryrtc.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.veryrtc.peer.DownlinkBandwidthAllocator;
+import net.veryrtc.peer.VeryRTCPeer;
+import net.veryrtc.util.Clock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ActiveSpeakerSubscriptionManagerTest {
+    private static final int LOUD = 10000;
+    private static final int QUIET = 100;
+
+    private static class FakeClock implements Clock {
+        long nowMs = 100000;
+
+        @Override
+        public long elapsedRealtime() {
+            return nowMs;
+        }
+    }
+
+    // Queues the tasks until the test runs them, like the executor of the peer.
+    private static class FakeTarget implements ActiveSpeakerSubscriptionManager.Target {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<String> unsubscribed = new ArrayList<>();
+        final Map<String, DownlinkBandwidthAllocator.Priority> priorities = new HashMap<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        @Override
+        public void subscribe(String connectionId, boolean video) {
+        }
+
+        @Override
+        public void unsubscribe(String userId, String streamId, String connectionId) {
+            unsubscribed.add(userId);
+        }
+
+        @Override
+        public void setPriority(String connectionId,
+                                DownlinkBandwidthAllocator.Priority priority) {
+            priorities.put(connectionId, priority);
+        }
+
+        @Override
+        public void removeConnectionStatsListener(VeryRTCPeer.ConnectionStatsListener listener) {
+        }
+
+        void runTasks() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private FakeClock clock;
+    private FakeTarget target;
+    private ActiveSpeakerSubscriptionManager manager;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        target = new FakeTarget();
+        manager = new ActiveSpeakerSubscriptionManager(target, clock, 1);
+        for (String userId : new String[] {"a", "b", "c"}) {
+            manager.addParticipant(userId, "webcam", userId + "_connection");
+        }
+        target.runTasks();
+    }
+
+    private static StatsReport[] createReports(int audioOutputLevel) {
+        return new StatsReport[] {new StatsReport("ssrc_1234_recv", "ssrc", 0,
+                new StatsReport.Value[] {new StatsReport.Value("audioOutputLevel",
+                        Integer.toString(audioOutputLevel))})};
+    }
+
+    // Advances the clock by a second and delivers one level per participant.
+    private void feed(int levelA, int levelB, int levelC) {
+        clock.nowMs += 1000;
+        manager.onConnectionStats("a_connection", createReports(levelA));
+        manager.onConnectionStats("b_connection", createReports(levelB));
+        manager.onConnectionStats("c_connection", createReports(levelC));
+        target.runTasks();
+    }
+
+    @Test
+    public void testFirstParticipantsGetVideo() {
+        assertEquals(Arrays.asList("a"), manager.getVideoSubscriptions());
+        assertTrue(target.unsubscribed.isEmpty());
+    }
+
+    @Test
+    public void testStatsAreAppliedOnExecutor() {
+        clock.nowMs += 10000;
+        manager.onConnectionStats("b_connection", createReports(LOUD));
+        manager.onConnectionStats("b_connection", createReports(LOUD));
+        manager.onConnectionStats("b_connection", createReports(LOUD));
+        assertEquals(3, target.tasks.size());
+        assertEquals(Arrays.asList("a"), manager.getVideoSubscriptions());
+
+        target.runTasks();
+        assertEquals(Arrays.asList("b"), manager.getVideoSubscriptions());
+    }
+
+    @Test
+    public void testLoudSpeakerWaitsForDwellTime() {
+        for (int i = 0; i < 7; ++i) {
+            feed(QUIET, LOUD, QUIET);
+        }
+        assertEquals(Arrays.asList("a"), manager.getVideoSubscriptions());
+        feed(QUIET, LOUD, QUIET);
+        assertEquals(Arrays.asList("b"), manager.getVideoSubscriptions());
+        assertEquals(Arrays.asList("a"), target.unsubscribed.subList(0, 1));
+        assertEquals(DownlinkBandwidthAllocator.Priority.ACTIVE_SPEAKER,
+                target.priorities.get("b_connection"));
+    }
+
+    @Test
+    public void testSpeakerMustBeClearlyLouder() {
+        for (int i = 0; i < 20; ++i) {
+            feed(LOUD, LOUD * 4 / 3, QUIET);
+        }
+        assertEquals(Arrays.asList("a"), manager.getVideoSubscriptions());
+    }
+
+    @Test
+    public void testFillsFreeSlotsOnePerSwitchInterval() {
+        clock.nowMs += 10000;
+        manager.setMaxVideoSubscriptions(3);
+        target.runTasks();
+        assertEquals(2, manager.getVideoSubscriptions().size());
+
+        feed(QUIET, QUIET, QUIET);
+        assertEquals(2, manager.getVideoSubscriptions().size());
+        feed(QUIET, QUIET, QUIET);
+        assertEquals(3, manager.getVideoSubscriptions().size());
+    }
+
+    @Test
+    public void testGivesUpSlotsOnePerSwitchInterval() {
+        clock.nowMs += 10000;
+        manager.setMaxVideoSubscriptions(3);
+        target.runTasks();
+        feed(LOUD, QUIET, QUIET);
+        feed(LOUD, QUIET, QUIET);
+        assertEquals(3, manager.getVideoSubscriptions().size());
+
+        clock.nowMs += 10000;
+        manager.setMaxVideoSubscriptions(1);
+        target.runTasks();
+        assertEquals(2, manager.getVideoSubscriptions().size());
+        feed(LOUD, QUIET, QUIET);
+        assertEquals(2, manager.getVideoSubscriptions().size());
+        feed(LOUD, QUIET, QUIET);
+        assertEquals(Arrays.asList("a"), manager.getVideoSubscriptions());
+    }
+
+    @Test
+    public void testPinnedParticipantGetsVideoImmediately() {
+        manager.setPinned("c", true);
+        target.runTasks();
+        assertEquals(Arrays.asList("a", "c"), manager.getVideoSubscriptions());
+        assertEquals(DownlinkBandwidthAllocator.Priority.PINNED,
+                target.priorities.get("c_connection"));
+    }
+}
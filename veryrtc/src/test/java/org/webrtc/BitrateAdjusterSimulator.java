@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Replays encoded frame size traces through a BitrateAdjuster, without a device or a codec. A trace
+ * stores, per frame, how large the encoder made the frame relative to the size expected from the
+ * bitrate it was configured with. During replay the simulated encoder applies the same ratio to the
+ * bitrate the adjuster currently asks for, so the adjuster's feedback loop is closed.
+ */
+class BitrateAdjusterSimulator {
+  // Width of the window over which the output bitrate is measured.
+  private static final double MEASUREMENT_WINDOW_SEC = 1.0;
+  // The output is considered converged while it stays within this fraction of the target.
+  private static final double CONVERGENCE_TOLERANCE = 0.15;
+
+  private static final double BITS_PER_BYTE = 8.0;
+
+  /** Frame size trace, expressed relative to the bitrate the encoder was configured with. */
+  public static class Trace {
+    public final int fps;
+    // Encoded frame size divided by the frame size expected from the configured bitrate.
+    public final double[] frameSizeRatios;
+    // Frame indices at which a disturbance, e.g. a scene change, starts.
+    public final int[] disturbanceFrames;
+
+    public Trace(int fps, double[] frameSizeRatios, int[] disturbanceFrames) {
+      if (fps <= 0) {
+        throw new IllegalArgumentException("Invalid fps: " + fps);
+      }
+      this.fps = fps;
+      this.frameSizeRatios = frameSizeRatios;
+      this.disturbanceFrames = disturbanceFrames;
+    }
+
+    /**
+     * Creates a trace from frame sizes recorded on a device while the encoder was configured with
+     * |configuredBitrateBps|.
+     */
+    public static Trace fromRecordedFrames(
+        int[] frameSizesBytes, int configuredBitrateBps, int fps, int[] disturbanceFrames) {
+      final double expectedBytesPerFrame = configuredBitrateBps / BITS_PER_BYTE / fps;
+      final double[] ratios = new double[frameSizesBytes.length];
+      for (int i = 0; i < frameSizesBytes.length; ++i) {
+        ratios[i] = frameSizesBytes[i] / expectedBytesPerFrame;
+      }
+      return new Trace(fps, ratios, disturbanceFrames);
+    }
+
+    /**
+     * Creates a synthetic trace of |durationSec| seconds. The encoder hits its target with some
+     * per-frame noise, produces a key frame of |keyFrameRatio| times the average size every
+     * |keyFrameIntervalSec| seconds, and overshoots by |overshootRatio| for |overshootSec|
+     * seconds after each scene change.
+     */
+    public static Trace synthetic(int fps, double durationSec, double keyFrameIntervalSec,
+        double keyFrameRatio, double[] sceneChangesSec, double overshootRatio, double overshootSec,
+        double noise, long seed) {
+      final Random random = new Random(seed);
+      final int frameCount = (int) (durationSec * fps);
+      final double[] ratios = new double[frameCount];
+      final int keyFrameInterval = (int) (keyFrameIntervalSec * fps);
+      final int overshootFrames = (int) (overshootSec * fps);
+      final int[] disturbanceFrames = new int[sceneChangesSec.length];
+      for (int i = 0; i < sceneChangesSec.length; ++i) {
+        disturbanceFrames[i] = (int) (sceneChangesSec[i] * fps);
+      }
+      for (int i = 0; i < frameCount; ++i) {
+        double ratio = 1.0 + noise * (2 * random.nextDouble() - 1);
+        for (int sceneChangeFrame : disturbanceFrames) {
+          if (i >= sceneChangeFrame && i < sceneChangeFrame + overshootFrames) {
+            ratio *= overshootRatio;
+          }
+        }
+        if (keyFrameInterval > 0 && (i % keyFrameInterval) == 0) {
+          ratio *= keyFrameRatio;
+        }
+        ratios[i] = ratio;
+      }
+      return new Trace(fps, ratios, disturbanceFrames);
+    }
+  }
+
+  /** How well an adjuster kept the output bitrate at the target. */
+  public static class Score {
+    // Mean absolute deviation of the per-window output bitrate from the target.
+    public final double meanErrorPercent;
+    // Largest per-window output bitrate above the target.
+    public final double maxOvershootPercent;
+    // Average time from the start of a disturbance until the output stays within tolerance.
+    public final double convergenceTimeSec;
+
+    public Score(double meanErrorPercent, double maxOvershootPercent, double convergenceTimeSec) {
+      this.meanErrorPercent = meanErrorPercent;
+      this.maxOvershootPercent = maxOvershootPercent;
+      this.convergenceTimeSec = convergenceTimeSec;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "Mean error: %.1f%%. Max overshoot: %.1f%%. Convergence: %.2f s.", meanErrorPercent,
+          maxOvershootPercent, convergenceTimeSec);
+    }
+  }
+
+  private BitrateAdjusterSimulator() {}
+
+  /**
+   * Replays |trace| through |adjuster| with a constant target bitrate and returns the output
+   * bitrate for each frame, measured over the preceding measurement window.
+   */
+  public static double[] simulate(BitrateAdjuster adjuster, Trace trace, int targetBitrateBps) {
+    adjuster.setTargets(targetBitrateBps, trace.fps);
+    final int windowFrames = Math.max(1, (int) (MEASUREMENT_WINDOW_SEC * trace.fps));
+    final double[] frameSizes = new double[trace.frameSizeRatios.length];
+    final double[] outputBitrateBps = new double[trace.frameSizeRatios.length];
+    double windowBytes = 0;
+    for (int i = 0; i < trace.frameSizeRatios.length; ++i) {
+      final double configuredBytesPerFrame =
+          adjuster.getAdjustedBitrateBps() / BITS_PER_BYTE / adjuster.getAdjustedFramerate();
+      frameSizes[i] = trace.frameSizeRatios[i] * configuredBytesPerFrame;
+      adjuster.reportEncodedFrame((int) frameSizes[i]);
+
+      windowBytes += frameSizes[i];
+      if (i >= windowFrames) {
+        windowBytes -= frameSizes[i - windowFrames];
+      }
+      final int framesInWindow = Math.min(i + 1, windowFrames);
+      outputBitrateBps[i] = windowBytes * BITS_PER_BYTE * trace.fps / framesInWindow;
+    }
+    return outputBitrateBps;
+  }
+
+  /** Replays |trace| through |adjuster| and scores the result. */
+  public static Score score(BitrateAdjuster adjuster, Trace trace, int targetBitrateBps) {
+    final double[] outputBitrateBps = simulate(adjuster, trace, targetBitrateBps);
+    final int windowFrames = Math.max(1, (int) (MEASUREMENT_WINDOW_SEC * trace.fps));
+
+    // Only score full measurement windows.
+    double errorSum = 0;
+    double maxOvershoot = 0;
+    int measurements = 0;
+    for (int i = windowFrames - 1; i < outputBitrateBps.length; ++i) {
+      final double relativeError = outputBitrateBps[i] / targetBitrateBps - 1;
+      errorSum += Math.abs(relativeError);
+      maxOvershoot = Math.max(maxOvershoot, relativeError);
+      ++measurements;
+    }
+
+    double convergenceSum = 0;
+    for (int disturbanceFrame : trace.disturbanceFrames) {
+      convergenceSum +=
+          convergenceTimeSec(outputBitrateBps, targetBitrateBps, disturbanceFrame, trace.fps);
+    }
+    final int disturbances = trace.disturbanceFrames.length;
+
+    return new Score(measurements == 0 ? 0 : 100 * errorSum / measurements, 100 * maxOvershoot,
+        disturbances == 0 ? 0 : convergenceSum / disturbances);
+  }
+
+  // Time from |startFrame| until the output bitrate enters the tolerance band and stays there for a
+  // full measurement window. Returns the remaining trace duration if that never happens.
+  private static double convergenceTimeSec(
+      double[] outputBitrateBps, int targetBitrateBps, int startFrame, int fps) {
+    final int windowFrames = Math.max(1, (int) (MEASUREMENT_WINDOW_SEC * fps));
+    int inToleranceSince = -1;
+    for (int i = startFrame; i < outputBitrateBps.length; ++i) {
+      final double relativeError = Math.abs(outputBitrateBps[i] / targetBitrateBps - 1);
+      if (relativeError > CONVERGENCE_TOLERANCE) {
+        inToleranceSince = -1;
+        continue;
+      }
+      if (inToleranceSince < 0) {
+        inToleranceSince = i;
+      }
+      if (i - inToleranceSince + 1 >= windowFrames) {
+        return (inToleranceSince - startFrame) / (double) fps;
+      }
+    }
+    return (outputBitrateBps.length - startFrame) / (double) fps;
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Replays synthetic frame size traces through the bitrate adjusters. */
+public class BitrateAdjusterTest {
+  private static final int TARGET_BITRATE_BPS = 1000000;
+  private static final int FPS = 30;
+
+  // An encoder that hits its target exactly.
+  private static final BitrateAdjusterSimulator.Trace IDEAL_TRACE =
+      BitrateAdjusterSimulator.Trace.synthetic(FPS, 20, 0, 1.0, new double[] {}, 1.0, 0, 0, 1);
+
+  // Key frames every 10 s, and twice the target for 10 s after scene changes at 5 s and 20 s.
+  private static final BitrateAdjusterSimulator.Trace OVERSHOOT_TRACE =
+      BitrateAdjusterSimulator.Trace.synthetic(
+          FPS, 40, 10, 4.0, new double[] {5, 20}, 2.0, 10, 0.1, 1);
+
+  // An encoder that only produces half of its target, e.g. on a static scene.
+  private static final BitrateAdjusterSimulator.Trace UNDERSHOOT_TRACE =
+      BitrateAdjusterSimulator.Trace.synthetic(FPS, 30, 0, 1.0, new double[] {0}, 0.5, 30, 0.05, 1);
+
+  private static BitrateAdjusterSimulator.Score score(
+      BitrateAdjuster adjuster, BitrateAdjusterSimulator.Trace trace) {
+    return BitrateAdjusterSimulator.score(adjuster, trace, TARGET_BITRATE_BPS);
+  }
+
+  @Test
+  public void testIdealEncoderNeedsNoAdjustment() {
+    final BitrateAdjuster[] adjusters = {new BaseBitrateAdjuster(), new DynamicBitrateAdjuster(),
+        new PredictiveBitrateAdjuster()};
+    for (BitrateAdjuster adjuster : adjusters) {
+      final BitrateAdjusterSimulator.Score score = score(adjuster, IDEAL_TRACE);
+      assertEquals(adjuster.getClass().getSimpleName(), 0, score.meanErrorPercent, 0.5);
+      assertEquals(TARGET_BITRATE_BPS, adjuster.getAdjustedBitrateBps(), TARGET_BITRATE_BPS / 100);
+    }
+  }
+
+  @Test
+  public void testDynamicAdjusterReducesOvershoot() {
+    final BitrateAdjusterSimulator.Score base = score(new BaseBitrateAdjuster(), OVERSHOOT_TRACE);
+    final BitrateAdjusterSimulator.Score dynamic =
+        score(new DynamicBitrateAdjuster(), OVERSHOOT_TRACE);
+    assertTrue(dynamic.toString(), dynamic.meanErrorPercent < base.meanErrorPercent);
+  }
+
+  @Test
+  public void testPredictiveAdjusterConvergesAfterSceneChange() {
+    final BitrateAdjusterSimulator.Score dynamic =
+        score(new DynamicBitrateAdjuster(), OVERSHOOT_TRACE);
+    final BitrateAdjusterSimulator.Score predictive =
+        score(new PredictiveBitrateAdjuster(), OVERSHOOT_TRACE);
+    assertTrue(predictive.toString(), predictive.convergenceTimeSec < 2.0);
+    assertTrue(predictive.toString(), predictive.meanErrorPercent < 10);
+    assertTrue(predictive.convergenceTimeSec < dynamic.convergenceTimeSec);
+    assertTrue(predictive.maxOvershootPercent < dynamic.maxOvershootPercent);
+  }
+
+  @Test
+  public void testPredictiveAdjusterRaisesBitrateForUndershootingEncoder() {
+    final PredictiveBitrateAdjuster adjuster = new PredictiveBitrateAdjuster();
+    final BitrateAdjusterSimulator.Score score = score(adjuster, UNDERSHOOT_TRACE);
+    assertTrue(score.toString(), score.convergenceTimeSec < 2.0);
+    assertTrue(score.toString(), score.meanErrorPercent < 5);
+    // The encoder needs to be asked for about twice the target.
+    assertEquals(2 * TARGET_BITRATE_BPS, adjuster.getAdjustedBitrateBps(),
+        0.2 * TARGET_BITRATE_BPS);
+  }
+
+  @Test
+  public void testAdjustedBitrateIsBounded() {
+    // An encoder that ignores its configuration and always produces ten times the target.
+    final double[] ratios = new double[10 * FPS];
+    for (int i = 0; i < ratios.length; ++i) {
+      ratios[i] = 10.0;
+    }
+    final BitrateAdjusterSimulator.Trace trace =
+        new BitrateAdjusterSimulator.Trace(FPS, ratios, new int[] {});
+    final BitrateAdjuster[] adjusters = {new DynamicBitrateAdjuster(),
+        new PredictiveBitrateAdjuster()};
+    for (BitrateAdjuster adjuster : adjusters) {
+      BitrateAdjusterSimulator.simulate(adjuster, trace, TARGET_BITRATE_BPS);
+      assertTrue(adjuster.getClass().getSimpleName(),
+          adjuster.getAdjustedBitrateBps() >= TARGET_BITRATE_BPS / 4 - 1);
+    }
+  }
+
+  @Test
+  public void testRecordedTraceRatios() {
+    // 1 Mbps at 25 fps is 5000 bytes per frame.
+    final BitrateAdjusterSimulator.Trace trace = BitrateAdjusterSimulator.Trace.fromRecordedFrames(
+        new int[] {5000, 10000, 2500}, TARGET_BITRATE_BPS, 25, new int[] {1});
+    assertEquals(1.0, trace.frameSizeRatios[0], 1e-9);
+    assertEquals(2.0, trace.frameSizeRatios[1], 1e-9);
+    assertEquals(0.5, trace.frameSizeRatios[2], 1e-9);
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.webrtc.CameraCapabilityCache.PowerBudget;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+public class CameraCapabilityCacheTest {
+  // Sorted by increasing pixel count, like the cached formats. Only the largest is limited to 15
+  // fps.
+  private static final List<CaptureFormat> FORMATS = Arrays.asList(
+      new CaptureFormat(320, 240, 7000, 30000), new CaptureFormat(640, 480, 7000, 30000),
+      new CaptureFormat(1280, 720, 7000, 30000), new CaptureFormat(1920, 1080, 7000, 15000));
+
+  private static void assertFormat(int width, int height, CaptureFormat format) {
+    assertEquals(width, format.width);
+    assertEquals(height, format.height);
+  }
+
+  @Test
+  public void testLowSelectsLargestFormatWithinTarget() {
+    assertFormat(
+        640, 480, CameraCapabilityCache.selectFormat(FORMATS, 960, 540, 30, PowerBudget.LOW));
+  }
+
+  @Test
+  public void testLowFallsBackToSmallestFormat() {
+    assertFormat(
+        320, 240, CameraCapabilityCache.selectFormat(FORMATS, 160, 120, 30, PowerBudget.LOW));
+  }
+
+  @Test
+  public void testBalancedSelectsClosestFormat() {
+    assertFormat(1280, 720,
+        CameraCapabilityCache.selectFormat(FORMATS, 1000, 600, 30, PowerBudget.BALANCED));
+    assertFormat(
+        640, 480, CameraCapabilityCache.selectFormat(FORMATS, 800, 500, 30, PowerBudget.BALANCED));
+  }
+
+  @Test
+  public void testHighSelectsSmallestFormatCoveringTarget() {
+    assertFormat(
+        1280, 720, CameraCapabilityCache.selectFormat(FORMATS, 960, 540, 30, PowerBudget.HIGH));
+  }
+
+  @Test
+  public void testFormatsBelowFpsAreSkipped() {
+    // 1920x1080 covers the target but cannot reach 30 fps.
+    assertFormat(
+        1280, 720, CameraCapabilityCache.selectFormat(FORMATS, 1920, 1080, 30, PowerBudget.HIGH));
+    assertFormat(
+        1920, 1080, CameraCapabilityCache.selectFormat(FORMATS, 1920, 1080, 15, PowerBudget.HIGH));
+  }
+
+  @Test
+  public void testAllFormatsAreCandidatesWhenNoneReachesFps() {
+    assertFormat(
+        1920, 1080, CameraCapabilityCache.selectFormat(FORMATS, 1920, 1080, 60, PowerBudget.HIGH));
+    assertFormat(
+        320, 240, CameraCapabilityCache.selectFormat(FORMATS, 160, 120, 60, PowerBudget.LOW));
+  }
+
+  @Test
+  public void testNoFormats() {
+    assertNull(CameraCapabilityCache.selectFormat(
+        new ArrayList<CaptureFormat>(), 640, 480, 30, PowerBudget.BALANCED));
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EncoderAdmissionControllerTest {
+  private static final int MAX_IN_FLIGHT_FRAMES = 3;
+  private static final long TARGET_LATENCY_MS = 20;
+  // Encode latency well above |TARGET_LATENCY_MS|.
+  private static final long SLOW_ENCODE_MS = 3 * TARGET_LATENCY_MS;
+
+  private static EncoderAdmissionController createController() {
+    return new EncoderAdmissionController(
+        MAX_IN_FLIGHT_FRAMES, TARGET_LATENCY_MS, false /* recordHistograms */);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsSingleFrameQueue() {
+    new EncoderAdmissionController(1, TARGET_LATENCY_MS, false /* recordHistograms */);
+  }
+
+  @Test
+  public void testLastSlotIsReservedForKeyFrames() {
+    final EncoderAdmissionController controller = createController();
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    assertFalse(controller.admitFrame(false /* isKeyFrame */));
+    assertTrue(controller.admitFrame(true /* isKeyFrame */));
+    assertFalse(controller.admitFrame(true /* isKeyFrame */));
+  }
+
+  @Test
+  public void testEncodedFramesFreeSlots() {
+    final EncoderAdmissionController controller = createController();
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    controller.onFrameEncoded();
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    assertFalse(controller.admitFrame(false /* isKeyFrame */));
+  }
+
+  @Test
+  public void testQueueFailureFreesSlot() {
+    final EncoderAdmissionController controller = createController();
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    controller.onFrameQueueFailed();
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+  }
+
+  @Test
+  public void testEncodedWithoutFramesInFlightIsIgnored() {
+    final EncoderAdmissionController controller = createController();
+    controller.onFrameEncoded();
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    assertFalse(controller.admitFrame(false /* isKeyFrame */));
+  }
+
+  @Test
+  public void testSlowEncoderAdmitsDeltaFramesOnlyIntoEmptyCodec() throws InterruptedException {
+    final EncoderAdmissionController controller = createController();
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    Thread.sleep(SLOW_ENCODE_MS);
+    controller.onFrameEncoded();
+
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    assertFalse(controller.admitFrame(false /* isKeyFrame */));
+    // Key frames may still use all slots.
+    assertTrue(controller.admitFrame(true /* isKeyFrame */));
+  }
+
+  @Test
+  public void testRecoversWhenLatencyDrops() throws InterruptedException {
+    final EncoderAdmissionController controller = createController();
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    Thread.sleep(SLOW_ENCODE_MS);
+    controller.onFrameEncoded();
+
+    // Fast frames pull the smoothed latency below half of the target.
+    for (int i = 0; i < 100; ++i) {
+      assertTrue(controller.admitFrame(false /* isKeyFrame */));
+      controller.onFrameEncoded();
+    }
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+  }
+
+  @Test
+  public void testResetForgetsFramesAndCongestion() throws InterruptedException {
+    final EncoderAdmissionController controller = createController();
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    Thread.sleep(SLOW_ENCODE_MS);
+    controller.onFrameEncoded();
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+
+    controller.reset();
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+    assertTrue(controller.admitFrame(false /* isKeyFrame */));
+  }
+}